@@ -22,6 +22,7 @@
 
 package pro.javacard.capfile;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public final class AID {
@@ -53,6 +54,11 @@ public final class AID {
         return bytes.clone();
     }
 
+    // Read-only view, without copying
+    public ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
     public int getLength() {
         return bytes.length;
     }
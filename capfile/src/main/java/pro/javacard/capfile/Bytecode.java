@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Instructions of the methods in a package, with calls resolved to methods of the same package
+// where that is possible without knowing the receiver. Method boundaries come from Symbols.
+final class Bytecode {
+    // Token of javacard.framework.Applet.process(APDU)
+    static final int PROCESS = 7;
+
+    private final MethodComponent method;
+    private final ConstantPoolComponent cp;
+    private final Optional<ClassComponent> classes;
+    private final Optional<ImportComponent> imports;
+    private final Symbols symbols;
+    private final ByteBuffer code;
+
+    Bytecode(MethodComponent method, ConstantPoolComponent cp, Optional<ClassComponent> classes, Optional<ImportComponent> imports, Symbols symbols) {
+        this.method = method;
+        this.cp = cp;
+        this.classes = classes;
+        this.imports = imports;
+        this.symbols = symbols;
+        this.code = method.getInfo();
+    }
+
+    ByteBuffer getCode() {
+        return code.duplicate();
+    }
+
+    int opcode(int pc) {
+        return code.get(pc) & 0xFF;
+    }
+
+    boolean isKnown(int offset) {
+        return symbols.getMethodOffsets().contains(offset);
+    }
+
+    // Offsets of the instructions of the method at offset
+    List<Integer> instructions(int offset) {
+        List<Integer> result = new ArrayList<>();
+        int end = symbols.getMethodEnd(offset);
+        for (int pc = method.getMethod(offset).getBytecodeOffset(); pc < end; pc += Opcodes.length(code, pc))
+            result.add(pc);
+        return result;
+    }
+
+    // Constant pool index of an instruction with a u2 index operand
+    int cpIndex(int pc) {
+        switch (opcode(pc)) {
+            case Opcodes.INVOKEINTERFACE:
+            case Opcodes.CHECKCAST:
+            case Opcodes.INSTANCEOF:
+                return code.getShort(pc + 2) & 0xFFFF;
+            default:
+                return code.getShort(pc + 1) & 0xFFFF;
+        }
+    }
+
+    // Class component offset of the class created by a new instruction, if in this package
+    Optional<Integer> newClass(int pc) {
+        int index = cpIndex(pc);
+        if (cp.isExternal(index))
+            return Optional.empty();
+        return Optional.of(cp.getClassRef(index));
+    }
+
+    // Method invoked at pc, if in this package. Virtual calls are resolved against the static
+    // type, so an override in a subclass is not seen.
+    Optional<Integer> invokeTarget(int pc) {
+        int opcode = opcode(pc);
+        if (opcode == Opcodes.INVOKEINTERFACE)
+            return Optional.empty();
+        int index = cpIndex(pc);
+        if (cp.isExternal(index))
+            return Optional.empty();
+        switch (cp.getTag(index)) {
+            case ConstantPoolComponent.CONSTANT_StaticMethodref:
+                return Optional.of(cp.getInternalOffset(index));
+            case ConstantPoolComponent.CONSTANT_VirtualMethodref:
+                return virtualMethod(cp.getClassRef(index), cp.getToken(index));
+            case ConstantPoolComponent.CONSTANT_SuperMethodref:
+                return superClass(cp.getClassRef(index)).flatMap(c -> virtualMethod(c, cp.getToken(index)));
+            default:
+                return Optional.empty();
+        }
+    }
+
+    // Method of an imported package invoked at pc. Static methods and constructors have tokens
+    // apart from virtual methods.
+    static final class ExternalMethod {
+        final AID pkg;
+        final int classToken;
+        final int token;
+        final boolean isStatic;
+
+        ExternalMethod(AID pkg, int classToken, int token, boolean isStatic) {
+            this.pkg = pkg;
+            this.classToken = classToken;
+            this.token = token;
+            this.isStatic = isStatic;
+        }
+    }
+
+    Optional<ExternalMethod> externalMethod(int pc) {
+        int opcode = opcode(pc);
+        if (!Opcodes.isInvoke(opcode) || !imports.isPresent())
+            return Optional.empty();
+        int index = cpIndex(pc);
+        if (!cp.isExternal(index))
+            return Optional.empty();
+        AID pkg = imports.get().getPackage(cp.getPackageToken(index)).getAid();
+        // invokeinterface refers to the interface, the method token is an operand
+        int token = opcode == Opcodes.INVOKEINTERFACE ? code.get(pc + 4) & 0xFF : cp.getToken(index);
+        return Optional.of(new ExternalMethod(pkg, cp.getClassToken(index), token, cp.isStatic(index)));
+    }
+
+    // Token of the static method of an imported class invoked at pc, like JCSystem in javacard.framework
+    OptionalInt externalStaticMethod(int pc, AID pkg, int classToken) {
+        if (opcode(pc) != Opcodes.INVOKESTATIC)
+            return OptionalInt.empty();
+        Optional<ExternalMethod> m = externalMethod(pc);
+        if (!m.isPresent() || m.get().classToken != classToken || !m.get().pkg.equals(pkg))
+            return OptionalInt.empty();
+        return OptionalInt.of(m.get().token);
+    }
+
+    // Name of the imported method invoked at pc, from the export file of its package
+    Optional<String> calleeName(int pc, Map<AID, ExportFile> exports) {
+        Optional<ExternalMethod> m = externalMethod(pc);
+        if (!m.isPresent())
+            return Optional.empty();
+        ExportFile exp = exports.get(m.get().pkg);
+        if (exp != null)
+            return exp.getMethodName(m.get().classToken, m.get().token, m.get().isStatic);
+        return ExportFile.getWellKnownMethodName(m.get().pkg, m.get().classToken, m.get().token, m.get().isStatic);
+    }
+
+    // process() of the class of the first object created by install(), the applet
+    Optional<Integer> process(int install) {
+        if (!isKnown(install))
+            return Optional.empty();
+        for (int pc : instructions(install)) {
+            if (opcode(pc) == Opcodes.NEW) {
+                Optional<Integer> c = newClass(pc);
+                if (c.isPresent())
+                    return virtualMethod(c.get(), PROCESS).filter(this::isKnown);
+            }
+        }
+        return Optional.empty();
+    }
+
+    // Internal superclass of an internal class
+    Optional<Integer> superClass(int classRef) {
+        if (!classes.isPresent() || ConstantPoolComponent.isExternalClassRef(classRef))
+            return Optional.empty();
+        int superRef = classes.get().getClassInfo(classRef).getSuperClassRef();
+        if (superRef == 0xFFFF || ConstantPoolComponent.isExternalClassRef(superRef))
+            return Optional.empty();
+        return Optional.of(superRef);
+    }
+
+    // Implementation of a virtual method in the class or its superclasses in this package
+    Optional<Integer> virtualMethod(int classRef, int token) {
+        if (!classes.isPresent() || ConstantPoolComponent.isExternalClassRef(classRef))
+            return Optional.empty();
+        ClassComponent.ClassInfo c = classes.get().getClassInfo(classRef);
+        boolean pkg = (token & 0x80) == 0x80;
+        int index = (token & 0x7F) - ((pkg ? c.getPackageMethodTableBase() : c.getPublicMethodTableBase()) & 0x7F);
+        int count = pkg ? c.getPackageMethodTableCount() : c.getPublicMethodTableCount();
+        if (index >= 0 && index < count) {
+            int offset = pkg ? c.getPackageVirtualMethod(token) : c.getPublicVirtualMethod(token);
+            return offset == 0xFFFF ? Optional.empty() : Optional.of(offset);
+        }
+        return superClass(classRef).flatMap(s -> virtualMethod(s, token));
+    }
+
+    // Size of instances of an internal class, in bytes, including fields of superclasses in this
+    // package. Fields of an imported superclass are not known.
+    int instanceSize(int classRef) {
+        if (!classes.isPresent())
+            return 0;
+        int size = 2 * classes.get().getClassInfo(classRef).getDeclaredInstanceSize();
+        Optional<Integer> s = superClass(classRef);
+        return s.isPresent() ? size + instanceSize(s.get()) : size;
+    }
+
+    // Methods with known bounds reachable from the given one through calls resolved in this
+    // package, including itself, in order of discovery
+    Set<Integer> reachable(int offset) {
+        Set<Integer> result = new LinkedHashSet<>();
+        Deque<Integer> todo = new ArrayDeque<>();
+        todo.add(offset);
+        while (!todo.isEmpty()) {
+            int m = todo.poll();
+            if (!isKnown(m) || !result.add(m))
+                continue;
+            for (int pc : instructions(m)) {
+                if (Opcodes.isInvoke(opcode(pc)))
+                    invokeTarget(pc).ifPresent(todo::add);
+            }
+        }
+        return result;
+    }
+
+    // Short constants on top of the operand stack along straight-line code, folded through short
+    // arithmetic like the length in makeTransientByteArray((short) (2 * SIZE), ...). Any other
+    // instruction makes the stack unknown. Query before stepping over an instruction.
+    static final class Constants {
+        private final Deque<Integer> known = new ArrayDeque<>();
+
+        // Value at depth from the top of the stack (0 is the top), if known
+        OptionalInt peek(int depth) {
+            Iterator<Integer> i = known.iterator();
+            for (int d = 0; i.hasNext(); d++) {
+                int v = i.next();
+                if (d == depth)
+                    return OptionalInt.of(v);
+            }
+            return OptionalInt.empty();
+        }
+
+        void step(ByteBuffer code, int pc) {
+            OptionalInt c = Opcodes.shortConstant(code, pc);
+            int opcode = code.get(pc) & 0xFF;
+            if (c.isPresent()) {
+                known.push(c.getAsInt());
+            } else if (opcode >= Opcodes.SADD && opcode <= Opcodes.SXOR && (opcode - Opcodes.SADD) % 2 == 0) {
+                OptionalInt result = fold((opcode - Opcodes.SADD) / 2);
+                if (result.isPresent())
+                    known.push(result.getAsInt());
+                else
+                    known.clear();
+            } else {
+                known.clear();
+            }
+        }
+
+        // Operations in the order of sadd, ssub, ..., sxor, on known operands
+        private OptionalInt fold(int operation) {
+            if (operation == 5) // sneg
+                return known.isEmpty() ? OptionalInt.empty() : OptionalInt.of((short) -known.pop());
+            if (known.size() < 2)
+                return OptionalInt.empty();
+            int b = known.pop();
+            int a = known.pop();
+            switch (operation) {
+                case 0:
+                    return OptionalInt.of((short) (a + b));
+                case 1:
+                    return OptionalInt.of((short) (a - b));
+                case 2:
+                    return OptionalInt.of((short) (a * b));
+                case 3:
+                    return b == 0 ? OptionalInt.empty() : OptionalInt.of((short) (a / b));
+                case 4:
+                    return b == 0 ? OptionalInt.empty() : OptionalInt.of((short) (a % b));
+                case 6:
+                    return OptionalInt.of((short) (a << (b & 0x1F)));
+                case 7:
+                    return OptionalInt.of((short) (a >> (b & 0x1F)));
+                case 8:
+                    return OptionalInt.of((short) ((a & 0xFFFF) >>> (b & 0x1F)));
+                case 9:
+                    return OptionalInt.of((short) (a & b));
+                case 10:
+                    return OptionalInt.of((short) (a | b));
+                default:
+                    return OptionalInt.of((short) (a ^ b));
+            }
+        }
+    }
+}
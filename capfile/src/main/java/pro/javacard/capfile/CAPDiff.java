@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+// Differences of two builds of a package, component by component. Classes and methods are compared
+// by name if both CAP files have a Debug component, otherwise by Descriptor tokens (package-visible
+// classes and private methods have no token and are told apart by their order). Internal offsets
+// are replaced with these names, so that code moving around does not show up as a change.
+public final class CAPDiff {
+    // Block size for finding unchanged runs in large components
+    static final int BLOCK = 8;
+
+    private final List<ComponentChange> components = new ArrayList<>();
+    private final List<String> addedClasses = new ArrayList<>();
+    private final List<String> removedClasses = new ArrayList<>();
+    private final List<MethodChange> methods = new ArrayList<>();
+    private final List<String> addedConstants = new ArrayList<>();
+    private final List<String> removedConstants = new ArrayList<>();
+    private final List<String> imports = new ArrayList<>();
+
+    public static final class ComponentChange {
+        private final String name;
+        private final int from;
+        private final int to;
+        private final int changed;
+
+        ComponentChange(String name, int from, int to, int changed) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+            this.changed = changed;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // Size with tag and size, -1 if not present
+        public int getFromSize() {
+            return from;
+        }
+
+        public int getToSize() {
+            return to;
+        }
+
+        public int getDelta() {
+            return Math.max(to, 0) - Math.max(from, 0);
+        }
+
+        // Bytes of the new component that are not found in the old one
+        public int getChangedBytes() {
+            return changed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-14s %6s -> %-6s %+6d  %d bytes changed", name, from < 0 ? "-" : Integer.toString(from),
+                    to < 0 ? "-" : Integer.toString(to), getDelta(), changed);
+        }
+    }
+
+    public static final class MethodChange {
+        private final String name;
+        private final int from;
+        private final int to;
+
+        MethodChange(String name, int from, int to) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAdded() {
+            return from < 0;
+        }
+
+        public boolean isRemoved() {
+            return to < 0;
+        }
+
+        // Size with header, -1 if not present
+        public int getFromSize() {
+            return from;
+        }
+
+        public int getToSize() {
+            return to;
+        }
+
+        @Override
+        public String toString() {
+            if (isAdded())
+                return String.format("+ %s (%d bytes)", name, to);
+            if (isRemoved())
+                return String.format("- %s (%d bytes)", name, from);
+            return String.format("  %s %d -> %d (%+d bytes)", name, from, to, to - from);
+        }
+    }
+
+    private CAPDiff() {
+    }
+
+    static CAPDiff diff(CAPFile from, CAPFile to) {
+        CAPDiff diff = new CAPDiff();
+        for (String name : CAPFile.getComponentNames()) {
+            Optional<ByteBuffer> a = from.getComponentBuffer(name);
+            Optional<ByteBuffer> b = to.getComponentBuffer(name);
+            if (!a.isPresent() && !b.isPresent())
+                continue;
+            if (!a.isPresent())
+                diff.components.add(new ComponentChange(name, -1, b.get().remaining(), b.get().remaining()));
+            else if (!b.isPresent())
+                diff.components.add(new ComponentChange(name, a.get().remaining(), -1, 0));
+            else if (!a.get().equals(b.get()))
+                diff.components.add(new ComponentChange(name, a.get().remaining(), b.get().remaining(), changed(CAPFile.bytes(a.get()), CAPFile.bytes(b.get()))));
+        }
+
+        boolean debug = from.getDebugComponent().isPresent() && to.getDebugComponent().isPresent();
+        Names x = new Names(from, debug);
+        Names y = new Names(to, debug);
+
+        diff.addedClasses.addAll(minus(y.classes.values(), x.classes.values()));
+        diff.removedClasses.addAll(minus(x.classes.values(), y.classes.values()));
+        for (Map.Entry<String, Integer> m : x.sizes.entrySet()) {
+            Integer size = y.sizes.get(m.getKey());
+            if (size == null)
+                diff.methods.add(new MethodChange(m.getKey(), m.getValue(), -1));
+            else if (!size.equals(m.getValue()))
+                diff.methods.add(new MethodChange(m.getKey(), m.getValue(), size));
+        }
+        for (Map.Entry<String, Integer> m : y.sizes.entrySet()) {
+            if (!x.sizes.containsKey(m.getKey()))
+                diff.methods.add(new MethodChange(m.getKey(), -1, m.getValue()));
+        }
+
+        List<String> cpx = x.constants();
+        List<String> cpy = y.constants();
+        diff.addedConstants.addAll(minus(cpy, cpx));
+        diff.removedConstants.addAll(minus(cpx, cpy));
+
+        Map<AID, CAPPackage> ix = new LinkedHashMap<>();
+        from.getImports().forEach(p -> ix.put(p.getAid(), p));
+        for (CAPPackage p : to.getImports()) {
+            CAPPackage old = ix.remove(p.getAid());
+            if (old == null)
+                diff.imports.add("+ " + p);
+            else if (old.getMajor() != p.getMajor() || old.getMinor() != p.getMinor())
+                diff.imports.add(String.format("  %s v%s -> v%s", Names.name(p), old.getVersionString(), p.getVersionString()));
+        }
+        ix.values().forEach(p -> diff.imports.add("- " + p));
+        return diff;
+    }
+
+    // Elements of a that are not in b, counting duplicates, in the order of a
+    static List<String> minus(Collection<String> a, Collection<String> b) {
+        Map<String, Integer> counts = new HashMap<>();
+        b.forEach(s -> counts.merge(s, 1, Integer::sum));
+        List<String> result = new ArrayList<>();
+        for (String s : a) {
+            Integer n = counts.get(s);
+            if (n == null || n == 0)
+                result.add(s);
+            else
+                counts.put(s, n - 1);
+        }
+        return result;
+    }
+
+    // Bytes of b that are not in a. Common prefix and suffix are skipped, small changes in between
+    // are counted as is, larger ones are matched in blocks with a rolling hash, like rsync does.
+    static int changed(byte[] a, byte[] b) {
+        int min = Math.min(a.length, b.length);
+        int prefix = 0;
+        while (prefix < min && a[prefix] == b[prefix])
+            prefix++;
+        int suffix = 0;
+        while (suffix < min - prefix && a[a.length - 1 - suffix] == b[b.length - 1 - suffix])
+            suffix++;
+        int aEnd = a.length - suffix;
+        int bEnd = b.length - suffix;
+        if (aEnd - prefix < BLOCK * 4 || bEnd - prefix < BLOCK * 4)
+            return bEnd - prefix;
+        return bEnd - prefix - matched(a, prefix, aEnd, b, prefix, bEnd);
+    }
+
+    private static final int PRIME = 0x01000193;
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++)
+            h = h * PRIME + (data[offset + i] & 0xFF);
+        return h;
+    }
+
+    private static int slot(int hash, int mask) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    // Bytes of b[bStart, bEnd) covered by blocks of a[aStart, aEnd)
+    private static int matched(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+        int blocks = (aEnd - aStart) / BLOCK;
+        int size = Integer.highestOneBit(blocks * 2 - 1) << 1;
+        int mask = size - 1;
+        int[] head = new int[size];
+        Arrays.fill(head, -1);
+        int[] next = new int[blocks];
+        for (int k = 0; k < blocks; k++) {
+            int s = slot(hash(a, aStart + k * BLOCK), mask);
+            next[k] = head[s];
+            head[s] = k;
+        }
+        // Weight of the byte that leaves the window
+        int out = 1;
+        for (int i = 1; i < BLOCK; i++)
+            out *= PRIME;
+
+        int matched = 0;
+        int i = bStart;
+        int h = hash(b, i);
+        while (i + BLOCK <= bEnd) {
+            boolean found = false;
+            for (int k = head[slot(h, mask)]; k != -1 && !found; k = next[k]) {
+                found = equal(a, aStart + k * BLOCK, b, i);
+            }
+            if (found) {
+                matched += BLOCK;
+                i += BLOCK;
+                if (i + BLOCK <= bEnd)
+                    h = hash(b, i);
+            } else {
+                if (i + BLOCK < bEnd)
+                    h = (h - (b[i] & 0xFF) * out) * PRIME + (b[i + BLOCK] & 0xFF);
+                i++;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (a[aOffset + i] != b[bOffset + i])
+                return false;
+        }
+        return true;
+    }
+
+    // Names of classes, methods and static fields of one CAP file, by offset
+    private static final class Names {
+        private static final Pattern REFS = Pattern.compile("@([0-9a-f]{4})|(\\d+)\\.(\\d+)");
+        final CAPFile cap;
+        final Map<Integer, String> classes = new LinkedHashMap<>(); // Class component offset
+        final Map<Integer, String> methods = new HashMap<>(); // Method component offset
+        final Map<Integer, String> fields = new HashMap<>(); // StaticField component offset
+        final Map<String, Integer> sizes = new LinkedHashMap<>(); // Method with header
+
+        Names(CAPFile cap, boolean debug) {
+            this.cap = cap;
+            Optional<DescriptorComponent> descriptor = cap.getDescriptorComponent();
+            Optional<MethodComponent> method = cap.getMethodComponent();
+            if (debug) {
+                for (DebugComponent.ClassDebugInfo c : cap.getDebugComponent().get().getClasses()) {
+                    String cname = c.getName().replace('/', '.');
+                    classes.put(c.getLocation(), cname);
+                    for (DebugComponent.MethodDebugInfo m : c.getMethods()) {
+                        String mname = cname + "." + m.getName() + m.getDescriptor();
+                        if (m.getBodySize() > 0)
+                            methods.put(m.getLocation(), mname);
+                        sizes.put(mname, m.getBodySize() == 0 ? 0 : m.getHeaderSize() + m.getBodySize());
+                    }
+                }
+            } else if (descriptor.isPresent()) {
+                int unnamed = 0;
+                for (DescriptorComponent.ClassDescriptor c : descriptor.get().getClasses()) {
+                    classes.put(c.getThisClassRef(), c.getToken() == 0xFF ? "class@" + unnamed++ : "class#" + c.getToken());
+                }
+            }
+            if (!descriptor.isPresent())
+                return;
+            for (DescriptorComponent.ClassDescriptor c : descriptor.get().getClasses()) {
+                String cname = classes.getOrDefault(c.getThisClassRef(), ConstantPoolComponent.classRefToString(c.getThisClassRef()));
+                int unnamed = 0;
+                for (int i = 0; i < c.getFieldCount(); i++) {
+                    DescriptorComponent.FieldDescriptor f = c.getField(i);
+                    if (f.isStatic())
+                        fields.put(f.getStaticFieldOffset(), cname + "." + (f.getToken() == 0xFF ? "field@" + unnamed++ : "field#" + f.getToken()));
+                }
+                if (debug)
+                    continue;
+                unnamed = 0;
+                for (DescriptorComponent.MethodDescriptor m : c.getMethods()) {
+                    String kind = m.isInit() ? "<init>" : m.isStatic() ? "static" : "virtual";
+                    String token = m.isInit() ? "" : m.getToken() == 0xFF ? "@" + unnamed++ : "#" + m.getToken();
+                    String mname = cname + "." + kind + token + type(m.getType());
+                    boolean code = !m.isAbstract() && m.getMethodOffset() != 0 && method.isPresent();
+                    if (code)
+                        methods.put(m.getMethodOffset(), mname);
+                    sizes.put(mname, code ? method.get().getMethod(m.getMethodOffset()).getHeaderSize() + m.getBytecodeCount() : 0);
+                }
+            }
+        }
+
+        static String name(CAPPackage p) {
+            return p.getName().orElse(WellKnownAID.getName(p.getAid()).orElse(p.getAid().toString()));
+        }
+
+        String klass(int classRef) {
+            if (ConstantPoolComponent.isExternalClassRef(classRef))
+                return external((classRef >> 8) & 0x7F, classRef & 0xFF);
+            return classes.getOrDefault(classRef, ConstantPoolComponent.classRefToString(classRef));
+        }
+
+        String external(int pkg, int cls) {
+            List<CAPPackage> imports = cap.getImports();
+            String p = pkg < imports.size() ? name(imports.get(pkg)) : Integer.toString(pkg);
+            return p + ".class#" + cls;
+        }
+
+        // Class references of a type descriptor, by name
+        String type(String descriptor) {
+            Matcher m = REFS.matcher(descriptor);
+            StringBuffer sb = new StringBuffer();
+            while (m.find()) {
+                String replacement = m.group(1) != null ? klass(Integer.parseInt(m.group(1), 16))
+                        : external(Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+                m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+            }
+            m.appendTail(sb);
+            return sb.toString();
+        }
+
+        List<String> constants() {
+            Optional<ConstantPoolComponent> component = cap.getConstantPoolComponent();
+            if (!component.isPresent())
+                return Collections.emptyList();
+            ConstantPoolComponent cp = component.get();
+            List<String> result = new ArrayList<>(cp.getCount());
+            for (int i = 0; i < cp.getCount(); i++) {
+                int tag = cp.getTag(i);
+                switch (tag) {
+                    case ConstantPoolComponent.CONSTANT_Classref:
+                        result.add("classRef " + klass(cp.getClassRef(i)));
+                        break;
+                    case ConstantPoolComponent.CONSTANT_InstanceFieldref:
+                        result.add("instanceFieldRef " + klass(cp.getClassRef(i)) + ".field#" + cp.getToken(i));
+                        break;
+                    case ConstantPoolComponent.CONSTANT_VirtualMethodref:
+                        result.add("virtualMethodRef " + klass(cp.getClassRef(i)) + ".virtual#" + cp.getToken(i));
+                        break;
+                    case ConstantPoolComponent.CONSTANT_SuperMethodref:
+                        result.add("superMethodRef " + klass(cp.getClassRef(i)) + ".virtual#" + cp.getToken(i));
+                        break;
+                    case ConstantPoolComponent.CONSTANT_StaticFieldref:
+                    case ConstantPoolComponent.CONSTANT_StaticMethodref:
+                        boolean field = tag == ConstantPoolComponent.CONSTANT_StaticFieldref;
+                        String kind = field ? "staticFieldRef " : "staticMethodRef ";
+                        if (cp.isExternal(i)) {
+                            result.add(kind + external(cp.getPackageToken(i), cp.getClassToken(i)) + (field ? ".field#" : ".static#") + cp.getToken(i));
+                        } else {
+                            int offset = cp.getInternalOffset(i);
+                            String name = (field ? fields : methods).get(offset);
+                            result.add(kind + (name == null ? String.format("@%04x", offset) : name));
+                        }
+                        break;
+                    default:
+                        result.add(cp.toString(i));
+                }
+            }
+            return result;
+        }
+    }
+
+    public boolean isEmpty() {
+        return components.isEmpty();
+    }
+
+    // Components that differ, in load order
+    public List<ComponentChange> getComponents() {
+        return Collections.unmodifiableList(components);
+    }
+
+    public List<String> getAddedClasses() {
+        return Collections.unmodifiableList(addedClasses);
+    }
+
+    public List<String> getRemovedClasses() {
+        return Collections.unmodifiableList(removedClasses);
+    }
+
+    // Added, removed and resized methods
+    public List<MethodChange> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    public List<String> getAddedConstants() {
+        return Collections.unmodifiableList(addedConstants);
+    }
+
+    public List<String> getRemovedConstants() {
+        return Collections.unmodifiableList(removedConstants);
+    }
+
+    // Added ("+ "), removed ("- ") and re-versioned imports
+    public List<String> getImports() {
+        return Collections.unmodifiableList(imports);
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty())
+            return "No differences";
+        return String.format("%d components differ: %s", components.size(),
+                components.stream().map(ComponentChange::getName).collect(Collectors.joining(", ")));
+    }
+}
@@ -33,16 +33,25 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -50,38 +59,152 @@ import java.util.zip.ZipOutputStream;
 /**
  * Parses a CAP file as specified in JavaCard 2.2 VM Specification, chapter 6.
  * CAP files are tiny, so we keep it in memory.
+ * Instances are immutable and can be shared between threads; derived values are computed once, on first use.
  */
 public final class CAPFile {
 
-    private static final String[] componentNames = {"Header", "Directory", "Import", "Applet", "Class", "Method", "StaticField", "Export",
+    static final String[] componentNames = {"Header", "Directory", "Import", "Applet", "Class", "Method", "StaticField", "Export",
             "ConstantPool", "RefLocation", "Descriptor", "Debug"};
-    protected final Map<String, byte[]> entries; // All raw ZIP entries
-    // Parsed content
-    private final Map<AID, String> applets = new LinkedHashMap<>();
-    private final List<CAPPackage> imports = new ArrayList<>();
-    private CAPPackage pkg;
-    private byte flags;
-    private String cap_version;
+    private static final AID JAVACARD_FRAMEWORK = new AID("A0000000620101"); // javacard.framework
+    private static final AID JAVACARD_SECURITY = new AID("A0000000620102"); // javacard.security
+    private static final AID GLOBALPLATFORM = new AID("A00000015100"); // org.globalplatform
+    // 1980-01-01 00:00 in DOS time of any timezone, for reproducible output
+    private static final long FIXED_TIME = LocalDateTime.of(1980, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    protected final Map<String, ByteBuffer> entries; // All raw ZIP entries, read-only
+    private final String pkgname;
+    // Parsed content, decoded on first access
+    private final Lazy<CAPPackage> pkg = new Lazy<>(this::parsePackage);
+    private final Lazy<List<CAPPackage>> packages = new Lazy<>(() -> Collections.unmodifiableList(getHeaderComponent().getPackages()));
+    private final Lazy<List<CAPFile>> loadFiles = new Lazy<>(this::findLoadFiles);
+    // Components
+    private final Lazy<HeaderComponent> header = new Lazy<>(() -> component("Header", HeaderComponent::new)
+            .orElseThrow(() -> new IllegalStateException("No Header component")));
+    private final Lazy<Optional<DirectoryComponent>> directory = new Lazy<>(() -> component("Directory", DirectoryComponent::new));
+    private final Lazy<Optional<AppletComponent>> applet = new Lazy<>(() -> component("Applet", AppletComponent::new));
+    private final Lazy<Optional<ImportComponent>> importComponent = new Lazy<>(() -> component("Import", ImportComponent::new));
+    private final Lazy<Optional<ClassComponent>> classComponent = new Lazy<>(() -> component("Class", c -> new ClassComponent(c, hasSignaturePool())));
+    private final Lazy<Optional<MethodComponent>> method = new Lazy<>(() -> component("Method", MethodComponent::new));
+    private final Lazy<Optional<StaticFieldComponent>> staticField = new Lazy<>(() -> component("StaticField", StaticFieldComponent::new));
+    private final Lazy<Optional<ExportComponent>> export = new Lazy<>(() -> component("Export", ExportComponent::new));
+    private final Lazy<Optional<ConstantPoolComponent>> constantPool = new Lazy<>(() -> component("ConstantPool", ConstantPoolComponent::new));
+    private final Lazy<Optional<RefLocationComponent>> refLocation = new Lazy<>(() -> component("RefLocation", RefLocationComponent::new));
+    private final Lazy<Optional<DescriptorComponent>> descriptor = new Lazy<>(() -> component("Descriptor", DescriptorComponent::new));
+    private final Lazy<Optional<DebugComponent>> debug = new Lazy<>(() -> component("Debug", DebugComponent::new));
+    private final Lazy<Map<AID, String>> applets = new Lazy<>(this::parseApplets);
+    private final Lazy<List<CAPPackage>> imports = new Lazy<>(this::parseImports);
     // Metadata
-    private Manifest manifest = null; // From 2.2.2
-    private Document appletxml = null; // From 3.0.1
-    private Path file;
-
+    private final Lazy<Optional<Manifest>> manifest = new Lazy<>(this::parseManifest); // From 2.2.2
+    private final Lazy<Optional<Document>> appletxml = new Lazy<>(this::parseAppletXml); // From 3.0.1
+    // Derived values
+    private final Lazy<List<AID>> appletAIDs = new Lazy<>(() -> Collections.unmodifiableList(new ArrayList<>(getApplets().keySet())));
+    private final Lazy<String> capVersion = new Lazy<>(this::parseCAPVersion);
+    private final Lazy<List<String>> flags = new Lazy<>(() -> Collections.unmodifiableList(flags2strings((byte) header.get().getFlags())));
+    private final Lazy<byte[]> code = new Lazy<>(() -> _getCode(false));
+    private final Map<String, byte[]> hashes = new ConcurrentHashMap<>();
+    private final Lazy<Symbols> symbols = new Lazy<>(() -> new Symbols(getMethodComponent(), getDescriptorComponent(), getDebugComponent()));
+    private final Lazy<List<MethodFootprint>> methodFootprints = new Lazy<>(() -> getMethodComponent()
+            .map(m -> MethodFootprint.of(m, symbols.get())).orElse(Collections.emptyList()));
+    private final Lazy<MemoryFootprint> memoryFootprint = new Lazy<>(() -> MemoryFootprint.of(this, MemoryFootprint.DEFAULT_OBJECT_HEADER));
+    private final Lazy<LinkCost> linkCost = new Lazy<>(() -> LinkCost.of(this));
+    private final Lazy<Optional<SourceMap>> sourceMap = new Lazy<>(() -> getDebugComponent().map(SourceMap::new));
+    private final Lazy<Optional<String>> javaCardVersion = new Lazy<>(this::_guessJavaCardVersion);
+    private final Lazy<Optional<String>> globalPlatformVersion = new Lazy<>(this::_guessGlobalPlatformVersion);
+    private final Map<String, Integer> dropped; // Components not kept, with size or -1
+    private final Path file;
+
+    // What to do with a ZIP entry when reading a CAP file from a stream
+    public enum Retention {
+        KEEP, // Keep in memory
+        HASH, // Include in load file data hashes, if a component, but do not keep
+        SKIP // Ignore
+    }
 
     public static CAPFile fromStream(InputStream in) throws IOException {
         return new CAPFile(in);
     }
 
+    // Reads a CAP file from a stream, keeping only the entries the policy asks for. Load file data
+    // hashes with the given algorithms are calculated while reading, so memory use is bounded by
+    // the kept entries. Header is always kept. Code and hashes of anything else are not available
+    // afterwards if some component was not kept.
+    public static CAPFile fromStream(InputStream in, Function<String, Retention> policy, String... hashes) throws IOException {
+        StreamingReader reader = new StreamingReader(policy, hashes);
+        try (ZipInputStream zip = new ZipInputStream(in)) {
+            reader.read(zip);
+        }
+        return fromReader(reader);
+    }
+
+    // Copies a CAP file from one stream to another in a single pass, leaving out the entries not
+    // accepted by the filter. Returns the copy, as read with fromStream(InputStream, Function, String...)
+    public static CAPFile copy(InputStream in, OutputStream out, Predicate<String> filter, Function<String, Retention> policy, String... hashes) throws IOException {
+        StreamingReader reader = new StreamingReader(policy, hashes);
+        try (ZipInputStream zin = new ZipInputStream(in); ZipOutputStream zout = new ZipOutputStream(out)) {
+            reader.transfer(zin, zout, filter);
+        }
+        return fromReader(reader);
+    }
+
+    private static CAPFile fromReader(StreamingReader reader) throws IOException {
+        CAPFile cap = new CAPFile(reader.getEntries(), reader.getDropped(), null, null);
+        if (reader.getHashedDirectory().equals(Optional.of(pkg2jcdir(cap.pkgname))))
+            cap.hashes.putAll(reader.getHashes());
+        return cap.decode();
+    }
+
+    // Retention policy that keeps the named components (like "Import"), hashes other components
+    // and skips everything else.
+    public static Function<String, Retention> retain(String... components) {
+        Set<String> keep = new HashSet<>(Arrays.asList(components));
+        return name -> {
+            if (!name.endsWith(".cap") || !name.contains("/javacard/"))
+                return Retention.SKIP;
+            String component = name.substring(name.lastIndexOf('/') + 1, name.length() - 4);
+            return keep.contains(component) ? Retention.KEEP : Retention.HASH;
+        };
+    }
+
     public static CAPFile fromBytes(byte[] bytes) throws IOException {
         return fromStream(new ByteArrayInputStream(bytes));
     }
 
     public static CAPFile fromFile(Path path) throws IOException {
         try (InputStream in = Files.newInputStream(path)) {
-            CAPFile cap = fromStream(in);
-            cap.file = path;
-            return cap;
+            return new CAPFile(readEntries(in), path).decode();
+        }
+    }
+
+    // Memory-maps the file and reads only the ZIP central directory. Components and metadata
+    // are read and decoded when first accessed, so parsing errors surface as UncheckedIOException.
+    public static CAPFile open(Path path) throws IOException {
+        return new CAPFile(MappedZip.open(path), path);
+    }
+
+    // Opens a CAP file nested in a JAR or ZIP file, like "lib.jar" and "pkg/javacard/pkg.cap". More
+    // levels of nesting can follow. Stored entries are used in place from the mapped file, compressed
+    // ones are inflated in memory (intermediate archives) or streamed (the CAP file itself).
+    public static CAPFile open(Path archive, String entry, String... nested) throws IOException {
+        List<String> names = new ArrayList<>();
+        names.add(entry);
+        names.addAll(Arrays.asList(nested));
+        MappedZip zip = MappedZip.open(archive);
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            if (!zip.containsKey(name))
+                throw new IOException("No such entry: " + String.join("!/", names.subList(0, i + 1)));
+            if (i < names.size() - 1 || zip.isStored(name)) {
+                try {
+                    zip = MappedZip.of(zip.get(name));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            } else {
+                try (InputStream in = zip.stream(name)) {
+                    return fromStream(in);
+                }
+            }
         }
+        return new CAPFile(zip, null).decode();
     }
 
     public Optional<Path> getFile() {
@@ -89,158 +212,450 @@ public final class CAPFile {
     }
 
     public byte[] getComponent(String name) {
-        byte[] c = entries.get(pkg2jcdir(getPackageName()) + name + ".cap");
-        return c == null ? null : c.clone();
+        return getComponentBuffer(name).map(CAPFile::bytes).orElse(null);
+    }
+
+    // Read-only view of the raw component, sharing storage with this instance
+    public Optional<ByteBuffer> getComponentBuffer(String name) {
+        return getZipEntryBuffer(pkg2jcdir(pkgname) + name + ".cap");
+    }
+
+    // Names of all components, in load order
+    public static List<String> getComponentNames() {
+        return Collections.unmodifiableList(Arrays.asList(componentNames));
+    }
+
+    // Size of the component with tag and size, also when it was not kept while streaming
+    public Optional<Integer> getComponentSize(String name) {
+        Integer size = dropped.get(pkg2jcdir(pkgname) + name + ".cap");
+        if (size != null)
+            return size < 0 ? Optional.empty() : Optional.of(size);
+        return getComponentBuffer(name).map(ByteBuffer::remaining);
+    }
+
+    public HeaderComponent getHeaderComponent() {
+        return header.get();
+    }
+
+    public Optional<DirectoryComponent> getDirectoryComponent() {
+        return directory.get();
+    }
+
+    public Optional<ImportComponent> getImportComponent() {
+        return importComponent.get();
+    }
+
+    public Optional<AppletComponent> getAppletComponent() {
+        return applet.get();
+    }
+
+    public Optional<ClassComponent> getClassComponent() {
+        return classComponent.get();
+    }
+
+    public Optional<MethodComponent> getMethodComponent() {
+        return method.get();
+    }
+
+    public Optional<StaticFieldComponent> getStaticFieldComponent() {
+        return staticField.get();
+    }
+
+    public Optional<ExportComponent> getExportComponent() {
+        return export.get();
+    }
+
+    public Optional<ConstantPoolComponent> getConstantPoolComponent() {
+        return constantPool.get();
+    }
+
+    public Optional<RefLocationComponent> getRefLocationComponent() {
+        return refLocation.get();
+    }
+
+    public Optional<DescriptorComponent> getDescriptorComponent() {
+        return descriptor.get();
+    }
+
+    public Optional<DebugComponent> getDebugComponent() {
+        return debug.get();
+    }
+
+    // Size and frame of every method with bytecode, in the order of the Method component. Method
+    // boundaries come from the Descriptor or Debug component, so this is empty without them.
+    public List<MethodFootprint> getMethodFootprints() {
+        return methodFootprints.get();
+    }
+
+    // Estimate of persistent memory of the package and applet instances, with object headers of
+    // MemoryFootprint.DEFAULT_OBJECT_HEADER bytes
+    public MemoryFootprint getMemoryFootprint() {
+        return memoryFootprint.get();
+    }
+
+    public MemoryFootprint getMemoryFootprint(int objectHeader) {
+        return MemoryFootprint.of(this, objectHeader);
+    }
+
+    // Constant pool entries and relocations the card resolves when linking the package
+    public LinkCost getLinkCost() {
+        return linkCost.get();
+    }
+
+    // Static cost estimate of process() of every applet, by applet AID
+    public Map<AID, CycleCost> getCycleCosts(CostProfile profile) {
+        return CycleCost.of(this, profile);
+    }
+
+    // Slow or wasteful patterns in the bytecode. Export files of imported packages, by AID, give
+    // names to the methods called.
+    public List<Lint.Finding> lint(Map<AID, ExportFile> exports) {
+        return Lint.of(this, exports);
+    }
+
+    // Writes to persistent memory and transactions. Export files of imported packages, by AID,
+    // give names to the methods called.
+    public PersistentWrites getPersistentWrites(Map<AID, ExportFile> exports) {
+        return PersistentWrites.of(this, exports);
+    }
+
+    // Source locations of Method component offsets, if the CAP file was converted with debug info
+    public Optional<SourceMap> getSourceMap() {
+        return sourceMap.get();
+    }
+
+    // A new interpreter with the package loaded and no applets installed. Export files of imported
+    // packages, by AID, are needed to find the stubs of the API methods called.
+    public Interpreter interpreter(Map<AID, ExportFile> exports) {
+        return new Interpreter(this, exports);
+    }
+
+    // The same load file under another package AID and version, with applets renamed by the map (others
+    // keep their AID), without another conversion. Only Header, Applet and Directory components and the
+    // metadata change. In memory, to be stored with store() or storeReproducible().
+    public CAPFile variant(AID aid, String version, Map<AID, AID> applets) throws IOException {
+        if (!dropped.isEmpty())
+            throw new IllegalStateException("Not all entries of the CAP file were kept");
+        if (isExtended())
+            throw new IllegalArgumentException("Extended CAP files can not be patched");
+        if (getLoadFiles().size() > 1)
+            throw new IllegalArgumentException("CAP files with many load files can not be patched");
+        Map<String, ByteBuffer> patched = new LinkedHashMap<>(entries);
+        Variant.patch(patched, pkg2jcdir(pkgname), aid, version, applets);
+        return new CAPFile(patched, null).decode();
+    }
+
+    // This load file with the library linked in, to load one package instead of two. Classes, methods,
+    // static fields and constant pool of the library are appended to those of this package, references
+    // to the library become internal and it is no longer imported. The library can not have applets.
+    // Debug component is dropped. In memory, to be stored with store() or storeReproducible().
+    public CAPFile link(CAPFile library) throws IOException {
+        if (!dropped.isEmpty() || !library.dropped.isEmpty())
+            throw new IllegalStateException("Not all entries of the CAP file were kept");
+        if (isExtended() || library.isExtended())
+            throw new IllegalArgumentException("Extended CAP files can not be linked");
+        if (getLoadFiles().size() > 1 || library.getLoadFiles().size() > 1)
+            throw new IllegalArgumentException("CAP files with many load files can not be linked");
+        Map<String, ByteBuffer> linked = new LinkedHashMap<>(entries);
+        Linker.link(linked, pkg2jcdir(pkgname), this, library);
+        return new CAPFile(linked, null).decode();
+    }
+
+    // What changed from this build to the other
+    public CAPDiff diff(CAPFile other) {
+        return CAPDiff.diff(this, other);
+    }
+
+    // JCA-like listing of the package, written as the components are walked. Export files of
+    // imported packages, by AID, give names to the imported classes and methods.
+    public void disassemble(PrintStream out, Map<AID, ExportFile> exports) {
+        Disassembler.disassemble(this, exports, out);
+    }
+
+    Symbols getSymbols() {
+        return symbols.get();
     }
 
     public byte[] getMetaInfEntry(String name) {
-        return entries.get("META-INF/" + name);
+        return getZipEntryBuffer("META-INF/" + name).map(CAPFile::bytes).orElse(null);
     }
 
     public Optional<byte[]> getZipComponent(String name) {
-        return Optional.ofNullable(entries.get(name));
+        return getZipEntryBuffer(name).map(CAPFile::bytes);
+    }
+
+    // Read-only view of a raw ZIP entry, sharing storage with this instance
+    public Optional<ByteBuffer> getZipEntryBuffer(String name) {
+        return Optional.ofNullable(entries.get(name)).map(ByteBuffer::asReadOnlyBuffer);
     }
 
     public void store(OutputStream to) throws IOException {
         try (ZipOutputStream out = new ZipOutputStream(to)) {
-            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+            WritableByteChannel channel = Channels.newChannel(out);
+            for (Map.Entry<String, ByteBuffer> e : entries.entrySet()) {
                 out.putNextEntry(new ZipEntry(e.getKey()));
-                out.write(e.getValue());
+                channel.write(e.getValue().duplicate());
                 out.closeEntry();
             }
         }
     }
 
-    // XXX: 21 rightfully complains about this without final (getComponent leaking this)
-    protected CAPFile(InputStream in) throws IOException {
-        try (ZipInputStream zip = new ZipInputStream(in)) {
-            // All ZIP entries
-            entries = readEntries(zip);
+    // Writes the CAP file reproducibly: the same content always gives the same bytes, as timestamps
+    // are fixed and entries are in canonical order (manifest, components in load order, the rest by
+    // name). With level 0 entries are STORED, otherwise DEFLATED with the given level (-1 is default).
+    public void storeReproducible(OutputStream to, int level) throws IOException {
+        if (level < -1 || level > 9)
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        List<String> names = new ArrayList<>(entries.keySet());
+        names.sort(Comparator.comparing(CAPFile::canonicalKey));
+        try (ZipOutputStream out = new ZipOutputStream(to)) {
+            WritableByteChannel channel = Channels.newChannel(out);
+            if (level > 0)
+                out.setLevel(level);
+            for (String name : names) {
+                ByteBuffer data = entries.get(name).duplicate();
+                ZipEntry entry = new ZipEntry(name);
+                entry.setTime(FIXED_TIME);
+                if (level == 0) {
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(data.remaining());
+                    entry.setCompressedSize(data.remaining());
+                    entry.setCrc(crc(name, data));
+                }
+                out.putNextEntry(entry);
+                channel.write(data);
+                out.closeEntry();
+            }
         }
+    }
 
-        // Parse manifest
-        byte[] mf = entries.get("META-INF/MANIFEST.MF");
-        if (mf != null) {
-            ByteArrayInputStream mfi = new ByteArrayInputStream(mf);
-            manifest = new Manifest(mfi);
+    private static String canonicalKey(String name) {
+        if (name.equals("META-INF/MANIFEST.MF"))
+            return "0";
+        if (name.startsWith("META-INF/"))
+            return "1" + name;
+        if (name.contains("/javacard/") && name.endsWith(".cap")) {
+            int slash = name.lastIndexOf('/');
+            int order = Arrays.asList(componentNames).indexOf(name.substring(slash + 1, name.length() - 4));
+            if (order >= 0)
+                return String.format("2%s%02d", name.substring(0, slash + 1), order);
         }
+        return "3" + name;
+    }
 
-        // Only if there are applets
-        byte[] ai = entries.get("APPLET-INF/applet.xml");
-        if (ai != null) {
-            try {
-                DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-                // Not really a threat (intended for self-generated local files) but still nice to have
-                dbFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
-                DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-                appletxml = dBuilder.parse(new ByteArrayInputStream(ai));
-                appletxml.getDocumentElement().normalize();
-            } catch (SAXException | ParserConfigurationException e) {
-                throw new IOException(e);
-            }
+    // CRC is known from the central directory when mapped (and checked when read)
+    private long crc(String name, ByteBuffer data) {
+        if (entries instanceof MappedZip)
+            return ((MappedZip) entries).getCrc(name);
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return crc.getValue();
+    }
+
+    // XXX: 21 rightfully complains about this without final (getComponent leaking this)
+    protected CAPFile(InputStream in) throws IOException {
+        this(readEntries(in), null);
+        decode();
+    }
+
+    // Decode everything up front, so that a broken file fails here
+    private CAPFile decode() throws IOException {
+        try {
+            pkg.get();
+            applets.get();
+            imports.get();
+            manifest.get();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (IllegalArgumentException | IllegalStateException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid CAP file: " + e.getMessage(), e);
         }
+        return this;
+    }
+
+    private CAPFile(Map<String, ByteBuffer> entries, Path file) throws IOException {
+        this(entries, Collections.emptyMap(), file, null);
+    }
 
+    private CAPFile(Map<String, ByteBuffer> entries, Map<String, Integer> dropped, Path file, String packageName) throws IOException {
+        this.entries = entries;
+        this.dropped = dropped;
+        this.file = file;
 
         // Figure out package name. Failsafe without metadata as well, for 2.1.X support.
-        String pkgname = null;
-        for (String p : entries.keySet()) {
-            if (p.endsWith("Header.cap")) {
-                pkgname = jcdir2pkg(p);
-                break;
+        String name = packageName;
+        if (name == null) {
+            for (String p : entries.keySet()) {
+                if (p.endsWith("Header.cap")) {
+                    name = jcdir2pkg(p);
+                    break;
+                }
             }
         }
 
-        if (pkgname == null) {
+        if (name == null) {
             throw new IOException("Could not figure out the package name of the applet!");
         }
+        pkgname = name;
+    }
 
-        // Parse package.
-        // See JCVM 2.2 spec section 6.3 for offsets.
-        byte[] header = entries.get(pkg2jcdir(pkgname) + "Header.cap");
-        cap_version = String.format("%d.%d", header[8], header[7]);
-        flags = header[9];
+    private <T extends Component> Optional<T> component(String name, Function<ByteBuffer, T> f) {
+        return getComponentBuffer(name).map(f);
+    }
+
+    static byte[] bytes(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
 
-        pkg = new CAPPackage(new AID(header, 13, header[12]), header[11], header[10], pkgname);
+    private boolean hasSignaturePool() {
+        HeaderComponent h = header.get();
+        return h.getMajorVersion() > 2 || (h.getMajorVersion() == 2 && h.getMinorVersion() >= 2);
+    }
 
-        // Parse applets
-        // See JCVM 2.2 spec section 6.5 for offsets.
-        byte[] applet = getComponent("Applet");
-        if (applet != null) {
-            int offset = 4;
-            for (int j = 0; j < (applet[3] & 0xFF); j++) {
-                int len = applet[offset++];
-                AID appaid = new AID(applet, offset, len);
-                // We might already have it, with the name from metadata
-                // FIXME: use metadata only as additional source
-                if (!applets.containsKey(appaid))
-                    applets.put(appaid, null);
-                // Skip install_method_offset
-                offset += len + 2;
+    private List<CAPFile> findLoadFiles() {
+        List<CAPFile> result = new ArrayList<>();
+        for (String p : entries.keySet()) {
+            if (p.endsWith("/javacard/Header.cap")) {
+                String name = jcdir2pkg(p);
+                try {
+                    result.add(name.equals(pkgname) ? this : new CAPFile(entries, dropped, file, name));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             }
         }
-        // Parse imports
-        byte[] imps = getComponent("Import");
-        if (imps != null) {
-            int offset = 4;
-            for (int j = 0; j < (imps[3] & 0xFF); j++) {
-                AID aid = new AID(imps, offset + 3, imps[offset + 2]);
-                CAPPackage p = new CAPPackage(aid, imps[offset + 1], imps[offset]);
-                imports.add(p);
-                offset += imps[offset + 2] + 3;
+        return Collections.unmodifiableList(result);
+    }
+
+    private CAPPackage parsePackage() {
+        HeaderComponent h = header.get();
+        return new CAPPackage(h.getPackageAID(), h.getPackageMajorVersion(), h.getPackageMinorVersion(), pkgname);
+    }
+
+    private Optional<Manifest> parseManifest() {
+        Optional<byte[]> mf = getZipComponent("META-INF/MANIFEST.MF");
+        if (!mf.isPresent())
+            return Optional.empty();
+        try {
+            return Optional.of(new Manifest(new ByteArrayInputStream(mf.get())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Only if there are applets
+    private Optional<Document> parseAppletXml() {
+        Optional<byte[]> ai = getZipComponent("APPLET-INF/applet.xml");
+        if (!ai.isPresent())
+            return Optional.empty();
+        try {
+            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+            // Not really a threat (intended for self-generated local files) but still nice to have
+            dbFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
+            Document doc = dBuilder.parse(new ByteArrayInputStream(ai.get()));
+            doc.getDocumentElement().normalize();
+            return Optional.of(doc);
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new UncheckedIOException(new IOException(e));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Map<AID, String> parseApplets() {
+        Map<AID, String> result = new LinkedHashMap<>();
+        Optional<AppletComponent> applets = applet.get();
+        if (applets.isPresent()) {
+            for (int j = 0; j < applets.get().getCount(); j++) {
+                AID appaid = applets.get().getAID(j);
+                // We might already have it, with the name from metadata
+                // FIXME: use metadata only as additional source
+                if (!result.containsKey(appaid))
+                    result.put(appaid, null);
             }
         }
 
         // Parse metadata to get applet names. Somewhat redundant
-        if (appletxml != null) {
-            NodeList apps = appletxml.getElementsByTagName("applet");
+        Optional<Document> xml = appletxml.get();
+        if (xml.isPresent()) {
+            NodeList apps = xml.get().getElementsByTagName("applet");
             for (int i = 0; i < apps.getLength(); i++) {
                 Element app = (Element) apps.item(i);
                 String name = app.getElementsByTagName("applet-class").item(0).getTextContent();
                 String aidstring = app.getElementsByTagName("applet-AID").item(0).getTextContent();
                 AID aid = AID.fromString(aidstring.replace("//aid/", "").replace("/", ""));
-                if (!applets.containsKey(aid))
-                    throw new IOException("applet.xml contains missing applet " + aid);
-                applets.put(aid, name);
+                if (!result.containsKey(aid)) {
+                    // applet.xml is shared by all load files of the archive
+                    if (getLoadFiles().size() > 1)
+                        continue;
+                    throw new UncheckedIOException(new IOException("applet.xml contains missing applet " + aid));
+                }
+                result.put(aid, name);
             }
         }
+        return Collections.unmodifiableMap(result);
     }
 
-    private static Map<String, byte[]> readEntries(ZipInputStream in) throws IOException {
-        Map<String, byte[]> result = new LinkedHashMap<>();
-        ZipEntry entry = in.getNextEntry();
-        while (entry != null) {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            byte[] buf = new byte[1024];
-            int c;
-            while ((c = in.read(buf)) != -1) {
-                bos.write(buf, 0, c);
+    private List<CAPPackage> parseImports() {
+        List<CAPPackage> result = new ArrayList<>();
+        Optional<ImportComponent> imps = importComponent.get();
+        if (imps.isPresent()) {
+            for (int j = 0; j < imps.get().getCount(); j++) {
+                result.add(imps.get().getPackage(j));
             }
-            result.put(entry.getName(), bos.toByteArray());
-            entry = in.getNextEntry();
         }
-        return Collections.unmodifiableMap(result);
+        return Collections.unmodifiableList(result);
+    }
+
+    private static Map<String, ByteBuffer> readEntries(InputStream in) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(in)) {
+            return readEntries(zip);
+        }
+    }
+
+    private static Map<String, ByteBuffer> readEntries(ZipInputStream in) throws IOException {
+        return new StreamingReader(name -> Retention.KEEP).read(in).getEntries();
     }
 
     public AID getPackageAID() {
-        return pkg.aid;
+        return pkg.get().aid;
     }
 
     public List<AID> getAppletAIDs() {
-        List<AID> result = new ArrayList<>();
-        result.addAll(applets.keySet());
-        return result;
+        return appletAIDs.get();
     }
 
     public String getPackageVersion() {
-        return pkg.getVersionString();
+        return pkg.get().getVersionString();
     }
 
     public String getPackageName() {
-        return pkg.getName().orElseThrow(() -> new IllegalStateException("No package name"));
+        return pkgname;
+    }
+
+    // All packages of this load file. Only the extended format (CAP 2.3) can have more than one.
+    // Only AID, version and name are per package: imports, applets and components are those of
+    // the whole load file, as per-package blocks of extended components are not split out.
+    public List<CAPPackage> getPackages() {
+        return packages.get();
+    }
+
+    public boolean isExtended() {
+        HeaderComponent h = header.get();
+        return h.isExtendedFormat() || h.isExtended();
+    }
+
+    // All load files in the archive, each with its own components, imports, applets and hashes,
+    // decoded when first accessed. Usually just this one.
+    public List<CAPFile> getLoadFiles() {
+        return loadFiles.get();
     }
 
     public byte[] getCode() {
-        return _getCode(false);
+        return code.get().clone();
     }
 
     @Deprecated
@@ -249,37 +664,85 @@ public final class CAPFile {
     }
 
     byte[] _getCode(boolean includeDebug) {
-        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteBuffer result = ByteBuffer.allocate(getCodeLength(includeDebug));
+        for (ByteBuffer c : codeComponents(includeDebug)) {
+            result.put(c);
+        }
+        return result.array();
+    }
+
+    // Components of the Load File Data Block, in the order of JCVM 2.2 spec section 6.2
+    private List<ByteBuffer> codeComponents(boolean includeDebug) {
+        List<ByteBuffer> result = new ArrayList<>(componentNames.length);
         for (String name : componentNames) {
-            byte[] c = getComponent(name);
-            if (c == null)
+            if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor")))
                 continue;
+            if (dropped.containsKey(pkg2jcdir(pkgname) + name + ".cap"))
+                throw new IllegalStateException(name + " component was not kept");
+            getComponentBuffer(name).ifPresent(result::add);
+        }
+        return result;
+    }
+
+    public int getCodeLength(boolean includeDebug) {
+        int length = 0;
+        for (String name : componentNames) {
             if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor")))
                 continue;
-            try {
-                result.write(c);
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+            if (dropped.getOrDefault(pkg2jcdir(pkgname) + name + ".cap", 0) < 0)
+                throw new IllegalStateException(name + " component was skipped");
+            length += getComponentSize(name).orElse(0);
         }
-        return result.toByteArray();
+        return length;
     }
 
     public byte[] getLoadFileDataHash(String hash) {
-        try {
-            return MessageDigest.getInstance(hash).digest(getCode());
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Not possible", e);
-        }
+        return getLoadFileDataHashes(hash).get(hash);
     }
 
     @Deprecated
     public byte[] getLoadFileDataHash(String hash, boolean includeDebug) {
-        try {
-            return MessageDigest.getInstance(hash).digest(_getCode(includeDebug));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Not possible", e);
+        return _getLoadFileDataHashes(includeDebug, hash).get(hash);
+    }
+
+    // Calculates Load File Data Block hashes with all given algorithms (like "SHA-1", "SHA-256")
+    // in a single pass over the components. Returns algorithm to hash, in the order of arguments.
+    public Map<String, byte[]> getLoadFileDataHashes(String... hashes) {
+        // Only calculate the ones not yet known
+        List<String> missing = new ArrayList<>();
+        for (String hash : hashes) {
+            if (!this.hashes.containsKey(hash))
+                missing.add(hash);
+        }
+        if (!missing.isEmpty()) {
+            this.hashes.putAll(_getLoadFileDataHashes(false, missing.toArray(new String[0])));
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (String hash : hashes) {
+            result.put(hash, this.hashes.get(hash).clone());
         }
+        return result;
+    }
+
+    private Map<String, byte[]> _getLoadFileDataHashes(boolean includeDebug, String... hashes) {
+        Map<String, MessageDigest> digests = new LinkedHashMap<>();
+        for (String hash : hashes) {
+            try {
+                digests.put(hash, MessageDigest.getInstance(hash));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported hash algorithm: " + hash, e);
+            }
+        }
+        for (ByteBuffer c : codeComponents(includeDebug)) {
+            for (MessageDigest md : digests.values()) {
+                md.update(c.duplicate());
+            }
+        }
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, MessageDigest> e : digests.entrySet()) {
+            result.put(e.getKey(), e.getValue().digest());
+        }
+        return result;
     }
 
     public void dump(PrintStream out) {
@@ -287,8 +750,16 @@ public final class CAPFile {
         Optional<String> jcv = guessJavaCardVersion();
         String gpversion = gpv.isPresent() ? "/GlobalPlatform " + gpv.get() : "";
 
-        out.println("CAP file (v" + cap_version + "), contains: " + String.join(", ", getFlags()) + " for JavaCard " + jcv.orElse("2.1.1?") + gpversion);
+        out.println("CAP file (v" + getCAPVersion() + "), contains: " + String.join(", ", getFlags()) + " for JavaCard " + jcv.orElse("2.1.1?") + gpversion);
+        CAPPackage pkg = this.pkg.get();
         out.printf("Package: %s %s v%s%n", pkg.getName().get(), pkg.getAid().toString(), pkg.getVersionString());
+        for (CAPPackage p : getPackages().subList(1, getPackages().size())) {
+            out.printf("Package: %s %s v%s%n", p.getName().orElse("(unknown)"), p.getAid().toString(), p.getVersionString());
+        }
+        for (CAPFile lf : getLoadFiles()) {
+            if (lf != this)
+                out.println("Also contains: " + lf.getPackageName());
+        }
         for (Map.Entry<AID, String> applet : getApplets().entrySet()) {
             out.println("Applet:  " + (applet.getValue() == null ? "" : applet.getValue() + " ") + applet.getKey());
         }
@@ -296,7 +767,9 @@ public final class CAPFile {
             out.println("Import:  " + imp);
         }
         // Check manifest for metadata
-        if (manifest != null) {
+        Optional<Manifest> mf = manifest.get();
+        if (mf.isPresent()) {
+            Manifest manifest = mf.get();
             Attributes mains = manifest.getMainAttributes();
 
             // iterate all packages
@@ -317,13 +790,42 @@ public final class CAPFile {
                 out.println("On " + cap_creation_time + " with JDK " + jdk_name);
             }
         }
-        out.println("Code size " + getCode().length + " bytes (" + getCode(true).length + " with debug)");
-        out.println("SHA-256 " + HexUtils.bin2hex(getLoadFileDataHash("SHA-256")).toLowerCase());
-        out.println("SHA-1   " + HexUtils.bin2hex(getLoadFileDataHash("SHA-1")).toLowerCase());
+        out.println("Code size " + getCodeLength(false) + " bytes (" + getCodeLength(true) + " with debug)");
+        if (isExtended()) {
+            out.println("Memory and linking estimates not available for the extended format");
+        } else if (getMethodComponent().isPresent()) {
+            // Estimates are printed only if complete, a failing analysis does not abort the dump
+            StringWriter estimates = new StringWriter();
+            try (PrintWriter pw = new PrintWriter(estimates)) {
+                MemoryFootprint memory = getMemoryFootprint();
+                pw.printf("Persistent memory ~%d bytes when loaded (code %d, static fields %d: %d bytes, %d references, %d arrays of %d bytes)%n",
+                        memory.getPackageSize(), memory.getCodeSize(), memory.getStaticSize(), memory.getStaticImageSize(),
+                        memory.getStaticReferenceCount(), memory.getArrayInitCount(), memory.getArrayInitBytes());
+                for (Map.Entry<AID, MemoryFootprint.Instance> instance : memory.getInstances().entrySet()) {
+                    pw.println("Instance of " + instance.getKey() + " ~" + instance.getValue());
+                }
+                pw.println("Linking " + getLinkCost());
+                out.print(estimates);
+            } catch (RuntimeException e) {
+                out.println("Memory and linking estimates not available: " + e);
+            }
+        }
+        Map<String, byte[]> hashes = getLoadFileDataHashes("SHA-256", "SHA-1");
+        out.println("SHA-256 " + HexUtils.bin2hex(hashes.get("SHA-256")).toLowerCase());
+        out.println("SHA-1   " + HexUtils.bin2hex(hashes.get("SHA-1")).toLowerCase());
+    }
+
+    public String getCAPVersion() {
+        return capVersion.get();
+    }
+
+    private String parseCAPVersion() {
+        HeaderComponent h = header.get();
+        return String.format("%d.%d", h.getMajorVersion(), h.getMinorVersion());
     }
 
     public List<String> getFlags() {
-        return flags2strings(flags);
+        return flags.get();
     }
 
     public static List<String> flags2strings(byte flags) {
@@ -342,19 +844,22 @@ public final class CAPFile {
     }
 
     public List<CAPPackage> getImports() {
-        return Collections.unmodifiableList(imports);
+        return imports.get();
     }
 
     public Map<AID, String> getApplets() {
-        return Collections.unmodifiableMap(applets);
+        return applets.get();
     }
 
     // Guess the targeted JavaCard version based on javacard.framework version
     // See https://stackoverflow.com/questions/25031338/how-to-get-javacard-version-on-card for a nice list
     public Optional<String> guessJavaCardVersion() {
-        AID jf = new AID("A0000000620101"); // javacard.framework
-        for (CAPPackage p : imports) {
-            if (p.aid.equals(jf)) {
+        return javaCardVersion.get();
+    }
+
+    private Optional<String> _guessJavaCardVersion() {
+        for (CAPPackage p : imports.get()) {
+            if (p.aid.equals(JAVACARD_FRAMEWORK)) {
                 switch (p.minor) {
                     case 0:
                         return Optional.of("2.1.1");
@@ -380,9 +885,8 @@ public final class CAPFile {
             }
         }
 
-        AID js = new AID("A0000000620102"); // javacard.security
-        for (CAPPackage p : imports) {
-            if (p.aid.equals(js)) {
+        for (CAPPackage p : imports.get()) {
+            if (p.aid.equals(JAVACARD_SECURITY)) {
                 switch (p.minor) {
                     case 1:
                         return Optional.of("2.1.1");
@@ -408,9 +912,12 @@ public final class CAPFile {
     }
 
     public Optional<String> guessGlobalPlatformVersion() {
-        AID jf = new AID("A00000015100");
-        for (CAPPackage p : imports) {
-            if (p.aid.equals(jf) && p.major == 1) {
+        return globalPlatformVersion.get();
+    }
+
+    private Optional<String> _guessGlobalPlatformVersion() {
+        for (CAPPackage p : imports.get()) {
+            if (p.aid.equals(GLOBALPLATFORM) && p.major == 1) {
                 if (p.minor == 0) {
                     return Optional.of("2.1.1");
                 } else if (p.minor >= 1 && p.minor <= 4) {
@@ -445,6 +952,7 @@ public final class CAPFile {
     }
 
     // Remove compiled code from capfile
+    @Deprecated // Use copy() with a filter
     public static void strip(Path cap) throws IOException {
         Map<String, String> props = new HashMap<>();
         props.put("create", "false");
@@ -25,6 +25,9 @@ import java.util.Objects;
 import java.util.Optional;
 
 public final class CAPPackage {
+    // Largest major and minor version accepted by the converter
+    public static final int MAX_VERSION = 127;
+
     final AID aid;
     final int major;
     final int minor;
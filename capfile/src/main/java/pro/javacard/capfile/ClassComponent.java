@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// See JCVM 2.2 spec section 6.8
+// Interfaces and classes are referenced by their offset in this component (internal class_ref).
+public final class ClassComponent extends Component {
+    // Table 6-8: CAP File Class Descriptor Flags (high nibble of bitfield)
+    public static final int ACC_INTERFACE = 0x8;
+    public static final int ACC_SHAREABLE = 0x4;
+    public static final int ACC_REMOTE = 0x2;
+
+    private final boolean signaturePool;
+    private final Lazy<int[]> offsets = new Lazy<>(this::index);
+
+    // signature_pool is present from CAP 2.2 onwards
+    ClassComponent(ByteBuffer component, boolean signaturePool) {
+        super(component, TAG_CLASS);
+        this.signaturePool = signaturePool;
+    }
+
+    private int first() {
+        return signaturePool ? 2 + u2(0) : 0;
+    }
+
+    private int[] index() {
+        List<Integer> result = new ArrayList<>();
+        int offset = first();
+        while (offset < getSize()) {
+            result.add(offset);
+            offset += isInterface(offset) ? interfaceLength(offset) : new ClassInfo(offset).getLength();
+        }
+        return result.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int interfaceLength(int offset) {
+        int length = 1 + 2 * (u1(offset) & 0x0F);
+        if ((u1(offset) >> 4 & ACC_REMOTE) == ACC_REMOTE)
+            length += 1 + u1(offset + length);
+        return length;
+    }
+
+    // Offsets of all interfaces and classes, in order
+    public int[] getOffsets() {
+        return offsets.get().clone();
+    }
+
+    public boolean isInterface(int offset) {
+        return ((u1(offset) >> 4) & ACC_INTERFACE) == ACC_INTERFACE;
+    }
+
+    public int getFlags(int offset) {
+        return u1(offset) >> 4;
+    }
+
+    public ClassInfo getClassInfo(int offset) {
+        if (isInterface(offset))
+            throw new IllegalArgumentException(String.format("Not a class at offset %d", offset));
+        return new ClassInfo(offset);
+    }
+
+    public List<ClassInfo> getClasses() {
+        List<ClassInfo> result = new ArrayList<>();
+        for (int offset : offsets.get()) {
+            if (!isInterface(offset))
+                result.add(new ClassInfo(offset));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // Flyweight view of a class_info
+    public final class ClassInfo {
+        private final int offset;
+
+        ClassInfo(int offset) {
+            this.offset = offset;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getFlags() {
+            return u1(offset) >> 4;
+        }
+
+        public int getInterfaceCount() {
+            return u1(offset) & 0x0F;
+        }
+
+        public int getSuperClassRef() {
+            return u2(offset + 1);
+        }
+
+        // In 16-bit cells, not including superclasses
+        public int getDeclaredInstanceSize() {
+            return u1(offset + 3);
+        }
+
+        public int getFirstReferenceToken() {
+            return u1(offset + 4);
+        }
+
+        public int getReferenceCount() {
+            return u1(offset + 5);
+        }
+
+        public int getPublicMethodTableBase() {
+            return u1(offset + 6);
+        }
+
+        public int getPublicMethodTableCount() {
+            return u1(offset + 7);
+        }
+
+        public int getPackageMethodTableBase() {
+            return u1(offset + 8);
+        }
+
+        public int getPackageMethodTableCount() {
+            return u1(offset + 9);
+        }
+
+        // Offset in Method component of the public virtual method with given token, or 0xFFFF if
+        // not defined in this package
+        public int getPublicVirtualMethod(int token) {
+            int index = token - getPublicMethodTableBase();
+            if (index < 0 || index >= getPublicMethodTableCount())
+                throw new IllegalArgumentException("Method token not in public method table: " + token);
+            return u2(offset + 10 + 2 * index);
+        }
+
+        public int getPackageVirtualMethod(int token) {
+            // Package-visible method tokens have the high bit set
+            int index = (token & 0x7F) - (getPackageMethodTableBase() & 0x7F);
+            if (index < 0 || index >= getPackageMethodTableCount())
+                throw new IllegalArgumentException("Method token not in package method table: " + token);
+            return u2(offset + 10 + 2 * getPublicMethodTableCount() + 2 * index);
+        }
+
+        private int interfaces() {
+            return offset + 10 + 2 * getPublicMethodTableCount() + 2 * getPackageMethodTableCount();
+        }
+
+        // class_ref of the implemented interfaces
+        public int[] getInterfaces() {
+            int[] result = new int[getInterfaceCount()];
+            int o = interfaces();
+            for (int i = 0; i < result.length; i++) {
+                result[i] = u2(o);
+                o += 3 + u1(o + 2);
+            }
+            return result;
+        }
+
+        // Size of the class_info, in bytes
+        public int getLength() {
+            int o = interfaces();
+            for (int i = 0; i < getInterfaceCount(); i++) {
+                o += 3 + u1(o + 2);
+            }
+            if ((getFlags() & ACC_REMOTE) == ACC_REMOTE) {
+                // remote_interface_info
+                o += 1 + 5 * u1(o);
+                o += 1 + u1(o); // hash_modifier
+                o += 1 + u1(o); // class_name
+                o += 1 + 2 * u1(o); // remote_interfaces
+            }
+            return o - offset;
+        }
+    }
+}
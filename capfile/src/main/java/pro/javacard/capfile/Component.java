@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Common base of CAP file components, as specified in JavaCard VM Specification, chapter 6.
+ * <p>
+ * Components are flyweight views over the bytes of the component: nothing is decoded until asked for.
+ * All offsets are relative to the info item of the component (after tag and size), as in the specification.
+ */
+public abstract class Component {
+    // Table 6-1: CAP File Component Tags
+    public static final int TAG_HEADER = 1;
+    public static final int TAG_DIRECTORY = 2;
+    public static final int TAG_APPLET = 3;
+    public static final int TAG_IMPORT = 4;
+    public static final int TAG_CONSTANT_POOL = 5;
+    public static final int TAG_CLASS = 6;
+    public static final int TAG_METHOD = 7;
+    public static final int TAG_STATIC_FIELD = 8;
+    public static final int TAG_REFERENCE_LOCATION = 9;
+    public static final int TAG_EXPORT = 10;
+    public static final int TAG_DESCRIPTOR = 11;
+    public static final int TAG_DEBUG = 12;
+
+    private final int tag;
+    private final boolean extended;
+    private final ByteBuffer info;
+
+    Component(ByteBuffer component, int expectedTag) {
+        if (component.remaining() < 3)
+            throw new IllegalArgumentException("Truncated component");
+        int start = component.position();
+        int length = component.remaining();
+        tag = component.get(start) & 0xFF;
+        if (tag != expectedTag)
+            throw new IllegalArgumentException(String.format("Invalid component tag %d, expected %d", tag, expectedTag));
+        int size = ((component.get(start + 1) & 0xFF) << 8) | (component.get(start + 2) & 0xFF);
+        // Extended format of JCVM 3.1 has u4 sizes. Pick the one that adds up.
+        extended = size != length - 3 && length >= 5 && component.getInt(start + 1) == length - 5;
+        if (extended) {
+            info = MappedZip.slice(component, start + 5, length - 5).asReadOnlyBuffer();
+        } else {
+            if (size > length - 3)
+                throw new IllegalArgumentException(String.format("Truncated component %d: %d bytes instead of %d", tag, length - 3, size));
+            info = MappedZip.slice(component, start + 3, size).asReadOnlyBuffer();
+        }
+    }
+
+    // Component has a u4 size, as in the extended CAP format
+    public boolean isExtended() {
+        return extended;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    // Size of the info item
+    public int getSize() {
+        return info.capacity();
+    }
+
+    // The info item, as a read-only buffer
+    public ByteBuffer getInfo() {
+        return info.duplicate();
+    }
+
+    public int u1(int offset) {
+        return info.get(offset) & 0xFF;
+    }
+
+    public int s1(int offset) {
+        return info.get(offset);
+    }
+
+    public int u2(int offset) {
+        return info.getShort(offset) & 0xFFFF;
+    }
+
+    public int s2(int offset) {
+        return info.getShort(offset);
+    }
+
+    public int s4(int offset) {
+        return info.getInt(offset);
+    }
+
+    public byte[] bytes(int offset, int length) {
+        byte[] result = new byte[length];
+        MappedZip.slice(info, offset, length).get(result);
+        return result;
+    }
+
+    AID aid(int offset, int length) {
+        return new AID(bytes(offset, length));
+    }
+}
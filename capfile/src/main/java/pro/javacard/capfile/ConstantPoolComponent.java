@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+// See JCVM 2.2 spec section 6.7
+// Every entry is 4 bytes: tag and three bytes of reference information.
+public final class ConstantPoolComponent extends Component {
+    // Table 6-6: CAP File Constant Pool Tags
+    public static final int CONSTANT_Classref = 1;
+    public static final int CONSTANT_InstanceFieldref = 2;
+    public static final int CONSTANT_VirtualMethodref = 3;
+    public static final int CONSTANT_SuperMethodref = 4;
+    public static final int CONSTANT_StaticFieldref = 5;
+    public static final int CONSTANT_StaticMethodref = 6;
+
+    ConstantPoolComponent(ByteBuffer component) {
+        super(component, TAG_CONSTANT_POOL);
+    }
+
+    public int getCount() {
+        return u2(0);
+    }
+
+    // Offset of the entry in the component, useful for relocation
+    public int getOffset(int index) {
+        if (index < 0 || index >= getCount())
+            throw new IndexOutOfBoundsException("Invalid constant pool index: " + index);
+        return 2 + index * 4;
+    }
+
+    public int getTag(int index) {
+        return u1(getOffset(index));
+    }
+
+    public boolean isStatic(int index) {
+        int tag = getTag(index);
+        return tag == CONSTANT_StaticFieldref || tag == CONSTANT_StaticMethodref;
+    }
+
+    // Reference to an imported package, as opposed to one in this package
+    public boolean isExternal(int index) {
+        return (u1(getOffset(index) + 1) & 0x80) == 0x80;
+    }
+
+    // The class_ref of a class, instance field, virtual or super method reference
+    public int getClassRef(int index) {
+        if (isStatic(index))
+            throw new IllegalArgumentException("Static reference has no class_ref: " + index);
+        return u2(getOffset(index) + 1);
+    }
+
+    // Index into the Import component of an external reference
+    public int getPackageToken(int index) {
+        if (!isExternal(index))
+            throw new IllegalArgumentException("Not an external reference: " + index);
+        return u1(getOffset(index) + 1) & 0x7F;
+    }
+
+    public int getClassToken(int index) {
+        if (!isExternal(index))
+            throw new IllegalArgumentException("Not an external reference: " + index);
+        return u1(getOffset(index) + 2);
+    }
+
+    // Field or method token of instance field, virtual/super method or external static references
+    public int getToken(int index) {
+        if (getTag(index) == CONSTANT_Classref || (isStatic(index) && !isExternal(index)))
+            throw new IllegalArgumentException("Reference has no token: " + index);
+        return u1(getOffset(index) + 3);
+    }
+
+    // Offset into the Class component (class references) or the Method/StaticField component
+    // (static references) of an internal reference
+    public int getInternalOffset(int index) {
+        if (isExternal(index))
+            throw new IllegalArgumentException("Not an internal reference: " + index);
+        return isStatic(index) ? u2(getOffset(index) + 2) : u2(getOffset(index) + 1);
+    }
+
+    public static boolean isExternalClassRef(int classRef) {
+        return (classRef & 0x8000) == 0x8000;
+    }
+
+    public static String classRefToString(int classRef) {
+        if (isExternalClassRef(classRef))
+            return String.format("%d.%d", (classRef >> 8) & 0x7F, classRef & 0xFF);
+        return String.format("@%04x", classRef);
+    }
+
+    // Human-readable form of the entry, with tokens in JCA notation (package.class.token)
+    public String toString(int index) {
+        int tag = getTag(index);
+        switch (tag) {
+            case CONSTANT_Classref:
+                return "classRef " + classRefToString(getClassRef(index));
+            case CONSTANT_InstanceFieldref:
+                return "instanceFieldRef " + classRefToString(getClassRef(index)) + "." + getToken(index);
+            case CONSTANT_VirtualMethodref:
+                return "virtualMethodRef " + classRefToString(getClassRef(index)) + "." + getToken(index);
+            case CONSTANT_SuperMethodref:
+                return "superMethodRef " + classRefToString(getClassRef(index)) + "." + getToken(index);
+            case CONSTANT_StaticFieldref:
+            case CONSTANT_StaticMethodref:
+                String kind = tag == CONSTANT_StaticFieldref ? "staticFieldRef " : "staticMethodRef ";
+                if (isExternal(index))
+                    return kind + String.format("%d.%d.%d", getPackageToken(index), getClassToken(index), getToken(index));
+                return kind + String.format("@%04x", getInternalOffset(index));
+            default:
+                return "unknown tag " + tag;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Basic blocks of a method and the edges between them. Exception handlers are not followed, so
+// blocks only reachable through them are left out of paths. Back edges (loops) are found with a
+// depth-first search from the entry, the rest of the graph is acyclic.
+final class ControlFlow {
+    private final TreeMap<Integer, Block> blocks = new TreeMap<>();
+    private final List<Block> order = new ArrayList<>(); // Reverse postorder of reachable blocks
+    private boolean loops = false;
+
+    static final class Block {
+        private final int start;
+        private final List<Integer> instructions = new ArrayList<>();
+        private final Set<Block> successors = new LinkedHashSet<>();
+        private final Set<Block> forward = new LinkedHashSet<>(); // Successors without back edges
+        private final Set<Block> predecessors = new LinkedHashSet<>(); // Along forward edges
+
+        Block(int start) {
+            this.start = start;
+        }
+
+        int getStart() {
+            return start;
+        }
+
+        List<Integer> getInstructions() {
+            return instructions;
+        }
+
+        int getLast() {
+            return instructions.get(instructions.size() - 1);
+        }
+
+        Set<Block> getSuccessors() {
+            return successors;
+        }
+
+        Set<Block> getForwardSuccessors() {
+            return forward;
+        }
+
+        Set<Block> getForwardPredecessors() {
+            return predecessors;
+        }
+    }
+
+    ControlFlow(Bytecode bytecode, int method) {
+        ByteBuffer code = bytecode.getCode();
+        List<Integer> instructions = bytecode.instructions(method);
+        int end = instructions.isEmpty() ? 0 : instructions.get(instructions.size() - 1) + Opcodes.length(code, instructions.get(instructions.size() - 1));
+
+        // Leaders: first instruction, branch targets and instructions after a jump
+        Set<Integer> leaders = new TreeSet<>();
+        if (!instructions.isEmpty())
+            leaders.add(instructions.get(0));
+        for (int pc : instructions) {
+            int next = pc + Opcodes.length(code, pc);
+            for (int target : targets(code, pc)) {
+                leaders.add(target);
+                leaders.add(next);
+            }
+            if (isEnd(code.get(pc) & 0xFF))
+                leaders.add(next);
+        }
+        for (int pc : instructions) {
+            if (leaders.contains(pc))
+                blocks.put(pc, new Block(pc));
+            blocks.floorEntry(pc).getValue().instructions.add(pc);
+        }
+        for (Block b : blocks.values()) {
+            int last = b.getLast();
+            int opcode = code.get(last) & 0xFF;
+            for (int target : targets(code, last)) {
+                if (target >= end || !blocks.containsKey(target))
+                    throw new IllegalArgumentException(String.format("Invalid branch target %d at %d", target, last));
+                b.successors.add(blocks.get(target));
+            }
+            int next = last + Opcodes.length(code, last);
+            boolean falls = !isEnd(opcode) && opcode != Opcodes.GOTO && opcode != Opcodes.GOTO_W && !Opcodes.isSwitch(opcode);
+            if (falls && blocks.containsKey(next))
+                b.successors.add(blocks.get(next));
+        }
+        if (!blocks.isEmpty())
+            search();
+    }
+
+    // Return, athrow and ret end a path
+    private static boolean isEnd(int opcode) {
+        return Opcodes.isReturn(opcode) || opcode == Opcodes.ATHROW || opcode == Opcodes.RET;
+    }
+
+    private static List<Integer> targets(ByteBuffer code, int pc) {
+        int opcode = code.get(pc) & 0xFF;
+        if (Opcodes.isBranch(opcode))
+            return Collections.singletonList(Opcodes.branchTarget(code, pc));
+        if (Opcodes.isSwitch(opcode)) {
+            List<Integer> result = new ArrayList<>(Opcodes.switchTargets(code, pc).values());
+            result.add(Opcodes.switchDefault(code, pc));
+            return result;
+        }
+        return Collections.emptyList();
+    }
+
+    // Iterative depth-first search for back edges and reverse postorder
+    private void search() {
+        Set<Block> visited = new HashSet<>();
+        Set<Block> onStack = new HashSet<>();
+        Deque<Block> postorder = new ArrayDeque<>();
+        Deque<Iterator<Block>> iterators = new ArrayDeque<>();
+        Deque<Block> path = new ArrayDeque<>();
+        Block entry = blocks.firstEntry().getValue();
+        visited.add(entry);
+        onStack.add(entry);
+        path.push(entry);
+        iterators.push(entry.successors.iterator());
+        while (!path.isEmpty()) {
+            Block b = path.peek();
+            Iterator<Block> i = iterators.peek();
+            if (i.hasNext()) {
+                Block s = i.next();
+                if (onStack.contains(s)) {
+                    loops = true;
+                    continue;
+                }
+                b.forward.add(s);
+                s.predecessors.add(b);
+                if (visited.add(s)) {
+                    onStack.add(s);
+                    path.push(s);
+                    iterators.push(s.successors.iterator());
+                }
+            } else {
+                path.pop();
+                iterators.pop();
+                onStack.remove(b);
+                postorder.push(b);
+            }
+        }
+        order.addAll(postorder);
+    }
+
+    Block getEntry() {
+        return blocks.firstEntry().getValue();
+    }
+
+    // Blocks reachable from the entry, in topological order of forward edges
+    List<Block> getBlocks() {
+        return Collections.unmodifiableList(order);
+    }
+
+    Optional<Block> getBlock(int pc) {
+        return Optional.ofNullable(blocks.get(pc));
+    }
+
+    boolean hasLoops() {
+        return loops;
+    }
+}
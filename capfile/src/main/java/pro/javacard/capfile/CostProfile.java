@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Cost of bytecodes and API calls on a particular card, in cycles or any other unit, as measured
+// on the card. Properties:
+//   bytecode=1                        - any bytecode not listed by mnemonic
+//   sadd=2                            - bytecode by mnemonic
+//   call=10                           - any method of an imported package, on top of the invoke
+//   call.javacard.framework.8.13=400  - method of an imported package by package name or AID,
+//                                       class token and method token
+public final class CostProfile {
+    public static final CostProfile DEFAULT = new CostProfile(Collections.emptyMap(), Collections.emptyMap(), 1, 10);
+
+    private final Map<Integer, Long> opcodes;
+    private final Map<String, Long> calls;
+    private final long bytecode;
+    private final long call;
+
+    private CostProfile(Map<Integer, Long> opcodes, Map<String, Long> calls, long bytecode, long call) {
+        this.opcodes = opcodes;
+        this.calls = calls;
+        this.bytecode = bytecode;
+        this.call = call;
+    }
+
+    public static CostProfile fromProperties(Properties p) {
+        Map<String, Integer> mnemonics = new HashMap<>();
+        for (int i = 0; i < 256; i++) {
+            if (Opcodes.isValid(i))
+                mnemonics.put(Opcodes.mnemonic(i), i);
+        }
+        Map<Integer, Long> opcodes = new HashMap<>();
+        Map<String, Long> calls = new HashMap<>();
+        long bytecode = DEFAULT.bytecode;
+        long call = DEFAULT.call;
+        for (String key : p.stringPropertyNames()) {
+            long cost = cost(key, p.getProperty(key));
+            if (key.equals("bytecode"))
+                bytecode = cost;
+            else if (key.equals("call"))
+                call = cost;
+            else if (key.startsWith("call."))
+                calls.put(key.substring(5), cost);
+            else if (mnemonics.containsKey(key))
+                opcodes.put(mnemonics.get(key), cost);
+            else
+                throw new IllegalArgumentException("Unknown cost profile entry: " + key);
+        }
+        return new CostProfile(Collections.unmodifiableMap(opcodes), Collections.unmodifiableMap(calls), bytecode, call);
+    }
+
+    public static CostProfile load(Path path) throws IOException {
+        Properties p = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            p.load(in);
+        }
+        return fromProperties(p);
+    }
+
+    private static long cost(String key, String value) {
+        try {
+            long cost = Long.parseLong(value.trim());
+            if (cost < 0)
+                throw new IllegalArgumentException("Negative cost for " + key + ": " + value);
+            return cost;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cost for " + key + ": " + value);
+        }
+    }
+
+    public long bytecode(int opcode) {
+        return opcodes.getOrDefault(opcode & 0xFF, bytecode);
+    }
+
+    // Cost of a method of an imported package, not including the invoke bytecode
+    public long call(AID pkg, int classToken, int token) {
+        String ref = "." + classToken + "." + token;
+        Optional<String> name = WellKnownAID.getName(pkg);
+        if (name.isPresent() && calls.containsKey(name.get() + ref))
+            return calls.get(name.get() + ref);
+        return calls.getOrDefault(pkg + ref, call);
+    }
+}
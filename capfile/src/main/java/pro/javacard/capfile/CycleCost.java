@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// Static estimate of the cost of process() of an applet with a CostProfile, over the paths
+// through the control flow graph of the method and the methods of the package it calls. The
+// first switch in process(), usually on the INS byte, is broken down by case. Loops are counted
+// as a single iteration and exception handlers are not followed. Recursive calls count as the
+// invoke only.
+public final class CycleCost {
+    private final Range process;
+    private final Map<Integer, Range> branches;
+    private final Optional<Range> otherwise;
+
+    private CycleCost(Range process, Map<Integer, Range> branches, Optional<Range> otherwise) {
+        this.process = process;
+        this.branches = Collections.unmodifiableMap(branches);
+        this.otherwise = otherwise;
+    }
+
+    // Cost of the cheapest and the most expensive path
+    public static final class Range {
+        private final long best;
+        private final long worst;
+        private final boolean loops;
+
+        Range(long best, long worst, boolean loops) {
+            this.best = best;
+            this.worst = worst;
+            this.loops = loops;
+        }
+
+        public long getBest() {
+            return best;
+        }
+
+        public long getWorst() {
+            return worst;
+        }
+
+        // Paths contain loops, counted once, so the worst case is not an upper bound
+        public boolean hasLoops() {
+            return loops;
+        }
+
+        @Override
+        public String toString() {
+            return best + ".." + worst + (loops ? "+" : "");
+        }
+    }
+
+    // Whole process() method
+    public Range getProcess() {
+        return process;
+    }
+
+    // Paths through each case of the first switch, by case value
+    public Map<Integer, Range> getBranches() {
+        return branches;
+    }
+
+    // Paths through the default of the first switch, if process() has a switch
+    public Optional<Range> getDefault() {
+        return otherwise;
+    }
+
+    static Map<AID, CycleCost> of(CAPFile cap, CostProfile profile) {
+        Map<AID, CycleCost> result = new LinkedHashMap<>();
+        Optional<AppletComponent> applets = cap.getAppletComponent();
+        Optional<MethodComponent> method = cap.getMethodComponent();
+        Optional<ConstantPoolComponent> cp = cap.getConstantPoolComponent();
+        if (!applets.isPresent() || !method.isPresent() || !cp.isPresent())
+            return result;
+        Estimator estimator = new Estimator(new Bytecode(method.get(), cp.get(), cap.getClassComponent(), cap.getImportComponent(), cap.getSymbols()), profile);
+        for (int i = 0; i < applets.get().getCount(); i++) {
+            Optional<Integer> process = estimator.bytecode.process(applets.get().getInstallMethodOffset(i));
+            if (process.isPresent())
+                result.put(applets.get().getAID(i), estimator.of(process.get()));
+        }
+        return result;
+    }
+
+    private static final class Estimator {
+        private final Bytecode bytecode;
+        private final ByteBuffer code;
+        private final CostProfile profile;
+        private final Map<Integer, Range> methods = new HashMap<>();
+        private final Map<Integer, Integer> active = new HashMap<>(); // Methods being estimated, by call depth
+        private int cut = Integer.MAX_VALUE; // Shallowest active method a recursive call was cut at
+        private boolean loops; // Loops in callees of the method being estimated
+
+        Estimator(Bytecode bytecode, CostProfile profile) {
+            this.bytecode = bytecode;
+            this.code = bytecode.getCode();
+            this.profile = profile;
+        }
+
+        CycleCost of(int process) {
+            loops = false;
+            cut = Integer.MAX_VALUE;
+            ControlFlow flow = new ControlFlow(bytecode, process);
+            Map<ControlFlow.Block, long[]> suffix = suffix(flow);
+            Map<ControlFlow.Block, long[]> prefix = new HashMap<>();
+            Map<Integer, Range> branches = new LinkedHashMap<>();
+            Optional<Range> otherwise = Optional.empty();
+            boolean found = false;
+            for (ControlFlow.Block b : flow.getBlocks()) {
+                long[] cost = cost(b);
+                long best = cost[0], worst = cost[1];
+                if (!b.getForwardPredecessors().isEmpty()) {
+                    best += b.getForwardPredecessors().stream().mapToLong(p -> prefix.get(p)[0]).min().getAsLong();
+                    worst += b.getForwardPredecessors().stream().mapToLong(p -> prefix.get(p)[1]).max().getAsLong();
+                }
+                prefix.put(b, new long[]{best, worst});
+                int last = b.getLast();
+                if (!found && Opcodes.isSwitch(bytecode.opcode(last))) {
+                    found = true;
+                    for (Map.Entry<Integer, Integer> e : Opcodes.switchTargets(code, last).entrySet()) {
+                        branches.put(e.getKey(), through(flow, best, worst, suffix, e.getValue()));
+                    }
+                    otherwise = Optional.of(through(flow, best, worst, suffix, Opcodes.switchDefault(code, last)));
+                }
+            }
+            long[] whole = suffix.get(flow.getEntry());
+            return new CycleCost(new Range(whole[0], whole[1], flow.hasLoops() || loops), branches, otherwise);
+        }
+
+        private Range through(ControlFlow flow, long best, long worst, Map<ControlFlow.Block, long[]> suffix, int target) {
+            long[] rest = suffix.get(flow.getBlock(target).get());
+            return new Range(best + rest[0], worst + rest[1], flow.hasLoops() || loops);
+        }
+
+        // Best and worst cost from each block to the end of the method
+        private Map<ControlFlow.Block, long[]> suffix(ControlFlow flow) {
+            Map<ControlFlow.Block, long[]> result = new HashMap<>();
+            List<ControlFlow.Block> blocks = new ArrayList<>(flow.getBlocks());
+            Collections.reverse(blocks);
+            for (ControlFlow.Block b : blocks) {
+                long[] cost = cost(b);
+                long best = cost[0], worst = cost[1];
+                if (!b.getForwardSuccessors().isEmpty()) {
+                    best += b.getForwardSuccessors().stream().mapToLong(s -> result.get(s)[0]).min().getAsLong();
+                    worst += b.getForwardSuccessors().stream().mapToLong(s -> result.get(s)[1]).max().getAsLong();
+                }
+                result.put(b, new long[]{best, worst});
+            }
+            return result;
+        }
+
+        private long[] cost(ControlFlow.Block b) {
+            long best = 0, worst = 0;
+            for (int pc : b.getInstructions()) {
+                int opcode = bytecode.opcode(pc);
+                long c = profile.bytecode(opcode);
+                best += c;
+                worst += c;
+                if (Opcodes.isInvoke(opcode)) {
+                    Optional<Bytecode.ExternalMethod> external = bytecode.externalMethod(pc);
+                    Optional<Integer> internal = bytecode.invokeTarget(pc).filter(bytecode::isKnown);
+                    if (external.isPresent()) {
+                        c = profile.call(external.get().pkg, external.get().classToken, external.get().token);
+                        best += c;
+                        worst += c;
+                    } else if (internal.isPresent() && active.containsKey(internal.get())) {
+                        cut = Math.min(cut, active.get(internal.get()));
+                    } else if (internal.isPresent()) {
+                        Range r = method(internal.get());
+                        best += r.best;
+                        worst += r.worst;
+                        loops |= r.loops;
+                    }
+                }
+            }
+            return new long[]{best, worst};
+        }
+
+        private Range method(int offset) {
+            Range r = methods.get(offset);
+            if (r != null)
+                return r;
+            boolean outer = loops;
+            int outerCut = cut;
+            int depth = active.size();
+            loops = false;
+            cut = Integer.MAX_VALUE;
+            active.put(offset, depth);
+            int inner;
+            try {
+                ControlFlow flow = new ControlFlow(bytecode, offset);
+                long[] whole = suffix(flow).get(flow.getEntry());
+                r = new Range(whole[0], whole[1], flow.hasLoops() || loops);
+            } finally {
+                active.remove(offset);
+                loops = outer;
+                inner = cut;
+                cut = Math.min(outerCut, cut);
+            }
+            // Cutting a recursion through a caller makes the result depend on the call path
+            if (inner >= depth)
+                methods.put(offset, r);
+            return r;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "process " + process;
+    }
+}
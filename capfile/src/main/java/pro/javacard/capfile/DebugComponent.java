@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// See JCVM 2.2 spec section 6.14
+// Present only in CAP files converted with -debug.
+public final class DebugComponent extends Component {
+    private static final int CLASS_HEADER = 15;
+    private static final int FIELD_SIZE = 10;
+    private static final int METHOD_HEADER = 15;
+    private static final int VARIABLE_SIZE = 9;
+    private static final int LINE_SIZE = 6;
+
+    // Offsets of strings, followed by the offset of package_name_index
+    private final Lazy<int[]> strings = new Lazy<>(this::indexStrings);
+    private final Lazy<int[]> classes = new Lazy<>(this::indexClasses);
+
+    DebugComponent(ByteBuffer component) {
+        super(component, TAG_DEBUG);
+    }
+
+    private int[] indexStrings() {
+        int[] result = new int[getStringCount() + 1];
+        int offset = 2;
+        for (int i = 0; i < result.length - 1; i++) {
+            result[i] = offset;
+            offset += 2 + u2(offset);
+        }
+        result[result.length - 1] = offset;
+        return result;
+    }
+
+    private int[] indexClasses() {
+        int[] result = new int[getClassCount()];
+        int offset = strings.get()[getStringCount()] + 4;
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offset;
+            offset += new ClassDebugInfo(offset).getLength();
+        }
+        return result;
+    }
+
+    public int getStringCount() {
+        return u2(0);
+    }
+
+    public String getString(int index) {
+        int offset = strings.get()[index];
+        return new String(bytes(offset + 2, u2(offset)), StandardCharsets.UTF_8);
+    }
+
+    public String getPackageName() {
+        return getString(u2(strings.get()[getStringCount()]));
+    }
+
+    public int getClassCount() {
+        return u2(strings.get()[getStringCount()] + 2);
+    }
+
+    public ClassDebugInfo getClassDebugInfo(int index) {
+        return new ClassDebugInfo(classes.get()[index]);
+    }
+
+    public List<ClassDebugInfo> getClasses() {
+        List<ClassDebugInfo> result = new ArrayList<>(getClassCount());
+        for (int offset : classes.get()) {
+            result.add(new ClassDebugInfo(offset));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // Flyweight view of a class_debug_info
+    public final class ClassDebugInfo {
+        private final int offset;
+
+        ClassDebugInfo(int offset) {
+            this.offset = offset;
+        }
+
+        // Fully qualified, with slashes
+        public String getName() {
+            return getString(u2(offset));
+        }
+
+        public int getAccessFlags() {
+            return u2(offset + 2);
+        }
+
+        // Offset in Class component
+        public int getLocation() {
+            return u2(offset + 4);
+        }
+
+        public String getSuperclassName() {
+            return getString(u2(offset + 6));
+        }
+
+        public String getSourceFile() {
+            return getString(u2(offset + 8));
+        }
+
+        public int getInterfaceCount() {
+            return u1(offset + 10);
+        }
+
+        public int getFieldCount() {
+            return u2(offset + 11);
+        }
+
+        public int getMethodCount() {
+            return u2(offset + 13);
+        }
+
+        private int methods() {
+            return offset + CLASS_HEADER + 2 * getInterfaceCount() + FIELD_SIZE * getFieldCount();
+        }
+
+        public MethodDebugInfo getMethod(int index) {
+            if (index < 0 || index >= getMethodCount())
+                throw new IndexOutOfBoundsException("Invalid method index: " + index);
+            int o = methods();
+            for (int i = 0; i < index; i++) {
+                o += new MethodDebugInfo(o, this).getLength();
+            }
+            return new MethodDebugInfo(o, this);
+        }
+
+        public List<MethodDebugInfo> getMethods() {
+            List<MethodDebugInfo> result = new ArrayList<>(getMethodCount());
+            int o = methods();
+            for (int i = 0; i < getMethodCount(); i++) {
+                MethodDebugInfo m = new MethodDebugInfo(o, this);
+                result.add(m);
+                o += m.getLength();
+            }
+            return Collections.unmodifiableList(result);
+        }
+
+        int getLength() {
+            int o = methods();
+            for (int i = 0; i < getMethodCount(); i++) {
+                o += new MethodDebugInfo(o, this).getLength();
+            }
+            return o - offset;
+        }
+    }
+
+    // Flyweight view of a method_debug_info
+    public final class MethodDebugInfo {
+        private final int offset;
+        private final ClassDebugInfo owner;
+
+        MethodDebugInfo(int offset, ClassDebugInfo owner) {
+            this.offset = offset;
+            this.owner = owner;
+        }
+
+        public ClassDebugInfo getOwner() {
+            return owner;
+        }
+
+        public String getName() {
+            return getString(u2(offset));
+        }
+
+        public String getDescriptor() {
+            return getString(u2(offset + 2));
+        }
+
+        public int getAccessFlags() {
+            return u2(offset + 4);
+        }
+
+        // Offset in Method component
+        public int getLocation() {
+            return u2(offset + 6);
+        }
+
+        public int getHeaderSize() {
+            return u1(offset + 8);
+        }
+
+        public int getBodySize() {
+            return u2(offset + 9);
+        }
+
+        public int getVariableCount() {
+            return u2(offset + 11);
+        }
+
+        public int getLineCount() {
+            return u2(offset + 13);
+        }
+
+        private int line(int index) {
+            if (index < 0 || index >= getLineCount())
+                throw new IndexOutOfBoundsException("Invalid line index: " + index);
+            return offset + METHOD_HEADER + VARIABLE_SIZE * getVariableCount() + LINE_SIZE * index;
+        }
+
+        // Relative to the first bytecode of the method
+        public int getLineStartPc(int index) {
+            return u2(line(index));
+        }
+
+        public int getLineEndPc(int index) {
+            return u2(line(index) + 2);
+        }
+
+        public int getSourceLine(int index) {
+            return u2(line(index) + 4);
+        }
+
+        int getLength() {
+            return METHOD_HEADER + VARIABLE_SIZE * getVariableCount() + LINE_SIZE * getLineCount();
+        }
+    }
+}
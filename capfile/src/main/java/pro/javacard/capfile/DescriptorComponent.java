@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// See JCVM 2.2 spec section 6.13
+// Describes tokens, access flags and types of classes, fields and methods, and the bytecode
+// counts that are not recorded in the Method component. Names are only in the Debug component.
+public final class DescriptorComponent extends Component {
+    // Table 6-17 and 6-19: access flags
+    public static final int ACC_PUBLIC = 0x01;
+    public static final int ACC_PRIVATE = 0x02;
+    public static final int ACC_PROTECTED = 0x04;
+    public static final int ACC_STATIC = 0x08;
+    public static final int ACC_FINAL = 0x10;
+    public static final int ACC_INTERFACE = 0x40; // classes
+    public static final int ACC_ABSTRACT = 0x40; // methods, 0x80 for classes
+    public static final int ACC_INIT = 0x80; // methods
+
+    private static final int CLASS_HEADER = 9;
+    private static final int FIELD_SIZE = 7;
+    private static final int METHOD_SIZE = 12;
+
+    private final Lazy<int[]> offsets = new Lazy<>(this::index);
+
+    DescriptorComponent(ByteBuffer component) {
+        super(component, TAG_DESCRIPTOR);
+    }
+
+    // Offsets of all classes, followed by the offset of type_descriptor_info
+    private int[] index() {
+        int[] result = new int[getClassCount() + 1];
+        int offset = 1;
+        for (int i = 0; i < result.length - 1; i++) {
+            result[i] = offset;
+            ClassDescriptor c = new ClassDescriptor(offset);
+            offset += CLASS_HEADER + 2 * c.getInterfaceCount() + FIELD_SIZE * c.getFieldCount() + METHOD_SIZE * c.getMethodCount();
+        }
+        result[result.length - 1] = offset;
+        return result;
+    }
+
+    public int getClassCount() {
+        return u1(0);
+    }
+
+    public ClassDescriptor getClassDescriptor(int index) {
+        if (index < 0 || index >= getClassCount())
+            throw new IndexOutOfBoundsException("Invalid class index: " + index);
+        return new ClassDescriptor(offsets.get()[index]);
+    }
+
+    public List<ClassDescriptor> getClasses() {
+        List<ClassDescriptor> result = new ArrayList<>(getClassCount());
+        for (int i = 0; i < getClassCount(); i++) {
+            result.add(getClassDescriptor(i));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private int types() {
+        return offsets.get()[getClassCount()];
+    }
+
+    public int getConstantPoolCount() {
+        return u2(types());
+    }
+
+    // Offset of the type of a constant pool entry in type_descriptor_info, or 0xFFFF for classes
+    public int getConstantPoolType(int index) {
+        return u2(types() + 2 + 2 * index);
+    }
+
+    // Decodes the field type descriptor at the given offset of type_descriptor_info into a JVM-like
+    // descriptor, with class references in JCA notation: "[B" or "L0.10;"
+    public String getType(int offset) {
+        return String.join("", types(offset));
+    }
+
+    // Decodes the method type descriptor at the given offset of type_descriptor_info: "(SL0.10;)[B"
+    public String getMethodType(int offset) {
+        List<String> types = types(offset);
+        // Parameters followed by return type
+        return "(" + String.join("", types.subList(0, types.size() - 1)) + ")" + types.get(types.size() - 1);
+    }
+
+    private List<String> types(int offset) {
+        int o = types() + offset;
+        int nibbles = u1(o);
+        List<String> types = new ArrayList<>();
+        int i = 0;
+        while (i < nibbles) {
+            int t = nibble(o + 1, i++);
+            StringBuilder type = new StringBuilder();
+            if (t >= 0xA) {
+                type.append('[');
+                t = t - 0xA + 0x2;
+            }
+            switch (t) {
+                case 0x1:
+                    type.append('V');
+                    break;
+                case 0x2:
+                    type.append('Z');
+                    break;
+                case 0x3:
+                    type.append('B');
+                    break;
+                case 0x4:
+                    type.append('S');
+                    break;
+                case 0x5:
+                    type.append('I');
+                    break;
+                case 0x6:
+                    int ref = 0;
+                    for (int n = 0; n < 4; n++)
+                        ref = ref << 4 | nibble(o + 1, i++);
+                    type.append('L').append(ConstantPoolComponent.classRefToString(ref)).append(';');
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid type nibble: " + t);
+            }
+            types.add(type.toString());
+        }
+        if (types.isEmpty())
+            throw new IllegalArgumentException("Empty type descriptor at " + offset);
+        return types;
+    }
+
+    private int nibble(int offset, int index) {
+        int b = u1(offset + index / 2);
+        return index % 2 == 0 ? b >> 4 : b & 0x0F;
+    }
+
+    // Flyweight view of a class_descriptor_info
+    public final class ClassDescriptor {
+        private final int offset;
+
+        ClassDescriptor(int offset) {
+            this.offset = offset;
+        }
+
+        public int getToken() {
+            return u1(offset);
+        }
+
+        public int getAccessFlags() {
+            return u1(offset + 1);
+        }
+
+        public boolean isInterface() {
+            return (getAccessFlags() & ACC_INTERFACE) == ACC_INTERFACE;
+        }
+
+        // Offset in Class component
+        public int getThisClassRef() {
+            return u2(offset + 2);
+        }
+
+        public int getInterfaceCount() {
+            return u1(offset + 4);
+        }
+
+        public int getFieldCount() {
+            return u2(offset + 5);
+        }
+
+        public int getMethodCount() {
+            return u2(offset + 7);
+        }
+
+        public int getInterface(int index) {
+            return u2(offset + CLASS_HEADER + 2 * index);
+        }
+
+        public FieldDescriptor getField(int index) {
+            if (index < 0 || index >= getFieldCount())
+                throw new IndexOutOfBoundsException("Invalid field index: " + index);
+            return new FieldDescriptor(offset + CLASS_HEADER + 2 * getInterfaceCount() + FIELD_SIZE * index);
+        }
+
+        public MethodDescriptor getMethod(int index) {
+            if (index < 0 || index >= getMethodCount())
+                throw new IndexOutOfBoundsException("Invalid method index: " + index);
+            return new MethodDescriptor(offset + CLASS_HEADER + 2 * getInterfaceCount() + FIELD_SIZE * getFieldCount() + METHOD_SIZE * index, this);
+        }
+
+        public List<MethodDescriptor> getMethods() {
+            List<MethodDescriptor> result = new ArrayList<>(getMethodCount());
+            for (int i = 0; i < getMethodCount(); i++) {
+                result.add(getMethod(i));
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+
+    // Flyweight view of a field_descriptor_info
+    public final class FieldDescriptor {
+        private final int offset;
+
+        FieldDescriptor(int offset) {
+            this.offset = offset;
+        }
+
+        public int getToken() {
+            return u1(offset);
+        }
+
+        public int getAccessFlags() {
+            return u1(offset + 1);
+        }
+
+        public boolean isStatic() {
+            return (getAccessFlags() & ACC_STATIC) == ACC_STATIC;
+        }
+
+        // Offset in StaticField component, for static fields
+        public int getStaticFieldOffset() {
+            return u2(offset + 3);
+        }
+
+        public String getType() {
+            int type = u2(offset + 5);
+            if ((type & 0x8000) == 0x8000) {
+                switch (type & 0x7FFF) {
+                    case 0x2:
+                        return "Z";
+                    case 0x3:
+                        return "B";
+                    case 0x4:
+                        return "S";
+                    case 0x5:
+                        return "I";
+                    default:
+                        throw new IllegalArgumentException(String.format("Invalid primitive type: %04X", type));
+                }
+            }
+            return DescriptorComponent.this.getType(type);
+        }
+    }
+
+    // Flyweight view of a method_descriptor_info
+    public final class MethodDescriptor {
+        private final int offset;
+        private final ClassDescriptor owner;
+
+        MethodDescriptor(int offset, ClassDescriptor owner) {
+            this.offset = offset;
+            this.owner = owner;
+        }
+
+        public ClassDescriptor getOwner() {
+            return owner;
+        }
+
+        public int getToken() {
+            return u1(offset);
+        }
+
+        public int getAccessFlags() {
+            return u1(offset + 1);
+        }
+
+        public boolean isStatic() {
+            return (getAccessFlags() & ACC_STATIC) == ACC_STATIC;
+        }
+
+        public boolean isAbstract() {
+            return (getAccessFlags() & ACC_ABSTRACT) == ACC_ABSTRACT;
+        }
+
+        public boolean isInit() {
+            return (getAccessFlags() & ACC_INIT) == ACC_INIT;
+        }
+
+        // Offset in Method component, 0 for abstract and interface methods
+        public int getMethodOffset() {
+            return u2(offset + 2);
+        }
+
+        public int getTypeOffset() {
+            return u2(offset + 4);
+        }
+
+        public String getType() {
+            return getMethodType(getTypeOffset());
+        }
+
+        public int getBytecodeCount() {
+            return u2(offset + 6);
+        }
+
+        public int getExceptionHandlerCount() {
+            return u2(offset + 8);
+        }
+
+        public int getExceptionHandlerIndex() {
+            return u2(offset + 10);
+        }
+    }
+}
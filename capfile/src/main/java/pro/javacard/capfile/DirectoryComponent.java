@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+// See JCVM 2.2 spec section 6.4, and JCVM 3.1 spec section 6.6 for the extended format
+public final class DirectoryComponent extends Component {
+    private final int sizes;
+    private final int width; // Bytes per component size: 2, or 4 in the extended format
+
+    DirectoryComponent(ByteBuffer component) {
+        super(component, TAG_DIRECTORY);
+        // CAP 2.1 lists 11 component sizes, CAP 2.2 adds Debug and CAP 2.3 can add Static Resource.
+        // The extended format has u4 sizes. Pick the one that adds up.
+        int layout = layout(isExtended() ? new int[]{4, 2} : new int[]{2, 4});
+        if (layout < 0)
+            throw new IllegalArgumentException("Unknown Directory component layout, " + getSize() + " bytes");
+        sizes = layout >> 8;
+        width = layout & 0xFF;
+    }
+
+    // Count and width of component sizes, packed, or -1 if nothing adds up
+    private int layout(int[] widths) {
+        for (int w : widths) {
+            for (int count = 13; count >= 11; count--) {
+                if (fits(count, w))
+                    return count << 8 | w;
+            }
+        }
+        return -1;
+    }
+
+    private boolean fits(int count, int w) {
+        int offset = count * w + 6;
+        if (offset + 3 > getSize())
+            return false;
+        int customs = u1(offset + 2);
+        offset += 3;
+        // custom_component_info: tag, size, AID length and AID
+        for (int i = 0; i < customs; i++) {
+            if (offset + w + 2 > getSize())
+                return false;
+            offset += w + 2 + u1(offset + w + 1);
+        }
+        return offset == getSize();
+    }
+
+    public int getComponentCount() {
+        return sizes;
+    }
+
+    // Component sizes are u4, as in the extended format
+    public boolean hasExtendedSizes() {
+        return width == 4;
+    }
+
+    // Size of the info item of the component with given tag, as recorded in the directory
+    public int getComponentSize(int tag) {
+        if (tag < 1 || tag > sizes)
+            throw new IllegalArgumentException("Invalid component tag: " + tag);
+        return width == 4 ? s4((tag - 1) * 4) : u2((tag - 1) * 2);
+    }
+
+    public int getStaticImageSize() {
+        return u2(sizes * width);
+    }
+
+    public int getArrayInitCount() {
+        return u2(sizes * width + 2);
+    }
+
+    public int getArrayInitSize() {
+        return u2(sizes * width + 4);
+    }
+
+    public int getImportCount() {
+        return u1(sizes * width + 6);
+    }
+
+    public int getAppletCount() {
+        return u1(sizes * width + 7);
+    }
+
+    public int getCustomCount() {
+        return u1(sizes * width + 8);
+    }
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+// JCA-like listing of a CAP file, written while walking the components. Imported classes and
+// methods are named from export files where given, otherwise from well-known AIDs and tokens.
+// Methods are listed only where Descriptor or Debug components give their bounds.
+final class Disassembler {
+    private static final String[] ARRAY_TYPES = {null, null, null, null, null, null, null, null, null, null,
+            "boolean", "byte", "short", "int"};
+
+    private final CAPFile cap;
+    private final Map<AID, ExportFile> exports;
+    private final PrintStream out;
+    private final Symbols symbols;
+    private final Optional<ConstantPoolComponent> cp;
+    private final Optional<Bytecode> bytecode;
+
+    private Disassembler(CAPFile cap, Map<AID, ExportFile> exports, PrintStream out) {
+        this.cap = cap;
+        this.exports = exports;
+        this.out = out;
+        this.symbols = cap.getSymbols();
+        this.cp = cap.getConstantPoolComponent();
+        if (cap.getMethodComponent().isPresent() && cp.isPresent())
+            bytecode = Optional.of(new Bytecode(cap.getMethodComponent().get(), cp.get(), cap.getClassComponent(), cap.getImportComponent(), symbols));
+        else
+            bytecode = Optional.empty();
+    }
+
+    static void disassemble(CAPFile cap, Map<AID, ExportFile> exports, PrintStream out) {
+        new Disassembler(cap, exports, out).run();
+    }
+
+    private void run() {
+        out.printf(".package %s {%n", cap.getPackageName());
+        out.printf("\t.aid %s;%n", jca(cap.getPackageAID()));
+        out.printf("\t.version %s;%n", cap.getPackageVersion());
+        imports();
+        applets();
+        constantPool();
+        classes();
+        methods();
+        staticFields();
+        out.println("}");
+        out.flush();
+    }
+
+    // AID in JCA notation: 0xA0:0x0:0x0:0x0:0x62:0x1:0x1
+    static String jca(AID aid) {
+        StringJoiner result = new StringJoiner(":");
+        for (byte b : aid.getBytes())
+            result.add(String.format("0x%X", b & 0xFF));
+        return result.toString();
+    }
+
+    private void imports() {
+        List<CAPPackage> imports = cap.getImports();
+        if (imports.isEmpty())
+            return;
+        out.printf("%n\t.imports {%n");
+        for (int i = 0; i < imports.size(); i++) {
+            CAPPackage p = imports.get(i);
+            out.printf("\t\t%s %s;\t\t// %d %s%n", jca(p.getAid()), p.getVersionString(), i, packageName(p.getAid()).orElse("?"));
+        }
+        out.println("\t}");
+    }
+
+    private void applets() {
+        if (!cap.getAppletComponent().isPresent())
+            return;
+        AppletComponent applets = cap.getAppletComponent().get();
+        out.printf("%n\t.applet {%n");
+        for (int i = 0; i < applets.getCount(); i++) {
+            int install = applets.getInstallMethodOffset(i);
+            out.printf("\t\t%s %s;%n", jca(applets.getAID(i)), methodName(install));
+        }
+        out.println("\t}");
+    }
+
+    private void constantPool() {
+        if (!cp.isPresent())
+            return;
+        out.printf("%n\t.constantPool {%n");
+        for (int i = 0; i < cp.get().getCount(); i++) {
+            out.printf("\t\t/* %04d */ %s;%s%n", i, cp.get().toString(i), comment(resolve(i)));
+        }
+        out.println("\t}");
+    }
+
+    private void classes() {
+        if (!cap.getClassComponent().isPresent())
+            return;
+        ClassComponent classes = cap.getClassComponent().get();
+        for (int offset : classes.getOffsets()) {
+            out.println();
+            if (classes.isInterface(offset)) {
+                out.printf("\t.interface %s {}\t\t// @%04x%n", className(offset), offset);
+                continue;
+            }
+            ClassComponent.ClassInfo c = classes.getClassInfo(offset);
+            String superClass = c.getSuperClassRef() == 0xFFFF ? "" : " extends " + className(c.getSuperClassRef());
+            StringJoiner interfaces = new StringJoiner(", ", " implements ", "").setEmptyValue("");
+            for (int i : c.getInterfaces())
+                interfaces.add(className(i));
+            out.printf("\t.class %s%s%s {\t\t// @%04x, %d bytes of fields%n", className(offset), superClass, interfaces, offset, 2 * c.getDeclaredInstanceSize());
+            virtualMethods(c, c.getPublicMethodTableBase(), c.getPublicMethodTableCount(), 0);
+            virtualMethods(c, c.getPackageMethodTableBase(), c.getPackageMethodTableCount(), 0x80);
+            out.println("\t}");
+        }
+    }
+
+    private void virtualMethods(ClassComponent.ClassInfo c, int base, int count, int flag) {
+        for (int i = 0; i < count; i++) {
+            int token = (base & 0x7F) + i | flag;
+            int m = flag == 0 ? c.getPublicVirtualMethod(token) : c.getPackageVirtualMethod(token);
+            if (m != 0xFFFF)
+                out.printf("\t\t.method %d %s;%n", token, methodName(m));
+        }
+    }
+
+    private void methods() {
+        if (!bytecode.isPresent())
+            return;
+        MethodComponent method = cap.getMethodComponent().get();
+        if (symbols.getMethodOffsets().isEmpty()) {
+            out.printf("%n\t// %d bytes of methods without Descriptor or Debug component%n", method.getSize());
+            return;
+        }
+        for (int m : symbols.getMethodOffsets()) {
+            MethodComponent.MethodInfo info = method.getMethod(m);
+            out.printf("%n\t.method %s {\t\t// @%04x%n", methodName(m), m);
+            out.printf("\t\t.stack %d;%n", info.getMaxStack());
+            out.printf("\t\t.locals %d;%n", info.getMaxLocals());
+            Set<Integer> labels = new HashSet<>();
+            List<Integer> instructions = bytecode.get().instructions(m);
+            ByteBuffer code = bytecode.get().getCode();
+            for (int pc : instructions) {
+                int opcode = code.get(pc) & 0xFF;
+                if (Opcodes.isBranch(opcode))
+                    labels.add(Opcodes.branchTarget(code, pc));
+                else if (Opcodes.isSwitch(opcode)) {
+                    labels.add(Opcodes.switchDefault(code, pc));
+                    labels.addAll(Opcodes.switchTargets(code, pc).values());
+                }
+            }
+            for (int i = 0; i < method.getHandlerCount(); i++) {
+                if (symbols.getMethodAt(method.getHandlerStartOffset(i)).orElse(-1) == m)
+                    labels.add(method.getHandlerOffset(i));
+            }
+            out.println();
+            for (int pc : instructions) {
+                String label = labels.contains(pc) ? "L" + (pc - m) + ":" : "";
+                out.printf("\t\t%-7s %s;%s%n", label, instruction(code, pc, m), comment(operandName(code, pc)));
+            }
+            handlers(method, m);
+            out.println("\t}");
+        }
+    }
+
+    private void handlers(MethodComponent method, int m) {
+        for (int i = 0; i < method.getHandlerCount(); i++) {
+            int start = method.getHandlerStartOffset(i);
+            if (symbols.getMethodAt(start).orElse(-1) != m)
+                continue;
+            int type = method.getHandlerCatchTypeIndex(i);
+            String caught = type == 0 ? "finally" : className(cp.get().getClassRef(type));
+            out.printf("\t\t.exception L%d L%d L%d %s;%n", start - m, start + method.getHandlerActiveLength(i) - m,
+                    method.getHandlerOffset(i) - m, caught);
+        }
+    }
+
+    private void staticFields() {
+        if (!cap.getStaticFieldComponent().isPresent())
+            return;
+        StaticFieldComponent sf = cap.getStaticFieldComponent().get();
+        out.printf("%n\t.staticFieldImage {\t\t// %d bytes%n", sf.getImageSize());
+        out.printf("\t\t.references %d;%n", sf.getReferenceCount());
+        for (int i = 0; i < sf.getArrayInitCount(); i++) {
+            out.printf("\t\t.array %s[%d] %s;%n", ARRAY_TYPES[sf.getArrayInitType(i) + 8], sf.getArrayInitElementCount(i),
+                    HexUtils.bin2hex(sf.getArrayInitValues(i)));
+        }
+        out.printf("\t\t.default %d;%n", sf.getDefaultValueCount());
+        if (sf.getNonDefaultValueCount() > 0)
+            out.printf("\t\t.values %s;%n", HexUtils.bin2hex(sf.getNonDefaultValues()));
+        out.println("\t}");
+    }
+
+    // Mnemonic and operands, with branch targets as labels relative to the start of the method
+    private String instruction(ByteBuffer code, int pc, int m) {
+        int opcode = code.get(pc) & 0xFF;
+        String mnemonic = Opcodes.mnemonic(opcode);
+        if (Opcodes.isBranch(opcode))
+            return mnemonic + " L" + (Opcodes.branchTarget(code, pc) - m);
+        if (Opcodes.isSwitch(opcode)) {
+            StringJoiner cases = new StringJoiner(", ", " { ", " }");
+            for (Map.Entry<Integer, Integer> e : Opcodes.switchTargets(code, pc).entrySet())
+                cases.add(e.getKey() + ": L" + (e.getValue() - m));
+            cases.add("default: L" + (Opcodes.switchDefault(code, pc) - m));
+            return mnemonic + cases;
+        }
+        switch (opcode) {
+            case Opcodes.NEWARRAY:
+                return mnemonic + " " + arrayType(code.get(pc + 1) & 0xFF);
+            case Opcodes.INVOKEINTERFACE:
+                return String.format("%s %d %d %d", mnemonic, code.get(pc + 1) & 0xFF, code.getShort(pc + 2) & 0xFFFF, code.get(pc + 4) & 0xFF);
+            case Opcodes.CHECKCAST:
+            case Opcodes.INSTANCEOF:
+                return String.format("%s %d %d", mnemonic, code.get(pc + 1) & 0xFF, code.getShort(pc + 2) & 0xFFFF);
+            case Opcodes.SINC:
+            case Opcodes.IINC:
+                return String.format("%s %d %d", mnemonic, code.get(pc + 1) & 0xFF, code.get(pc + 2));
+            case Opcodes.SINC_W:
+            case Opcodes.IINC_W:
+                return String.format("%s %d %d", mnemonic, code.get(pc + 1) & 0xFF, code.getShort(pc + 2));
+            default:
+                break;
+        }
+        switch (Opcodes.length(code, pc)) {
+            case 1:
+                return mnemonic;
+            case 2:
+                // Local variable indexes and constant pool indexes of field instructions are unsigned
+                return mnemonic + " " + (opcode == Opcodes.BSPUSH || opcode == Opcodes.BIPUSH ? code.get(pc + 1) : code.get(pc + 1) & 0xFF);
+            case 3:
+                return mnemonic + " " + (opcode == Opcodes.SSPUSH || opcode == Opcodes.SIPUSH ? code.getShort(pc + 1) : code.getShort(pc + 1) & 0xFFFF);
+            default:
+                return mnemonic + " " + code.getInt(pc + 1);
+        }
+    }
+
+    private static String arrayType(int type) {
+        return type < ARRAY_TYPES.length && ARRAY_TYPES[type] != null ? ARRAY_TYPES[type] : Integer.toString(type);
+    }
+
+    // Name of the constant pool entry referenced by the instruction
+    private Optional<String> operandName(ByteBuffer code, int pc) {
+        int opcode = code.get(pc) & 0xFF;
+        int index;
+        if ((opcode >= Opcodes.GETFIELD_A && opcode <= Opcodes.PUTFIELD_I)
+                || (opcode >= Opcodes.GETFIELD_A_THIS && opcode <= Opcodes.PUTFIELD_I_THIS && !(opcode >= Opcodes.PUTFIELD_A_W && opcode <= Opcodes.PUTFIELD_I_W)))
+            index = code.get(pc + 1) & 0xFF;
+        else if ((opcode >= Opcodes.GETSTATIC_A && opcode <= Opcodes.PUTSTATIC_I) || (opcode >= Opcodes.INVOKEVIRTUAL && opcode <= Opcodes.ANEWARRAY && opcode != Opcodes.NEWARRAY)
+                || (opcode >= Opcodes.GETFIELD_A_W && opcode <= Opcodes.PUTFIELD_I_W) || opcode == Opcodes.CHECKCAST || opcode == Opcodes.INSTANCEOF)
+            index = bytecode.get().cpIndex(pc);
+        else
+            return Optional.empty();
+        // checkcast and instanceof of primitive arrays do not refer to the constant pool
+        if ((opcode == Opcodes.CHECKCAST || opcode == Opcodes.INSTANCEOF) && (code.get(pc + 1) & 0xFF) != 0)
+            return Optional.of(arrayType(code.get(pc + 1) & 0xFF) + "[]");
+        if (index >= cp.get().getCount())
+            return Optional.empty();
+        Optional<String> name = resolve(index);
+        if ((opcode == Opcodes.ANEWARRAY || opcode == Opcodes.CHECKCAST || opcode == Opcodes.INSTANCEOF) && name.isPresent())
+            return Optional.of(name.get() + (opcode == Opcodes.ANEWARRAY ? "[]" : ""));
+        return name;
+    }
+
+    private static String comment(Optional<String> name) {
+        return name.map(n -> "\t\t// " + n).orElse("");
+    }
+
+    // Name of the constant pool entry, where it can be found
+    private Optional<String> resolve(int index) {
+        ConstantPoolComponent pool = cp.get();
+        boolean external = pool.isExternal(index);
+        switch (pool.getTag(index)) {
+            case ConstantPoolComponent.CONSTANT_Classref:
+                return Optional.of(className(pool.getClassRef(index)));
+            case ConstantPoolComponent.CONSTANT_InstanceFieldref:
+                return Optional.of(className(pool.getClassRef(index)) + ".field#" + pool.getToken(index));
+            case ConstantPoolComponent.CONSTANT_VirtualMethodref:
+            case ConstantPoolComponent.CONSTANT_SuperMethodref:
+                int classRef = pool.getClassRef(index);
+                int token = pool.getToken(index);
+                if (external) {
+                    AID pkg = importAID((classRef >> 8) & 0x7F);
+                    Optional<String> name = externalMethodName(pkg, classRef & 0xFF, token, false);
+                    if (name.isPresent())
+                        return name;
+                } else if (bytecode.isPresent()) {
+                    Optional<String> name = bytecode.get().virtualMethod(classRef, token).flatMap(symbols::getMethodName);
+                    if (name.isPresent())
+                        return name;
+                }
+                return Optional.of(className(classRef) + ".virtual#" + token);
+            case ConstantPoolComponent.CONSTANT_StaticMethodref:
+                if (!external)
+                    return symbols.getMethodName(pool.getInternalOffset(index));
+                AID pkg = importAID(pool.getPackageToken(index));
+                Optional<String> name = externalMethodName(pkg, pool.getClassToken(index), pool.getToken(index), true);
+                if (name.isPresent())
+                    return name;
+                return Optional.of(externalClassName(pool.getPackageToken(index), pool.getClassToken(index)) + ".static#" + pool.getToken(index));
+            case ConstantPoolComponent.CONSTANT_StaticFieldref:
+                if (!external)
+                    return Optional.empty();
+                return Optional.of(externalClassName(pool.getPackageToken(index), pool.getClassToken(index)) + ".field#" + pool.getToken(index));
+            default:
+                return Optional.empty();
+        }
+    }
+
+    private Optional<String> externalMethodName(AID pkg, int classToken, int token, boolean isStatic) {
+        ExportFile exp = exports.get(pkg);
+        Optional<String> name = exp == null ? Optional.empty() : exp.getMethodName(classToken, token, isStatic);
+        return name.isPresent() ? name : ExportFile.getWellKnownMethodName(pkg, classToken, token, isStatic);
+    }
+
+    private AID importAID(int packageToken) {
+        return cap.getImportComponent().get().getPackage(packageToken).getAid();
+    }
+
+    private Optional<String> packageName(AID pkg) {
+        ExportFile exp = exports.get(pkg);
+        if (exp != null && exp.getPackage().getName().isPresent())
+            return exp.getPackage().getName();
+        return WellKnownAID.getName(pkg);
+    }
+
+    private String className(int classRef) {
+        if (ConstantPoolComponent.isExternalClassRef(classRef))
+            return externalClassName((classRef >> 8) & 0x7F, classRef & 0xFF);
+        return symbols.getClassName(classRef).orElse(ConstantPoolComponent.classRefToString(classRef));
+    }
+
+    private String externalClassName(int packageToken, int classToken) {
+        if (!cap.getImportComponent().isPresent())
+            return packageToken + "." + classToken;
+        AID pkg = importAID(packageToken);
+        ExportFile exp = exports.get(pkg);
+        Optional<String> name = exp == null ? Optional.empty() : exp.getClassName(classToken);
+        return name.orElse(packageName(pkg).orElse(Integer.toString(packageToken)) + "." + classToken);
+    }
+
+    private String methodName(int offset) {
+        return symbols.getMethodName(offset).orElse(String.format("@%04x", offset));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Names of the tokens of an exported package, from an EXP file. See JCVM 2.2 spec chapter 5;
+// format 2.3 adds the referenced packages of JCVM 3.1.
+public final class ExportFile {
+    public static final int ACC_STATIC = 0x0008;
+    private static final int MAGIC = 0x00FACADE;
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Classref = 7;
+    private static final int CONSTANT_Package = 13;
+
+    // Static methods of javacard.framework.JCSystem of Java Card 2.1, tokens do not change in
+    // later versions. Known without the export file.
+    private static final String[] JCSYSTEM = {"abortTransaction()V", "beginTransaction()V", "commitTransaction()V",
+            "getAID()Ljavacard/framework/AID;", "getAppletShareableInterfaceObject(Ljavacard/framework/AID;B)Ljavacard/framework/Shareable;",
+            "getMaxCommitCapacity()S", "getPreviousContextAID()Ljavacard/framework/AID;", "getTransactionDepth()B",
+            "getUnusedCommitCapacity()S", "getVersion()S", "isTransient(Ljava/lang/Object;)B",
+            "lookupAID([BSB)Ljavacard/framework/AID;", "makeTransientBooleanArray(SB)[Z", "makeTransientByteArray(SB)[B",
+            "makeTransientObjectArray(SB)[Ljava/lang/Object;", "makeTransientShortArray(SB)[S"};
+
+    private final CAPPackage pkg;
+    private final Map<Integer, String> classes = new HashMap<>(); // Class token to name
+    private final Map<String, String> methods = new HashMap<>(); // class.method.static key to name
+
+    private static final class ClassRef {
+        final int name;
+
+        ClassRef(int name) {
+            this.name = name;
+        }
+    }
+
+    private static final class PackageRef {
+        final int name;
+        final int major;
+        final int minor;
+        final AID aid;
+
+        PackageRef(int name, int major, int minor, AID aid) {
+            this.name = name;
+            this.major = major;
+            this.minor = minor;
+            this.aid = aid;
+        }
+    }
+
+    private ExportFile(CAPPackage pkg) {
+        this.pkg = pkg;
+    }
+
+    public static ExportFile fromStream(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(in);
+        if (dis.readInt() != MAGIC)
+            throw new IOException("Not an export file");
+        int minor = dis.readUnsignedByte();
+        int major = dis.readUnsignedByte();
+        if (major != 2 || (minor != 1 && minor != 3))
+            throw new IOException("Unsupported export file version: " + major + "." + minor);
+
+        int count = dis.readUnsignedShort();
+        Object[] cp = new Object[count];
+        for (int i = 0; i < count; i++) {
+            int tag = dis.readUnsignedByte();
+            switch (tag) {
+                case CONSTANT_Utf8:
+                    byte[] utf = new byte[dis.readUnsignedShort()];
+                    dis.readFully(utf);
+                    cp[i] = new String(utf, StandardCharsets.UTF_8);
+                    break;
+                case CONSTANT_Integer:
+                    cp[i] = dis.readInt();
+                    break;
+                case CONSTANT_Classref:
+                    cp[i] = new ClassRef(dis.readUnsignedShort());
+                    break;
+                case CONSTANT_Package:
+                    dis.readUnsignedByte(); // flags
+                    int name = dis.readUnsignedShort();
+                    int pminor = dis.readUnsignedByte();
+                    int pmajor = dis.readUnsignedByte();
+                    byte[] aid = new byte[dis.readUnsignedByte()];
+                    dis.readFully(aid);
+                    cp[i] = new PackageRef(name, pmajor, pminor, new AID(aid));
+                    break;
+                default:
+                    throw new IOException("Invalid export file constant pool tag " + tag + " at " + i);
+            }
+        }
+
+        PackageRef p = (PackageRef) entry(cp, dis.readUnsignedShort(), PackageRef.class);
+        String name = ((String) entry(cp, p.name, String.class)).replace('/', '.');
+        ExportFile result = new ExportFile(new CAPPackage(p.aid, p.major, p.minor, name));
+        if (minor == 3) {
+            int referenced = dis.readUnsignedByte();
+            for (int i = 0; i < referenced; i++)
+                dis.readUnsignedShort();
+        }
+
+        int classCount = dis.readUnsignedByte();
+        for (int c = 0; c < classCount; c++) {
+            int token = dis.readUnsignedByte();
+            dis.readUnsignedShort(); // access_flags
+            ClassRef classref = (ClassRef) entry(cp, dis.readUnsignedShort(), ClassRef.class);
+            String cname = ((String) entry(cp, classref.name, String.class)).replace('/', '.');
+            result.classes.put(token, cname);
+            skip(dis, 2 * dis.readUnsignedShort()); // supers
+            skip(dis, 2 * dis.readUnsignedByte()); // interfaces
+            int fields = dis.readUnsignedShort();
+            for (int i = 0; i < fields; i++) {
+                skip(dis, 7);
+                int attributes = dis.readUnsignedShort();
+                for (int a = 0; a < attributes; a++) {
+                    dis.readUnsignedShort();
+                    skip(dis, dis.readInt());
+                }
+            }
+            int methods = dis.readUnsignedShort();
+            for (int i = 0; i < methods; i++) {
+                int mtoken = dis.readUnsignedByte();
+                int access = dis.readUnsignedShort();
+                String mname = (String) entry(cp, dis.readUnsignedShort(), String.class);
+                String descriptor = (String) entry(cp, dis.readUnsignedShort(), String.class);
+                // Constructors have static method tokens
+                boolean isStatic = (access & ACC_STATIC) == ACC_STATIC || mname.equals("<init>");
+                result.methods.put(key(token, mtoken, isStatic), cname + "." + mname + descriptor);
+            }
+        }
+        return result;
+    }
+
+    private static Object entry(Object[] cp, int index, Class<?> type) throws IOException {
+        if (index >= cp.length || !type.isInstance(cp[index]))
+            throw new IOException("Invalid export file constant pool reference: " + index);
+        return cp[index];
+    }
+
+    private static void skip(DataInputStream dis, int n) throws IOException {
+        if (n < 0 || dis.skipBytes(n) != n)
+            throw new EOFException();
+    }
+
+    private static String key(int classToken, int token, boolean isStatic) {
+        return classToken + "." + token + (isStatic ? "s" : "v");
+    }
+
+    public static ExportFile fromFile(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return fromStream(new BufferedInputStream(in));
+        }
+    }
+
+    // All readable export files in a directory tree, like the export directory of an SDK, by AID
+    public static Map<AID, ExportFile> load(Path dir) throws IOException {
+        Map<AID, ExportFile> result = new LinkedHashMap<>();
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(dir)) {
+            files = s.filter(f -> f.toString().endsWith(".exp") && Files.isRegularFile(f)).sorted().collect(Collectors.toList());
+        }
+        for (Path f : files) {
+            try {
+                ExportFile exp = fromFile(f);
+                result.putIfAbsent(exp.getPackage().getAid(), exp);
+            } catch (IOException e) {
+                // Not all files in SDK-s are usable, like export files of other formats
+            }
+        }
+        return result;
+    }
+
+    // Name of a method known without export files
+    static Optional<String> getWellKnownMethodName(AID pkg, int classToken, int token, boolean isStatic) {
+        if (isStatic && pkg.equals(MemoryFootprint.FRAMEWORK) && classToken == MemoryFootprint.JCSYSTEM && token < JCSYSTEM.length)
+            return Optional.of("javacard.framework.JCSystem." + JCSYSTEM[token]);
+        return Optional.empty();
+    }
+
+    public CAPPackage getPackage() {
+        return pkg;
+    }
+
+    // Fully qualified name of the class, like javacard.framework.JCSystem
+    public Optional<String> getClassName(int token) {
+        return Optional.ofNullable(classes.get(token));
+    }
+
+    // Fully qualified name and descriptor of the method, like
+    // javacard.framework.JCSystem.requestObjectDeletion()V. Static and virtual methods have
+    // separate tokens.
+    public Optional<String> getMethodName(int classToken, int token, boolean isStatic) {
+        return Optional.ofNullable(methods.get(key(classToken, token, isStatic)));
+    }
+}
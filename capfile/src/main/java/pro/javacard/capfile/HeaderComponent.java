@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+// See JCVM 2.2 spec section 6.3, and JCVM 3.1 spec section 6.4 for the extended format
+public final class HeaderComponent extends Component {
+    public static final int MAGIC = 0xDECAFFED;
+    // Table 6-3: CAP File Package Flags
+    public static final int ACC_INT = 0x01;
+    public static final int ACC_EXPORT = 0x02;
+    public static final int ACC_APPLET = 0x04;
+    public static final int ACC_EXTENDED = 0x08; // From CAP 2.3
+
+    HeaderComponent(ByteBuffer component) {
+        super(component, TAG_HEADER);
+        if (getMagic() != MAGIC)
+            throw new IllegalArgumentException(String.format("Invalid CAP magic: %08X", getMagic()));
+    }
+
+    public int getMagic() {
+        return s4(0);
+    }
+
+    public int getMinorVersion() {
+        return u1(4);
+    }
+
+    public int getMajorVersion() {
+        return u1(5);
+    }
+
+    public int getFlags() {
+        return u1(6);
+    }
+
+    public boolean isExtendedFormat() {
+        return (getFlags() & ACC_EXTENDED) == ACC_EXTENDED;
+    }
+
+    // Extended format has CAP version and AID, followed by several packages
+    public Optional<String> getCAPVersion() {
+        if (!isExtendedFormat())
+            return Optional.empty();
+        return Optional.of(String.format("%d.%d", u1(8), u1(7)));
+    }
+
+    public Optional<AID> getCAPAID() {
+        if (!isExtendedFormat())
+            return Optional.empty();
+        return Optional.of(aid(10, u1(9)));
+    }
+
+    public int getPackageCount() {
+        return isExtendedFormat() ? u1(10 + u1(9)) : 1;
+    }
+
+    // Offset of package_info with given index
+    private int packageOffset(int index) {
+        if (!isExtendedFormat()) {
+            if (index != 0)
+                throw new IndexOutOfBoundsException("Invalid package index: " + index);
+            return 7;
+        }
+        int count = getPackageCount();
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Invalid package index: " + index);
+        int offset = 11 + u1(9);
+        for (int i = 0; i < index; i++)
+            offset += 3 + u1(offset + 2);
+        return offset;
+    }
+
+    // Offset of package_name_info with given index, or size if not present (before CAP 2.2)
+    private int packageNameOffset(int index) {
+        int count = getPackageCount();
+        int offset = packageOffset(count - 1);
+        offset += 3 + u1(offset + 2);
+        for (int i = 0; i < index && offset < getSize(); i++)
+            offset += 1 + u1(offset);
+        return Math.min(offset, getSize());
+    }
+
+    public int getPackageMinorVersion() {
+        return getPackageMinorVersion(0);
+    }
+
+    public int getPackageMinorVersion(int index) {
+        return u1(packageOffset(index));
+    }
+
+    public int getPackageMajorVersion() {
+        return getPackageMajorVersion(0);
+    }
+
+    public int getPackageMajorVersion(int index) {
+        return u1(packageOffset(index) + 1);
+    }
+
+    public AID getPackageAID() {
+        return getPackageAID(0);
+    }
+
+    public AID getPackageAID(int index) {
+        int offset = packageOffset(index);
+        return aid(offset + 3, u1(offset + 2));
+    }
+
+    // package_name_info is present from CAP 2.2 onwards
+    public Optional<String> getPackageName() {
+        return getPackageName(0);
+    }
+
+    public Optional<String> getPackageName(int index) {
+        int offset = packageNameOffset(index);
+        if (offset >= getSize())
+            return Optional.empty();
+        int length = u1(offset);
+        if (length == 0)
+            return Optional.empty();
+        return Optional.of(new String(bytes(offset + 1, length), StandardCharsets.UTF_8).replace('/', '.'));
+    }
+
+    public List<CAPPackage> getPackages() {
+        List<CAPPackage> result = new ArrayList<>();
+        for (int i = 0; i < getPackageCount(); i++)
+            result.add(new CAPPackage(getPackageAID(i), getPackageMajorVersion(i), getPackageMinorVersion(i), getPackageName(i).orElse(null)));
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Method entry counts from a card running an instrumented build (<cap instrument="true">).
+// The card answers CLA 8x INS FE with PAGE counters from P1 * PAGE onwards, as big endian
+// shorts in the order of the methods file that was written next to the CAP file.
+public final class HitProfile {
+    public static final int CLA = 0x80;
+    public static final int INS = 0xFE;
+    public static final int PAGE = 64;
+    // Counters stop here, so that a count does not wrap
+    public static final int SATURATED = 0x7FFF;
+
+    private final List<Hit> hits;
+
+    public static final class Hit {
+        public static final Comparator<Hit> BY_COUNT = Comparator.comparingInt(Hit::getCount).reversed()
+                .thenComparingInt(Hit::getId);
+
+        private final int id;
+        private final String method;
+        private final int count;
+
+        Hit(int id, String method, int count) {
+            this.id = id;
+            this.method = method;
+            this.count = count;
+        }
+
+        // Index of the counter on the card
+        public int getId() {
+            return id;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        // The real count may be higher
+        public boolean isSaturated() {
+            return count >= SATURATED;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6d%s  %s", count, isSaturated() ? "+" : " ", method);
+        }
+    }
+
+    private HitProfile(List<Hit> hits) {
+        this.hits = Collections.unmodifiableList(hits);
+    }
+
+    // One method per line, like "com.example.Applet.process(Ljavacard/framework/APDU;)V"
+    public static List<String> readMethods(Path path) throws IOException {
+        return Files.readAllLines(path, StandardCharsets.UTF_8).stream()
+                .map(String::trim)
+                .filter(l -> !l.isEmpty() && !l.startsWith("#"))
+                .collect(Collectors.toList());
+    }
+
+    // Dump is the concatenated response data of the pages, from page 0. A dump that stops
+    // before the last method (pages not read) leaves the rest out of the profile.
+    public static HitProfile decode(List<String> methods, byte[] dump) {
+        if (dump.length % 2 != 0)
+            throw new IllegalArgumentException("Counter dump must have an even length: " + dump.length);
+        if (dump.length / 2 > methods.size())
+            throw new IllegalArgumentException(String.format("Counter dump has %d counters, but only %d methods are known", dump.length / 2, methods.size()));
+        List<Hit> hits = new ArrayList<>(dump.length / 2);
+        for (int i = 0; i < dump.length / 2; i++) {
+            hits.add(new Hit(i, methods.get(i), ((dump[i * 2] & 0xFF) << 8) | (dump[i * 2 + 1] & 0xFF)));
+        }
+        return new HitProfile(hits);
+    }
+
+    // The command that reads the given page of counters, optionally clearing them
+    public static byte[] command(int page, boolean clear) {
+        if (page < 0 || page > 0xFF)
+            throw new IllegalArgumentException("Invalid page: " + page);
+        return new byte[]{(byte) CLA, (byte) INS, (byte) page, (byte) (clear ? 0x01 : 0x00), 0x00};
+    }
+
+    // Number of commands needed to read all counters
+    public static int pages(int methods) {
+        return (methods + PAGE - 1) / PAGE;
+    }
+
+    // In the order of the methods file
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    // Methods that were entered, most often first
+    public List<Hit> getHottest() {
+        return hits.stream().filter(h -> h.getCount() > 0).sorted(Hit.BY_COUNT).collect(Collectors.toList());
+    }
+
+    public long getTotal() {
+        return hits.stream().mapToLong(Hit::getCount).sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d method entries, %d of %d methods entered", getTotal(), getHottest().size(), hits.size());
+    }
+}
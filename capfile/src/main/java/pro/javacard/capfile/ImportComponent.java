@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+// See JCVM 2.2 spec section 6.6
+public final class ImportComponent extends Component {
+    private final Lazy<int[]> offsets = new Lazy<>(this::index);
+
+    ImportComponent(ByteBuffer component) {
+        super(component, TAG_IMPORT);
+    }
+
+    private int[] index() {
+        int[] result = new int[getCount()];
+        int offset = 1;
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offset;
+            offset += 3 + u1(offset + 2);
+        }
+        return result;
+    }
+
+    public int getCount() {
+        return u1(0);
+    }
+
+    // Package tokens are indexes in this list
+    public CAPPackage getPackage(int index) {
+        int offset = offsets.get()[index];
+        return new CAPPackage(aid(offset + 3, u1(offset + 2)), u1(offset + 1), u1(offset));
+    }
+}
@@ -0,0 +1,1275 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Runs the applets of a package off-card to count what they execute per command. Only the short
+// subset of the JCVM is supported: instructions on ints, interfaces and jsr/ret are not. Imported
+// methods are stubs of the commonly used javacard.framework API, found by name in the export
+// files of the imported packages (or the well-known tokens of JCSystem). Calling anything else
+// fails the command with 6F00. Transactions are counted but aborting does not roll back.
+public final class Interpreter {
+    // Size of the APDU buffer, 5 bytes of header and 256 of data
+    public static final int BUFFER_SIZE = 261;
+    // Instructions per command before giving up, against endless loops
+    public static final long STEP_LIMIT = 10_000_000L;
+    // Tokens of javacard.framework.Applet.select() and process(APDU)
+    static final int SELECT = 6;
+
+    static final int SW_NO_ERROR = 0x9000;
+    static final int SW_UNKNOWN = 0x6F00;
+    static final int SW_FILE_NOT_FOUND = 0x6A82;
+    static final int SW_APPLET_SELECT_FAILED = 0x6999;
+
+    // newarray types, and one for references
+    private static final int T_BOOLEAN = 10;
+    private static final int T_BYTE = 11;
+    private static final int T_SHORT = 12;
+    private static final int T_INT = 13;
+    private static final int T_REFERENCE = 14;
+    private static final int SYSTEM = -1; // APDU buffer and install parameters, neither persistent nor transient
+
+    private static final List<String> ISO_EXCEPTION = Arrays.asList("javacard.framework.ISOException",
+            "javacard.framework.CardRuntimeException", "java.lang.RuntimeException", "java.lang.Exception", "java.lang.Throwable");
+
+    private final CAPFile cap;
+    private final Map<AID, ExportFile> exports;
+    private final MethodComponent method;
+    private final ConstantPoolComponent cp;
+    private final ClassComponent classes;
+    private final Bytecode bytecode;
+    private final Symbols symbols;
+    private final ByteBuffer code;
+
+    private final List<Object> heap = new ArrayList<>();
+    private final byte[] image;
+    private final int[] staticRefs;
+    private final Map<AID, Integer> instances = new LinkedHashMap<>();
+    private final Profile profile = new Profile();
+
+    private final int buffer;
+    private final int apdu;
+    private int selected = 0;
+    private boolean selecting = false;
+    private boolean returned = false; // Whether the last method returned a value
+    private AID installing;
+    private int transaction = 0;
+    private long steps;
+    private int incoming;
+    private int expected;
+    private final ByteArrayOutputStream outgoing = new ByteArrayOutputStream();
+
+    // Current instruction, for allocations in stubs
+    private int currentMethod;
+    private int currentPc;
+
+    private static final class Instance {
+        final int classRef;
+        final Map<Integer, Integer> fields = new HashMap<>();
+        // Of imported classes: the class and its superclasses by name
+        final List<String> names;
+        final int reason;
+
+        Instance(int classRef, List<String> names, int reason) {
+            this.classRef = classRef;
+            this.names = names;
+            this.reason = reason;
+        }
+    }
+
+    private static final class Array {
+        final int type;
+        final int[] values;
+        final int event;
+
+        Array(int type, int length, int event) {
+            this.type = type;
+            this.values = new int[length];
+            this.event = event;
+        }
+    }
+
+    // Exception thrown in the applet, with the handle of the thrown object
+    private static final class Thrown extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int handle;
+
+        Thrown(int handle) {
+            super(null, null, false, false);
+            this.handle = handle;
+        }
+    }
+
+    // A command and what the applet did with it
+    public static final class Exchange {
+        private final byte[] command;
+        private final byte[] response;
+        private final long bytecodes;
+        private final String error;
+
+        Exchange(byte[] command, byte[] response, long bytecodes, String error) {
+            this.command = command.clone();
+            this.response = response;
+            this.bytecodes = bytecodes;
+            this.error = error;
+        }
+
+        public byte[] getCommand() {
+            return command.clone();
+        }
+
+        // Response data and status word
+        public byte[] getResponse() {
+            return response.clone();
+        }
+
+        public int getSW() {
+            return (response[response.length - 2] & 0xFF) << 8 | response[response.length - 1] & 0xFF;
+        }
+
+        // Instructions executed for the command
+        public long getBytecodeCount() {
+            return bytecodes;
+        }
+
+        // Why the command could not be run to the end, like an imported method without a stub
+        public Optional<String> getError() {
+            return Optional.ofNullable(error);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytecodes%s", HexUtils.bin2hex(response), bytecodes, error == null ? "" : " (" + error + ")");
+        }
+    }
+
+    public static final class MethodProfile {
+        public static final Comparator<MethodProfile> BY_INCLUSIVE = Comparator.comparingLong(MethodProfile::getInclusive).reversed()
+                .thenComparingInt(MethodProfile::getOffset);
+
+        private final int offset;
+        private final String name;
+        private long calls;
+        private long exclusive;
+        private long inclusive;
+        // Calls of the method on the interpreter stack, and the count when the outermost started
+        private int active;
+        private long start;
+
+        MethodProfile(int offset, String name) {
+            this.offset = offset;
+            this.name = name;
+        }
+
+        // Offset in the Method component
+        public int getOffset() {
+            return offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        // Instructions executed in the method itself
+        public long getExclusive() {
+            return exclusive;
+        }
+
+        // Instructions executed in the method and in the methods it called, recursion counted once
+        public long getInclusive() {
+            return inclusive;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6d %9d %9d  %s", calls, exclusive, inclusive, name);
+        }
+    }
+
+    public static final class Allocation {
+        private final int method;
+        private final String methodName;
+        private final int pc;
+        private final String description;
+        private final int bytes;
+        private final int event;
+
+        Allocation(int method, String methodName, int pc, String description, int bytes, int event) {
+            this.method = method;
+            this.methodName = methodName;
+            this.pc = pc;
+            this.description = description;
+            this.bytes = bytes;
+            this.event = event;
+        }
+
+        public int getMethodOffset() {
+            return method;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        // Offset of the instruction in the Method component
+        public int getOffset() {
+            return pc;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        // Estimated size, with the object header
+        public int getBytes() {
+            return bytes;
+        }
+
+        // 0 for persistent memory, otherwise JCSystem.CLEAR_ON_RESET or CLEAR_ON_DESELECT
+        public int getEvent() {
+            return event;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s+%d: %s, %d bytes", methodName, pc - method, description, bytes);
+        }
+    }
+
+    // Counts over all commands since the interpreter was created, including install()
+    public static final class Profile {
+        private final long[] opcodes = new long[256];
+        private long bytecodes;
+        private final Map<Integer, MethodProfile> methods = new HashMap<>();
+        private final List<Allocation> allocations = new ArrayList<>();
+        private long writes;
+        private long writeBytes;
+        private int transactions;
+
+        Profile() {
+        }
+
+        public long getBytecodeCount() {
+            return bytecodes;
+        }
+
+        public long getOpcodeCount(int opcode) {
+            return opcodes[opcode & 0xFF];
+        }
+
+        // Executed opcodes by mnemonic, most frequent first
+        public Map<String, Long> getOpcodeCounts() {
+            List<Integer> executed = new ArrayList<>();
+            for (int i = 0; i < opcodes.length; i++) {
+                if (opcodes[i] > 0)
+                    executed.add(i);
+            }
+            executed.sort(Comparator.comparingLong((Integer i) -> opcodes[i]).reversed().thenComparing(i -> i));
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int i : executed)
+                result.put(Opcodes.mnemonic(i), opcodes[i]);
+            return result;
+        }
+
+        // Methods that were called, by inclusive count
+        public List<MethodProfile> getMethods() {
+            List<MethodProfile> result = new ArrayList<>(methods.values());
+            result.sort(MethodProfile.BY_INCLUSIVE);
+            return Collections.unmodifiableList(result);
+        }
+
+        public List<Allocation> getAllocations() {
+            return Collections.unmodifiableList(allocations);
+        }
+
+        // Stores to fields, static fields and persistent arrays, including with Util methods
+        public long getPersistentWriteCount() {
+            return writes;
+        }
+
+        public long getPersistentWriteBytes() {
+            return writeBytes;
+        }
+
+        public int getTransactionCount() {
+            return transactions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytecodes, %d allocations of %d bytes, %d persistent writes of %d bytes, %d transactions",
+                    bytecodes, allocations.size(), allocations.stream().mapToInt(Allocation::getBytes).sum(), writes, writeBytes, transactions);
+        }
+    }
+
+    Interpreter(CAPFile cap, Map<AID, ExportFile> exports) {
+        if (!cap.getMethodComponent().isPresent() || !cap.getConstantPoolComponent().isPresent() || !cap.getClassComponent().isPresent())
+            throw new IllegalArgumentException("CAP file has no Method, ConstantPool or Class component");
+        this.cap = cap;
+        this.exports = exports;
+        this.method = cap.getMethodComponent().get();
+        this.cp = cap.getConstantPoolComponent().get();
+        this.classes = cap.getClassComponent().get();
+        this.symbols = cap.getSymbols();
+        this.bytecode = new Bytecode(method, cp, cap.getClassComponent(), cap.getImportComponent(), symbols);
+        this.code = bytecode.getCode();
+
+        // Static field image, with the references apart
+        Optional<StaticFieldComponent> sf = cap.getStaticFieldComponent();
+        image = new byte[sf.map(StaticFieldComponent::getImageSize).orElse(0)];
+        staticRefs = new int[sf.map(StaticFieldComponent::getReferenceCount).orElse(0)];
+        if (sf.isPresent()) {
+            StaticFieldComponent s = sf.get();
+            for (int i = 0; i < s.getArrayInitCount(); i++) {
+                int type = s.getArrayInitType(i) + T_BOOLEAN - StaticFieldComponent.TYPE_BOOLEAN;
+                if (type == T_INT)
+                    throw new UnsupportedOperationException("int arrays are not supported");
+                byte[] values = s.getArrayInitValues(i);
+                Array a = new Array(type, s.getArrayInitElementCount(i), 0);
+                for (int e = 0; e < a.values.length; e++)
+                    a.values[e] = type == T_SHORT ? (short) ((values[2 * e] & 0xFF) << 8 | values[2 * e + 1] & 0xFF) : values[e];
+                staticRefs[i] = handle(a);
+            }
+            byte[] values = s.getNonDefaultValues();
+            System.arraycopy(values, 0, image, 2 * staticRefs.length + s.getDefaultValueCount(), values.length);
+        }
+        buffer = handle(new Array(T_BYTE, BUFFER_SIZE, SYSTEM));
+        apdu = handle(new Instance(0, Collections.singletonList("javacard.framework.APDU"), 0));
+    }
+
+    // Commands of a trace file, one per line in hex. Blank lines, # comments and responses (lines
+    // starting with <) are skipped, commands may be prefixed with >.
+    public static List<byte[]> readTrace(Path path) throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            String l = line.trim();
+            if (l.isEmpty() || l.startsWith("#") || l.startsWith("<"))
+                continue;
+            if (l.startsWith(">"))
+                l = l.substring(1);
+            byte[] command = HexUtils.hex2bin(l.replaceAll("\\s", ""));
+            if (command.length < 4)
+                throw new IOException("Invalid command in " + path + ": " + line);
+            result.add(command);
+        }
+        return result;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    // Creates an instance of the applet with install(), which must register it
+    public void install(AID applet) {
+        AppletComponent applets = cap.getAppletComponent().orElseThrow(() -> new IllegalArgumentException("CAP file has no applets"));
+        for (int i = 0; i < applets.getCount(); i++) {
+            if (!applets.getAID(i).equals(applet))
+                continue;
+            // LV of instance AID, LV of control info, LV of applet data
+            byte[] aid = applet.getBytes();
+            Array params = new Array(T_BYTE, aid.length + 3, SYSTEM);
+            params.values[0] = aid.length;
+            for (int b = 0; b < aid.length; b++)
+                params.values[1 + b] = aid[b];
+            installing = applet;
+            steps = 0;
+            try {
+                execute(applets.getInstallMethodOffset(i), new int[]{handle(params), 0, params.values.length});
+            } catch (Thrown e) {
+                throw new IllegalStateException("install() of " + applet + " failed with " + describe(e.handle));
+            } finally {
+                installing = null;
+            }
+            if (!instances.containsKey(applet))
+                throw new IllegalStateException("install() of " + applet + " did not register the applet");
+            return;
+        }
+        throw new IllegalArgumentException("No such applet: " + applet);
+    }
+
+    // Runs the command, like the JCRE would: SELECT of an installed applet selects it and all
+    // commands go to process() of the selected applet
+    public Exchange transmit(byte[] command) {
+        long start = profile.bytecodes;
+        outgoing.reset();
+        steps = 0;
+        int sw = SW_NO_ERROR;
+        String error = null;
+        try {
+            sw = dispatch(command);
+        } catch (Thrown e) {
+            Object thrown = heap.get(e.handle - 1);
+            sw = thrown instanceof Instance && ((Instance) thrown).names.contains(ISO_EXCEPTION.get(0)) ? ((Instance) thrown).reason : SW_UNKNOWN;
+            if (sw == SW_UNKNOWN)
+                error = "uncaught " + describe(e.handle);
+        } catch (RuntimeException e) {
+            // Unsupported instruction or method, or malformed bytecode
+            sw = SW_UNKNOWN;
+            error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        } finally {
+            selecting = false;
+        }
+        outgoing.write(sw >> 8);
+        outgoing.write(sw);
+        return new Exchange(command, outgoing.toByteArray(), profile.bytecodes - start, error);
+    }
+
+    private int dispatch(byte[] command) {
+        if (command.length >= 5 && command[1] == (byte) 0xA4 && command[2] == 0x04) {
+            byte[] aid = Arrays.copyOfRange(command, 5, Math.min(command.length, 5 + (command[4] & 0xFF)));
+            for (Map.Entry<AID, Integer> e : instances.entrySet()) {
+                byte[] candidate = e.getKey().getBytes();
+                if (aid.length > 0 && aid.length <= candidate.length && Arrays.equals(aid, Arrays.copyOf(candidate, aid.length))) {
+                    selected = 0;
+                    selecting = true;
+                    int instance = e.getValue();
+                    Optional<Integer> select = bytecode.virtualMethod(((Instance) heap.get(instance - 1)).classRef, SELECT);
+                    if (select.isPresent() && execute(select.get(), new int[]{instance}) == 0)
+                        return SW_APPLET_SELECT_FAILED;
+                    selected = instance;
+                    break;
+                }
+            }
+        }
+        if (selected == 0)
+            return SW_FILE_NOT_FOUND;
+
+        Array b = (Array) heap.get(buffer - 1);
+        for (int i = 0; i < Math.min(command.length, BUFFER_SIZE); i++)
+            b.values[i] = command[i];
+        int lc = command.length > 5 ? command[4] & 0xFF : 0;
+        int le = command.length == 5 ? command[4] & 0xFF : command.length > 5 + lc ? command[5 + lc] & 0xFF : -1;
+        incoming = lc;
+        expected = le == 0 ? 256 : le < 0 ? 0 : le;
+
+        int instance = selected;
+        int process = bytecode.virtualMethod(((Instance) heap.get(instance - 1)).classRef, Bytecode.PROCESS)
+                .orElseThrow(() -> new IllegalStateException("Applet has no process()"));
+        execute(process, new int[]{instance, apdu});
+        return SW_NO_ERROR;
+    }
+
+    private int handle(Object o) {
+        heap.add(o);
+        return heap.size();
+    }
+
+    private Object deref(int handle) {
+        if (handle == 0)
+            throw new Thrown(exception("java.lang.NullPointerException"));
+        return heap.get(handle - 1);
+    }
+
+    private Array array(int handle) {
+        Object o = deref(handle);
+        if (!(o instanceof Array))
+            throw new IllegalStateException("Not an array");
+        return (Array) o;
+    }
+
+    private int index(Array a, int index) {
+        if (index < 0 || index >= a.values.length)
+            throw new Thrown(exception("java.lang.ArrayIndexOutOfBoundsException"));
+        return index;
+    }
+
+    private Instance instance(int handle) {
+        Object o = deref(handle);
+        if (!(o instanceof Instance))
+            throw new IllegalStateException("Not an object");
+        return (Instance) o;
+    }
+
+    // Object of an imported exception class, not counted as an allocation as the JCRE owns them
+    private int exception(String name) {
+        List<String> names = new ArrayList<>();
+        names.add(name);
+        if (name.startsWith("java.lang.ArrayIndexOutOfBounds"))
+            names.add("java.lang.IndexOutOfBoundsException");
+        names.addAll(ISO_EXCEPTION.subList(2, ISO_EXCEPTION.size()));
+        return handle(new Instance(0, names, 0));
+    }
+
+    private String describe(int handle) {
+        Object o = heap.get(handle - 1);
+        if (o instanceof Instance && ((Instance) o).names != null)
+            return ((Instance) o).names.get(0);
+        return o instanceof Instance ? className(((Instance) o).classRef) : "array";
+    }
+
+    private String methodName(int offset) {
+        return symbols.getMethodName(offset).orElse(String.format("@%04x", offset));
+    }
+
+    private String className(int classRef) {
+        if (!ConstantPoolComponent.isExternalClassRef(classRef))
+            return symbols.getClassName(classRef).orElse(ConstantPoolComponent.classRefToString(classRef));
+        return externalClassName(classRef).orElse(ConstantPoolComponent.classRefToString(classRef));
+    }
+
+    private Optional<String> externalClassName(int classRef) {
+        ExportFile exp = exports.get(importAID((classRef >> 8) & 0x7F));
+        return exp == null ? Optional.empty() : exp.getClassName(classRef & 0xFF);
+    }
+
+    private AID importAID(int packageToken) {
+        ImportComponent imports = cap.getImportComponent().orElseThrow(() -> new IllegalStateException("CAP file has no Import component"));
+        return imports.getPackage(packageToken).getAid();
+    }
+
+    private Optional<String> externalMethodName(int classRef, int token, boolean isStatic) {
+        AID pkg = importAID((classRef >> 8) & 0x7F);
+        ExportFile exp = exports.get(pkg);
+        Optional<String> name = exp == null ? Optional.empty() : exp.getMethodName(classRef & 0xFF, token, isStatic);
+        return name.isPresent() ? name : ExportFile.getWellKnownMethodName(pkg, classRef & 0xFF, token, isStatic);
+    }
+
+    // The first imported class among the superclasses of an internal class
+    private OptionalInt externalSuper(int classRef) {
+        int c = classRef;
+        while (!ConstantPoolComponent.isExternalClassRef(c)) {
+            c = classes.getClassInfo(c).getSuperClassRef();
+            if (c == 0xFFFF)
+                return OptionalInt.empty();
+        }
+        return OptionalInt.of(c);
+    }
+
+    private MethodProfile methodProfile(int offset) {
+        return profile.methods.computeIfAbsent(offset, o -> new MethodProfile(o, methodName(o)));
+    }
+
+    private void allocated(String description, int bytes, int event) {
+        profile.allocations.add(new Allocation(currentMethod, methodName(currentMethod), currentPc, description, bytes, event));
+    }
+
+    private void written(int bytes) {
+        profile.writes++;
+        profile.writeBytes += bytes;
+    }
+
+    private static int elementSize(int type) {
+        return type == T_BOOLEAN || type == T_BYTE ? 1 : 2;
+    }
+
+    private int newArray(int type, int length, int event, String description) {
+        if (type == T_INT)
+            throw new UnsupportedOperationException("int arrays are not supported");
+        if (length < 0)
+            throw new Thrown(exception("java.lang.NegativeArraySizeException"));
+        allocated(description + "[" + length + "]", MemoryFootprint.DEFAULT_OBJECT_HEADER + length * elementSize(type), event);
+        return handle(new Array(type, length, event));
+    }
+
+    private static String typeName(int type) {
+        switch (type) {
+            case T_BOOLEAN:
+                return "boolean";
+            case T_BYTE:
+                return "byte";
+            case T_SHORT:
+                return "short";
+            default:
+                return "int";
+        }
+    }
+
+    private void step(int m, int opcode) {
+        if (++steps > STEP_LIMIT)
+            throw new IllegalStateException("More than " + STEP_LIMIT + " instructions");
+        profile.bytecodes++;
+        profile.opcodes[opcode]++;
+        methodProfile(m).exclusive++;
+    }
+
+    private boolean catches(int handler, int thrown) {
+        int type = method.getHandlerCatchTypeIndex(handler);
+        if (type == 0)
+            return true;
+        int catchRef = cp.getClassRef(type);
+        Instance t = (Instance) heap.get(thrown - 1);
+        if (t.names != null)
+            return ConstantPoolComponent.isExternalClassRef(catchRef) && externalClassName(catchRef).map(t.names::contains).orElse(false);
+        for (int c = t.classRef; c != 0xFFFF; c = classes.getClassInfo(c).getSuperClassRef()) {
+            if (c == catchRef)
+                return true;
+            if (ConstantPoolComponent.isExternalClassRef(c))
+                break;
+        }
+        return false;
+    }
+
+    // Handler for an exception thrown at pc, -1 if none
+    private int handler(int pc, int thrown) {
+        for (int i = 0; i < method.getHandlerCount(); i++) {
+            int start = method.getHandlerStartOffset(i);
+            if (pc >= start && pc < start + method.getHandlerActiveLength(i) && catches(i, thrown))
+                return method.getHandlerOffset(i);
+        }
+        return -1;
+    }
+
+    // Runs the method with the arguments, returns the returned value or 0
+    private int execute(int m, int[] args) {
+        MethodComponent.MethodInfo info = method.getMethod(m);
+        if (info.isAbstract())
+            throw new IllegalStateException("Abstract method " + methodName(m));
+        int[] locals = new int[info.getNargs() + info.getMaxLocals()];
+        System.arraycopy(args, 0, locals, 0, args.length);
+        int[] stack = new int[info.getMaxStack()];
+        int sp = 0;
+        int pc = info.getBytecodeOffset();
+
+        MethodProfile mp = methodProfile(m);
+        mp.calls++;
+        if (mp.active++ == 0)
+            mp.start = profile.bytecodes;
+        try {
+            while (true) {
+                int opcode = code.get(pc) & 0xFF;
+                step(m, opcode);
+                currentMethod = m;
+                currentPc = pc;
+                int next = pc + Opcodes.length(code, pc);
+                try {
+                    int v;
+                    int v2;
+                    Array a;
+                    switch (opcode) {
+                        case 0x00: // nop
+                            break;
+                        case 0x01: // aconst_null
+                            stack[sp++] = 0;
+                            break;
+                        case 0x02: // sconst_m1 .. sconst_5
+                        case 0x03:
+                        case 0x04:
+                        case 0x05:
+                        case 0x06:
+                        case 0x07:
+                        case 0x08:
+                        case Opcodes.BSPUSH:
+                        case Opcodes.SSPUSH:
+                            stack[sp++] = Opcodes.shortConstant(code, pc).getAsInt();
+                            break;
+                        case 0x15: // aload
+                        case 0x16: // sload
+                            stack[sp++] = locals[code.get(pc + 1) & 0xFF];
+                            break;
+                        case 0x18: // aload_0 .. aload_3
+                        case 0x19:
+                        case 0x1A:
+                        case 0x1B:
+                            stack[sp++] = locals[opcode - 0x18];
+                            break;
+                        case 0x1C: // sload_0 .. sload_3
+                        case 0x1D:
+                        case 0x1E:
+                        case 0x1F:
+                            stack[sp++] = locals[opcode - 0x1C];
+                            break;
+                        case 0x24: // aaload
+                        case 0x25: // baload
+                        case 0x26: // saload
+                            v = stack[--sp];
+                            a = array(stack[--sp]);
+                            stack[sp++] = a.values[index(a, v)];
+                            break;
+                        case 0x28: // astore
+                        case 0x29: // sstore
+                            locals[code.get(pc + 1) & 0xFF] = stack[--sp];
+                            break;
+                        case 0x2B: // astore_0 .. astore_3
+                        case 0x2C:
+                        case 0x2D:
+                        case 0x2E:
+                            locals[opcode - 0x2B] = stack[--sp];
+                            break;
+                        case 0x2F: // sstore_0 .. sstore_3
+                        case 0x30:
+                        case 0x31:
+                        case 0x32:
+                            locals[opcode - 0x2F] = stack[--sp];
+                            break;
+                        case Opcodes.AASTORE:
+                        case 0x38: // bastore
+                        case 0x39: // sastore
+                            v2 = stack[--sp];
+                            v = stack[--sp];
+                            a = array(stack[--sp]);
+                            a.values[index(a, v)] = opcode == 0x38 ? (byte) v2 : v2;
+                            if (a.event == 0)
+                                written(opcode == 0x38 ? 1 : 2);
+                            break;
+                        case 0x3B: // pop
+                            sp--;
+                            break;
+                        case 0x3C: // pop2
+                            sp -= 2;
+                            break;
+                        case 0x3D: // dup
+                            stack[sp] = stack[sp - 1];
+                            sp++;
+                            break;
+                        case 0x3E: // dup2
+                            stack[sp] = stack[sp - 2];
+                            stack[sp + 1] = stack[sp - 1];
+                            sp += 2;
+                            break;
+                        case 0x3F: { // dup_x: copy the top m words n words down
+                            int mm = (code.get(pc + 1) >> 4) & 0x0F;
+                            int n = code.get(pc + 1) & 0x0F;
+                            if (n == 0)
+                                n = mm;
+                            int[] top = Arrays.copyOfRange(stack, sp - mm, sp);
+                            System.arraycopy(stack, sp - n, stack, sp - n + mm, n);
+                            System.arraycopy(top, 0, stack, sp - n, mm);
+                            sp += mm;
+                            break;
+                        }
+                        case 0x40: { // swap_x: the top m words with the n words below
+                            int mm = (code.get(pc + 1) >> 4) & 0x0F;
+                            int n = code.get(pc + 1) & 0x0F;
+                            int[] top = Arrays.copyOfRange(stack, sp - mm, sp);
+                            System.arraycopy(stack, sp - mm - n, stack, sp - n, n);
+                            System.arraycopy(top, 0, stack, sp - mm - n, mm);
+                            break;
+                        }
+                        case Opcodes.SADD:
+                        case 0x43: // ssub
+                        case 0x45: // smul
+                        case 0x47: // sdiv
+                        case 0x49: // srem
+                        case 0x4D: // sshl
+                        case 0x4F: // sshr
+                        case 0x51: // sushr
+                        case 0x53: // sand
+                        case 0x55: // sor
+                        case Opcodes.SXOR:
+                            v2 = stack[--sp];
+                            v = stack[--sp];
+                            if ((opcode == 0x47 || opcode == 0x49) && v2 == 0)
+                                throw new Thrown(exception("java.lang.ArithmeticException"));
+                            stack[sp++] = (short) arithmetic(opcode, v, v2);
+                            break;
+                        case 0x4B: // sneg
+                            stack[sp - 1] = (short) -stack[sp - 1];
+                            break;
+                        case Opcodes.SINC:
+                            v = code.get(pc + 1) & 0xFF;
+                            locals[v] = (short) (locals[v] + code.get(pc + 2));
+                            break;
+                        case Opcodes.SINC_W:
+                            v = code.get(pc + 1) & 0xFF;
+                            locals[v] = (short) (locals[v] + code.getShort(pc + 2));
+                            break;
+                        case 0x5B: // s2b
+                            stack[sp - 1] = (byte) stack[sp - 1];
+                            break;
+                        case Opcodes.STABLESWITCH:
+                        case Opcodes.SLOOKUPSWITCH:
+                            v = stack[--sp];
+                            next = Opcodes.switchTargets(code, pc).getOrDefault(v, Opcodes.switchDefault(code, pc));
+                            break;
+                        case Opcodes.ARETURN:
+                        case 0x78: // sreturn
+                            returned = true;
+                            return stack[--sp];
+                        case Opcodes.RETURN:
+                            returned = false;
+                            return 0;
+                        case Opcodes.GETSTATIC_A:
+                        case 0x7C: // getstatic_b
+                        case 0x7D: // getstatic_s
+                            v = staticOffset(pc);
+                            if (opcode == Opcodes.GETSTATIC_A)
+                                stack[sp++] = staticRefs[v / 2];
+                            else if (opcode == 0x7C)
+                                stack[sp++] = image[v];
+                            else
+                                stack[sp++] = (short) ((image[v] & 0xFF) << 8 | image[v + 1] & 0xFF);
+                            break;
+                        case Opcodes.PUTSTATIC_A:
+                        case 0x80: // putstatic_b
+                        case 0x81: // putstatic_s
+                            v = staticOffset(pc);
+                            v2 = stack[--sp];
+                            if (opcode == Opcodes.PUTSTATIC_A) {
+                                staticRefs[v / 2] = v2;
+                            } else if (opcode == 0x80) {
+                                image[v] = (byte) v2;
+                            } else {
+                                image[v] = (byte) (v2 >> 8);
+                                image[v + 1] = (byte) v2;
+                            }
+                            written(opcode == 0x80 ? 1 : 2);
+                            break;
+                        case Opcodes.GETFIELD_A: // getfield_a, _b, _s
+                        case 0x84:
+                        case 0x85:
+                        case Opcodes.GETFIELD_A_W:
+                        case 0xAA:
+                        case 0xAB:
+                        case Opcodes.GETFIELD_A_THIS:
+                        case 0xAE:
+                        case 0xAF: {
+                            Instance o = instance(opcode >= Opcodes.GETFIELD_A_THIS ? locals[0] : stack[--sp]);
+                            stack[sp++] = o.fields.getOrDefault(field(pc, opcode), 0);
+                            break;
+                        }
+                        case Opcodes.PUTFIELD_A: // putfield_a, _b, _s
+                        case 0x88:
+                        case 0x89:
+                        case Opcodes.PUTFIELD_A_W:
+                        case 0xB2:
+                        case 0xB3:
+                        case 0xB5:
+                        case 0xB6:
+                        case 0xB7: {
+                            v = stack[--sp];
+                            Instance o = instance(opcode >= 0xB5 ? locals[0] : stack[--sp]);
+                            boolean isByte = opcode == 0x88 || opcode == 0xB2 || opcode == 0xB6;
+                            o.fields.put(field(pc, opcode), isByte ? (byte) v : v);
+                            written(isByte ? 1 : 2);
+                            break;
+                        }
+                        case Opcodes.INVOKEVIRTUAL:
+                        case Opcodes.INVOKESPECIAL:
+                        case Opcodes.INVOKESTATIC: {
+                            int[] result = invoke(pc, opcode, stack, sp);
+                            sp = result[0];
+                            if (result[1] == 1)
+                                stack[sp++] = result[2];
+                            break;
+                        }
+                        case Opcodes.NEW: {
+                            int classRef = cp.getClassRef(bytecode.cpIndex(pc));
+                            if (ConstantPoolComponent.isExternalClassRef(classRef)) {
+                                String name = className(classRef);
+                                allocated("new " + name, MemoryFootprint.DEFAULT_OBJECT_HEADER, 0);
+                                stack[sp++] = handle(new Instance(classRef, Collections.singletonList(name), 0));
+                            } else {
+                                allocated("new " + className(classRef), MemoryFootprint.DEFAULT_OBJECT_HEADER + bytecode.instanceSize(classRef), 0);
+                                stack[sp++] = handle(new Instance(classRef, null, 0));
+                            }
+                            break;
+                        }
+                        case Opcodes.NEWARRAY:
+                            v = code.get(pc + 1) & 0xFF;
+                            stack[sp - 1] = newArray(v, stack[sp - 1], 0, "new " + typeName(v));
+                            break;
+                        case Opcodes.ANEWARRAY:
+                            stack[sp - 1] = newArray(T_REFERENCE, stack[sp - 1], 0, "new " + className(cp.getClassRef(bytecode.cpIndex(pc))));
+                            break;
+                        case 0x92: // arraylength
+                            stack[sp - 1] = array(stack[sp - 1]).values.length;
+                            break;
+                        case Opcodes.ATHROW:
+                            deref(stack[sp - 1]);
+                            throw new Thrown(stack[sp - 1]);
+                        case Opcodes.CHECKCAST:
+                            break;
+                        case Opcodes.INSTANCEOF:
+                            stack[sp - 1] = isInstance(stack[sp - 1], pc) ? 1 : 0;
+                            break;
+                        default:
+                            if (Opcodes.isBranch(opcode) && opcode != Opcodes.JSR) {
+                                if (branch(opcode, stack, sp))
+                                    next = Opcodes.branchTarget(code, pc);
+                                sp -= operands(opcode);
+                                break;
+                            }
+                            throw new UnsupportedOperationException(String.format("Unsupported instruction %s in %s", Opcodes.mnemonic(opcode), methodName(m)));
+                    }
+                } catch (Thrown e) {
+                    int h = handler(pc, e.handle);
+                    if (h < 0)
+                        throw e;
+                    sp = 0;
+                    stack[sp++] = e.handle;
+                    next = h;
+                }
+                pc = next;
+            }
+        } finally {
+            if (--mp.active == 0)
+                mp.inclusive += profile.bytecodes - mp.start;
+        }
+    }
+
+    private static int arithmetic(int opcode, int v, int v2) {
+        switch (opcode) {
+            case Opcodes.SADD:
+                return v + v2;
+            case 0x43:
+                return v - v2;
+            case 0x45:
+                return v * v2;
+            case 0x47:
+                return v / v2;
+            case 0x49:
+                return v % v2;
+            case 0x4D:
+                return v << (v2 & 0x1F);
+            case 0x4F:
+                return v >> (v2 & 0x1F);
+            case 0x51:
+                return (v & 0xFFFF) >>> (v2 & 0x1F);
+            case 0x53:
+                return v & v2;
+            case 0x55:
+                return v | v2;
+            default:
+                return v ^ v2;
+        }
+    }
+
+    // Operands popped by a conditional branch
+    private static int operands(int opcode) {
+        int o = opcode >= Opcodes.IFEQ_W ? opcode - Opcodes.IFEQ_W + Opcodes.IFEQ : opcode;
+        if (o == Opcodes.GOTO)
+            return 0;
+        return o >= 0x68 ? 2 : 1;
+    }
+
+    private static boolean branch(int opcode, int[] stack, int sp) {
+        int o = opcode >= Opcodes.IFEQ_W ? opcode - Opcodes.IFEQ_W + Opcodes.IFEQ : opcode;
+        if (o == Opcodes.GOTO)
+            return true;
+        if (o < 0x68) {
+            int v = stack[sp - 1];
+            switch (o) {
+                case 0x60: // ifeq
+                case 0x66: // ifnull
+                    return v == 0;
+                case 0x61: // ifne
+                case 0x67: // ifnonnull
+                    return v != 0;
+                case 0x62:
+                    return v < 0;
+                case 0x63:
+                    return v >= 0;
+                case 0x64:
+                    return v > 0;
+                default:
+                    return v <= 0;
+            }
+        }
+        int v1 = stack[sp - 2];
+        int v2 = stack[sp - 1];
+        switch (o) {
+            case 0x68: // if_acmpeq
+            case 0x6A: // if_scmpeq
+                return v1 == v2;
+            case 0x69:
+            case 0x6B:
+                return v1 != v2;
+            case 0x6C:
+                return v1 < v2;
+            case 0x6D:
+                return v1 >= v2;
+            case 0x6E:
+                return v1 > v2;
+            default:
+                return v1 <= v2;
+        }
+    }
+
+    private int staticOffset(int pc) {
+        int index = bytecode.cpIndex(pc);
+        if (cp.isExternal(index))
+            throw new UnsupportedOperationException("Static fields of imported classes are not supported");
+        return cp.getInternalOffset(index);
+    }
+
+    // Instance fields by class and token
+    private int field(int pc, int opcode) {
+        boolean wide = opcode >= Opcodes.GETFIELD_A_W && opcode < Opcodes.GETFIELD_A_THIS || opcode >= Opcodes.PUTFIELD_A_W && opcode < 0xB5;
+        int index = wide ? code.getShort(pc + 1) & 0xFFFF : code.get(pc + 1) & 0xFF;
+        return cp.getClassRef(index) << 8 | cp.getToken(index);
+    }
+
+    private boolean isInstance(int handle, int pc) {
+        if (handle == 0)
+            return false;
+        Object o = heap.get(handle - 1);
+        int type = code.get(pc + 1) & 0xFF;
+        if (o instanceof Array)
+            return ((Array) o).type == (type == 0 ? T_REFERENCE : type);
+        if (type != 0)
+            return false;
+        int classRef = cp.getClassRef(code.getShort(pc + 2) & 0xFFFF);
+        Instance i = (Instance) o;
+        if (i.names != null)
+            return externalClassName(classRef).map(i.names::contains).orElse(false);
+        for (int c = i.classRef; c != 0xFFFF; c = classes.getClassInfo(c).getSuperClassRef()) {
+            if (c == classRef)
+                return true;
+            if (ConstantPoolComponent.isExternalClassRef(c))
+                break;
+        }
+        return false;
+    }
+
+    // Invokes the method at pc with arguments from the stack. Returns the new stack pointer,
+    // whether there is a return value and the value.
+    private int[] invoke(int pc, int opcode, int[] stack, int sp) {
+        int index = bytecode.cpIndex(pc);
+        int tag = cp.getTag(index);
+        OptionalInt internal = OptionalInt.empty();
+        String name = null;
+        boolean isStatic = tag == ConstantPoolComponent.CONSTANT_StaticMethodref;
+        if (isStatic) {
+            if (cp.isExternal(index)) {
+                int classRef = 0x8000 | cp.getPackageToken(index) << 8 | cp.getClassToken(index);
+                name = externalMethodName(classRef, cp.getToken(index), true).orElse(null);
+                if (name == null)
+                    throw new UnsupportedOperationException("Unknown imported method " + cp.toString(index) + ", export file needed");
+            } else {
+                internal = OptionalInt.of(cp.getInternalOffset(index));
+            }
+        } else {
+            int classRef = cp.getClassRef(index);
+            int token = cp.getToken(index);
+            int receiverClass;
+            if (tag == ConstantPoolComponent.CONSTANT_SuperMethodref) {
+                receiverClass = classes.getClassInfo(classRef).getSuperClassRef();
+            } else {
+                // Look up in the class of the receiver, below the arguments on the stack
+                String descriptor = methodDescriptor(classRef, token);
+                Object receiver = deref(stack[sp - 1 - slots(descriptor)]);
+                receiverClass = receiver instanceof Instance && ((Instance) receiver).names == null ? ((Instance) receiver).classRef : classRef;
+            }
+            if (!ConstantPoolComponent.isExternalClassRef(receiverClass)) {
+                Optional<Integer> m = bytecode.virtualMethod(receiverClass, token);
+                if (m.isPresent())
+                    internal = OptionalInt.of(m.get());
+                else
+                    receiverClass = externalSuper(receiverClass).orElseThrow(() -> new IllegalStateException("No method " + token + " in " + className(classRef)));
+            }
+            if (!internal.isPresent()) {
+                name = externalMethodName(receiverClass, token, false).orElse(null);
+                if (name == null)
+                    throw new UnsupportedOperationException("Unknown imported method " + className(receiverClass) + "." + token + ", export file needed");
+            }
+        }
+
+        if (internal.isPresent()) {
+            int nargs = method.getMethod(internal.getAsInt()).getNargs();
+            int[] args = Arrays.copyOfRange(stack, sp - nargs, sp);
+            int result = execute(internal.getAsInt(), args);
+            // The return type is not recorded in the Method component, only the instruction tells
+            return new int[]{sp - nargs, returned ? 1 : 0, result};
+        }
+        String descriptor = name.substring(name.indexOf('('));
+        int nargs = slots(descriptor) + (isStatic ? 0 : 1);
+        // Constructors of imported classes are invoked as static methods, with this
+        if (name.contains(".<init>("))
+            nargs++;
+        int[] args = Arrays.copyOfRange(stack, sp - nargs, sp);
+        int result = stub(name, isStatic && !name.contains(".<init>(") ? args : Arrays.copyOfRange(args, 1, args.length),
+                isStatic && !name.contains(".<init>(") ? 0 : args[0]);
+        boolean returns = !descriptor.endsWith(")V");
+        return new int[]{sp - nargs, returns ? 1 : 0, result};
+    }
+
+    // Descriptor of a virtual method for counting the arguments, from the export files or the
+    // internal implementation
+    private String methodDescriptor(int classRef, int token) {
+        int c = classRef;
+        if (!ConstantPoolComponent.isExternalClassRef(c)) {
+            Optional<Integer> m = bytecode.virtualMethod(c, token);
+            if (m.isPresent())
+                return "(" + String.join("", Collections.nCopies(method.getMethod(m.get()).getNargs() - 1, "S")) + ")";
+            c = externalSuper(c).orElseThrow(() -> new IllegalStateException("No method " + token + " in " + className(classRef)));
+        }
+        String name = externalMethodName(c, token, false)
+                .orElseThrow(() -> new UnsupportedOperationException("Unknown imported method " + className(classRef) + "." + token + ", export file needed"));
+        return name.substring(name.indexOf('('));
+    }
+
+    // Stack words taken by the parameters of a method descriptor
+    static int slots(String descriptor) {
+        int result = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            while (c == '[')
+                c = descriptor.charAt(++i);
+            if (c == 'L')
+                i = descriptor.indexOf(';', i);
+            else if (c == 'I' && descriptor.charAt(i - 1) != '[')
+                throw new UnsupportedOperationException("int parameters are not supported: " + descriptor);
+            result++;
+        }
+        return result;
+    }
+
+    private int stub(String name, int[] args, int self) {
+        switch (name) {
+            case "java.lang.Object.<init>()V":
+            case "javacard.framework.Applet.<init>()V":
+            case "javacard.framework.JCSystem.requestObjectDeletion()V":
+            case "javacard.framework.APDU.setOutgoingLength(S)V":
+                return 0;
+            case "javacard.framework.Applet.register()V":
+                return register(installing, self);
+            case "javacard.framework.Applet.register([BSB)V": {
+                Array a = array(args[0]);
+                byte[] aid = new byte[args[2]];
+                for (int i = 0; i < aid.length; i++)
+                    aid[i] = (byte) a.values[index(a, args[1] + i)];
+                return register(new AID(aid), self);
+            }
+            case "javacard.framework.Applet.select()Z":
+                return 1;
+            case "javacard.framework.Applet.deselect()V":
+                return 0;
+            case "javacard.framework.Applet.selectingApplet()Z":
+                return selecting ? 1 : 0;
+            case "javacard.framework.APDU.getBuffer()[B":
+                return buffer;
+            case "javacard.framework.APDU.setIncomingAndReceive()S":
+            case "javacard.framework.APDU.getIncomingLength()S":
+                return incoming;
+            case "javacard.framework.APDU.receiveBytes(S)S":
+                return 0;
+            case "javacard.framework.APDU.getOffsetCdata()S":
+                return 5;
+            case "javacard.framework.APDU.setOutgoing()S":
+            case "javacard.framework.APDU.setOutgoingNoChaining()S":
+                return expected;
+            case "javacard.framework.APDU.sendBytes(SS)V":
+            case "javacard.framework.APDU.setOutgoingAndSend(SS)V":
+                send(array(buffer), args[0], args[1]);
+                return 0;
+            case "javacard.framework.APDU.sendBytesLong([BSS)V":
+                send(array(args[0]), args[1], args[2]);
+                return 0;
+            case "javacard.framework.ISOException.throwIt(S)V": {
+                List<String> names = ISO_EXCEPTION;
+                throw new Thrown(handle(new Instance(0, names, args[0] & 0xFFFF)));
+            }
+            case "javacard.framework.CardRuntimeException.getReason()S":
+            case "javacard.framework.ISOException.getReason()S":
+                return (short) instance(self).reason;
+            case "javacard.framework.JCSystem.beginTransaction()V":
+                if (transaction > 0)
+                    throw new Thrown(exception("javacard.framework.TransactionException"));
+                transaction++;
+                profile.transactions++;
+                return 0;
+            case "javacard.framework.JCSystem.commitTransaction()V":
+            case "javacard.framework.JCSystem.abortTransaction()V":
+                if (transaction == 0)
+                    throw new Thrown(exception("javacard.framework.TransactionException"));
+                transaction--;
+                return 0;
+            case "javacard.framework.JCSystem.getTransactionDepth()B":
+                return transaction;
+            case "javacard.framework.JCSystem.isTransient(Ljava/lang/Object;)B": {
+                Object o = deref(args[0]);
+                return o instanceof Array && ((Array) o).event > 0 ? ((Array) o).event : 0;
+            }
+            case "javacard.framework.JCSystem.makeTransientBooleanArray(SB)[Z":
+                return newArray(T_BOOLEAN, args[0], args[1], "transient boolean");
+            case "javacard.framework.JCSystem.makeTransientByteArray(SB)[B":
+                return newArray(T_BYTE, args[0], args[1], "transient byte");
+            case "javacard.framework.JCSystem.makeTransientShortArray(SB)[S":
+                return newArray(T_SHORT, args[0], args[1], "transient short");
+            case "javacard.framework.JCSystem.makeTransientObjectArray(SB)[Ljava/lang/Object;":
+                return newArray(T_REFERENCE, args[0], args[1], "transient Object");
+            case "javacard.framework.Util.arrayCopy([BS[BSS)S":
+            case "javacard.framework.Util.arrayCopyNonAtomic([BS[BSS)S": {
+                Array src = array(args[0]);
+                Array dst = array(args[2]);
+                int length = args[4];
+                if (length < 0 || args[1] < 0 || args[3] < 0 || args[1] + length > src.values.length || args[3] + length > dst.values.length)
+                    throw new Thrown(exception("java.lang.ArrayIndexOutOfBoundsException"));
+                System.arraycopy(Arrays.copyOfRange(src.values, args[1], args[1] + length), 0, dst.values, args[3], length);
+                if (dst.event == 0)
+                    written(length);
+                return (short) (args[3] + length);
+            }
+            case "javacard.framework.Util.arrayFillNonAtomic([BSSB)S": {
+                Array dst = array(args[0]);
+                if (args[2] < 0 || args[1] < 0 || args[1] + args[2] > dst.values.length)
+                    throw new Thrown(exception("java.lang.ArrayIndexOutOfBoundsException"));
+                Arrays.fill(dst.values, args[1], args[1] + args[2], (byte) args[3]);
+                if (dst.event == 0)
+                    written(args[2]);
+                return (short) (args[1] + args[2]);
+            }
+            case "javacard.framework.Util.arrayCompare([BS[BSS)B": {
+                Array a = array(args[0]);
+                Array b = array(args[2]);
+                for (int i = 0; i < args[4]; i++) {
+                    int x = a.values[index(a, args[1] + i)] & 0xFF;
+                    int y = b.values[index(b, args[3] + i)] & 0xFF;
+                    if (x != y)
+                        return x < y ? -1 : 1;
+                }
+                return 0;
+            }
+            case "javacard.framework.Util.getShort([BS)S": {
+                Array a = array(args[0]);
+                return (short) ((a.values[index(a, args[1])] & 0xFF) << 8 | a.values[index(a, args[1] + 1)] & 0xFF);
+            }
+            case "javacard.framework.Util.makeShort(BB)S":
+                return (short) ((args[0] & 0xFF) << 8 | args[1] & 0xFF);
+            case "javacard.framework.Util.setShort([BSS)S": {
+                Array a = array(args[0]);
+                a.values[index(a, args[1])] = (byte) (args[2] >> 8);
+                a.values[index(a, args[1] + 1)] = (byte) args[2];
+                if (a.event == 0)
+                    written(2);
+                return (short) (args[1] + 2);
+            }
+            default:
+                if (name.contains(".<init>("))
+                    return 0;
+                throw new UnsupportedOperationException("No stub for " + name);
+        }
+    }
+
+    private int register(AID aid, int self) {
+        if (aid == null || installing == null)
+            throw new Thrown(exception("javacard.framework.SystemException"));
+        instances.put(aid, self);
+        return 0;
+    }
+
+    private void send(Array from, int offset, int length) {
+        for (int i = 0; i < length; i++)
+            outgoing.write(from.values[index(from, offset + i)]);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.*;
+
+// Work done by the card when linking a package: every constant pool entry is resolved, every
+// constant pool index listed in the RefLocation component is patched in the bytecode.
+// See JCVM 2.2 spec section 6.11
+public final class LinkCost {
+    private final int internalEntries;
+    private final int externalEntries;
+    private final int byteSites;
+    private final int byte2Sites;
+    private final int internalSites;
+    private final int externalSites;
+    private final Map<CAPPackage, Integer> importEntries;
+    private final Map<CAPPackage, Integer> importSites;
+
+    private LinkCost(int internalEntries, int externalEntries, int byteSites, int byte2Sites, int internalSites, int externalSites,
+                     Map<CAPPackage, Integer> importEntries, Map<CAPPackage, Integer> importSites) {
+        this.internalEntries = internalEntries;
+        this.externalEntries = externalEntries;
+        this.byteSites = byteSites;
+        this.byte2Sites = byte2Sites;
+        this.internalSites = internalSites;
+        this.externalSites = externalSites;
+        this.importEntries = Collections.unmodifiableMap(importEntries);
+        this.importSites = Collections.unmodifiableMap(importSites);
+    }
+
+    // Cost of each unit of linking work, in whatever unit was measured on the target card
+    // (like microseconds). Resolving an external entry means a lookup in the export of the
+    // imported package, so it is usually much more expensive than an internal one.
+    public static final class Model {
+        public static final Model DEFAULT = new Model(1, 10, 1, 1);
+
+        private final int internalEntry;
+        private final int externalEntry;
+        private final int byteSite;
+        private final int byte2Site;
+
+        public Model(int internalEntry, int externalEntry, int byteSite, int byte2Site) {
+            this.internalEntry = internalEntry;
+            this.externalEntry = externalEntry;
+            this.byteSite = byteSite;
+            this.byte2Site = byte2Site;
+        }
+
+        // Keys entry.internal, entry.external, site.byte and site.byte2, missing ones are taken
+        // from DEFAULT
+        public static Model fromProperties(Properties p) {
+            return new Model(cost(p, "entry.internal", DEFAULT.internalEntry), cost(p, "entry.external", DEFAULT.externalEntry),
+                    cost(p, "site.byte", DEFAULT.byteSite), cost(p, "site.byte2", DEFAULT.byte2Site));
+        }
+
+        private static int cost(Properties p, String key, int def) {
+            String v = p.getProperty(key);
+            if (v == null)
+                return def;
+            try {
+                int cost = Integer.parseInt(v.trim());
+                if (cost < 0)
+                    throw new IllegalArgumentException("Negative cost for " + key + ": " + v);
+                return cost;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cost for " + key + ": " + v);
+            }
+        }
+    }
+
+    static LinkCost of(CAPFile cap) {
+        int internalEntries = 0, externalEntries = 0;
+        int internalSites = 0, externalSites = 0;
+        int[] byteSites = new int[0];
+        int[] byte2Sites = new int[0];
+        Map<CAPPackage, Integer> importEntries = new LinkedHashMap<>();
+        Map<CAPPackage, Integer> importSites = new LinkedHashMap<>();
+
+        List<CAPPackage> imports = cap.getImportComponent().map(LinkCost::imports).orElse(Collections.emptyList());
+        imports.forEach(p -> {
+            importEntries.put(p, 0);
+            importSites.put(p, 0);
+        });
+        Optional<ConstantPoolComponent> constantPool = cap.getConstantPoolComponent();
+        if (constantPool.isPresent()) {
+            ConstantPoolComponent cp = constantPool.get();
+            for (int i = 0; i < cp.getCount(); i++) {
+                if (cp.isExternal(i)) {
+                    externalEntries++;
+                    importEntries.merge(imports.get(cp.getPackageToken(i)), 1, Integer::sum);
+                } else {
+                    internalEntries++;
+                }
+            }
+            Optional<RefLocationComponent> refLocation = cap.getRefLocationComponent();
+            Optional<MethodComponent> method = cap.getMethodComponent();
+            if (refLocation.isPresent() && method.isPresent()) {
+                byteSites = refLocation.get().getByteIndexOffsets();
+                byte2Sites = refLocation.get().getByte2IndexOffsets();
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int offset : pass == 0 ? byteSites : byte2Sites) {
+                        int index = pass == 0 ? method.get().u1(offset) : method.get().u2(offset);
+                        if (cp.isExternal(index)) {
+                            externalSites++;
+                            importSites.merge(imports.get(cp.getPackageToken(index)), 1, Integer::sum);
+                        } else {
+                            internalSites++;
+                        }
+                    }
+                }
+            }
+        }
+        return new LinkCost(internalEntries, externalEntries, byteSites.length, byte2Sites.length, internalSites, externalSites,
+                importEntries, importSites);
+    }
+
+    private static List<CAPPackage> imports(ImportComponent component) {
+        List<CAPPackage> result = new ArrayList<>();
+        for (int i = 0; i < component.getCount(); i++) {
+            result.add(component.getPackage(i));
+        }
+        return result;
+    }
+
+    public int getInternalEntryCount() {
+        return internalEntries;
+    }
+
+    public int getExternalEntryCount() {
+        return externalEntries;
+    }
+
+    // Relocations of one-byte constant pool indices
+    public int getByteSiteCount() {
+        return byteSites;
+    }
+
+    // Relocations of two-byte constant pool indices
+    public int getByte2SiteCount() {
+        return byte2Sites;
+    }
+
+    public int getSiteCount() {
+        return byteSites + byte2Sites;
+    }
+
+    // Relocations referring to entries in this package
+    public int getInternalSiteCount() {
+        return internalSites;
+    }
+
+    // Relocations referring to entries of imported packages
+    public int getExternalSiteCount() {
+        return externalSites;
+    }
+
+    // Constant pool entries per imported package, in the order of the Import component
+    public Map<CAPPackage, Integer> getImportEntryCounts() {
+        return importEntries;
+    }
+
+    // Relocations per imported package, in the order of the Import component
+    public Map<CAPPackage, Integer> getImportSiteCounts() {
+        return importSites;
+    }
+
+    public long estimate(Model model) {
+        return (long) internalEntries * model.internalEntry + (long) externalEntries * model.externalEntry
+                + (long) byteSites * model.byteSite + (long) byte2Sites * model.byte2Site;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d constant pool entries (%d external), %d relocations (%d 1-byte, %d 2-byte; %d external)",
+                internalEntries + externalEntries, externalEntries, getSiteCount(), byteSites, byte2Sites, externalSites);
+    }
+}
@@ -0,0 +1,772 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Links a library package into a package that imports it, so that both are loaded as one package.
+// Classes, methods, static fields and constant pool of the library are appended to those of the
+// package, references to the library become internal ones (found with its Export component) and its
+// Import entry is dropped. Imports of the library are added. Every offset and constant pool index
+// is moved to the linked layout, in code as listed in the RefLocation components. Compact format
+// only. The Debug component can not be merged and is dropped.
+final class Linker {
+    private static final Pattern MANIFEST_IMPORT = Pattern.compile("^Java-Card-Imported-Package-[0-9]+-(AID|Version)$");
+    private static final int SEGMENTS = 4;
+
+    private final CAPFile app;
+    private final CAPFile lib;
+    private final int library; // Package token of the library in the package
+    private final ExportComponent export;
+    private final List<CAPPackage> imports = new ArrayList<>();
+    private final Side appSide;
+    private final Side libSide;
+    private int constantPoolCount;
+
+    // One of the two packages, with the mapping of its offsets and indices to the linked package
+    private final class Side {
+        final CAPFile cap;
+        final boolean isLibrary;
+        final MethodComponent method;
+        final ConstantPoolComponent pool;
+        final ClassComponent classes;
+        final Optional<RefLocationComponent> refs;
+        final Optional<DescriptorComponent> descriptor;
+        // Static field image: array-initialized references, other references, default values, others
+        final int[] segments;
+        int[] packages; // Linked package token of every imported package, -1 for the library
+        int[] index; // Linked constant pool index of every entry
+        int classShift;
+        int methodShift;
+        int handlerShift;
+        int typeShift;
+        int tokenShift;
+
+        Side(CAPFile cap, boolean isLibrary) {
+            this.cap = cap;
+            this.isLibrary = isLibrary;
+            method = cap.getMethodComponent().orElseThrow(() -> missing(cap, "Method"));
+            pool = cap.getConstantPoolComponent().orElseThrow(() -> missing(cap, "ConstantPool"));
+            classes = cap.getClassComponent().orElseThrow(() -> missing(cap, "Class"));
+            refs = cap.getRefLocationComponent();
+            descriptor = cap.getDescriptorComponent();
+            segments = new int[SEGMENTS];
+            cap.getStaticFieldComponent().ifPresent(s -> {
+                segments[0] = 2 * s.getArrayInitCount();
+                segments[1] = 2 * (s.getReferenceCount() - s.getArrayInitCount());
+                segments[2] = s.getDefaultValueCount();
+                segments[3] = s.getNonDefaultValueCount();
+                if (Arrays.stream(segments).sum() != s.getImageSize())
+                    throw new IllegalArgumentException("Inconsistent static field image of " + cap.getPackageName());
+            });
+        }
+
+        int classRef(int ref) {
+            // Superclass of java.lang.Object
+            if (ref == 0xFFFF)
+                return ref;
+            if (!ConstantPoolComponent.isExternalClassRef(ref))
+                return ref + classShift;
+            int pkg = packages[(ref >> 8) & 0x7F];
+            if (pkg < 0)
+                return libSide.classRef(exported(ref & 0xFF));
+            return 0x8000 | pkg << 8 | (ref & 0xFF);
+        }
+
+        int method(int offset) {
+            return offset + methodShift;
+        }
+
+        boolean inImage(int offset) {
+            return offset < Arrays.stream(segments).sum();
+        }
+
+        // Segment by segment, the package before the library
+        int staticField(int offset) {
+            int start = 0;
+            int linked = 0;
+            for (int s = 0; s < SEGMENTS; s++) {
+                if (offset < start + segments[s])
+                    return linked + (isLibrary ? appSide.segments[s] : 0) + offset - start;
+                start += segments[s];
+                linked += appSide.segments[s] + libSide.segments[s];
+            }
+            throw new IllegalArgumentException(String.format("Static field offset %d outside of the image of %s", offset, cap.getPackageName()));
+        }
+
+        int type(int offset) {
+            return offset + typeShift;
+        }
+
+        // Constant pool entry, with references moved
+        byte[] entry(int i) {
+            byte[] e = pool.bytes(pool.getOffset(i), 4);
+            int tag = pool.getTag(i);
+            if (!pool.isStatic(i)) {
+                putShort(e, 1, classRef(pool.getClassRef(i)));
+            } else if (!pool.isExternal(i)) {
+                int offset = pool.getInternalOffset(i);
+                putShort(e, 2, tag == ConstantPoolComponent.CONSTANT_StaticFieldref ? staticField(offset) : method(offset));
+            } else if (packages[pool.getPackageToken(i)] >= 0) {
+                e[1] = (byte) (0x80 | packages[pool.getPackageToken(i)]);
+            } else {
+                int klass = pool.getClassToken(i);
+                // Fails if the class is not exported
+                exported(klass);
+                int offset;
+                if (tag == ConstantPoolComponent.CONSTANT_StaticFieldref) {
+                    offset = libSide.staticField(token(export.getStaticFieldOffsets(klass), pool.getToken(i), "static field", klass));
+                } else {
+                    offset = libSide.method(token(export.getStaticMethodOffsets(klass), pool.getToken(i), "static method", klass));
+                }
+                e[1] = 0;
+                putShort(e, 2, offset);
+            }
+            return e;
+        }
+
+        // Method component without the exception handlers, with constant pool indices moved
+        byte[] code() {
+            byte[] m = CAPFile.bytes(method.getInfo());
+            if (refs.isPresent()) {
+                for (int o : refs.get().getByteIndexOffsets())
+                    m[o] = (byte) index[m[o] & 0xFF];
+                for (int o : refs.get().getByte2IndexOffsets())
+                    putShort(m, o, index[getShort(m, o)]);
+            }
+            return Arrays.copyOfRange(m, method.getMethodsOffset(), m.length);
+        }
+
+        void handlers(ByteArrayOutputStream out) {
+            for (int i = 0; i < method.getHandlerCount(); i++) {
+                u2(out, method(method.getHandlerStartOffset(i)));
+                u2(out, method.getHandlerActiveLength(i) | (method.isHandlerStop(i) ? 0x8000 : 0));
+                u2(out, method(method.getHandlerOffset(i)));
+                int type = method.getHandlerCatchTypeIndex(i);
+                // 0 catches everything, so it can not be the index of a class
+                if (type != 0 && index[type] == 0)
+                    throw new IllegalArgumentException("Caught class can not be the first constant pool entry");
+                u2(out, type == 0 ? 0 : index[type]);
+            }
+        }
+
+        // Class component from the first class on, with references moved
+        byte[] classes() {
+            byte[] b = CAPFile.bytes(classes.getInfo());
+            int[] offsets = classes.getOffsets();
+            for (int o : offsets) {
+                int count = b[o] & 0x0F;
+                if (classes.isInterface(o)) {
+                    for (int i = 0; i < count; i++)
+                        putShort(b, o + 1 + 2 * i, classRef(getShort(b, o + 1 + 2 * i)));
+                    continue;
+                }
+                ClassComponent.ClassInfo c = classes.getClassInfo(o);
+                putShort(b, o + 1, classRef(c.getSuperClassRef()));
+                int t = o + 10;
+                for (int i = 0; i < c.getPublicMethodTableCount() + c.getPackageMethodTableCount(); i++, t += 2) {
+                    // Not defined in this package
+                    if (getShort(b, t) != 0xFFFF)
+                        putShort(b, t, method(getShort(b, t)));
+                }
+                for (int i = 0; i < count; i++) {
+                    putShort(b, t, classRef(getShort(b, t)));
+                    t += 3 + (b[t + 2] & 0xFF);
+                }
+            }
+            return Arrays.copyOfRange(b, offsets.length > 0 ? offsets[0] : b.length, b.length);
+        }
+
+        // Class descriptors, with references, tokens and type offsets moved
+        byte[] classDescriptors() {
+            DescriptorComponent desc = descriptor.get();
+            byte[] d = CAPFile.bytes(desc.getInfo());
+            int o = 1;
+            for (int c = 0; c < desc.getClassCount(); c++) {
+                // Package-private classes have no token
+                if ((d[o] & 0xFF) != 0xFF)
+                    d[o] = (byte) ((d[o] & 0xFF) + tokenShift);
+                putShort(d, o + 2, classRef(getShort(d, o + 2)));
+                int interfaces = d[o + 4] & 0xFF;
+                int fields = getShort(d, o + 5);
+                int methods = getShort(d, o + 7);
+                o += 9;
+                for (int i = 0; i < interfaces; i++, o += 2)
+                    putShort(d, o, classRef(getShort(d, o)));
+                for (int i = 0; i < fields; i++, o += 7) {
+                    if ((d[o + 1] & DescriptorComponent.ACC_STATIC) == 0) {
+                        putShort(d, o + 2, classRef(getShort(d, o + 2)));
+                    } else if (inImage(getShort(d, o + 3))) {
+                        // Compile-time constants are not in the image
+                        putShort(d, o + 3, staticField(getShort(d, o + 3)));
+                    }
+                    if ((getShort(d, o + 5) & 0x8000) == 0)
+                        putShort(d, o + 5, type(getShort(d, o + 5)));
+                }
+                for (int i = 0; i < methods; i++, o += 12) {
+                    // Abstract and interface methods have no code
+                    if (getShort(d, o + 2) != 0)
+                        putShort(d, o + 2, method(getShort(d, o + 2)));
+                    putShort(d, o + 4, type(getShort(d, o + 4)));
+                    if (getShort(d, o + 8) > 0)
+                        putShort(d, o + 10, getShort(d, o + 10) + handlerShift);
+                }
+            }
+            return Arrays.copyOfRange(d, 1, o);
+        }
+
+        // Type descriptors after the constant pool types, with class references in nibbles moved
+        byte[] types() {
+            DescriptorComponent desc = descriptor.get();
+            byte[] d = CAPFile.bytes(desc.getInfo());
+            int o = d.length - typesLength() + 2 + 2 * pool.getCount();
+            byte[] t = Arrays.copyOfRange(d, o, d.length);
+            int offset = 0;
+            while (offset < t.length) {
+                int nibbles = t[offset] & 0xFF;
+                int i = 0;
+                while (i < nibbles) {
+                    int type = nibble(t, offset + 1, i++);
+                    // Class or array of class
+                    if (type == 0x6 || type == 0xE) {
+                        int ref = 0;
+                        for (int n = 0; n < 4; n++)
+                            ref = ref << 4 | nibble(t, offset + 1, i + n);
+                        ref = classRef(ref);
+                        for (int n = 0; n < 4; n++)
+                            nibble(t, offset + 1, i + n, ref >> (12 - 4 * n) & 0x0F);
+                        i += 4;
+                    }
+                }
+                offset += 1 + (nibbles + 1) / 2;
+            }
+            return t;
+        }
+
+        // Size of type_descriptor_info
+        int typesLength() {
+            DescriptorComponent desc = descriptor.get();
+            int types = desc.getSize();
+            for (DescriptorComponent.ClassDescriptor c : desc.getClasses())
+                types -= 9 + 2 * c.getInterfaceCount() + 7 * c.getFieldCount() + 12 * c.getMethodCount();
+            return types - 1;
+        }
+
+        // Tokens of public classes go from 0 up
+        int classTokens() {
+            return descriptor.map(d -> d.getClasses().stream().mapToInt(DescriptorComponent.ClassDescriptor::getToken)
+                    .filter(t -> t != 0xFF).max().orElse(-1) + 1).orElse(0);
+        }
+    }
+
+    private Linker(CAPFile app, CAPFile lib) {
+        this.app = app;
+        this.lib = lib;
+        if (!lib.getAppletAIDs().isEmpty())
+            throw new IllegalArgumentException("Library " + lib.getPackageName() + " has applets");
+        export = lib.getExportComponent().orElseThrow(() -> missing(lib, "Export"));
+        HeaderComponent a = app.getHeaderComponent();
+        HeaderComponent l = lib.getHeaderComponent();
+        if (l.getMajorVersion() > a.getMajorVersion() || (l.getMajorVersion() == a.getMajorVersion() && l.getMinorVersion() > a.getMinorVersion()))
+            throw new IllegalArgumentException(String.format("Library is CAP %s, newer than CAP %s", lib.getCAPVersion(), app.getCAPVersion()));
+        int token = -1;
+        for (int i = 0; i < app.getImports().size(); i++) {
+            if (app.getImports().get(i).getAid().equals(lib.getPackageAID()))
+                token = i;
+        }
+        if (token < 0)
+            throw new IllegalArgumentException(app.getPackageName() + " does not import " + lib.getPackageName());
+        CAPPackage imported = app.getImports().get(token);
+        if (imported.getMajor() != l.getPackageMajorVersion() || imported.getMinor() > l.getPackageMinorVersion())
+            throw new IllegalArgumentException(String.format("%s imports %s v%s, not compatible with v%s", app.getPackageName(),
+                    lib.getPackageName(), imported.getVersionString(), lib.getPackageVersion()));
+        library = token;
+        appSide = new Side(app, false);
+        libSide = new Side(lib, true);
+    }
+
+    private static IllegalArgumentException missing(CAPFile cap, String component) {
+        return new IllegalArgumentException("No " + component + " component in " + cap.getPackageName());
+    }
+
+    // Links the library into the entries of the package in the directory
+    static void link(Map<String, ByteBuffer> entries, String jcdir, CAPFile app, CAPFile lib) {
+        new Linker(app, lib).link(entries, jcdir);
+    }
+
+    private void link(Map<String, ByteBuffer> entries, String jcdir) {
+        checkRemote(appSide);
+        checkRemote(libSide);
+        checkPackageMethods();
+        mergeImports();
+        mergeConstantPools();
+
+        // Library after the package, everywhere
+        appSide.classShift = 0;
+        libSide.classShift = appSide.classes.getSize() - libSide.classes.getOffsets()[0];
+        appSide.methodShift = 8 * libSide.method.getHandlerCount();
+        libSide.methodShift = appSide.method.getSize() - 1;
+        libSide.handlerShift = appSide.method.getHandlerCount();
+        libSide.tokenShift = appSide.classTokens();
+
+        Map<Integer, byte[]> components = new TreeMap<>();
+        components.put(Component.TAG_IMPORT, imports());
+        components.put(Component.TAG_CONSTANT_POOL, constantPool());
+        components.put(Component.TAG_CLASS, classes());
+        components.put(Component.TAG_METHOD, methods());
+        if (app.getStaticFieldComponent().isPresent() || lib.getStaticFieldComponent().isPresent())
+            components.put(Component.TAG_STATIC_FIELD, staticFields());
+        components.put(Component.TAG_REFERENCE_LOCATION, refLocations());
+        app.getAppletComponent().ifPresent(a -> components.put(Component.TAG_APPLET, applets(a)));
+        app.getExportComponent().ifPresent(e -> components.put(Component.TAG_EXPORT, exports(e)));
+        if (appSide.descriptor.isPresent() && libSide.descriptor.isPresent())
+            components.put(Component.TAG_DESCRIPTOR, descriptors());
+        components.put(Component.TAG_HEADER, header());
+
+        components.put(Component.TAG_DIRECTORY, directory(components));
+        // In place, to keep the order of entries
+        for (int tag = Component.TAG_HEADER; tag <= Component.TAG_DEBUG; tag++) {
+            if (components.containsKey(tag))
+                entries.put(jcdir + name(tag) + ".cap", ByteBuffer.wrap(component(tag, components.get(tag))));
+            else
+                entries.remove(jcdir + name(tag) + ".cap");
+        }
+
+        ByteBuffer mf = entries.get("META-INF/MANIFEST.MF");
+        if (mf != null)
+            entries.put("META-INF/MANIFEST.MF", ByteBuffer.wrap(manifest(CAPFile.bytes(mf))));
+    }
+
+    private static void checkRemote(Side side) {
+        for (int o : side.classes.getOffsets()) {
+            if ((side.classes.getFlags(o) & ClassComponent.ACC_REMOTE) == ClassComponent.ACC_REMOTE)
+                throw new IllegalArgumentException("Remote classes can not be linked: " + side.cap.getPackageName());
+        }
+        if (side.classes.getOffsets().length == 0)
+            throw new IllegalArgumentException("No classes in " + side.cap.getPackageName());
+        // Signature pool is only used by remote interfaces
+        if (side.classes.getOffsets()[0] > 2)
+            throw new IllegalArgumentException("Signature pool can not be linked: " + side.cap.getPackageName());
+    }
+
+    // Package-visible method tokens start from 0 in a class with a superclass in another package,
+    // so they would clash with those of the library superclass once in the same package
+    private void checkPackageMethods() {
+        for (ClassComponent.ClassInfo c : appSide.classes.getClasses()) {
+            if (c.getPackageMethodTableCount() == 0)
+                continue;
+            int s = c.getSuperClassRef();
+            while (!ConstantPoolComponent.isExternalClassRef(s))
+                s = appSide.classes.getClassInfo(s).getSuperClassRef();
+            if (s == 0xFFFF || ((s >> 8) & 0x7F) != library)
+                continue;
+            ClassComponent.ClassInfo sup = libSide.classes.getClassInfo(exported(s & 0xFF));
+            if ((sup.getPackageMethodTableBase() & 0x7F) + sup.getPackageMethodTableCount() > 0)
+                throw new IllegalArgumentException(String.format("Package-visible methods of class @%04x would override those of its superclass in %s",
+                        c.getOffset(), lib.getPackageName()));
+        }
+    }
+
+    // Offset in the Class component of the library of an exported class
+    private int exported(int token) {
+        if (token >= export.getClassCount())
+            throw new IllegalArgumentException(String.format("Class %d is not exported by %s", token, lib.getPackageName()));
+        return export.getClassOffset(token);
+    }
+
+    private int token(int[] offsets, int token, String kind, int klass) {
+        if (token >= offsets.length)
+            throw new IllegalArgumentException(String.format("%s %d.%d is not exported by %s", kind, klass, token, lib.getPackageName()));
+        return offsets[token];
+    }
+
+    // Imports of the package without the library, then those of the library not yet imported
+    private void mergeImports() {
+        List<CAPPackage> own = app.getImports();
+        appSide.packages = new int[own.size()];
+        for (int i = 0; i < own.size(); i++) {
+            appSide.packages[i] = i == library ? -1 : imports.size();
+            if (i != library)
+                imports.add(own.get(i));
+        }
+        List<CAPPackage> theirs = lib.getImports();
+        libSide.packages = new int[theirs.size()];
+        for (int i = 0; i < theirs.size(); i++) {
+            CAPPackage p = theirs.get(i);
+            if (p.getAid().equals(app.getPackageAID()))
+                throw new IllegalArgumentException(lib.getPackageName() + " imports " + app.getPackageName());
+            int existing = -1;
+            for (int j = 0; j < imports.size(); j++) {
+                if (imports.get(j).getAid().equals(p.getAid()))
+                    existing = j;
+            }
+            if (existing < 0) {
+                existing = imports.size();
+                imports.add(p);
+            } else if (imports.get(existing).getMajor() != p.getMajor()) {
+                throw new IllegalArgumentException(String.format("%s is imported as v%s and v%s", p.getAid(),
+                        imports.get(existing).getVersionString(), p.getVersionString()));
+            } else if (imports.get(existing).getMinor() < p.getMinor()) {
+                imports.set(existing, p);
+            }
+            libSide.packages[i] = existing;
+        }
+        if (imports.size() > 0x80)
+            throw new IllegalArgumentException("Too many imported packages: " + imports.size());
+    }
+
+    // Entries of the package keep their index, unless the entries used with one-byte indices (by
+    // instance field access) would not fit below 256. Then those of both go first.
+    private void mergeConstantPools() {
+        Set<Integer> appOne = oneByteIndices(appSide);
+        Set<Integer> libOne = oneByteIndices(libSide);
+        int appCount = appSide.pool.getCount();
+        int libCount = libSide.pool.getCount();
+        boolean keep = libOne.isEmpty() || appCount + libOne.size() <= 0x100;
+        appSide.index = new int[appCount];
+        libSide.index = new int[libCount];
+        int n = 0;
+        for (int group = 0; group < 4; group++) {
+            for (int i = 0; i < appCount; i++) {
+                if ((keep || appOne.contains(i) ? 0 : 2) == group)
+                    appSide.index[i] = n++;
+            }
+            for (int i = 0; i < libCount; i++) {
+                if ((libOne.contains(i) ? 1 : 3) == group)
+                    libSide.index[i] = n++;
+            }
+        }
+        constantPoolCount = n;
+        if (n > 0xFFFF)
+            throw new IllegalArgumentException("Too many constant pool entries: " + n);
+        for (int i : appOne) {
+            if (appSide.index[i] > 0xFF)
+                throw new IllegalArgumentException("Too many constant pool entries with one-byte indices");
+        }
+        for (int i : libOne) {
+            if (libSide.index[i] > 0xFF)
+                throw new IllegalArgumentException("Too many constant pool entries with one-byte indices");
+        }
+    }
+
+    private static Set<Integer> oneByteIndices(Side side) {
+        Set<Integer> result = new HashSet<>();
+        side.refs.ifPresent(r -> {
+            for (int o : r.getByteIndexOffsets())
+                result.add(side.method.u1(o));
+        });
+        return result;
+    }
+
+    private byte[] header() {
+        byte[] h = CAPFile.bytes(app.getHeaderComponent().getInfo());
+        // Integer support if either needs it
+        h[6] |= (byte) (lib.getHeaderComponent().getFlags() & HeaderComponent.ACC_INT);
+        return h;
+    }
+
+    private byte[] imports() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(imports.size());
+        for (CAPPackage p : imports) {
+            out.write(p.getMinor());
+            out.write(p.getMajor());
+            out.write(p.getAid().getLength());
+            out.write(p.getAid().getBytes(), 0, p.getAid().getLength());
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] constantPool() {
+        byte[] result = new byte[2 + 4 * constantPoolCount];
+        putShort(result, 0, constantPoolCount);
+        for (Side side : Arrays.asList(appSide, libSide)) {
+            for (int i = 0; i < side.pool.getCount(); i++)
+                System.arraycopy(side.entry(i), 0, result, 2 + 4 * side.index[i], 4);
+        }
+        return result;
+    }
+
+    private byte[] classes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] own = CAPFile.bytes(appSide.classes.getInfo());
+        // Signature pool header, if any
+        out.write(own, 0, appSide.classes.getOffsets()[0]);
+        byte[] a = appSide.classes();
+        out.write(a, 0, a.length);
+        byte[] l = libSide.classes();
+        out.write(l, 0, l.length);
+        // Internal class_ref has the high bit clear
+        if (out.size() > 0x7FFF)
+            throw new IllegalArgumentException("Class component too big: " + out.size());
+        return out.toByteArray();
+    }
+
+    private byte[] methods() {
+        int handlers = appSide.method.getHandlerCount() + libSide.method.getHandlerCount();
+        if (handlers > 0xFF)
+            throw new IllegalArgumentException("Too many exception handlers: " + handlers);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(handlers);
+        appSide.handlers(out);
+        libSide.handlers(out);
+        byte[] a = appSide.code();
+        out.write(a, 0, a.length);
+        byte[] l = libSide.code();
+        out.write(l, 0, l.length);
+        return out.toByteArray();
+    }
+
+    private byte[] staticFields() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Optional<StaticFieldComponent> a = app.getStaticFieldComponent();
+        Optional<StaticFieldComponent> l = lib.getStaticFieldComponent();
+        u2(out, Arrays.stream(appSide.segments).sum() + Arrays.stream(libSide.segments).sum());
+        u2(out, a.map(StaticFieldComponent::getReferenceCount).orElse(0) + l.map(StaticFieldComponent::getReferenceCount).orElse(0));
+        u2(out, a.map(StaticFieldComponent::getArrayInitCount).orElse(0) + l.map(StaticFieldComponent::getArrayInitCount).orElse(0));
+        for (Optional<StaticFieldComponent> s : Arrays.asList(a, l)) {
+            if (!s.isPresent())
+                continue;
+            for (int i = 0; i < s.get().getArrayInitCount(); i++) {
+                out.write(s.get().getArrayInitType(i));
+                u2(out, s.get().getArrayInitByteCount(i));
+                byte[] values = s.get().getArrayInitValues(i);
+                out.write(values, 0, values.length);
+            }
+        }
+        u2(out, appSide.segments[2] + libSide.segments[2]);
+        u2(out, appSide.segments[3] + libSide.segments[3]);
+        for (Optional<StaticFieldComponent> s : Arrays.asList(a, l)) {
+            if (s.isPresent()) {
+                byte[] values = s.get().getNonDefaultValues();
+                out.write(values, 0, values.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] refLocations() {
+        List<Integer> bytes = new ArrayList<>();
+        List<Integer> bytes2 = new ArrayList<>();
+        for (Side side : Arrays.asList(appSide, libSide)) {
+            if (side.refs.isPresent()) {
+                for (int o : side.refs.get().getByteIndexOffsets())
+                    bytes.add(side.method(o));
+                for (int o : side.refs.get().getByte2IndexOffsets())
+                    bytes2.add(side.method(o));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        deltas(out, bytes);
+        deltas(out, bytes2);
+        return out.toByteArray();
+    }
+
+    // Offsets as deltas from the previous one, 255 meaning "add 255 and continue"
+    private static void deltas(ByteArrayOutputStream out, List<Integer> offsets) {
+        ByteArrayOutputStream d = new ByteArrayOutputStream();
+        int previous = 0;
+        for (int o : offsets) {
+            int delta = o - previous;
+            for (; delta >= 255; delta -= 255)
+                d.write(255);
+            d.write(delta);
+            previous = o;
+        }
+        if (d.size() > 0xFFFF)
+            throw new IllegalArgumentException("Too many reference locations");
+        u2(out, d.size());
+        out.write(d.toByteArray(), 0, d.size());
+    }
+
+    private byte[] applets(AppletComponent applets) {
+        byte[] a = CAPFile.bytes(applets.getInfo());
+        int offset = 1;
+        for (int i = 0; i < applets.getCount(); i++) {
+            offset += 1 + (a[offset] & 0xFF);
+            putShort(a, offset, appSide.method(getShort(a, offset)));
+            offset += 2;
+        }
+        return a;
+    }
+
+    private byte[] exports(ExportComponent exports) {
+        byte[] e = CAPFile.bytes(exports.getInfo());
+        int offset = 1;
+        for (int i = 0; i < exports.getClassCount(); i++) {
+            int fields = e[offset + 2] & 0xFF;
+            int methods = e[offset + 3] & 0xFF;
+            offset += 4;
+            for (int f = 0; f < fields; f++, offset += 2)
+                putShort(e, offset, appSide.staticField(getShort(e, offset)));
+            for (int m = 0; m < methods; m++, offset += 2)
+                putShort(e, offset, appSide.method(getShort(e, offset)));
+        }
+        return e;
+    }
+
+    private byte[] descriptors() {
+        int appTypes = appSide.typesLength();
+        appSide.typeShift = 2 * libSide.pool.getCount();
+        libSide.typeShift = appTypes - 2;
+        int classes = appSide.descriptor.get().getClassCount() + libSide.descriptor.get().getClassCount();
+        if (classes > 0xFF)
+            throw new IllegalArgumentException("Too many classes: " + classes);
+        if (libSide.tokenShift + libSide.classTokens() > 0xFF)
+            throw new IllegalArgumentException("Too many class tokens");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(classes);
+        byte[] a = appSide.classDescriptors();
+        out.write(a, 0, a.length);
+        byte[] l = libSide.classDescriptors();
+        out.write(l, 0, l.length);
+        // Types of constant pool entries, in the linked order
+        int[] types = new int[constantPoolCount];
+        for (Side side : Arrays.asList(appSide, libSide)) {
+            DescriptorComponent d = side.descriptor.get();
+            for (int i = 0; i < side.pool.getCount(); i++) {
+                int type = d.getConstantPoolType(i);
+                types[side.index[i]] = type == 0xFFFF ? type : side.type(type);
+            }
+        }
+        u2(out, constantPoolCount);
+        for (int type : types)
+            u2(out, type);
+        a = appSide.types();
+        out.write(a, 0, a.length);
+        l = libSide.types();
+        out.write(l, 0, l.length);
+        return out.toByteArray();
+    }
+
+    // Sizes of the linked components, static field image and imports
+    private byte[] directory(Map<Integer, byte[]> components) {
+        DirectoryComponent dir = app.getDirectoryComponent().orElseThrow(() -> missing(app, "Directory"));
+        byte[] d = CAPFile.bytes(dir.getInfo());
+        int sizes = dir.getComponentCount();
+        for (int tag = 1; tag <= sizes; tag++) {
+            if (tag != Component.TAG_DIRECTORY)
+                putShort(d, (tag - 1) * 2, components.containsKey(tag) ? components.get(tag).length : 0);
+        }
+        int arrays = lib.getDirectoryComponent().map(DirectoryComponent::getArrayInitSize).orElse(0);
+        putShort(d, sizes * 2, Arrays.stream(appSide.segments).sum() + Arrays.stream(libSide.segments).sum());
+        putShort(d, sizes * 2 + 2, app.getStaticFieldComponent().map(StaticFieldComponent::getArrayInitCount).orElse(0)
+                + lib.getStaticFieldComponent().map(StaticFieldComponent::getArrayInitCount).orElse(0));
+        putShort(d, sizes * 2 + 4, dir.getArrayInitSize() + arrays);
+        d[sizes * 2 + 6] = (byte) imports.size();
+        return d;
+    }
+
+    // Imported packages are listed again, at the place of the old list
+    private byte[] manifest(byte[] mf) {
+        boolean[] listed = {false};
+        boolean integers = (lib.getHeaderComponent().getFlags() & HeaderComponent.ACC_INT) == HeaderComponent.ACC_INT;
+        return Variant.manifest(mf, (key, value) -> {
+            if (key.equals("Java-Card-Integer-Support-Required") && integers)
+                return Collections.singletonList(key + ": TRUE");
+            if (!MANIFEST_IMPORT.matcher(key).matches())
+                return null;
+            if (listed[0])
+                return Collections.emptyList();
+            listed[0] = true;
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < imports.size(); i++) {
+                lines.add(String.format("Java-Card-Imported-Package-%d-AID: %s", i + 1, Variant.manifestAID(imports.get(i).getAid(), value)));
+                lines.add(String.format("Java-Card-Imported-Package-%d-Version: %s", i + 1, imports.get(i).getVersionString()));
+            }
+            return lines;
+        });
+    }
+
+    private static String name(int tag) {
+        switch (tag) {
+            case Component.TAG_HEADER:
+                return "Header";
+            case Component.TAG_DIRECTORY:
+                return "Directory";
+            case Component.TAG_APPLET:
+                return "Applet";
+            case Component.TAG_IMPORT:
+                return "Import";
+            case Component.TAG_CONSTANT_POOL:
+                return "ConstantPool";
+            case Component.TAG_CLASS:
+                return "Class";
+            case Component.TAG_METHOD:
+                return "Method";
+            case Component.TAG_STATIC_FIELD:
+                return "StaticField";
+            case Component.TAG_REFERENCE_LOCATION:
+                return "RefLocation";
+            case Component.TAG_EXPORT:
+                return "Export";
+            case Component.TAG_DESCRIPTOR:
+                return "Descriptor";
+            case Component.TAG_DEBUG:
+                return "Debug";
+            default:
+                throw new IllegalArgumentException("Unexpected component tag: " + tag);
+        }
+    }
+
+    private static byte[] component(int tag, byte[] info) {
+        if (info.length > 0xFFFF)
+            throw new IllegalArgumentException(String.format("%s component too big: %d bytes", name(tag), info.length));
+        byte[] result = new byte[3 + info.length];
+        result[0] = (byte) tag;
+        putShort(result, 1, info.length);
+        System.arraycopy(info, 0, result, 3, info.length);
+        return result;
+    }
+
+    private static int nibble(byte[] b, int offset, int index) {
+        int v = b[offset + index / 2] & 0xFF;
+        return index % 2 == 0 ? v >> 4 : v & 0x0F;
+    }
+
+    private static void nibble(byte[] b, int offset, int index, int value) {
+        int o = offset + index / 2;
+        b[o] = (byte) (index % 2 == 0 ? (b[o] & 0x0F) | value << 4 : (b[o] & 0xF0) | value);
+    }
+
+    private static int getShort(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 8 | (b[offset + 1] & 0xFF);
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        if (value < 0 || value > 0xFFFF)
+            throw new IllegalArgumentException("Offset out of range: " + value);
+        b[offset] = (byte) (value >> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    private static void u2(ByteArrayOutputStream out, int value) {
+        if (value < 0 || value > 0xFFFF)
+            throw new IllegalArgumentException("Offset out of range: " + value);
+        out.write(value >> 8);
+        out.write(value);
+    }
+}
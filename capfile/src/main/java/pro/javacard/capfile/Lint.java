@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.*;
+
+// Patterns in the bytecode that are slow or waste memory on cards. Calls to imported methods are
+// recognized by name when the export files of the imported packages are given, otherwise only
+// the well-known static methods of JCSystem are.
+public final class Lint {
+    static final String[] CRYPTO = {"javacardx.crypto.Cipher.getInstance", "javacard.security.KeyBuilder.buildKey",
+            "javacard.security.Signature.getInstance", "javacard.security.MessageDigest.getInstance",
+            "javacard.security.RandomData.getInstance", "javacard.security.KeyAgreement.getInstance",
+            "javacard.security.Checksum.getInstance"};
+    static final String OBJECT_DELETION = "javacard.framework.JCSystem.requestObjectDeletion";
+    static final String MAKE_TRANSIENT = "javacard.framework.JCSystem.makeTransient";
+
+    public enum Rule {
+        ALLOCATION("allocation outside of install() and constructors"),
+        CRYPTO_IN_PROCESS("crypto object created on the path of process()"),
+        OBJECT_DELETION("object deletion requested on the path of process()"),
+        ATOMIC_COPY("Util.arrayCopy() outside of a transaction on the path of process(), arrayCopyNonAtomic() is faster if atomicity is not needed");
+
+        private final String description;
+
+        Rule(String description) {
+            this.description = description;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    public static final class Finding {
+        private final Rule rule;
+        private final int method;
+        private final String methodName;
+        private final int pc;
+        private final String detail;
+
+        Finding(Rule rule, int method, String methodName, int pc, String detail) {
+            this.rule = rule;
+            this.method = method;
+            this.methodName = methodName;
+            this.pc = pc;
+            this.detail = detail;
+        }
+
+        public Rule getRule() {
+            return rule;
+        }
+
+        // Offset of the method in the Method component
+        public int getMethodOffset() {
+            return method;
+        }
+
+        public String getMethodName() {
+            return methodName;
+        }
+
+        // Offset of the instruction in the Method component
+        public int getOffset() {
+            return pc;
+        }
+
+        // The instruction or the called method
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s+%d: %s: %s", methodName, pc - method, rule.getDescription(), detail);
+        }
+    }
+
+    private Lint() {
+    }
+
+    static List<Finding> of(CAPFile cap, Map<AID, ExportFile> exports) {
+        List<Finding> result = new ArrayList<>();
+        Optional<MethodComponent> method = cap.getMethodComponent();
+        Optional<ConstantPoolComponent> cp = cap.getConstantPoolComponent();
+        if (!method.isPresent() || !cp.isPresent())
+            return result;
+        Symbols symbols = cap.getSymbols();
+        Bytecode bytecode = new Bytecode(method.get(), cp.get(), cap.getClassComponent(), cap.getImportComponent(), symbols);
+
+        // Where allocation is fine and where it is not
+        Set<Integer> setup = new HashSet<>();
+        Set<Integer> hot = new HashSet<>();
+        if (cap.getAppletComponent().isPresent()) {
+            AppletComponent applets = cap.getAppletComponent().get();
+            for (int i = 0; i < applets.getCount(); i++) {
+                int install = applets.getInstallMethodOffset(i);
+                setup.addAll(bytecode.reachable(install));
+                bytecode.process(install).ifPresent(p -> hot.addAll(bytecode.reachable(p)));
+            }
+        }
+        for (int m : symbols.getMethodOffsets()) {
+            if (symbols.getMethodName(m).map(n -> n.contains(".<init>(")).orElse(false))
+                setup.addAll(bytecode.reachable(m));
+        }
+
+        for (int m : symbols.getMethodOffsets()) {
+            String name = symbols.getMethodName(m).orElse(String.format("@%04x", m));
+            boolean transaction = false;
+            for (int pc : bytecode.instructions(m)) {
+                int opcode = bytecode.opcode(pc);
+                Optional<String> callee = Opcodes.isInvoke(opcode) ? bytecode.calleeName(pc, exports) : Optional.empty();
+                boolean allocation = opcode == Opcodes.NEW || opcode == Opcodes.NEWARRAY || opcode == Opcodes.ANEWARRAY
+                        || callee.map(c -> c.startsWith(MAKE_TRANSIENT)).orElse(false);
+                String detail = callee.orElse(Opcodes.mnemonic(opcode));
+                if (allocation && !setup.contains(m))
+                    result.add(new Finding(Rule.ALLOCATION, m, name, pc, detail));
+                if (!hot.contains(m) || !callee.isPresent())
+                    continue;
+                for (String crypto : CRYPTO) {
+                    if (callee.get().startsWith(crypto + "("))
+                        result.add(new Finding(Rule.CRYPTO_IN_PROCESS, m, name, pc, detail));
+                }
+                if (callee.get().startsWith(OBJECT_DELETION + "("))
+                    result.add(new Finding(Rule.OBJECT_DELETION, m, name, pc, detail));
+                if (callee.get().startsWith(PersistentWrites.BEGIN))
+                    transaction = true;
+                else if (callee.get().startsWith(PersistentWrites.COMMIT) || callee.get().startsWith(PersistentWrites.ABORT))
+                    transaction = false;
+                else if (callee.get().startsWith(PersistentWrites.ARRAY_COPY) && !transaction)
+                    result.add(new Finding(Rule.ATOMIC_COPY, m, name, pc, detail));
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+// Read-only view of a memory-mapped ZIP file. Only the central directory is read up front,
+// entries are inflated on first access and kept. Stored entries are slices of the mapping.
+// See APPNOTE.TXT for the offsets.
+final class MappedZip extends AbstractMap<String, ByteBuffer> {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+
+    private final ByteBuffer zip;
+    private final Map<String, Entry> index;
+    private final Map<String, ByteBuffer> cache = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        final int method;
+        final long crc;
+        final int compressedSize;
+        final int size;
+        final int offset;
+
+        Entry(int method, long crc, int compressedSize, int size, int offset) {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private MappedZip(ByteBuffer zip, Map<String, Entry> index) {
+        this.zip = zip;
+        this.index = index;
+    }
+
+    static MappedZip open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("File too big for a CAP file: " + path);
+            ByteBuffer zip = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            zip.order(ByteOrder.LITTLE_ENDIAN);
+            return new MappedZip(zip, readIndex(zip));
+        }
+    }
+
+    // ZIP file in memory, or nested in another one
+    static MappedZip of(ByteBuffer zip) throws IOException {
+        ByteBuffer b = zip.slice().order(ByteOrder.LITTLE_ENDIAN);
+        return new MappedZip(b, readIndex(b));
+    }
+
+    private static Map<String, Entry> readIndex(ByteBuffer zip) throws IOException {
+        // End of central directory is at the end, followed by a comment of up to 64K
+        int eocd = -1;
+        for (int i = zip.limit() - EOCD_SIZE; i >= Math.max(0, zip.limit() - EOCD_SIZE - 0xFFFF); i--) {
+            if (zip.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1)
+            throw new IOException("Not a ZIP file: no end of central directory");
+
+        int count = zip.getShort(eocd + 10) & 0xFFFF;
+        long cenOffset = zip.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cenOffset == 0xFFFFFFFFL)
+            throw new IOException("ZIP64 is not supported");
+        if (cenOffset > eocd)
+            throw new IOException("Invalid ZIP central directory offset " + cenOffset);
+
+        Map<String, Entry> result = new LinkedHashMap<>();
+        int pos = (int) cenOffset;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > zip.limit() || zip.getInt(pos) != CEN_SIGNATURE)
+                throw new IOException("Invalid ZIP central directory entry at " + pos);
+            int flags = zip.getShort(pos + 8) & 0xFFFF;
+            int method = zip.getShort(pos + 10) & 0xFFFF;
+            long crc = zip.getInt(pos + 16) & 0xFFFFFFFFL;
+            long csize = zip.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = zip.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = zip.getShort(pos + 28) & 0xFFFF;
+            int extraLength = zip.getShort(pos + 30) & 0xFFFF;
+            int commentLength = zip.getShort(pos + 32) & 0xFFFF;
+            long offset = zip.getInt(pos + 42) & 0xFFFFFFFFL;
+            if (pos + 46 + nameLength + extraLength + commentLength > zip.limit())
+                throw new IOException("Invalid ZIP central directory entry at " + pos + ": truncated");
+
+            byte[] name = new byte[nameLength];
+            slice(zip, pos + 46, nameLength).get(name);
+            String entryName = new String(name, StandardCharsets.UTF_8);
+
+            if ((flags & 0x01) == 0x01)
+                throw new IOException("Encrypted ZIP entries are not supported: " + entryName);
+            if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)
+                throw new IOException("Unsupported compression method " + method + " for " + entryName);
+            if (csize > zip.limit() || size > Integer.MAX_VALUE || offset + 30 > zip.limit())
+                throw new IOException("Invalid ZIP entry sizes for " + entryName);
+
+            result.put(entryName, new Entry(method, crc, (int) csize, (int) size, (int) offset));
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    // Java 8 compatible, as covariant ByteBuffer.position(int) and .limit(int) are from 9
+    static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        Buffer b = dup;
+        b.limit(offset + length);
+        b.position(offset);
+        return dup.slice();
+    }
+
+    // Raw data of the entry, as in the file
+    private ByteBuffer data(String name, Entry e) throws IOException {
+        if (e.offset + 30 > zip.limit() || zip.getInt(e.offset) != LOC_SIGNATURE)
+            throw new IOException("Invalid ZIP local header for " + name);
+        int data = e.offset + 30 + (zip.getShort(e.offset + 26) & 0xFFFF) + (zip.getShort(e.offset + 28) & 0xFFFF);
+        if (data + e.compressedSize > zip.limit())
+            throw new IOException("Truncated ZIP entry " + name);
+        if (e.method == ZipEntry.STORED && e.size != e.compressedSize)
+            throw new IOException("Invalid ZIP entry size for " + name);
+        return slice(zip, data, e.compressedSize);
+    }
+
+    private ByteBuffer read(String name, Entry e) throws IOException {
+        final ByteBuffer result;
+        if (e.method == ZipEntry.STORED) {
+            result = data(name, e);
+        } else {
+            byte[] raw = new byte[e.compressedSize];
+            data(name, e).get(raw);
+            byte[] inflated = new byte[e.size];
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(raw);
+                int n = 0;
+                while (n < inflated.length && !inflater.finished()) {
+                    int r = inflater.inflate(inflated, n, inflated.length - n);
+                    if (r == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    n += r;
+                }
+                if (n != inflated.length)
+                    throw new IOException("Invalid ZIP entry size for " + name);
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid compressed data for " + name, ex);
+            } finally {
+                inflater.end();
+            }
+            result = ByteBuffer.wrap(inflated);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(result.duplicate());
+        if (crc.getValue() != e.crc)
+            throw new IOException("CRC mismatch for " + name);
+        return result.asReadOnlyBuffer();
+    }
+
+    // Shares the content, but not the position, with other callers
+    @Override
+    public ByteBuffer get(Object key) {
+        Entry e = index.get(key);
+        if (e == null)
+            return null;
+        return cache.computeIfAbsent((String) key, k -> {
+            try {
+                return read(k, e);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }).duplicate();
+    }
+
+    long getCrc(String name) {
+        Entry e = index.get(name);
+        if (e == null)
+            throw new IllegalArgumentException("No such entry: " + name);
+        return e.crc;
+    }
+
+    boolean isStored(String name) {
+        Entry e = index.get(name);
+        return e != null && e.method == ZipEntry.STORED;
+    }
+
+    // Streams the entry, inflating while reading, without keeping it. Size and CRC are checked at
+    // the end of the entry, the rest of which is read on close if needed.
+    InputStream stream(String name) throws IOException {
+        Entry e = index.get(name);
+        if (e == null)
+            throw new IOException("No such entry: " + name);
+        InputStream raw = new BufferInputStream(data(name, e));
+        if (e.method == ZipEntry.STORED)
+            return new CheckedEntryStream(name, e, raw);
+        Inflater inflater = new Inflater(true);
+        return new CheckedEntryStream(name, e, new InflaterInputStream(raw, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        });
+    }
+
+    private static final class CheckedEntryStream extends CheckedInputStream {
+        private final String name;
+        private final Entry entry;
+        private long count = 0;
+        private boolean checked = false;
+
+        CheckedEntryStream(String name, Entry entry, InputStream in) {
+            super(in, new CRC32());
+            this.name = name;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                check();
+            else
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n == -1)
+                check();
+            else
+                count += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                byte[] rest = new byte[1024];
+                while (!checked && read(rest, 0, rest.length) != -1) {
+                    // Up to the end, to check
+                }
+            } finally {
+                super.close();
+            }
+        }
+
+        private void check() throws IOException {
+            if (checked)
+                return;
+            checked = true;
+            if (count != entry.size)
+                throw new IOException("Invalid ZIP entry size for " + name);
+            if (getChecksum().getValue() != entry.crc)
+                throw new IOException("CRC mismatch for " + name);
+        }
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return index.keySet();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Set<Map.Entry<String, ByteBuffer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, ByteBuffer>>() {
+            @Override
+            public Iterator<Map.Entry<String, ByteBuffer>> iterator() {
+                Iterator<String> names = index.keySet().iterator();
+                return new Iterator<Map.Entry<String, ByteBuffer>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return names.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, ByteBuffer> next() {
+                        String name = names.next();
+                        return new SimpleImmutableEntry<>(name, get(name));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return index.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+
+// Estimate of the persistent memory a package takes when loaded, and of the persistent memory and
+// transient RAM each applet instance takes when installed. Actual figures depend on the card: the
+// object header size is a parameter and the components that stay on card after linking are
+// counted as they are in the CAP file.
+public final class MemoryFootprint {
+    public static final int DEFAULT_OBJECT_HEADER = 8;
+    // JCSystem.CLEAR_ON_RESET and CLEAR_ON_DESELECT
+    public static final int CLEAR_ON_RESET = 1;
+    public static final int CLEAR_ON_DESELECT = 2;
+    // Components that typically stay on card after loading
+    static final String[] RESIDENT = {"Applet", "Class", "Method", "Export", "ConstantPool"};
+    // javacard.framework.JCSystem, tokens are the same in all versions of the API
+    static final AID FRAMEWORK = new AID("A0000000620101");
+    static final int JCSYSTEM = 8;
+    // Element sizes of makeTransientBooleanArray, ...ByteArray, ...ObjectArray and ...ShortArray
+    private static final int MAKE_TRANSIENT = 12;
+    private static final int[] TRANSIENT_ELEMENT = {1, 1, 2, 2};
+
+    private final int objectHeader;
+    private final int code;
+    private final int staticImage;
+    private final int staticReferences;
+    private final int arrayInits;
+    private final int arrayInitBytes;
+    private final Map<AID, Instance> instances;
+
+    private MemoryFootprint(int objectHeader, int code, int staticImage, int staticReferences, int arrayInits, int arrayInitBytes, Map<AID, Instance> instances) {
+        this.objectHeader = objectHeader;
+        this.code = code;
+        this.staticImage = staticImage;
+        this.staticReferences = staticReferences;
+        this.arrayInits = arrayInits;
+        this.arrayInitBytes = arrayInitBytes;
+        this.instances = Collections.unmodifiableMap(instances);
+    }
+
+    // Objects allocated by the install() method of an applet and the methods it calls. Every
+    // allocation site is counted once, so allocations in loops are under-estimated. Transient
+    // arrays take RAM for the elements, their headers are in persistent memory.
+    public static final class Instance {
+        private final int objectHeader;
+        private int objects;
+        private int fieldBytes;
+        private int arrays;
+        private int arrayBytes;
+        private int unsized;
+        private int transients;
+        private int clearOnReset;
+        private int clearOnDeselect;
+        private int unsizedTransients;
+
+        Instance(int objectHeader) {
+            this.objectHeader = objectHeader;
+        }
+
+        public int getObjectCount() {
+            return objects;
+        }
+
+        // Instance fields of the objects, without headers
+        public int getFieldBytes() {
+            return fieldBytes;
+        }
+
+        // Arrays with a constant length
+        public int getArrayCount() {
+            return arrays;
+        }
+
+        // Elements of the arrays, without headers
+        public int getArrayBytes() {
+            return arrayBytes;
+        }
+
+        // Arrays with a length not known before runtime, not included in the total
+        public int getUnsizedArrayCount() {
+            return unsized;
+        }
+
+        // Persistent memory
+        public int getTotal() {
+            return fieldBytes + arrayBytes + (objects + arrays + transients) * objectHeader;
+        }
+
+        // Transient arrays with a constant length
+        public int getTransientArrayCount() {
+            return transients;
+        }
+
+        // RAM of CLEAR_ON_RESET transient arrays
+        public int getClearOnResetBytes() {
+            return clearOnReset;
+        }
+
+        // RAM of CLEAR_ON_DESELECT transient arrays
+        public int getClearOnDeselectBytes() {
+            return clearOnDeselect;
+        }
+
+        public int getTransientTotal() {
+            return clearOnReset + clearOnDeselect;
+        }
+
+        // Transient arrays with a length or event not known before runtime, not included in totals
+        public int getUnsizedTransientArrayCount() {
+            return unsizedTransients;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes (%d objects, %d arrays%s), RAM %d bytes (%d CLEAR_ON_RESET, %d CLEAR_ON_DESELECT%s)",
+                    getTotal(), objects, arrays, unsized > 0 ? ", " + unsized + " more of unknown size" : "",
+                    getTransientTotal(), clearOnReset, clearOnDeselect, unsizedTransients > 0 ? ", " + unsizedTransients + " more of unknown size" : "");
+        }
+    }
+
+    static MemoryFootprint of(CAPFile cap, int objectHeader) {
+        if (objectHeader < 0)
+            throw new IllegalArgumentException("Object header size can not be negative: " + objectHeader);
+        int code = 0;
+        for (String name : RESIDENT) {
+            code += cap.getComponentSize(name).orElse(0);
+        }
+
+        int image = 0, references = 0, arrays = 0, arrayBytes = 0;
+        Optional<StaticFieldComponent> sf = cap.getStaticFieldComponent();
+        if (sf.isPresent()) {
+            StaticFieldComponent s = sf.get();
+            image = s.getImageSize();
+            references = s.getReferenceCount();
+            arrays = s.getArrayInitCount();
+            for (int i = 0; i < arrays; i++) {
+                arrayBytes += s.getArrayInitByteCount(i);
+            }
+        }
+
+        Map<AID, Instance> instances = new LinkedHashMap<>();
+        Optional<AppletComponent> applets = cap.getAppletComponent();
+        Optional<MethodComponent> method = cap.getMethodComponent();
+        Optional<ConstantPoolComponent> cp = cap.getConstantPoolComponent();
+        if (applets.isPresent() && method.isPresent() && cp.isPresent()) {
+            Bytecode bytecode = new Bytecode(method.get(), cp.get(), cap.getClassComponent(), cap.getImportComponent(), cap.getSymbols());
+            for (int i = 0; i < applets.get().getCount(); i++) {
+                instances.put(applets.get().getAID(i), instance(bytecode, applets.get().getInstallMethodOffset(i), objectHeader));
+            }
+        }
+        return new MemoryFootprint(objectHeader, code, image, references, arrays, arrayBytes, instances);
+    }
+
+    private static Instance instance(Bytecode bytecode, int install, int objectHeader) {
+        Instance result = new Instance(objectHeader);
+        for (int m : bytecode.reachable(install)) {
+            Bytecode.Constants constants = new Bytecode.Constants();
+            for (int pc : bytecode.instructions(m)) {
+                switch (bytecode.opcode(pc)) {
+                    case Opcodes.NEW:
+                        result.objects++;
+                        result.fieldBytes += bytecode.newClass(pc).map(bytecode::instanceSize).orElse(0);
+                        break;
+                    case Opcodes.NEWARRAY:
+                    case Opcodes.ANEWARRAY:
+                        OptionalInt length = constants.peek(0);
+                        if (length.isPresent() && length.getAsInt() >= 0) {
+                            result.arrays++;
+                            result.arrayBytes += length.getAsInt() * elementSize(bytecode, pc);
+                        } else {
+                            result.unsized++;
+                        }
+                        break;
+                    case Opcodes.INVOKESTATIC:
+                        OptionalInt token = bytecode.externalStaticMethod(pc, FRAMEWORK, JCSYSTEM);
+                        int kind = token.orElse(-1) - MAKE_TRANSIENT;
+                        if (kind >= 0 && kind < TRANSIENT_ELEMENT.length)
+                            transientArray(result, constants.peek(1), constants.peek(0), TRANSIENT_ELEMENT[kind]);
+                        break;
+                    default:
+                        break;
+                }
+                constants.step(bytecode.getCode(), pc);
+            }
+        }
+        return result;
+    }
+
+    private static void transientArray(Instance instance, OptionalInt length, OptionalInt event, int elementSize) {
+        if (!length.isPresent() || length.getAsInt() < 0 || !event.isPresent()) {
+            instance.unsizedTransients++;
+            return;
+        }
+        instance.transients++;
+        if (event.getAsInt() == CLEAR_ON_RESET)
+            instance.clearOnReset += length.getAsInt() * elementSize;
+        else if (event.getAsInt() == CLEAR_ON_DESELECT)
+            instance.clearOnDeselect += length.getAsInt() * elementSize;
+    }
+
+    // newarray atype of Table 7-3, references of anewarray are 2 bytes
+    private static int elementSize(Bytecode bytecode, int pc) {
+        if (bytecode.opcode(pc) == Opcodes.ANEWARRAY)
+            return 2;
+        switch (bytecode.getCode().get(pc + 1)) {
+            case 12: // T_SHORT
+                return 2;
+            case 13: // T_INT
+                return 4;
+            default: // T_BOOLEAN, T_BYTE
+                return 1;
+        }
+    }
+
+    public int getObjectHeader() {
+        return objectHeader;
+    }
+
+    // Components that stay on card, as in the CAP file
+    public int getCodeSize() {
+        return code;
+    }
+
+    // Static field image, in bytes
+    public int getStaticImageSize() {
+        return staticImage;
+    }
+
+    public int getStaticReferenceCount() {
+        return staticReferences;
+    }
+
+    // Static arrays created from array_init at load time
+    public int getArrayInitCount() {
+        return arrayInits;
+    }
+
+    // Elements of the array_init arrays, without headers
+    public int getArrayInitBytes() {
+        return arrayInitBytes;
+    }
+
+    // Static field image with the array_init arrays
+    public int getStaticSize() {
+        return staticImage + arrayInitBytes + arrayInits * objectHeader;
+    }
+
+    // Package when loaded, before any applet is installed
+    public int getPackageSize() {
+        return code + getStaticSize();
+    }
+
+    // Per instance estimate for every applet in the package
+    public Map<AID, Instance> getInstances() {
+        return instances;
+    }
+}
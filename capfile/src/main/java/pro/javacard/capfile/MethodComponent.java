@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+// See JCVM 2.2 spec section 6.9
+// Methods are referenced by their offset in this component. Method boundaries are not recorded
+// here, see the Descriptor component for bytecode counts.
+public final class MethodComponent extends Component {
+    // Table 6-12: CAP File Method Flags (high nibble of the first header byte)
+    public static final int ACC_EXTENDED = 0x8;
+    public static final int ACC_ABSTRACT = 0x4;
+
+    MethodComponent(ByteBuffer component) {
+        super(component, TAG_METHOD);
+    }
+
+    public int getHandlerCount() {
+        return u1(0);
+    }
+
+    private int handler(int index) {
+        if (index < 0 || index >= getHandlerCount())
+            throw new IndexOutOfBoundsException("Invalid exception handler index: " + index);
+        return 1 + 8 * index;
+    }
+
+    public int getHandlerStartOffset(int index) {
+        return u2(handler(index));
+    }
+
+    public int getHandlerActiveLength(int index) {
+        return u2(handler(index) + 2) & 0x7FFF;
+    }
+
+    // Set on the last handler of a try block
+    public boolean isHandlerStop(int index) {
+        return (u2(handler(index) + 2) & 0x8000) == 0x8000;
+    }
+
+    public int getHandlerOffset(int index) {
+        return u2(handler(index) + 4);
+    }
+
+    // Constant pool index of the caught class, or 0 for finally
+    public int getHandlerCatchTypeIndex(int index) {
+        return u2(handler(index) + 6);
+    }
+
+    // Offset of the first method, after the exception handlers
+    public int getMethodsOffset() {
+        return 1 + 8 * getHandlerCount();
+    }
+
+    public MethodInfo getMethod(int offset) {
+        if (offset < getMethodsOffset() || offset >= getSize())
+            throw new IllegalArgumentException("Invalid method offset: " + offset);
+        return new MethodInfo(offset);
+    }
+
+    // Flyweight view of a method_info header
+    public final class MethodInfo {
+        private final int offset;
+
+        MethodInfo(int offset) {
+            this.offset = offset;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getFlags() {
+            return u1(offset) >> 4;
+        }
+
+        public boolean isExtended() {
+            return (getFlags() & ACC_EXTENDED) == ACC_EXTENDED;
+        }
+
+        public boolean isAbstract() {
+            return (getFlags() & ACC_ABSTRACT) == ACC_ABSTRACT;
+        }
+
+        public int getMaxStack() {
+            return isExtended() ? u1(offset + 1) : u1(offset) & 0x0F;
+        }
+
+        public int getNargs() {
+            return isExtended() ? u1(offset + 2) : u1(offset + 1) >> 4;
+        }
+
+        public int getMaxLocals() {
+            return isExtended() ? u1(offset + 3) : u1(offset + 1) & 0x0F;
+        }
+
+        public int getHeaderSize() {
+            return isExtended() ? 4 : 2;
+        }
+
+        // Offset of the first bytecode
+        public int getBytecodeOffset() {
+            return offset + getHeaderSize();
+        }
+    }
+}
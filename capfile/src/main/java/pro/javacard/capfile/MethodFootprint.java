@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+// Size and frame of a method, as recorded in the Method component
+public final class MethodFootprint {
+    public static final Comparator<MethodFootprint> BY_SIZE = Comparator.comparingInt(MethodFootprint::getSize).reversed()
+            .thenComparingInt(MethodFootprint::getOffset);
+    public static final Comparator<MethodFootprint> BY_STACK = Comparator.comparingInt(MethodFootprint::getMaxStack).reversed()
+            .thenComparing(BY_SIZE);
+
+    private final int offset;
+    private final String name;
+    private final int headerSize;
+    private final int bytecodeSize;
+    private final int maxStack;
+    private final int nargs;
+    private final int maxLocals;
+    private final int handlers;
+
+    MethodFootprint(int offset, String name, int headerSize, int bytecodeSize, int maxStack, int nargs, int maxLocals, int handlers) {
+        this.offset = offset;
+        this.name = name;
+        this.headerSize = headerSize;
+        this.bytecodeSize = bytecodeSize;
+        this.maxStack = maxStack;
+        this.nargs = nargs;
+        this.maxLocals = maxLocals;
+        this.handlers = handlers;
+    }
+
+    static List<MethodFootprint> of(MethodComponent method, Symbols symbols) {
+        List<MethodFootprint> result = new ArrayList<>();
+        for (int offset : symbols.getMethodOffsets()) {
+            MethodComponent.MethodInfo m = method.getMethod(offset);
+            int start = m.getBytecodeOffset();
+            int end = symbols.getMethodEnd(offset);
+            int handlers = 0;
+            for (int i = 0; i < method.getHandlerCount(); i++) {
+                int pc = method.getHandlerStartOffset(i);
+                if (pc >= start && pc < end)
+                    handlers++;
+            }
+            String name = symbols.getMethodName(offset).orElse(String.format("@%04x", offset));
+            result.add(new MethodFootprint(offset, name, m.getHeaderSize(), end - start, m.getMaxStack(), m.getNargs(), m.getMaxLocals(), handlers));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // Offset in the Method component
+    public int getOffset() {
+        return offset;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public int getBytecodeSize() {
+        return bytecodeSize;
+    }
+
+    // Header and bytecode
+    public int getSize() {
+        return headerSize + bytecodeSize;
+    }
+
+    public int getMaxStack() {
+        return maxStack;
+    }
+
+    public int getNargs() {
+        return nargs;
+    }
+
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    // Exception handlers starting in this method
+    public int getHandlerCount() {
+        return handlers;
+    }
+
+    // Stack frame of the method, in words: arguments, locals and operand stack
+    public int getFrameSize() {
+        return nargs + maxLocals + maxStack;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%5d %5d %6d %5d  %s", getSize(), maxStack, maxLocals, nargs, name);
+    }
+}
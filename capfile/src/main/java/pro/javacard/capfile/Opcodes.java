@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.OptionalInt;
+
+// JCVM instruction set, see JCVM 2.2 spec chapter 7 and table 10-1
+public final class Opcodes {
+    public static final int SCONST_M1 = 0x02;
+    public static final int SCONST_5 = 0x08;
+    public static final int BSPUSH = 0x10;
+    public static final int SSPUSH = 0x11;
+    public static final int BIPUSH = 0x12;
+    public static final int SIPUSH = 0x13;
+    public static final int AASTORE = 0x37;
+    public static final int SADD = 0x41;
+    public static final int SXOR = 0x57;
+    public static final int SINC = 0x59;
+    public static final int IINC = 0x5A;
+    public static final int IFEQ = 0x60;
+    public static final int GOTO = 0x70;
+    public static final int JSR = 0x71;
+    public static final int RET = 0x72;
+    public static final int STABLESWITCH = 0x73;
+    public static final int ITABLESWITCH = 0x74;
+    public static final int SLOOKUPSWITCH = 0x75;
+    public static final int ILOOKUPSWITCH = 0x76;
+    public static final int ARETURN = 0x77;
+    public static final int RETURN = 0x7A;
+    public static final int GETSTATIC_A = 0x7B;
+    public static final int PUTSTATIC_A = 0x7F;
+    public static final int PUTSTATIC_I = 0x82;
+    public static final int GETFIELD_A = 0x83;
+    public static final int PUTFIELD_A = 0x87;
+    public static final int PUTFIELD_I = 0x8A;
+    public static final int INVOKEVIRTUAL = 0x8B;
+    public static final int INVOKESPECIAL = 0x8C;
+    public static final int INVOKESTATIC = 0x8D;
+    public static final int INVOKEINTERFACE = 0x8E;
+    public static final int NEW = 0x8F;
+    public static final int NEWARRAY = 0x90;
+    public static final int ANEWARRAY = 0x91;
+    public static final int ATHROW = 0x93;
+    public static final int CHECKCAST = 0x94;
+    public static final int INSTANCEOF = 0x95;
+    public static final int SINC_W = 0x96;
+    public static final int IINC_W = 0x97;
+    public static final int IFEQ_W = 0x98;
+    public static final int GOTO_W = 0xA8;
+    public static final int GETFIELD_A_W = 0xA9;
+    public static final int GETFIELD_A_THIS = 0xAD;
+    public static final int PUTFIELD_A_W = 0xB1;
+    public static final int PUTFIELD_I_W = 0xB4;
+    public static final int PUTFIELD_I_THIS = 0xB8;
+    public static final int IMPDEP1 = 0xFE;
+    public static final int IMPDEP2 = 0xFF;
+
+    private static final String[] mnemonics = new String[256];
+    // Length of the instruction with operands, 0 for unknown opcodes and -1 for switches
+    private static final int[] lengths = new int[256];
+
+    private static void op(int opcode, String mnemonic, int operands) {
+        mnemonics[opcode] = mnemonic;
+        lengths[opcode] = 1 + operands;
+    }
+
+    static {
+        String[] simple = {"nop", "aconst_null", "sconst_m1", "sconst_0", "sconst_1", "sconst_2", "sconst_3", "sconst_4", "sconst_5",
+                "iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3", "iconst_4", "iconst_5"};
+        for (int i = 0; i < simple.length; i++)
+            op(i, simple[i], 0);
+        op(0x10, "bspush", 1);
+        op(0x11, "sspush", 2);
+        op(0x12, "bipush", 1);
+        op(0x13, "sipush", 2);
+        op(0x14, "iipush", 4);
+        op(0x15, "aload", 1);
+        op(0x16, "sload", 1);
+        op(0x17, "iload", 1);
+        String[] loads = {"aload_0", "aload_1", "aload_2", "aload_3", "sload_0", "sload_1", "sload_2", "sload_3",
+                "iload_0", "iload_1", "iload_2", "iload_3", "aaload", "baload", "saload", "iaload"};
+        for (int i = 0; i < loads.length; i++)
+            op(0x18 + i, loads[i], 0);
+        op(0x28, "astore", 1);
+        op(0x29, "sstore", 1);
+        op(0x2A, "istore", 1);
+        String[] stores = {"astore_0", "astore_1", "astore_2", "astore_3", "sstore_0", "sstore_1", "sstore_2", "sstore_3",
+                "istore_0", "istore_1", "istore_2", "istore_3", "aastore", "bastore", "sastore", "iastore",
+                "pop", "pop2", "dup", "dup2"};
+        for (int i = 0; i < stores.length; i++)
+            op(0x2B + i, stores[i], 0);
+        op(0x3F, "dup_x", 1);
+        op(0x40, "swap_x", 1);
+        String[] arithmetic = {"sadd", "iadd", "ssub", "isub", "smul", "imul", "sdiv", "idiv", "srem", "irem", "sneg", "ineg",
+                "sshl", "ishl", "sshr", "ishr", "sushr", "iushr", "sand", "iand", "sor", "ior", "sxor", "ixor"};
+        for (int i = 0; i < arithmetic.length; i++)
+            op(0x41 + i, arithmetic[i], 0);
+        op(0x59, "sinc", 2);
+        op(0x5A, "iinc", 2);
+        String[] conversions = {"s2b", "s2i", "i2b", "i2s", "icmp"};
+        for (int i = 0; i < conversions.length; i++)
+            op(0x5B + i, conversions[i], 0);
+        String[] branches = {"ifeq", "ifne", "iflt", "ifge", "ifgt", "ifle", "ifnull", "ifnonnull", "if_acmpeq", "if_acmpne",
+                "if_scmpeq", "if_scmpne", "if_scmplt", "if_scmpge", "if_scmpgt", "if_scmple", "goto"};
+        for (int i = 0; i < branches.length; i++) {
+            op(0x60 + i, branches[i], 1);
+            op(0x98 + i, branches[i] + "_w", 2);
+        }
+        op(0x71, "jsr", 2);
+        op(0x72, "ret", 1);
+        String[] switches = {"stableswitch", "itableswitch", "slookupswitch", "ilookupswitch"};
+        for (int i = 0; i < switches.length; i++) {
+            mnemonics[0x73 + i] = switches[i];
+            lengths[0x73 + i] = -1;
+        }
+        String[] returns = {"areturn", "sreturn", "ireturn", "return"};
+        for (int i = 0; i < returns.length; i++)
+            op(0x77 + i, returns[i], 0);
+        String[] types = {"a", "b", "s", "i"};
+        for (int i = 0; i < types.length; i++) {
+            op(0x7B + i, "getstatic_" + types[i], 2);
+            op(0x7F + i, "putstatic_" + types[i], 2);
+            op(0x83 + i, "getfield_" + types[i], 1);
+            op(0x87 + i, "putfield_" + types[i], 1);
+            op(0xA9 + i, "getfield_" + types[i] + "_w", 2);
+            op(0xAD + i, "getfield_" + types[i] + "_this", 1);
+            op(0xB1 + i, "putfield_" + types[i] + "_w", 2);
+            op(0xB5 + i, "putfield_" + types[i] + "_this", 1);
+        }
+        op(0x8B, "invokevirtual", 2);
+        op(0x8C, "invokespecial", 2);
+        op(0x8D, "invokestatic", 2);
+        op(0x8E, "invokeinterface", 4);
+        op(0x8F, "new", 2);
+        op(0x90, "newarray", 1);
+        op(0x91, "anewarray", 2);
+        op(0x92, "arraylength", 0);
+        op(0x93, "athrow", 0);
+        op(0x94, "checkcast", 3);
+        op(0x95, "instanceof", 3);
+        op(0x96, "sinc_w", 3);
+        op(0x97, "iinc_w", 3);
+        op(0xFE, "impdep1", 0);
+        op(0xFF, "impdep2", 0);
+    }
+
+    private Opcodes() {
+    }
+
+    public static boolean isValid(int opcode) {
+        return mnemonics[opcode & 0xFF] != null;
+    }
+
+    public static String mnemonic(int opcode) {
+        String m = mnemonics[opcode & 0xFF];
+        return m == null ? String.format("unknown_%02x", opcode & 0xFF) : m;
+    }
+
+    // Length of the instruction at pc, with operands
+    public static int length(ByteBuffer code, int pc) {
+        int opcode = code.get(pc) & 0xFF;
+        int length = lengths[opcode];
+        if (length > 0)
+            return length;
+        if (length == 0)
+            throw new IllegalArgumentException(String.format("Invalid opcode %02X at %d", opcode, pc));
+        switch (opcode) {
+            case STABLESWITCH:
+                return 7 + 2 * (code.getShort(pc + 5) - code.getShort(pc + 3) + 1);
+            case ITABLESWITCH:
+                return 11 + 2 * (code.getInt(pc + 7) - code.getInt(pc + 3) + 1);
+            case SLOOKUPSWITCH:
+                return 5 + 4 * (code.getShort(pc + 3) & 0xFFFF);
+            default: // ILOOKUPSWITCH
+                return 5 + 6 * (code.getShort(pc + 3) & 0xFFFF);
+        }
+    }
+
+    // Value pushed by a short constant instruction (sconst_*, bspush, sspush) at pc
+    public static OptionalInt shortConstant(ByteBuffer code, int pc) {
+        int opcode = code.get(pc) & 0xFF;
+        if (opcode >= SCONST_M1 && opcode <= SCONST_5)
+            return OptionalInt.of(opcode - SCONST_M1 - 1);
+        if (opcode == BSPUSH)
+            return OptionalInt.of(code.get(pc + 1));
+        if (opcode == SSPUSH)
+            return OptionalInt.of(code.getShort(pc + 1));
+        return OptionalInt.empty();
+    }
+
+    // Targets of a switch instruction at pc by match value, without the default
+    public static Map<Integer, Integer> switchTargets(ByteBuffer code, int pc) {
+        Map<Integer, Integer> result = new LinkedHashMap<>();
+        switch (code.get(pc) & 0xFF) {
+            case STABLESWITCH:
+                for (int v = code.getShort(pc + 3), i = 0; v <= code.getShort(pc + 5); v++, i++)
+                    result.put(v, pc + code.getShort(pc + 7 + 2 * i));
+                break;
+            case ITABLESWITCH:
+                for (long v = code.getInt(pc + 3), i = 0; v <= code.getInt(pc + 7); v++, i++)
+                    result.put((int) v, pc + code.getShort(pc + 11 + 2 * (int) i));
+                break;
+            case SLOOKUPSWITCH:
+                for (int i = 0; i < (code.getShort(pc + 3) & 0xFFFF); i++)
+                    result.put((int) code.getShort(pc + 5 + 4 * i), pc + code.getShort(pc + 7 + 4 * i));
+                break;
+            case ILOOKUPSWITCH:
+                for (int i = 0; i < (code.getShort(pc + 3) & 0xFFFF); i++)
+                    result.put(code.getInt(pc + 5 + 6 * i), pc + code.getShort(pc + 9 + 6 * i));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Not a switch at %d", pc));
+        }
+        return result;
+    }
+
+    public static int switchDefault(ByteBuffer code, int pc) {
+        return pc + code.getShort(pc + 1);
+    }
+
+    public static boolean isReturn(int opcode) {
+        return opcode >= ARETURN && opcode <= RETURN;
+    }
+
+    public static boolean isSwitch(int opcode) {
+        return opcode >= STABLESWITCH && opcode <= ILOOKUPSWITCH;
+    }
+
+    // Conditional and unconditional branches with a single target, incl. jsr
+    public static boolean isBranch(int opcode) {
+        return (opcode >= IFEQ && opcode <= JSR) || (opcode >= IFEQ_W && opcode <= GOTO_W);
+    }
+
+    public static boolean isInvoke(int opcode) {
+        return opcode >= INVOKEVIRTUAL && opcode <= INVOKEINTERFACE;
+    }
+
+    // Branch target of a branch instruction at pc
+    public static int branchTarget(ByteBuffer code, int pc) {
+        int opcode = code.get(pc) & 0xFF;
+        if (opcode == JSR || opcode >= IFEQ_W)
+            return pc + code.getShort(pc + 1);
+        return pc + code.get(pc + 1);
+    }
+}
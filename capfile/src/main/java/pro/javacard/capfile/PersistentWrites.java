@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.*;
+
+// Writes to persistent memory in the bytecode: stores to instance and static fields, stores to
+// arrays (which can be transient, the bytecode does not tell) and Util.arrayCopy(). Transactions
+// run from JCSystem.beginTransaction() to commitTransaction() or abortTransaction() in the same
+// method, in the order of the bytecode. Stores in loops are counted once.
+public final class PersistentWrites {
+    static final String BEGIN = "javacard.framework.JCSystem.beginTransaction(";
+    static final String COMMIT = "javacard.framework.JCSystem.commitTransaction(";
+    static final String ABORT = "javacard.framework.JCSystem.abortTransaction(";
+    static final String ARRAY_COPY = "javacard.framework.Util.arrayCopy(";
+
+    private final List<MethodWrites> methods;
+    private final List<Transaction> transactions;
+    private final Map<AID, CycleCost> paths;
+
+    private PersistentWrites(List<MethodWrites> methods, List<Transaction> transactions, Map<AID, CycleCost> paths) {
+        this.methods = Collections.unmodifiableList(methods);
+        this.transactions = Collections.unmodifiableList(transactions);
+        this.paths = Collections.unmodifiableMap(paths);
+    }
+
+    public static final class MethodWrites {
+        private final int offset;
+        private final String name;
+        private int fieldStores;
+        private int staticStores;
+        private int arrayStores;
+        private int arrayCopies;
+        private int transactions;
+
+        MethodWrites(int offset, String name) {
+            this.offset = offset;
+            this.name = name;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // putfield_*
+        public int getFieldStoreCount() {
+            return fieldStores;
+        }
+
+        // putstatic_*
+        public int getStaticStoreCount() {
+            return staticStores;
+        }
+
+        // aastore, bastore, sastore and iastore
+        public int getArrayStoreCount() {
+            return arrayStores;
+        }
+
+        // Util.arrayCopy()
+        public int getArrayCopyCount() {
+            return arrayCopies;
+        }
+
+        public int getTransactionCount() {
+            return transactions;
+        }
+
+        public int getTotal() {
+            return fieldStores + staticStores + arrayStores + arrayCopies;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%6d %6d %6d %6d %4d  %s", fieldStores, staticStores, arrayStores, arrayCopies, transactions, name);
+        }
+    }
+
+    public static final class Transaction {
+        private final int method;
+        private final String name;
+        private final int begin;
+        private int end = -1;
+        private int writes;
+        private int bytes;
+        private int unsized;
+
+        Transaction(int method, String name, int begin) {
+            this.method = method;
+            this.name = name;
+            this.begin = begin;
+        }
+
+        public int getMethodOffset() {
+            return method;
+        }
+
+        public String getMethodName() {
+            return name;
+        }
+
+        // Offset of beginTransaction() in the Method component
+        public int getBegin() {
+            return begin;
+        }
+
+        // Offset of commitTransaction() or abortTransaction(), -1 if not in the same method
+        public int getEnd() {
+            return end;
+        }
+
+        // Writes logged in the commit buffer, including in called methods of the package
+        public int getWriteCount() {
+            return writes;
+        }
+
+        // Bytes written, of the writes with a known size
+        public int getByteCount() {
+            return bytes;
+        }
+
+        // Array copies with a length not known before runtime
+        public int getUnsizedCount() {
+            return unsized;
+        }
+
+        // Estimate of the commit buffer needed, with the bookkeeping of the card per write
+        public int getCommitSize(int overhead) {
+            return bytes + writes * overhead;
+        }
+
+        public boolean fits(int capacity, int overhead) {
+            return getCommitSize(overhead) <= capacity;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s+%d: %d writes, %d bytes%s%s", name, begin - method, writes, bytes,
+                    unsized > 0 ? " and " + unsized + " copies of unknown length" : "", end == -1 ? ", not committed in the method" : "");
+        }
+    }
+
+    // Writes per method with bytecode, in the order of the Method component
+    public List<MethodWrites> getMethods() {
+        return methods;
+    }
+
+    public List<Transaction> getTransactions() {
+        return transactions;
+    }
+
+    // Best and worst number of store bytecodes along the paths of process() of each applet, per
+    // INS. Array copies are not included.
+    public Map<AID, CycleCost> getPaths() {
+        return paths;
+    }
+
+    // Bytes written by a store bytecode, 0 for other bytecodes
+    static int storeSize(int opcode) {
+        int[] sizes = {2, 1, 2, 4}; // a, b, s, i
+        if (opcode >= Opcodes.PUTSTATIC_A && opcode <= Opcodes.PUTSTATIC_A + 3)
+            return sizes[opcode - Opcodes.PUTSTATIC_A];
+        if (opcode >= Opcodes.PUTFIELD_A && opcode <= Opcodes.PUTFIELD_A + 3)
+            return sizes[opcode - Opcodes.PUTFIELD_A];
+        if (opcode >= Opcodes.PUTFIELD_A_W && opcode <= Opcodes.PUTFIELD_I_THIS)
+            return sizes[(opcode - Opcodes.PUTFIELD_A_W) % 4];
+        if (opcode >= Opcodes.AASTORE && opcode <= Opcodes.AASTORE + 3)
+            return sizes[opcode - Opcodes.AASTORE];
+        return 0;
+    }
+
+    // Counts store bytecodes only
+    static CostProfile storeProfile() {
+        Properties p = new Properties();
+        p.setProperty("bytecode", "0");
+        p.setProperty("call", "0");
+        for (int opcode = 0; opcode < 256; opcode++) {
+            if (storeSize(opcode) > 0)
+                p.setProperty(Opcodes.mnemonic(opcode), "1");
+        }
+        return CostProfile.fromProperties(p);
+    }
+
+    static PersistentWrites of(CAPFile cap, Map<AID, ExportFile> exports) {
+        List<MethodWrites> methods = new ArrayList<>();
+        List<Transaction> transactions = new ArrayList<>();
+        Optional<MethodComponent> method = cap.getMethodComponent();
+        Optional<ConstantPoolComponent> cp = cap.getConstantPoolComponent();
+        if (!method.isPresent() || !cp.isPresent())
+            return new PersistentWrites(methods, transactions, Collections.emptyMap());
+        Symbols symbols = cap.getSymbols();
+        Bytecode bytecode = new Bytecode(method.get(), cp.get(), cap.getClassComponent(), cap.getImportComponent(), symbols);
+        Map<Integer, Transaction> totals = new HashMap<>();
+
+        for (int m : symbols.getMethodOffsets()) {
+            String name = symbols.getMethodName(m).orElse(String.format("@%04x", m));
+            MethodWrites writes = new MethodWrites(m, name);
+            Bytecode.Constants constants = new Bytecode.Constants();
+            Transaction open = null;
+            for (int pc : bytecode.instructions(m)) {
+                int opcode = bytecode.opcode(pc);
+                int size = storeSize(opcode);
+                if (size > 0) {
+                    if (opcode >= Opcodes.AASTORE && opcode <= Opcodes.AASTORE + 3)
+                        writes.arrayStores++;
+                    else if (opcode >= Opcodes.PUTSTATIC_A && opcode <= Opcodes.PUTSTATIC_A + 3)
+                        writes.staticStores++;
+                    else
+                        writes.fieldStores++;
+                    if (open != null) {
+                        open.writes++;
+                        open.bytes += size;
+                    }
+                } else if (Opcodes.isInvoke(opcode)) {
+                    String callee = bytecode.calleeName(pc, exports).orElse("");
+                    if (callee.startsWith(BEGIN)) {
+                        writes.transactions++;
+                        open = new Transaction(m, name, pc);
+                        transactions.add(open);
+                    } else if (open != null && (callee.startsWith(COMMIT) || callee.startsWith(ABORT))) {
+                        open.end = pc;
+                        open = null;
+                    } else if (callee.startsWith(ARRAY_COPY)) {
+                        writes.arrayCopies++;
+                        if (open != null)
+                            copy(open, constants.peek(0));
+                    } else if (open != null) {
+                        Optional<Integer> target = bytecode.invokeTarget(pc).filter(bytecode::isKnown);
+                        if (target.isPresent()) {
+                            Transaction called = total(bytecode, exports, target.get(), totals, new HashSet<>());
+                            open.writes += called.writes;
+                            open.bytes += called.bytes;
+                            open.unsized += called.unsized;
+                        }
+                    }
+                }
+                constants.step(bytecode.getCode(), pc);
+            }
+            methods.add(writes);
+        }
+        return new PersistentWrites(methods, transactions, CycleCost.of(cap, storeProfile()));
+    }
+
+    private static void copy(Transaction t, OptionalInt length) {
+        t.writes++;
+        if (length.isPresent() && length.getAsInt() >= 0)
+            t.bytes += length.getAsInt();
+        else
+            t.unsized++;
+    }
+
+    // All writes of a method and the methods of the package it calls
+    private static Transaction total(Bytecode bytecode, Map<AID, ExportFile> exports, int m, Map<Integer, Transaction> totals, Set<Integer> active) {
+        Transaction result = totals.get(m);
+        if (result != null)
+            return result;
+        result = new Transaction(m, "", -1);
+        active.add(m);
+        Bytecode.Constants constants = new Bytecode.Constants();
+        for (int pc : bytecode.instructions(m)) {
+            int opcode = bytecode.opcode(pc);
+            int size = storeSize(opcode);
+            if (size > 0) {
+                result.writes++;
+                result.bytes += size;
+            } else if (Opcodes.isInvoke(opcode)) {
+                if (bytecode.calleeName(pc, exports).orElse("").startsWith(ARRAY_COPY)) {
+                    copy(result, constants.peek(0));
+                } else {
+                    Optional<Integer> target = bytecode.invokeTarget(pc).filter(bytecode::isKnown);
+                    if (target.isPresent() && !active.contains(target.get())) {
+                        Transaction called = total(bytecode, exports, target.get(), totals, active);
+                        result.writes += called.writes;
+                        result.bytes += called.bytes;
+                        result.unsized += called.unsized;
+                    }
+                }
+            }
+            constants.step(bytecode.getCode(), pc);
+        }
+        active.remove(m);
+        totals.put(m, result);
+        return result;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+// See JCVM 2.2 spec section 6.11
+// Offsets are encoded as deltas from the previous one; 255 means "add 255 and continue".
+public final class RefLocationComponent extends Component {
+
+    RefLocationComponent(ByteBuffer component) {
+        super(component, TAG_REFERENCE_LOCATION);
+    }
+
+    public int getByteIndexCount() {
+        return u2(0);
+    }
+
+    public int getByte2IndexCount() {
+        return u2(2 + getByteIndexCount());
+    }
+
+    // Offsets in the Method component of one-byte constant pool indices
+    public int[] getByteIndexOffsets() {
+        return decode(2, getByteIndexCount());
+    }
+
+    // Offsets in the Method component of two-byte constant pool indices
+    public int[] getByte2IndexOffsets() {
+        return decode(4 + getByteIndexCount(), getByte2IndexCount());
+    }
+
+    private int[] decode(int offset, int count) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (u1(offset + i) != 255)
+                n++;
+        }
+        int[] result = new int[n];
+        int location = 0;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            int delta = u1(offset + i);
+            location += delta;
+            if (delta != 255)
+                result[j++] = location;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+// Method component offsets to source locations, from the Debug component. Methods and their line
+// ranges are kept sorted for binary search, so large sample files can be mapped quickly.
+public final class SourceMap {
+    private final int[] starts; // Method offsets, sorted
+    private final int[] ends; // End of each method, exclusive
+    private final Method[] methods;
+
+    private static final class Method {
+        final String className;
+        final String sourceFile;
+        final String name;
+        final String descriptor;
+        final int bytecode; // Offset of the first bytecode
+        final int[] lineStarts; // Absolute, sorted
+        final int[] lineEnds; // Absolute, inclusive
+        final int[] lines;
+
+        Method(DebugComponent.MethodDebugInfo m) {
+            className = m.getOwner().getName().replace('/', '.');
+            sourceFile = m.getOwner().getSourceFile();
+            name = m.getName();
+            descriptor = m.getDescriptor();
+            bytecode = m.getLocation() + m.getHeaderSize();
+            Integer[] order = new Integer[m.getLineCount()];
+            for (int i = 0; i < order.length; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparingInt(m::getLineStartPc));
+            lineStarts = new int[order.length];
+            lineEnds = new int[order.length];
+            lines = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                lineStarts[i] = bytecode + m.getLineStartPc(order[i]);
+                lineEnds[i] = bytecode + m.getLineEndPc(order[i]);
+                lines[i] = m.getSourceLine(order[i]);
+            }
+        }
+    }
+
+    public static final class Location {
+        private final String className;
+        private final String sourceFile;
+        private final String method;
+        private final String descriptor;
+        private final int methodOffset;
+        private final int pc;
+        private final int line;
+
+        Location(Method m, int methodOffset, int pc, int line) {
+            this.className = m.className;
+            this.sourceFile = m.sourceFile;
+            this.method = m.name;
+            this.descriptor = m.descriptor;
+            this.methodOffset = methodOffset;
+            this.pc = pc;
+            this.line = line;
+        }
+
+        // Fully qualified, with dots
+        public String getClassName() {
+            return className;
+        }
+
+        public String getSourceFile() {
+            return sourceFile;
+        }
+
+        public String getMethodName() {
+            return method;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        // Offset of the method in the Method component
+        public int getMethodOffset() {
+            return methodOffset;
+        }
+
+        // Relative to the first bytecode of the method, negative in the method header
+        public int getPc() {
+            return pc;
+        }
+
+        // Source line, if the offset is covered by the line table
+        public OptionalInt getLine() {
+            return line < 0 ? OptionalInt.empty() : OptionalInt.of(line);
+        }
+
+        // Frame for folded stacks of flame graphs: testapplets.empty.Empty.process:21
+        public String getFrame() {
+            return className + "." + method + (line < 0 ? "" : ":" + line);
+        }
+
+        // Like in a Java stack trace: testapplets.empty.Empty.process(Empty.java:21)
+        @Override
+        public String toString() {
+            return className + "." + method + "(" + sourceFile + (line < 0 ? "" : ":" + line) + ")";
+        }
+    }
+
+    SourceMap(DebugComponent debug) {
+        List<Method> all = new ArrayList<>();
+        List<int[]> extents = new ArrayList<>();
+        for (DebugComponent.ClassDebugInfo c : debug.getClasses()) {
+            for (DebugComponent.MethodDebugInfo m : c.getMethods()) {
+                if (m.getBodySize() == 0)
+                    continue;
+                extents.add(new int[]{m.getLocation(), m.getLocation() + m.getHeaderSize() + m.getBodySize(), all.size()});
+                all.add(new Method(m));
+            }
+        }
+        extents.sort(Comparator.comparingInt(e -> e[0]));
+        starts = new int[extents.size()];
+        ends = new int[extents.size()];
+        methods = new Method[extents.size()];
+        for (int i = 0; i < extents.size(); i++) {
+            starts[i] = extents.get(i)[0];
+            ends[i] = extents.get(i)[1];
+            methods[i] = all.get(extents.get(i)[2]);
+        }
+    }
+
+    // Index of the greatest value not above key, -1 if none
+    private static int floor(int[] sorted, int key) {
+        int i = Arrays.binarySearch(sorted, key);
+        if (i >= 0) {
+            // The last of equal values
+            while (i + 1 < sorted.length && sorted[i + 1] == key)
+                i++;
+            return i;
+        }
+        return -i - 2;
+    }
+
+    // Source location of an offset in the Method component
+    public Optional<Location> lookup(int offset) {
+        int i = floor(starts, offset);
+        if (i < 0 || offset >= ends[i])
+            return Optional.empty();
+        Method m = methods[i];
+        // Line ranges may touch or nest, the one starting last wins
+        int l = floor(m.lineStarts, offset);
+        int line = l >= 0 && offset <= m.lineEnds[l] ? m.lines[l] : -1;
+        return Optional.of(new Location(m, starts[i], offset - m.bytecode, line));
+    }
+
+    // Number of methods with bytecode
+    public int getMethodCount() {
+        return methods.length;
+    }
+
+    // Maps samples line by line. A sample line starts with an offset or a stack of offsets
+    // separated by ;, outermost first, followed by anything like a count. Offsets are decimal or
+    // hex with 0x, optionally as method+pc: 0x1F+7. The offsets are replaced with frames, so
+    // "0x1F+7 12" becomes "testapplets.empty.Empty.process:21 12", the folded format of flame
+    // graph tools. Unknown offsets are kept, blank and # comment lines are copied as they are.
+    public void symbolicate(BufferedReader in, Writer out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                out.write(line);
+                out.write('\n');
+                continue;
+            }
+            int split = 0;
+            while (split < trimmed.length() && !Character.isWhitespace(trimmed.charAt(split)))
+                split++;
+            StringJoiner frames = new StringJoiner(";");
+            for (String frame : trimmed.substring(0, split).split(";")) {
+                OptionalInt offset = parse(frame);
+                Optional<Location> location = offset.isPresent() ? lookup(offset.getAsInt()) : Optional.empty();
+                frames.add(location.map(Location::getFrame).orElse(frame));
+            }
+            out.write(frames.toString());
+            out.write(trimmed.substring(split));
+            out.write('\n');
+        }
+        out.flush();
+    }
+
+    static OptionalInt parse(String offset) {
+        int result = 0;
+        for (String part : offset.split("\\+", -1)) {
+            try {
+                if (part.startsWith("0x") || part.startsWith("0X"))
+                    result += Integer.parseInt(part.substring(2), 16);
+                else
+                    result += Integer.parseInt(part);
+            } catch (NumberFormatException e) {
+                return OptionalInt.empty();
+            }
+        }
+        return OptionalInt.of(result);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.nio.ByteBuffer;
+
+// See JCVM 2.2 spec section 6.10
+// The static field image is: reference fields, then array-initialized primitive fields,
+// then default-valued primitive fields, then non-default-valued primitive fields.
+public final class StaticFieldComponent extends Component {
+    // Table 6-14: Array Types
+    public static final int TYPE_BOOLEAN = 2;
+    public static final int TYPE_BYTE = 3;
+    public static final int TYPE_SHORT = 4;
+    public static final int TYPE_INT = 5;
+
+    private final Lazy<int[]> offsets = new Lazy<>(this::index);
+
+    StaticFieldComponent(ByteBuffer component) {
+        super(component, TAG_STATIC_FIELD);
+    }
+
+    private int[] index() {
+        int[] result = new int[getArrayInitCount() + 1];
+        int offset = 6;
+        for (int i = 0; i < result.length - 1; i++) {
+            result[i] = offset;
+            offset += 3 + u2(offset + 1);
+        }
+        // Followed by default_value_count
+        result[result.length - 1] = offset;
+        return result;
+    }
+
+    // Size of the static field image, in bytes
+    public int getImageSize() {
+        return u2(0);
+    }
+
+    public int getReferenceCount() {
+        return u2(2);
+    }
+
+    public int getArrayInitCount() {
+        return u2(4);
+    }
+
+    public int getArrayInitType(int index) {
+        return u1(arrayInit(index));
+    }
+
+    // Number of bytes in the initial values, not elements
+    public int getArrayInitByteCount(int index) {
+        return u2(arrayInit(index) + 1);
+    }
+
+    public int getArrayInitElementCount(int index) {
+        return getArrayInitByteCount(index) / elementSize(getArrayInitType(index));
+    }
+
+    public byte[] getArrayInitValues(int index) {
+        return bytes(arrayInit(index) + 3, getArrayInitByteCount(index));
+    }
+
+    private int arrayInit(int index) {
+        if (index < 0 || index >= getArrayInitCount())
+            throw new IndexOutOfBoundsException("Invalid array_init index: " + index);
+        return offsets.get()[index];
+    }
+
+    // Bytes of default-valued primitive fields
+    public int getDefaultValueCount() {
+        return u2(offsets.get()[getArrayInitCount()]);
+    }
+
+    // Bytes of non-default-valued primitive fields
+    public int getNonDefaultValueCount() {
+        return u2(offsets.get()[getArrayInitCount()] + 2);
+    }
+
+    public byte[] getNonDefaultValues() {
+        return bytes(offsets.get()[getArrayInitCount()] + 4, getNonDefaultValueCount());
+    }
+
+    public static int elementSize(int type) {
+        switch (type) {
+            case TYPE_BOOLEAN:
+            case TYPE_BYTE:
+                return 1;
+            case TYPE_SHORT:
+                return 2;
+            case TYPE_INT:
+                return 4;
+            default:
+                throw new IllegalArgumentException("Invalid array type: " + type);
+        }
+    }
+}
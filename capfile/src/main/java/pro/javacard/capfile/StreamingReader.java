@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// Reads ZIP entries from a stream, keeping only what the retention policy asks for. Load file
+// data hashes are calculated on the fly, in load order, so components that arrive early are
+// held until the preceding ones have been seen.
+final class StreamingReader {
+    // Components hashed as load file data, which excludes Descriptor and Debug
+    private static final int HASHED = 10;
+    private static final int[] tags = {Component.TAG_HEADER, Component.TAG_DIRECTORY, Component.TAG_IMPORT, Component.TAG_APPLET,
+            Component.TAG_CLASS, Component.TAG_METHOD, Component.TAG_STATIC_FIELD, Component.TAG_EXPORT,
+            Component.TAG_CONSTANT_POOL, Component.TAG_REFERENCE_LOCATION, Component.TAG_DESCRIPTOR, Component.TAG_DEBUG};
+
+    private final Function<String, CAPFile.Retention> policy;
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<>();
+    private final Map<String, ByteBuffer> entries = new LinkedHashMap<>();
+    // Components not kept, with their size or -1 if skipped unread
+    private final Map<String, Integer> dropped = new LinkedHashMap<>();
+    private final TreeMap<Integer, ByteBuffer> pending = new TreeMap<>();
+    private String hashed; // Directory of the load file that is hashed, the first one seen
+    private boolean[] present; // Known from the Directory component
+    private int next = 0;
+    private boolean complete = true;
+
+    StreamingReader(Function<String, CAPFile.Retention> policy, String... hashes) {
+        this.policy = policy;
+        for (String hash : hashes) {
+            try {
+                digests.put(hash, MessageDigest.getInstance(hash));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("Unsupported hash algorithm: " + hash, e);
+            }
+        }
+    }
+
+    StreamingReader read(ZipInputStream in) throws IOException {
+        return transfer(in, null, name -> true);
+    }
+
+    // Reads entries accepted by the filter, writing them also to out, if given
+    StreamingReader transfer(ZipInputStream in, ZipOutputStream out, Predicate<String> filter) throws IOException {
+        ZipEntry entry = in.getNextEntry();
+        while (entry != null) {
+            String name = entry.getName();
+            if (!filter.test(name)) {
+                entry = in.getNextEntry();
+                continue;
+            }
+            if (out != null) {
+                ZipEntry copy = new ZipEntry(name);
+                copy.setTime(entry.getTime());
+                out.putNextEntry(copy);
+            }
+            int order = loadOrder(name);
+            String dir = name.substring(0, name.lastIndexOf('/') + 1);
+            if (order >= 0 && hashed == null)
+                hashed = dir;
+            boolean hashing = order >= 0 && order < HASHED && dir.equals(hashed);
+            // Package name and version come from the header, so it is always kept
+            CAPFile.Retention retention = order == 0 ? CAPFile.Retention.KEEP : policy.apply(name);
+            if (retention == CAPFile.Retention.KEEP || (retention == CAPFile.Retention.HASH && order >= 0)) {
+                byte[] bytes = readEntry(in);
+                if (out != null)
+                    out.write(bytes);
+                ByteBuffer data = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+                if (retention == CAPFile.Retention.KEEP)
+                    entries.put(name, data);
+                else
+                    dropped.put(name, data.remaining());
+                if (hashing && !digests.isEmpty()) {
+                    if (order == 1)
+                        directory(data);
+                    pending.put(order, data);
+                    drain();
+                }
+            } else {
+                if (out != null)
+                    copy(in, out);
+                if (retention == CAPFile.Retention.SKIP && order >= 0) {
+                    dropped.put(name, -1);
+                    if (hashing)
+                        complete = false;
+                }
+            }
+            if (out != null)
+                out.closeEntry();
+            entry = in.getNextEntry();
+        }
+        // Whatever is left, in load order
+        for (ByteBuffer c : pending.values())
+            update(c);
+        pending.clear();
+        return this;
+    }
+
+    Map<String, ByteBuffer> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    Map<String, Integer> getDropped() {
+        return Collections.unmodifiableMap(dropped);
+    }
+
+    // Load file hashed, if any. Archives can contain several
+    Optional<String> getHashedDirectory() {
+        return Optional.ofNullable(hashed);
+    }
+
+    // Empty if some load file data was skipped
+    Map<String, byte[]> getHashes() {
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        if (complete) {
+            for (Map.Entry<String, MessageDigest> e : digests.entrySet())
+                result.put(e.getKey(), e.getValue().digest());
+        }
+        return result;
+    }
+
+    private void directory(ByteBuffer data) throws IOException {
+        try {
+            DirectoryComponent dir = new DirectoryComponent(data.duplicate());
+            // Sizes are laid out differently, so everything is hashed at the end
+            if (dir.isExtended())
+                return;
+            present = new boolean[HASHED];
+            present[0] = present[1] = true;
+            for (int i = 2; i < HASHED; i++)
+                present[i] = dir.getComponentSize(tags[i]) > 0;
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid Directory component: " + e.getMessage(), e);
+        }
+    }
+
+    private void drain() {
+        if (present == null)
+            return;
+        while (next < HASHED) {
+            if (present[next]) {
+                ByteBuffer c = pending.remove(next);
+                if (c == null)
+                    return;
+                update(c);
+            }
+            next++;
+        }
+    }
+
+    private void update(ByteBuffer c) {
+        for (MessageDigest md : digests.values())
+            md.update(c.duplicate());
+    }
+
+    // Position of the component in load order (JCVM 2.2 spec section 6.2), -1 if not a component
+    private static int loadOrder(String name) {
+        if (!name.endsWith(".cap") || !name.contains("/javacard/"))
+            return -1;
+        String component = name.substring(name.lastIndexOf('/') + 1, name.length() - 4);
+        for (int i = 0; i < CAPFile.componentNames.length; i++) {
+            if (CAPFile.componentNames[i].equals(component))
+                return i;
+        }
+        return -1;
+    }
+
+    private static void copy(ZipInputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[1024];
+        int c;
+        while ((c = in.read(buf)) != -1) {
+            out.write(buf, 0, c);
+        }
+    }
+
+    private static byte[] readEntry(ZipInputStream in) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1024];
+        int c;
+        while ((c = in.read(buf)) != -1) {
+            bos.write(buf, 0, c);
+        }
+        return bos.toByteArray();
+    }
+}
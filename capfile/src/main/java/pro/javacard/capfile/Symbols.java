@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.util.*;
+
+// Names and extents of methods, by offset in the Method component. Names come from the Debug
+// component when present, otherwise from the Descriptor component (tokens instead of names).
+final class Symbols {
+    private final Map<Integer, String> names = new HashMap<>();
+    private final TreeMap<Integer, Integer> ends = new TreeMap<>(); // Method offset to end offset
+    private final Map<Integer, String> classes = new HashMap<>(); // Class offset to name
+
+    Symbols(Optional<MethodComponent> method, Optional<DescriptorComponent> descriptor, Optional<DebugComponent> debug) {
+        if (descriptor.isPresent() && method.isPresent()) {
+            for (DescriptorComponent.ClassDescriptor c : descriptor.get().getClasses()) {
+                String cname = ConstantPoolComponent.classRefToString(c.getThisClassRef());
+                classes.put(c.getThisClassRef(), cname);
+                for (DescriptorComponent.MethodDescriptor m : c.getMethods()) {
+                    if (m.isAbstract() || m.getMethodOffset() == 0)
+                        continue;
+                    String mname = m.isInit() ? "<init>" : (m.isStatic() ? "static#" : "virtual#") + m.getToken();
+                    names.put(m.getMethodOffset(), cname + "." + mname + m.getType());
+                    int header = method.get().getMethod(m.getMethodOffset()).getHeaderSize();
+                    ends.put(m.getMethodOffset(), m.getMethodOffset() + header + m.getBytecodeCount());
+                }
+            }
+        }
+        if (debug.isPresent()) {
+            for (DebugComponent.ClassDebugInfo c : debug.get().getClasses()) {
+                String cname = c.getName().replace('/', '.');
+                classes.put(c.getLocation(), cname);
+                for (DebugComponent.MethodDebugInfo m : c.getMethods()) {
+                    if (m.getBodySize() == 0)
+                        continue;
+                    names.put(m.getLocation(), cname + "." + m.getName() + m.getDescriptor());
+                    ends.put(m.getLocation(), m.getLocation() + m.getHeaderSize() + m.getBodySize());
+                }
+            }
+        }
+    }
+
+    // Offsets of all known methods with bytecode, in the order of the Method component
+    Set<Integer> getMethodOffsets() {
+        return Collections.unmodifiableSet(ends.keySet());
+    }
+
+    Optional<String> getMethodName(int offset) {
+        return Optional.ofNullable(names.get(offset));
+    }
+
+    // End of the method, exclusive
+    int getMethodEnd(int offset) {
+        Integer end = ends.get(offset);
+        if (end == null)
+            throw new IllegalArgumentException("No method at offset " + offset);
+        return end;
+    }
+
+    // Method containing the given offset in Method component
+    Optional<Integer> getMethodAt(int offset) {
+        Map.Entry<Integer, Integer> e = ends.floorEntry(offset);
+        if (e == null || offset >= e.getValue())
+            return Optional.empty();
+        return Optional.of(e.getKey());
+    }
+
+    Optional<String> getClassName(int offset) {
+        return Optional.ofNullable(classes.get(offset));
+    }
+}
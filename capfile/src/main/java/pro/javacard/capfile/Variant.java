@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2018-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Rewrites the package AID, package version and applet AIDs of a converted CAP file in place.
+// They only appear in Header and Applet components (and so in the sizes of the Directory), in the
+// manifest and in applet.xml. Compact format only, as in the extended one they are all over.
+final class Variant {
+    private static final Pattern VERSION = Pattern.compile("^([0-9]{1,3})\\.([0-9]{1,3})$");
+    private static final Pattern MANIFEST_APPLET = Pattern.compile("^Java-Card-Applet-[0-9]+-AID$");
+    private static final Pattern XML_AID = Pattern.compile("//aid/([0-9A-Fa-f]{10})/([0-9A-Fa-f]{0,22})");
+    // Manifest lines are at most 72 bytes, continued with a space
+    private static final int MANIFEST_LINE = 72;
+
+    private Variant() {
+    }
+
+    // Patches the entries of the package in the directory, of a compact format CAP file
+    static void patch(Map<String, ByteBuffer> entries, String jcdir, AID aid, String version, Map<AID, AID> applets) {
+        Matcher v = VERSION.matcher(version);
+        if (!v.matches() || Integer.parseInt(v.group(1)) > CAPPackage.MAX_VERSION || Integer.parseInt(v.group(2)) > CAPPackage.MAX_VERSION)
+            throw new IllegalArgumentException("Invalid package version: " + version);
+        int major = Integer.parseInt(v.group(1));
+        int minor = Integer.parseInt(v.group(2));
+
+        byte[] header = component(entries, jcdir, "Header");
+        int oldLength = header[3 + 9] & 0xFF;
+        ByteArrayOutputStream h = new ByteArrayOutputStream(header.length + 16);
+        h.write(header, 0, 3 + 7);
+        h.write(minor);
+        h.write(major);
+        h.write(aid.getLength());
+        h.write(aid.getBytes(), 0, aid.getLength());
+        h.write(header, 3 + 10 + oldLength, header.length - 3 - 10 - oldLength);
+        byte[] newHeader = size(h.toByteArray());
+        entries.put(jcdir + "Header.cap", ByteBuffer.wrap(newHeader));
+
+        // Applets in order, unknown ones in the map are an error
+        Set<AID> renamed = new HashSet<>();
+        byte[] newApplet = null;
+        if (entries.containsKey(jcdir + "Applet.cap")) {
+            byte[] applet = component(entries, jcdir, "Applet");
+            ByteArrayOutputStream a = new ByteArrayOutputStream(applet.length + 16);
+            a.write(applet, 0, 4);
+            int offset = 4;
+            for (int i = 0; i < (applet[3] & 0xFF); i++) {
+                int length = applet[offset] & 0xFF;
+                AID old = new AID(applet, offset + 1, length);
+                AID replacement = applets.getOrDefault(old, old);
+                if (applets.containsKey(old))
+                    renamed.add(old);
+                a.write(replacement.getLength());
+                a.write(replacement.getBytes(), 0, replacement.getLength());
+                a.write(applet, offset + 1 + length, 2);
+                offset += 1 + length + 2;
+            }
+            newApplet = size(a.toByteArray());
+            entries.put(jcdir + "Applet.cap", ByteBuffer.wrap(newApplet));
+        }
+        if (!renamed.containsAll(applets.keySet())) {
+            Set<AID> unknown = new LinkedHashSet<>(applets.keySet());
+            unknown.removeAll(renamed);
+            throw new IllegalArgumentException("No such applets: " + unknown);
+        }
+
+        // Sizes of Header (tag 1) and Applet (tag 3), without tag and size
+        byte[] directory = component(entries, jcdir, "Directory");
+        putShort(directory, 3, newHeader.length - 3);
+        if (newApplet != null)
+            putShort(directory, 3 + 4, newApplet.length - 3);
+        entries.put(jcdir + "Directory.cap", ByteBuffer.wrap(directory));
+
+        ByteBuffer mf = entries.get("META-INF/MANIFEST.MF");
+        if (mf != null)
+            entries.put("META-INF/MANIFEST.MF", ByteBuffer.wrap(manifest(CAPFile.bytes(mf), aid, version, applets)));
+        for (Map.Entry<String, ByteBuffer> e : entries.entrySet()) {
+            String name = e.getKey();
+            if ((name.startsWith("APPLET-INF/") || name.startsWith("META-INF/")) && name.endsWith(".xml"))
+                e.setValue(ByteBuffer.wrap(xml(CAPFile.bytes(e.getValue()), applets)));
+        }
+    }
+
+    private static byte[] component(Map<String, ByteBuffer> entries, String jcdir, String name) {
+        ByteBuffer b = entries.get(jcdir + name + ".cap");
+        if (b == null)
+            throw new IllegalArgumentException("No " + name + " component");
+        return CAPFile.bytes(b);
+    }
+
+    // Updates the size of the component after tag
+    private static byte[] size(byte[] component) {
+        if (component.length - 3 > 0xFFFF)
+            throw new IllegalArgumentException("Component too big");
+        putShort(component, 1, component.length - 3);
+        return component;
+    }
+
+    private static void putShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    static byte[] manifest(byte[] mf, AID aid, String version, Map<AID, AID> applets) {
+        return manifest(mf, (key, value) -> {
+            String replacement = null;
+            if (key.equals("Java-Card-Package-AID")) {
+                replacement = manifestAID(aid, value);
+            } else if (key.equals("Java-Card-Package-Version")) {
+                replacement = version;
+            } else if (MANIFEST_APPLET.matcher(key).matches()) {
+                AID renamed = applets.get(parseManifestAID(value));
+                if (renamed != null)
+                    replacement = manifestAID(renamed, value);
+            }
+            return replacement == null ? null : Collections.singletonList(key + ": " + replacement);
+        });
+    }
+
+    // Manifest as text, so that everything not replaced stays as it was. Gets key and value of every
+    // logical line and returns the lines to replace it with ("key: value"), or null to keep it.
+    static byte[] manifest(byte[] mf, BiFunction<String, String, List<String>> replace) {
+        String text = new String(mf, StandardCharsets.UTF_8);
+        String eol = text.contains("\r\n") ? "\r\n" : "\n";
+        String[] lines = text.split("\r?\n", -1);
+        StringBuilder sb = new StringBuilder(text.length() + 64);
+        int i = 0;
+        while (i < lines.length) {
+            // Logical line with continuations
+            int start = i;
+            StringBuilder line = new StringBuilder(lines[i++]);
+            while (i < lines.length && lines[i].startsWith(" "))
+                line.append(lines[i++].substring(1));
+            String logical = line.toString();
+            int colon = logical.indexOf(": ");
+            List<String> replacement = colon > 0 ? replace.apply(logical.substring(0, colon), logical.substring(colon + 2)) : null;
+            if (replacement == null) {
+                for (int j = start; j < i; j++)
+                    sb.append(lines[j]).append(j == lines.length - 1 ? "" : eol);
+            } else {
+                // ASCII only, so characters are bytes
+                for (String l : replacement) {
+                    sb.append(l, 0, Math.min(MANIFEST_LINE, l.length())).append(eol);
+                    for (int o = MANIFEST_LINE; o < l.length(); o += MANIFEST_LINE - 1)
+                        sb.append(' ').append(l, o, Math.min(o + MANIFEST_LINE - 1, l.length())).append(eol);
+                }
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Like "0xa0:0x0:0x0:0x0:0x62", in the style of the value it replaces
+    static String manifestAID(AID aid, String like) {
+        boolean upper = like.matches(".*0x[0-9]*[A-F].*");
+        boolean padded = like.matches("(?i).*0x0[0-9a-f]\\b.*");
+        StringJoiner sj = new StringJoiner(":");
+        for (byte b : aid.getBytes()) {
+            String hex = String.format(padded ? "%02x" : "%x", b & 0xFF);
+            sj.add("0x" + (upper ? hex.toUpperCase(Locale.ROOT) : hex));
+        }
+        return sj.toString();
+    }
+
+    static AID parseManifestAID(String value) {
+        String[] bytes = value.trim().split(":");
+        byte[] result = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            result[i] = (byte) Integer.parseInt(bytes[i].trim().replaceFirst("(?i)^0x", ""), 16);
+        return new AID(result);
+    }
+
+    // Applet AIDs in applet.xml (and the like), as //aid/<RID>/<PIX>
+    static byte[] xml(byte[] xml, Map<AID, AID> applets) {
+        String text = new String(xml, StandardCharsets.UTF_8);
+        Matcher m = XML_AID.matcher(text);
+        StringBuffer sb = new StringBuffer();
+        boolean changed = false;
+        while (m.find()) {
+            AID renamed = m.group(2).length() % 2 == 0 ? applets.get(new AID(m.group(1) + m.group(2))) : null;
+            if (renamed == null)
+                continue;
+            String hex = HexUtils.bin2hex(renamed.getBytes());
+            hex = m.group(0).matches(".*[a-f].*") ? hex.toLowerCase(Locale.ROOT) : hex;
+            m.appendReplacement(sb, Matcher.quoteReplacement("//aid/" + hex.substring(0, 10) + "/" + hex.substring(10)));
+            changed = true;
+        }
+        if (!changed)
+            return xml;
+        m.appendTail(sb);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
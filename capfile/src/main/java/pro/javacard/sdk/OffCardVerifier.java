@@ -76,8 +76,12 @@ public final class OffCardVerifier {
     // Verify a given CAP file against a set of EXP files
     public void verify(Path f, List<Path> exps) throws VerifierError, IOException {
         Path tmp = Files.createTempDirectory("capfile");
-        try (InputStream in = Files.newInputStream(f)) {
-            CAPFile cap = CAPFile.fromStream(in);
+        try {
+            // Only the package name is needed. Read, not mapped, so that the file is not kept open
+            final CAPFile cap;
+            try (InputStream in = Files.newInputStream(f)) {
+                cap = CAPFile.fromStream(in, CAPFile.retain("Header"));
+            }
 
             // Get verifier class
             Class<?> verifier = Class.forName("com.sun.javacard.offcardverifier.Verifier", true, sdk.getClassLoader());
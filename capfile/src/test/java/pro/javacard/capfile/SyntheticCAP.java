@@ -0,0 +1,440 @@
+package pro.javacard.capfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Hand-assembled CAP file of a tiny applet, as the test environment has no JavaCard SDK
+final class SyntheticCAP {
+    static final String PKG = "testapplets/empty/javacard/";
+    static final AID PACKAGE_AID = new AID("0102030405");
+    static final AID APPLET_AID = new AID("010203040506");
+
+    private SyntheticCAP() {
+    }
+
+    static byte[] component(int tag, int... info) {
+        byte[] result = new byte[3 + info.length];
+        result[0] = (byte) tag;
+        result[1] = (byte) (info.length >> 8);
+        result[2] = (byte) info.length;
+        for (int i = 0; i < info.length; i++)
+            result[3 + i] = (byte) info[i];
+        return result;
+    }
+
+    // Constant pool of the applet
+    static final int[] CONSTANT_POOL = {
+            0x00, 0x08,
+            0x01, 0x00, 0x00, 0x00, // 0: classRef Empty
+            0x06, 0x80, 0x03, 0x00, // 1: staticMethodRef 0.3.0 Applet.<init>()V
+            0x06, 0x00, 0x00, 0x0E, // 2: staticMethodRef Empty.<init>()V
+            0x03, 0x80, 0x03, 0x01, // 3: virtualMethodRef 0.3.1 Applet.register()V
+            0x03, 0x80, 0x0A, 0x01, // 4: virtualMethodRef 0.10.1 APDU.getBuffer()[B
+            0x06, 0x80, 0x07, 0x01, // 5: staticMethodRef 0.7.1 ISOException.throwIt(S)V
+            0x05, 0x00, 0x00, 0x00, // 6: staticFieldRef Empty.buffer
+            0x06, 0x80, 0x08, 0x0D, // 7: staticMethodRef 0.8.13 JCSystem.makeTransientByteArray(SB)[B
+    };
+
+    static final int INSTALL = 0x01;
+    static final int INIT = 0x0E;
+    static final int PROCESS = 0x1F;
+
+    static final int[] METHODS = {
+            0x00, // no exception handlers
+            // install([BSB)V
+            0x02, 0x30,
+            0x8F, 0x00, 0x00, // new 0
+            0x3D, // dup
+            0x8C, 0x00, 0x02, // invokespecial 2
+            0x8B, 0x00, 0x03, // invokevirtual 3
+            0x7A, // return
+            // <init>()V
+            0x02, 0x10,
+            0x18, // aload_0
+            0x8C, 0x00, 0x01, // invokespecial 1
+            0x11, 0x00, 0x20, // sspush 32
+            0x05, // sconst_2
+            0x8D, 0x00, 0x07, // invokestatic 7
+            0x7F, 0x00, 0x06, // putstatic_a 6
+            0x7A, // return
+            // process(APDU)V
+            0x02, 0x21,
+            0x19, // aload_1
+            0x8B, 0x00, 0x04, // invokevirtual 4
+            0x2D, // astore_2
+            0x1A, // aload_2
+            0x04, // sconst_1
+            0x25, // baload
+            0x75, 0x00, 0x0A, 0x00, 0x01, 0x00, 0x10, 0x00, 0x09, // slookupswitch default +10, 0x10: +9
+            0x7A, // return
+            0x11, 0x6D, 0x00, // sspush 0x6D00
+            0x8D, 0x00, 0x05, // invokestatic 5
+            0x7A, // return
+    };
+
+    static final int[] CLASSES = {
+            // Empty extends 0.3, no fields, public virtual method table with process() as token 7
+            0x00, 0x80, 0x03, 0x00, 0xFF, 0x00, 0x07, 0x01, 0x00, 0x00, 0x00, PROCESS,
+    };
+
+    static final int[] STATIC_FIELDS = {
+            0x00, 0x04, 0x00, 0x02, // 4 bytes, 2 references
+            0x00, 0x01, 0x03, 0x00, 0x03, 0x01, 0x02, 0x03, // byte[] {1, 2, 3}
+            0x00, 0x00, 0x00, 0x00,
+    };
+
+    static final int[] REFERENCE_LOCATIONS = {
+            0x00, 0x00,
+            0x00, 0x08, 0x04, 0x04, 0x03, 0x07, 0x07, 0x03, 0x07, 0x14
+    };
+
+    static final int[] DESCRIPTORS = {
+            0x01,
+            // public class Empty, 2 fields, 3 methods
+            0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x03,
+            0x00, 0x0A, 0x00, 0x00, 0x00, 0x00, 0x12, // private static byte[] buffer
+            0x01, 0x18, 0x00, 0x00, 0x02, 0x00, 0x12, // static final byte[] data
+            0x00, 0x09, 0x00, INSTALL, 0x00, 0x14, 0x00, 0x0B, 0x00, 0x00, 0x00, 0x00, // public static install([BSB)V
+            0x00, 0x84, 0x00, INIT, 0x00, 0x17, 0x00, 0x0F, 0x00, 0x00, 0x00, 0x00, // protected <init>()V
+            0x07, 0x01, 0x00, PROCESS, 0x00, 0x19, 0x00, 0x19, 0x00, 0x00, 0x00, 0x00, // public process(L0.10;)V
+            // types
+            0x00, 0x08,
+            0xFF, 0xFF, 0x00, 0x17, 0x00, 0x17, 0x00, 0x17, 0x00, 0x12, 0x00, 0x1D, 0x00, 0x12, 0x00, 0x1F,
+            0x01, 0xB0, // 0x12: [B
+            0x04, 0xB4, 0x31, // 0x14: ([BSB)V
+            0x01, 0x10, // 0x17: ()V
+            0x06, 0x68, 0x00, 0xA1, // 0x19: (L0.10;)V
+            0x02, 0x41, // 0x1D: (S)V
+            0x03, 0x43, 0xB0, // 0x1F: (SB)[B
+    };
+
+    // Debug component, not in entries() as a CAP file converted without debug info
+    static final int[] DEBUG = {
+            0x00, 0x0A, // 10 strings
+            0x00, 0x11, 't', 'e', 's', 't', 'a', 'p', 'p', 'l', 'e', 't', 's', '/', 'e', 'm', 'p', 't', 'y',
+            0x00, 0x17, 't', 'e', 's', 't', 'a', 'p', 'p', 'l', 'e', 't', 's', '/', 'e', 'm', 'p', 't', 'y', '/', 'E', 'm', 'p', 't', 'y',
+            0x00, 0x19, 'j', 'a', 'v', 'a', 'c', 'a', 'r', 'd', '/', 'f', 'r', 'a', 'm', 'e', 'w', 'o', 'r', 'k', '/', 'A', 'p', 'p', 'l', 'e', 't',
+            0x00, 0x0A, 'E', 'm', 'p', 't', 'y', '.', 'j', 'a', 'v', 'a',
+            0x00, 0x07, 'i', 'n', 's', 't', 'a', 'l', 'l',
+            0x00, 0x07, '(', '[', 'B', 'S', 'B', ')', 'V',
+            0x00, 0x06, '<', 'i', 'n', 'i', 't', '>',
+            0x00, 0x03, '(', ')', 'V',
+            0x00, 0x07, 'p', 'r', 'o', 'c', 'e', 's', 's',
+            0x00, 0x1C, '(', 'L', 'j', 'a', 'v', 'a', 'c', 'a', 'r', 'd', '/', 'f', 'r', 'a', 'm', 'e', 'w', 'o', 'r', 'k', '/', 'A', 'P', 'D', 'U', ';', ')', 'V',
+            0x00, 0x00, 0x00, 0x01, // package name, 1 class
+            // public class Empty extends Applet, in Empty.java, 3 methods
+            0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x02, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x03,
+            // install([BSB)V, lines 10 and 11
+            0x00, 0x04, 0x00, 0x05, 0x00, 0x09, 0x00, INSTALL, 0x02, 0x00, 0x0B, 0x00, 0x00, 0x00, 0x02,
+            0x00, 0x00, 0x00, 0x04, 0x00, 0x0A, // 0-4: line 10
+            0x00, 0x05, 0x00, 0x0A, 0x00, 0x0B, // 5-10: line 11
+            // <init>()V, lines 15 and 16
+            0x00, 0x06, 0x00, 0x07, 0x00, 0x04, 0x00, INIT, 0x02, 0x00, 0x0F, 0x00, 0x00, 0x00, 0x02,
+            0x00, 0x00, 0x00, 0x03, 0x00, 0x0F, // 0-3: line 15
+            0x00, 0x04, 0x00, 0x0E, 0x00, 0x10, // 4-14: line 16
+            // process(APDU)V, lines 20 to 24 with the switch cases on 22 and 24
+            0x00, 0x08, 0x00, 0x09, 0x00, 0x01, 0x00, PROCESS, 0x02, 0x00, 0x19, 0x00, 0x00, 0x00, 0x03,
+            0x00, 0x00, 0x00, 0x0F, 0x00, 0x14, // 0-15: line 20
+            0x00, 0x10, 0x00, 0x10, 0x00, 0x16, // 16-16: line 22
+            0x00, 0x11, 0x00, 0x18, 0x00, 0x18, // 17-24: line 24
+    };
+
+    // Same component with a u4 size, as in the extended format
+    static byte[] extend(byte[] component) {
+        int size = component.length - 3;
+        byte[] result = new byte[component.length + 2];
+        result[0] = component[0];
+        result[1] = (byte) (size >> 24);
+        result[2] = (byte) (size >> 16);
+        result[3] = (byte) (size >> 8);
+        result[4] = (byte) size;
+        System.arraycopy(component, 3, result, 5, size);
+        return result;
+    }
+
+    // Extended format CAP 2.3 with CAP AID 0102030405FF v1.0, of this package and library 0102030406 v1.1
+    static Map<String, byte[]> extended() {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> e : entries().entrySet()) {
+            entries.put(e.getKey(), e.getKey().startsWith(PKG) ? extend(e.getValue()) : e.getValue());
+        }
+        entries.put(PKG + "Header.cap", extend(component(1, 0xDE, 0xCA, 0xFF, 0xED, 0x03, 0x02, 0x0C,
+                0x00, 0x01, 0x06, 0x01, 0x02, 0x03, 0x04, 0x05, 0xFF,
+                0x02,
+                0x00, 0x01, 0x05, 0x01, 0x02, 0x03, 0x04, 0x05,
+                0x01, 0x01, 0x05, 0x01, 0x02, 0x03, 0x04, 0x06,
+                0x11, 't', 'e', 's', 't', 'a', 'p', 'p', 'l', 'e', 't', 's', '/', 'e', 'm', 'p', 't', 'y',
+                0x0F, 't', 'e', 's', 't', 'a', 'p', 'p', 'l', 'e', 't', 's', '/', 'l', 'i', 'b')));
+        entries.put(PKG + "Directory.cap", extend(extendedDirectory(entries)));
+        return entries;
+    }
+
+    // Directory with u4 sizes of the 12 components, keeping the rest of the compact one
+    static byte[] extendedDirectory(Map<String, byte[]> entries) {
+        byte[] compact = entries.get(PKG + "Directory.cap");
+        int tail = compact.length - 5 - 11 * 2;
+        int[] directory = new int[12 * 4 + tail];
+        for (int tag = 1; tag <= 12; tag++) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                byte[] c = e.getValue();
+                if (e.getKey().startsWith(PKG) && e.getKey().endsWith(".cap") && c[0] == tag) {
+                    int size = tag == 2 ? 12 * 4 + tail : c.length - 5;
+                    for (int i = 0; i < 4; i++)
+                        directory[(tag - 1) * 4 + i] = (size >> (24 - 8 * i)) & 0xFF;
+                }
+            }
+        }
+        for (int i = 0; i < tail; i++)
+            directory[12 * 4 + i] = compact[5 + 11 * 2 + i] & 0xFF;
+        return component(2, directory);
+    }
+
+    // Export file of javacard.framework 1.3 where class 7 has the given static method 1, to have
+    // process() call it instead of ISOException.throwIt()
+    static byte[] export(String className, String method, String descriptor) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        int[] header = {0x00, 0xFA, 0xCA, 0xDE, 0x01, 0x02, 0x00, 0x06};
+        for (int b : header)
+            bos.write(b);
+        utf8(bos, "javacard/framework");
+        int[] pkg = {0x0D, 0x00, 0x00, 0x00, 0x03, 0x01, 0x07, 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01};
+        for (int b : pkg)
+            bos.write(b);
+        utf8(bos, className);
+        int[] classref = {0x07, 0x00, 0x02};
+        for (int b : classref)
+            bos.write(b);
+        utf8(bos, method);
+        utf8(bos, descriptor);
+        // this_package, one class 7 with no supers, interfaces and fields and one method
+        int[] rest = {0x00, 0x01, 0x01, 0x07, 0x00, 0x01, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01,
+                0x01, 0x00, 0x09, 0x00, 0x04, 0x00, 0x05};
+        for (int b : rest)
+            bos.write(b);
+        return bos.toByteArray();
+    }
+
+    // Export file of javacard.framework 1.3 with the methods the applet calls: class token, name,
+    // method token, name, descriptor and whether static
+    static final Object[][] FRAMEWORK = {
+            {3, "javacard/framework/Applet", 0, "<init>", "()V", false},
+            {3, "javacard/framework/Applet", 1, "register", "()V", false},
+            {7, "javacard/framework/ISOException", 1, "throwIt", "(S)V", true},
+            {10, "javacard/framework/APDU", 1, "getBuffer", "()[B", false},
+    };
+
+    static byte[] framework() throws IOException {
+        ByteArrayOutputStream cp = new ByteArrayOutputStream();
+        DataOutputStream c = new DataOutputStream(cp);
+        c.writeByte(13); // Package
+        c.write(new byte[]{0x00, 0x00, 0x01, 0x03, 0x01, 0x07, (byte) 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01});
+        utf8(cp, "javacard/framework");
+        int count = 2;
+        ByteArrayOutputStream classes = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(classes);
+        d.writeByte(3);
+        for (int token : new int[]{3, 7, 10}) {
+            ByteArrayOutputStream methods = new ByteArrayOutputStream();
+            DataOutputStream m = new DataOutputStream(methods);
+            int methodCount = 0;
+            String name = null;
+            for (Object[] f : FRAMEWORK) {
+                if ((int) f[0] != token)
+                    continue;
+                name = (String) f[1];
+                utf8(cp, (String) f[3]);
+                utf8(cp, (String) f[4]);
+                m.writeByte((int) f[2]);
+                m.writeShort((boolean) f[5] ? 0x0009 : 0x0001);
+                m.writeShort(count);
+                m.writeShort(count + 1);
+                count += 2;
+                methodCount++;
+            }
+            utf8(cp, name);
+            c.writeByte(7); // Classref
+            c.writeShort(count);
+            d.writeByte(token);
+            d.writeShort(0x0001);
+            d.writeShort(count + 1);
+            d.writeShort(0); // supers
+            d.writeByte(0); // interfaces
+            d.writeShort(0); // fields
+            d.writeShort(methodCount);
+            d.write(methods.toByteArray());
+            count += 2;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeInt(0x00FACADE);
+        out.writeByte(1);
+        out.writeByte(2);
+        out.writeShort(count);
+        out.write(cp.toByteArray());
+        out.writeShort(0); // this_package
+        out.write(classes.toByteArray());
+        return bos.toByteArray();
+    }
+
+    private static void utf8(ByteArrayOutputStream bos, String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        bos.write(0x01);
+        bos.write(b.length >> 8);
+        bos.write(b.length);
+        bos.write(b, 0, b.length);
+    }
+
+    static Map<String, byte[]> entries() {
+        Map<String, byte[]> components = new LinkedHashMap<>();
+        // magic, CAP 2.1, applets; package v1.0 with AID 0102030405
+        components.put("Header", component(1, 0xDE, 0xCA, 0xFF, 0xED, 0x01, 0x02, 0x04, 0x00, 0x01, 0x05, 0x01, 0x02, 0x03, 0x04, 0x05));
+        components.put("Directory", null);
+        // one applet
+        components.put("Applet", component(3, 0x01, 0x06, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x00, INSTALL));
+        // javacard.framework 1.3
+        components.put("Import", component(4, 0x01, 0x03, 0x01, 0x07, 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01));
+        components.put("ConstantPool", component(5, CONSTANT_POOL));
+        components.put("Class", component(6, CLASSES));
+        components.put("Method", component(7, METHODS));
+        components.put("StaticField", component(8, STATIC_FIELDS));
+        components.put("RefLocation", component(9, REFERENCE_LOCATIONS));
+        components.put("Descriptor", component(11, DESCRIPTORS));
+
+        // static field image of 4 bytes, one array of 3 bytes, one import, one applet
+        components.put("Directory", directory(components, 4, 1, 3, 1, 1));
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("META-INF/MANIFEST.MF", ("Manifest-Version: 1.0\r\nCreated-By: 11 (Test)\r\n\r\n"
+                + "Name: testapplets/empty\r\nJava-Card-CAP-Creation-Time: Mon Jan 01 00:00:00 UTC 2024\r\n"
+                + "Java-Card-Converter-Version: 3.0.5\r\nJava-Card-Converter-Provider: Test\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, byte[]> c : components.entrySet()) {
+            entries.put(PKG + c.getKey() + ".cap", c.getValue());
+        }
+        entries.put("testapplets/empty/Empty.class", new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE});
+        entries.put("APPLET-INF/applet.xml", ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<applet-app><applet>"
+                + "<applet-class>testapplets.empty.Empty</applet-class><applet-AID>//aid/0102030405/06</applet-AID>"
+                + "</applet></applet-app>").getBytes(StandardCharsets.UTF_8));
+        return entries;
+    }
+
+    // 11 sizes of CAP 2.1, static field image, imports, applets and no custom components
+    static byte[] directory(Map<String, byte[]> components, int image, int arrays, int arrayBytes, int imports, int applets) {
+        int[] directory = new int[11 * 2 + 6 + 3];
+        for (int tag = 1; tag <= 11; tag++) {
+            for (byte[] c : components.values()) {
+                if (c != null && c[0] == tag) {
+                    directory[(tag - 1) * 2] = (c.length - 3) >> 8;
+                    directory[(tag - 1) * 2 + 1] = (c.length - 3) & 0xFF;
+                }
+            }
+        }
+        directory[11 * 2 + 1] = image;
+        directory[11 * 2 + 3] = arrays;
+        directory[11 * 2 + 5] = arrayBytes;
+        directory[11 * 2 + 6] = imports;
+        directory[11 * 2 + 7] = applets;
+        return component(2, directory);
+    }
+
+    static final String LIB = "testapplets/lib/javacard/";
+    static final AID LIBRARY_AID = new AID("0102030406");
+    static final int FAIL = 0x09;
+
+    // Library 0102030406 v1.0 with public class Util, public static short reason and a public static
+    // fail(S)V that keeps the reason and calls ISOException.throwIt(), rethrowing from a handler
+    static Map<String, byte[]> library() {
+        Map<String, byte[]> components = new LinkedHashMap<>();
+        // magic, CAP 2.1, exports; package v1.0 with AID 0102030406
+        components.put("Header", component(1, 0xDE, 0xCA, 0xFF, 0xED, 0x01, 0x02, 0x02, 0x00, 0x01, 0x05, 0x01, 0x02, 0x03, 0x04, 0x06));
+        components.put("Directory", null);
+        // java.lang 1.0 and javacard.framework 1.3
+        components.put("Import", component(4, 0x02, 0x00, 0x01, 0x07, 0xA0, 0x00, 0x00, 0x00, 0x62, 0x00, 0x01,
+                0x03, 0x01, 0x07, 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01));
+        components.put("ConstantPool", component(5, 0x00, 0x03,
+                0x05, 0x00, 0x00, 0x00, // 0: staticFieldRef Util.reason
+                0x06, 0x81, 0x07, 0x01, // 1: staticMethodRef 1.7.1 ISOException.throwIt(S)V
+                0x01, 0x81, 0x07, 0x00)); // 2: classRef 1.7 ISOException
+        // Util extends 0.0, no fields and virtual methods
+        components.put("Class", component(6, 0x00, 0x80, 0x00, 0x00, 0xFF, 0x00, 0x01, 0x00, 0x00, 0x00));
+        components.put("Method", component(7, 0x01,
+                0x00, 0x10, 0x80, 0x03, 0x00, 0x14, 0x00, 0x02, // catch ISOException in throwIt() call
+                // fail(S)V
+                0x01, 0x10,
+                0x1C, // sload_0
+                0x81, 0x00, 0x00, // putstatic_s 0
+                0x1C, // sload_0
+                0x8D, 0x00, 0x01, // invokestatic 1
+                0x7A, // return
+                0x93)); // athrow
+        components.put("StaticField", component(8, 0x00, 0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x02, 0x00, 0x00));
+        components.put("Export", component(10, 0x01, 0x00, 0x00, 0x01, 0x01, 0x00, 0x00, 0x00, FAIL));
+        components.put("RefLocation", component(9, 0x00, 0x00, 0x00, 0x02, 0x0D, 0x04));
+        components.put("Descriptor", component(11, 0x01,
+                // public class Util, 1 field, 1 method
+                0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x01,
+                0x00, 0x09, 0x00, 0x00, 0x00, 0x80, 0x04, // public static short reason
+                0x00, 0x09, 0x00, FAIL, 0x00, 0x0A, 0x00, 0x0A, 0x00, 0x01, 0x00, 0x00, // public static fail(S)V
+                // types
+                0x00, 0x03,
+                0x00, 0x08, 0x00, 0x0A, 0xFF, 0xFF,
+                0x01, 0x40, // 0x08: S
+                0x02, 0x41)); // 0x0A: (S)V
+        // static field image of 2 bytes, two imports, no applets
+        components.put("Directory", directory(components, 2, 0, 0, 2, 0));
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> c : components.entrySet()) {
+            entries.put(LIB + c.getKey() + ".cap", c.getValue());
+        }
+        return entries;
+    }
+
+    // The applet, calling fail(S)V of the library instead of ISOException.throwIt()
+    static Map<String, byte[]> libraryUser() {
+        Map<String, byte[]> entries = entries();
+        entries.put("META-INF/MANIFEST.MF", ("Manifest-Version: 1.0\r\nCreated-By: 11 (Test)\r\n\r\n"
+                + "Name: testapplets/empty\r\nJava-Card-Imported-Package-1-AID: 0xa0:0x0:0x0:0x0:0x62:0x1:0x1\r\n"
+                + "Java-Card-Imported-Package-1-Version: 1.3\r\nJava-Card-Imported-Package-2-AID: 0x1:0x2:0x3:0x4:0x6\r\n"
+                + "Java-Card-Imported-Package-2-Version: 1.0\r\nJava-Card-Integer-Support-Required: FALSE\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        byte[] imports = component(4, 0x02, 0x03, 0x01, 0x07, 0xA0, 0x00, 0x00, 0x00, 0x62, 0x01, 0x01,
+                0x00, 0x01, 0x05, 0x01, 0x02, 0x03, 0x04, 0x06);
+        entries.put(PKG + "Import.cap", imports);
+        int[] cp = CONSTANT_POOL.clone();
+        // 5: staticMethodRef 1.0.0 Util.fail(S)V
+        cp[2 + 5 * 4 + 1] = 0x81;
+        cp[2 + 5 * 4 + 2] = 0x00;
+        cp[2 + 5 * 4 + 3] = 0x00;
+        entries.put(PKG + "ConstantPool.cap", component(5, cp));
+        byte[] directory = entries.get(PKG + "Directory.cap");
+        directory[3 + 3 * 2 + 1] = (byte) (imports.length - 3);
+        directory[3 + 11 * 2 + 6] = 2;
+        return entries;
+    }
+
+    static byte[] zip(Map<String, byte[]> entries, boolean stored) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bos)) {
+            for (Map.Entry<String, byte[]> e : entries.entrySet()) {
+                ZipEntry entry = new ZipEntry(e.getKey());
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(e.getValue());
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(e.getValue().length);
+                    entry.setCrc(crc.getValue());
+                }
+                out.putNextEntry(entry);
+                out.write(e.getValue());
+                out.closeEntry();
+            }
+        }
+        return bos.toByteArray();
+    }
+}
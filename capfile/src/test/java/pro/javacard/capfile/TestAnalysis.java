@@ -0,0 +1,358 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+public class TestAnalysis {
+
+    static CAPFile synthetic() throws Exception {
+        return CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.entries(), false));
+    }
+
+    @Test
+    public void testOpcodes() throws Exception {
+        MethodComponent method = synthetic().getMethodComponent().get();
+        ByteBuffer code = method.getInfo();
+        // Walking the bytecode of each method must end exactly at the next one
+        int[] starts = {SyntheticCAP.INSTALL, SyntheticCAP.INIT, SyntheticCAP.PROCESS, method.getSize()};
+        for (int i = 0; i < 3; i++) {
+            int pc = method.getMethod(starts[i]).getBytecodeOffset();
+            while (pc < starts[i + 1])
+                pc += Opcodes.length(code, pc);
+            Assert.assertEquals(pc, starts[i + 1]);
+        }
+        Assert.assertEquals(Opcodes.mnemonic(0x75), "slookupswitch");
+        Assert.assertEquals(Opcodes.mnemonic(0xA8), "goto_w");
+        Assert.assertEquals(Opcodes.mnemonic(0xB8), "putfield_i_this");
+        Assert.assertFalse(Opcodes.isValid(0xC0));
+    }
+
+    @Test
+    public void testMethodFootprints() throws Exception {
+        List<MethodFootprint> methods = synthetic().getMethodFootprints();
+        Assert.assertEquals(methods.size(), 3);
+        MethodFootprint install = methods.get(0);
+        Assert.assertEquals(install.getOffset(), SyntheticCAP.INSTALL);
+        Assert.assertEquals(install.getName(), "@0000.static#0([BSB)V");
+        Assert.assertEquals(install.getBytecodeSize(), 11);
+        Assert.assertEquals(install.getMaxStack(), 2);
+        Assert.assertEquals(install.getNargs(), 3);
+        Assert.assertEquals(methods.get(1).getName(), "@0000.<init>()V");
+
+        List<MethodFootprint> sorted = new ArrayList<>(methods);
+        sorted.sort(MethodFootprint.BY_SIZE);
+        MethodFootprint process = sorted.get(0);
+        Assert.assertEquals(process.getOffset(), SyntheticCAP.PROCESS);
+        Assert.assertEquals(process.getName(), "@0000.virtual#7(L0.10;)V");
+        Assert.assertEquals(process.getSize(), 27);
+        Assert.assertEquals(process.getMaxLocals(), 1);
+        Assert.assertEquals(process.getFrameSize(), 5);
+    }
+
+    @Test
+    public void testMemoryFootprint() throws Exception {
+        CAPFile cap = synthetic();
+        MemoryFootprint memory = cap.getMemoryFootprint();
+        Assert.assertEquals(memory.getStaticImageSize(), 4);
+        Assert.assertEquals(memory.getStaticReferenceCount(), 2);
+        Assert.assertEquals(memory.getArrayInitCount(), 1);
+        Assert.assertEquals(memory.getArrayInitBytes(), 3);
+        Assert.assertEquals(memory.getStaticSize(), 4 + 3 + MemoryFootprint.DEFAULT_OBJECT_HEADER);
+        int code = 0;
+        for (String c : MemoryFootprint.RESIDENT)
+            code += cap.getComponentSize(c).orElse(0);
+        Assert.assertEquals(memory.getCodeSize(), code);
+        Assert.assertEquals(memory.getPackageSize(), code + memory.getStaticSize());
+
+        // install() creates the applet, <init> a CLEAR_ON_DESELECT byte[32]
+        MemoryFootprint.Instance instance = memory.getInstances().get(SyntheticCAP.APPLET_AID);
+        Assert.assertEquals(instance.getObjectCount(), 1);
+        Assert.assertEquals(instance.getFieldBytes(), 0);
+        Assert.assertEquals(instance.getArrayCount(), 0);
+        Assert.assertEquals(instance.getTransientArrayCount(), 1);
+        Assert.assertEquals(instance.getClearOnResetBytes(), 0);
+        Assert.assertEquals(instance.getClearOnDeselectBytes(), 32);
+        Assert.assertEquals(instance.getUnsizedTransientArrayCount(), 0);
+        Assert.assertEquals(instance.getTotal(), 2 * MemoryFootprint.DEFAULT_OBJECT_HEADER);
+
+        MemoryFootprint bare = cap.getMemoryFootprint(0);
+        Assert.assertEquals(bare.getStaticSize(), 7);
+        Assert.assertEquals(bare.getInstances().get(SyntheticCAP.APPLET_AID).getTotal(), 0);
+    }
+
+    @Test
+    public void testConstantFolding() {
+        // (short) (sspush 0x100 * sconst_3 - bspush 16), sconst_1; then aload_0 makes it unknown
+        ByteBuffer code = ByteBuffer.wrap(new byte[]{0x11, 0x01, 0x00, 0x06, 0x45, 0x10, 0x10, 0x43, 0x04, 0x18});
+        Bytecode.Constants constants = new Bytecode.Constants();
+        for (int pc = 0; pc < 9; pc += Opcodes.length(code, pc))
+            constants.step(code, pc);
+        Assert.assertEquals(constants.peek(0).getAsInt(), 1);
+        Assert.assertEquals(constants.peek(1).getAsInt(), 0x300 - 16);
+        Assert.assertFalse(constants.peek(2).isPresent());
+        constants.step(code, 9);
+        Assert.assertFalse(constants.peek(0).isPresent());
+    }
+
+    @Test
+    public void testLinkCost() throws Exception {
+        LinkCost link = synthetic().getLinkCost();
+        Assert.assertEquals(link.getInternalEntryCount(), 3);
+        Assert.assertEquals(link.getExternalEntryCount(), 5);
+        Assert.assertEquals(link.getByteSiteCount(), 0);
+        Assert.assertEquals(link.getByte2SiteCount(), 8);
+        Assert.assertEquals(link.getInternalSiteCount(), 3);
+        Assert.assertEquals(link.getExternalSiteCount(), 5);
+        CAPPackage framework = new CAPPackage(new AID("A0000000620101"), 1, 3);
+        Assert.assertEquals(link.getImportEntryCounts().get(framework), Integer.valueOf(5));
+        Assert.assertEquals(link.getImportSiteCounts().get(framework), Integer.valueOf(5));
+
+        Assert.assertEquals(link.estimate(LinkCost.Model.DEFAULT), 3 + 5 * 10 + 8);
+        Properties costs = new Properties();
+        costs.setProperty("entry.external", "100");
+        costs.setProperty("site.byte2", "2");
+        Assert.assertEquals(link.estimate(LinkCost.Model.fromProperties(costs)), 3 + 5 * 100 + 8 * 2);
+    }
+
+    @Test
+    public void testCycleCost() throws Exception {
+        CAPFile cap = synthetic();
+        // Up to the switch: 6 bytecodes and APDU.getBuffer() at 1 + 10
+        CycleCost cost = cap.getCycleCosts(CostProfile.DEFAULT).get(SyntheticCAP.APPLET_AID);
+        Assert.assertEquals(cost.getBranches().size(), 1);
+        Assert.assertEquals(cost.getBranches().get(0x10).getBest(), 17 + 1);
+        Assert.assertEquals(cost.getDefault().get().getWorst(), 17 + 1 + 11 + 1);
+        Assert.assertEquals(cost.getProcess().getBest(), 18);
+        Assert.assertEquals(cost.getProcess().getWorst(), 30);
+        Assert.assertFalse(cost.getProcess().hasLoops());
+
+        Properties p = new Properties();
+        p.setProperty("return", "5");
+        p.setProperty("call.javacard.framework.7.1", "100");
+        cost = cap.getCycleCosts(CostProfile.fromProperties(p)).get(SyntheticCAP.APPLET_AID);
+        Assert.assertEquals(cost.getBranches().get(0x10).getWorst(), 17 + 5);
+        Assert.assertEquals(cost.getDefault().get().getBest(), 17 + 1 + 101 + 5);
+
+        p.setProperty("sadd_typo", "1");
+        Assert.assertThrows(IllegalArgumentException.class, () -> CostProfile.fromProperties(p));
+    }
+
+    @Test
+    public void testLint() throws Exception {
+        CAPFile cap = synthetic();
+        // The only allocations are in install() and the constructor
+        Assert.assertTrue(cap.lint(Collections.emptyMap()).isEmpty());
+
+        ExportFile exp = ExportFile.fromStream(new ByteArrayInputStream(SyntheticCAP.export("javacard/framework/JCSystem", "requestObjectDeletion", "()V")));
+        Assert.assertEquals(exp.getPackage().getName().get(), "javacard.framework");
+        Assert.assertEquals(exp.getPackage().getAid(), new AID("A0000000620101"));
+        Assert.assertEquals(exp.getClassName(7).get(), "javacard.framework.JCSystem");
+        Assert.assertFalse(exp.getMethodName(7, 1, false).isPresent());
+
+        List<Lint.Finding> findings = cap.lint(Collections.singletonMap(exp.getPackage().getAid(), exp));
+        Assert.assertEquals(findings.size(), 1);
+        Lint.Finding f = findings.get(0);
+        Assert.assertEquals(f.getRule(), Lint.Rule.OBJECT_DELETION);
+        Assert.assertEquals(f.getMethodOffset(), SyntheticCAP.PROCESS);
+        Assert.assertEquals(f.getDetail(), "javacard.framework.JCSystem.requestObjectDeletion()V");
+    }
+
+    @Test
+    public void testDisassemble() throws Exception {
+        ExportFile exp = ExportFile.fromStream(new ByteArrayInputStream(SyntheticCAP.export("javacard/framework/ISOException", "throwIt", "(S)V")));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        synthetic().disassemble(new PrintStream(bos, true, "UTF-8"), Collections.singletonMap(exp.getPackage().getAid(), exp));
+        String listing = bos.toString("UTF-8");
+        Assert.assertTrue(listing.startsWith(".package testapplets.empty {"));
+        Assert.assertTrue(listing.contains("0xA0:0x0:0x0:0x0:0x62:0x1:0x1 1.3;\t\t// 0 javacard.framework"));
+        Assert.assertTrue(listing.contains("staticMethodRef 0.8.13;\t\t// javacard.framework.JCSystem.makeTransientByteArray(SB)[B"));
+        Assert.assertTrue(listing.contains("invokestatic 5;\t\t// javacard.framework.ISOException.throwIt(S)V"));
+        Assert.assertTrue(listing.contains("slookupswitch { 16: L19, default: L20 };"));
+        Assert.assertTrue(listing.contains("L19:    return;"));
+        Assert.assertTrue(listing.contains(".array byte[3] 010203;"));
+    }
+
+    @Test
+    public void testInterpreter() throws Exception {
+        ExportFile exp = ExportFile.fromStream(new ByteArrayInputStream(SyntheticCAP.framework()));
+        Interpreter vm = synthetic().interpreter(Collections.singletonMap(exp.getPackage().getAid(), exp));
+        Assert.assertEquals(vm.transmit(HexUtils.hex2bin("00100000")).getSW(), 0x6A82);
+        vm.install(SyntheticCAP.APPLET_AID);
+        List<Interpreter.Allocation> allocations = vm.getProfile().getAllocations();
+        Assert.assertEquals(allocations.size(), 2);
+        Assert.assertEquals(allocations.get(1).getDescription(), "transient byte[32]");
+        Assert.assertEquals(allocations.get(1).getEvent(), MemoryFootprint.CLEAR_ON_DESELECT);
+        Assert.assertEquals(allocations.get(1).getMethodOffset(), SyntheticCAP.INIT);
+        Assert.assertEquals(vm.getProfile().getPersistentWriteCount(), 1);
+
+        // process() of the synthetic applet does not handle SELECT
+        Assert.assertEquals(vm.transmit(HexUtils.hex2bin("00A4040006010203040506")).getSW(), 0x6D00);
+        Interpreter.Exchange ok = vm.transmit(HexUtils.hex2bin("00100000"));
+        Assert.assertEquals(ok.getResponse(), HexUtils.hex2bin("9000"));
+        Assert.assertEquals(ok.getBytecodeCount(), 8);
+        Interpreter.Exchange unknown = vm.transmit(HexUtils.hex2bin("00200000"));
+        Assert.assertEquals(unknown.getSW(), 0x6D00);
+        Assert.assertEquals(unknown.getBytecodeCount(), 9);
+        Assert.assertFalse(unknown.getError().isPresent());
+
+        Interpreter.Profile profile = vm.getProfile();
+        Assert.assertEquals(profile.getOpcodeCount(Opcodes.SLOOKUPSWITCH), 3);
+        Interpreter.MethodProfile process = profile.getMethods().get(0);
+        Assert.assertEquals(process.getOffset(), SyntheticCAP.PROCESS);
+        Assert.assertEquals(process.getCalls(), 3);
+        Assert.assertEquals(process.getInclusive(), 9 + 8 + 9);
+
+        // Without the export file of the framework, getBuffer() is not known
+        vm = synthetic().interpreter(Collections.emptyMap());
+        try {
+            vm.install(SyntheticCAP.APPLET_AID);
+            Assert.fail("Applet.<init>() should be unknown");
+        } catch (UnsupportedOperationException e) {
+            Assert.assertTrue(e.getMessage().contains("0.3.0"));
+        }
+    }
+
+    @Test
+    public void testSourceMap() throws Exception {
+        Assert.assertFalse(synthetic().getSourceMap().isPresent());
+        Map<String, byte[]> entries = SyntheticCAP.entries();
+        entries.put(SyntheticCAP.PKG + "Debug.cap", SyntheticCAP.component(12, SyntheticCAP.DEBUG));
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.zip(entries, false));
+        SourceMap map = cap.getSourceMap().get();
+        Assert.assertEquals(map.getMethodCount(), 3);
+        Assert.assertFalse(map.lookup(0).isPresent());
+        Assert.assertFalse(map.lookup(cap.getMethodComponent().get().getSize()).isPresent());
+
+        // The return of the first case of the switch in process()
+        SourceMap.Location l = map.lookup(SyntheticCAP.PROCESS + 2 + 16).get();
+        Assert.assertEquals(l.getClassName(), "testapplets.empty.Empty");
+        Assert.assertEquals(l.getMethodName(), "process");
+        Assert.assertEquals(l.getDescriptor(), "(Ljavacard/framework/APDU;)V");
+        Assert.assertEquals(l.getMethodOffset(), SyntheticCAP.PROCESS);
+        Assert.assertEquals(l.getPc(), 16);
+        Assert.assertEquals(l.getLine().getAsInt(), 22);
+        Assert.assertEquals(l.toString(), "testapplets.empty.Empty.process(Empty.java:22)");
+        // Method header
+        l = map.lookup(SyntheticCAP.INIT).get();
+        Assert.assertEquals(l.getPc(), -2);
+        Assert.assertFalse(l.getLine().isPresent());
+        Assert.assertEquals(l.getFrame(), "testapplets.empty.Empty.<init>");
+        Assert.assertEquals(map.lookup(SyntheticCAP.INSTALL + 2 + 5).get().getLine().getAsInt(), 11);
+
+        String samples = "# folded\n0x1F+20 3\n0x01+7;0x0E+6;31 1\n\n4096 1\nfoo\n";
+        StringWriter out = new StringWriter();
+        map.symbolicate(new BufferedReader(new StringReader(samples)), out);
+        Assert.assertEquals(out.toString(), "# folded\ntestapplets.empty.Empty.process:24 3\n"
+                + "testapplets.empty.Empty.install:11;testapplets.empty.Empty.<init>:16;testapplets.empty.Empty.process 1\n\n4096 1\nfoo\n");
+    }
+
+    @Test
+    public void testHitProfile() throws Exception {
+        List<String> methods = Arrays.asList("a.B.<init>()V", "a.B.install([BSB)V", "a.B.process(Ljavacard/framework/APDU;)V", "a.B.helper()V");
+        HitProfile hits = HitProfile.decode(methods, HexUtils.hex2bin("000100017FFF0000"));
+        Assert.assertEquals(hits.getHits().size(), 4);
+        Assert.assertEquals(hits.getTotal(), 2 + 0x7FFF);
+        Assert.assertEquals(hits.getHottest().size(), 3);
+        Assert.assertEquals(hits.getHottest().get(0).getMethod(), methods.get(2));
+        Assert.assertTrue(hits.getHottest().get(0).isSaturated());
+        Assert.assertEquals(hits.getHottest().get(1).getId(), 0);
+
+        // First page only
+        Assert.assertEquals(HitProfile.decode(methods, HexUtils.hex2bin("0003")).getHits().size(), 1);
+        Assert.assertEquals(HitProfile.pages(methods.size()), 1);
+        Assert.assertEquals(HitProfile.pages(HitProfile.PAGE + 1), 2);
+        Assert.assertEquals(HitProfile.command(1, true), HexUtils.hex2bin("80FE010100"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> HitProfile.decode(methods, HexUtils.hex2bin("00")));
+        Assert.assertThrows(IllegalArgumentException.class, () -> HitProfile.decode(methods, new byte[10]));
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        CAPFile cap = synthetic();
+        Assert.assertTrue(cap.diff(synthetic()).isEmpty());
+
+        // javacard.framework 1.5 and ISOException token 2 instead of throwIt()
+        Map<String, byte[]> entries = SyntheticCAP.entries();
+        entries.get(SyntheticCAP.PKG + "Import.cap")[4] = 0x05;
+        entries.get(SyntheticCAP.PKG + "ConstantPool.cap")[3 + 2 + 5 * 4 + 3] = 0x02;
+        CAPDiff diff = cap.diff(CAPFile.fromBytes(SyntheticCAP.zip(entries, false)));
+        Assert.assertEquals(diff.getComponents().size(), 2);
+        Assert.assertEquals(diff.getComponents().get(0).getName(), "Import");
+        Assert.assertEquals(diff.getComponents().get(1).getName(), "ConstantPool");
+        Assert.assertEquals(diff.getComponents().get(1).getDelta(), 0);
+        Assert.assertEquals(diff.getComponents().get(1).getChangedBytes(), 1);
+        Assert.assertEquals(diff.getImports(), Collections.singletonList("  javacard.framework v1.3 -> v1.5"));
+        Assert.assertEquals(diff.getAddedConstants(), Collections.singletonList("staticMethodRef javacard.framework.class#7.static#2"));
+        Assert.assertEquals(diff.getRemovedConstants(), Collections.singletonList("staticMethodRef javacard.framework.class#7.static#1"));
+        Assert.assertTrue(diff.getMethods().isEmpty());
+        Assert.assertTrue(diff.getAddedClasses().isEmpty());
+
+        // Internal references by name, not offset
+        entries = SyntheticCAP.entries();
+        entries.put(SyntheticCAP.PKG + "Debug.cap", SyntheticCAP.component(12, SyntheticCAP.DEBUG));
+        diff = cap.diff(CAPFile.fromBytes(SyntheticCAP.zip(entries, false)));
+        Assert.assertEquals(diff.getComponents().size(), 1);
+        Assert.assertEquals(diff.getComponents().get(0).getFromSize(), -1);
+        Assert.assertTrue(diff.getAddedConstants().isEmpty());
+
+        // Blocks are found also after an insertion
+        byte[] a = new byte[4096];
+        new Random(1).nextBytes(a);
+        byte[] b = new byte[a.length + 3];
+        System.arraycopy(a, 0, b, 0, 1000);
+        System.arraycopy(a, 1000, b, 1003, a.length - 1000);
+        a[3000] ^= 1;
+        int changed = CAPDiff.changed(a, b);
+        Assert.assertTrue(changed >= 4 && changed <= 3 + 2 * CAPDiff.BLOCK, "changed " + changed);
+        Assert.assertEquals(CAPDiff.changed(b, b), 0);
+    }
+
+    @Test
+    public void testPersistentWrites() throws Exception {
+        CAPFile cap = synthetic();
+        PersistentWrites writes = cap.getPersistentWrites(Collections.emptyMap());
+        Assert.assertEquals(writes.getMethods().size(), 3);
+        PersistentWrites.MethodWrites init = writes.getMethods().get(1);
+        Assert.assertEquals(init.getOffset(), SyntheticCAP.INIT);
+        Assert.assertEquals(init.getStaticStoreCount(), 1);
+        Assert.assertEquals(init.getTotal(), 1);
+        Assert.assertTrue(writes.getTransactions().isEmpty());
+        Assert.assertEquals(writes.getPaths().get(SyntheticCAP.APPLET_AID).getProcess().getWorst(), 0);
+        Assert.assertEquals(PersistentWrites.storeProfile().bytecode(Opcodes.PUTFIELD_I_THIS), 1);
+        Assert.assertEquals(PersistentWrites.storeProfile().bytecode(Opcodes.SADD), 0);
+
+        // With process() calling Util.arrayCopy() instead
+        ExportFile exp = ExportFile.fromStream(new ByteArrayInputStream(SyntheticCAP.export("javacard/framework/Util", "arrayCopy", "([BS[BSS)S")));
+        Map<AID, ExportFile> exports = Collections.singletonMap(exp.getPackage().getAid(), exp);
+        writes = cap.getPersistentWrites(exports);
+        Assert.assertEquals(writes.getMethods().get(2).getArrayCopyCount(), 1);
+        List<Lint.Finding> findings = cap.lint(exports);
+        Assert.assertEquals(findings.size(), 1);
+        Assert.assertEquals(findings.get(0).getRule(), Lint.Rule.ATOMIC_COPY);
+
+        // Or beginTransaction(), without a commit
+        exp = ExportFile.fromStream(new ByteArrayInputStream(SyntheticCAP.export("javacard/framework/JCSystem", "beginTransaction", "()V")));
+        writes = cap.getPersistentWrites(Collections.singletonMap(exp.getPackage().getAid(), exp));
+        Assert.assertEquals(writes.getTransactions().size(), 1);
+        PersistentWrites.Transaction t = writes.getTransactions().get(0);
+        Assert.assertEquals(t.getMethodOffset(), SyntheticCAP.PROCESS);
+        Assert.assertEquals(t.getEnd(), -1);
+        Assert.assertEquals(t.getWriteCount(), 0);
+        Assert.assertTrue(t.fits(0, 8));
+    }
+}
@@ -0,0 +1,410 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class TestCAPFile {
+
+    @Test
+    public void testOpenMatchesStream() throws Exception {
+        for (boolean stored : Arrays.asList(true, false)) {
+            byte[] zip = SyntheticCAP.zip(SyntheticCAP.entries(), stored);
+            Path tmp = Files.createTempFile("synthetic", ".cap");
+            try {
+                Files.write(tmp, zip);
+                CAPFile streamed = CAPFile.fromBytes(zip);
+                CAPFile mapped = CAPFile.open(tmp);
+
+                Assert.assertEquals(mapped.getFile(), Optional.of(tmp));
+                Assert.assertEquals(mapped.getPackageName(), "testapplets.empty");
+                Assert.assertEquals(mapped.getPackageAID(), SyntheticCAP.PACKAGE_AID);
+                Assert.assertEquals(mapped.getPackageVersion(), streamed.getPackageVersion());
+                Assert.assertEquals(mapped.getAppletAIDs(), Collections.singletonList(SyntheticCAP.APPLET_AID));
+                Assert.assertEquals(mapped.getApplets().get(SyntheticCAP.APPLET_AID), "testapplets.empty.Empty");
+                Assert.assertEquals(mapped.getImports(), streamed.getImports());
+                Assert.assertEquals(mapped.guessJavaCardVersion(), Optional.of("2.2.2"));
+                Assert.assertEquals(mapped.getCode(), streamed.getCode());
+                Assert.assertEquals(mapped.getLoadFileDataHash("SHA-256"), streamed.getLoadFileDataHash("SHA-256"));
+                Assert.assertEquals(mapped.getMetaInfEntry("MANIFEST.MF"), streamed.getMetaInfEntry("MANIFEST.MF"));
+            } finally {
+                Files.delete(tmp);
+            }
+        }
+    }
+
+    @Test
+    public void testLoadFileDataHashes() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.entries(), false));
+        Map<String, byte[]> hashes = cap.getLoadFileDataHashes("SHA-1", "SHA-256", "SHA-384", "SHA-512");
+        Assert.assertEquals(hashes.keySet(), Arrays.asList("SHA-1", "SHA-256", "SHA-384", "SHA-512"));
+        for (Map.Entry<String, byte[]> e : hashes.entrySet()) {
+            Assert.assertEquals(e.getValue(), MessageDigest.getInstance(e.getKey()).digest(cap.getCode()));
+        }
+        Assert.assertEquals(cap.getCodeLength(false), cap.getCode().length);
+    }
+
+    @Test
+    public void testImmutable() throws Exception {
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.entries(), false));
+        byte[] hash = cap.getLoadFileDataHash("SHA-256");
+        hash[0] ^= 0x01;
+        Assert.assertNotEquals(cap.getLoadFileDataHash("SHA-256"), hash);
+        byte[] code = cap.getCode();
+        code[0] ^= 0x01;
+        Assert.assertNotEquals(cap.getCode(), code);
+        byte[] mf = cap.getMetaInfEntry("MANIFEST.MF");
+        mf[0] ^= 0x01;
+        Assert.assertNotEquals(cap.getMetaInfEntry("MANIFEST.MF"), mf);
+        Assert.assertSame(cap.getAppletAIDs(), cap.getAppletAIDs());
+        Assert.assertThrows(UnsupportedOperationException.class, () -> cap.getFlags().add("exports"));
+    }
+
+    @Test
+    public void testBuffers() throws Exception {
+        byte[] zip = SyntheticCAP.zip(SyntheticCAP.entries(), true);
+        Path tmp = Files.createTempFile("synthetic", ".cap");
+        try {
+            Files.write(tmp, zip);
+            CAPFile mapped = CAPFile.open(tmp);
+            ByteBuffer method = mapped.getComponentBuffer("Method").get();
+            Assert.assertTrue(method.isReadOnly());
+            // Stored entries are served straight from the mapping
+            Assert.assertTrue(method.isDirect());
+            byte[] copy = new byte[method.remaining()];
+            method.get(copy);
+            Assert.assertEquals(copy, mapped.getComponent("Method"));
+            // Consuming one view does not affect the next one
+            Assert.assertEquals(mapped.getComponentBuffer("Method").get().remaining(), copy.length);
+            Assert.assertFalse(mapped.getComponentBuffer("Export").isPresent());
+            Assert.assertEquals(mapped.getZipEntryBuffer("META-INF/MANIFEST.MF").get().remaining(), mapped.getMetaInfEntry("MANIFEST.MF").length);
+        } finally {
+            Files.delete(tmp);
+        }
+        AID aid = SyntheticCAP.APPLET_AID;
+        Assert.assertTrue(aid.getBuffer().isReadOnly());
+        Assert.assertEquals(aid.getBuffer(), ByteBuffer.wrap(aid.getBytes()));
+    }
+
+    // Offset of the first occurrence of a little-endian signature
+    static int find(byte[] zip, int signature) {
+        ByteBuffer b = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i + 4 <= zip.length; i++) {
+            if (b.getInt(i) == signature)
+                return i;
+        }
+        throw new IllegalArgumentException("Signature not found");
+    }
+
+    @Test
+    public void testOpenMalformed() throws Exception {
+        byte[] zip = SyntheticCAP.zip(SyntheticCAP.entries(), true);
+        int cen = find(zip, 0x02014b50);
+        int eocd = find(zip, 0x06054b50);
+        // Name running past the end, central directory after its end and a local header past the end
+        byte[][] broken = {zip.clone(), zip.clone(), zip.clone()};
+        ByteBuffer.wrap(broken[0]).order(ByteOrder.LITTLE_ENDIAN).putShort(cen + 28, (short) 0xFFFF);
+        ByteBuffer.wrap(broken[1]).order(ByteOrder.LITTLE_ENDIAN).putInt(eocd + 16, zip.length);
+        ByteBuffer.wrap(broken[2]).order(ByteOrder.LITTLE_ENDIAN).putInt(cen + 42, zip.length - 10);
+        Path tmp = Files.createTempFile("malformed", ".cap");
+        try {
+            for (byte[] b : broken) {
+                Files.write(tmp, b);
+                Assert.assertThrows(IOException.class, () -> CAPFile.open(tmp));
+            }
+        } finally {
+            Files.delete(tmp);
+        }
+    }
+
+    @Test
+    public void testStreamingRetention() throws Exception {
+        byte[] zip = SyntheticCAP.zip(SyntheticCAP.entries(), false);
+        CAPFile full = CAPFile.fromBytes(zip);
+        // Components are not in load order in the archive, hashes must still match
+        CAPFile cap = CAPFile.fromStream(new ByteArrayInputStream(zip), CAPFile.retain("Import", "Applet"), "SHA-256", "SHA-1");
+        Assert.assertEquals(cap.getPackageAID(), full.getPackageAID());
+        Assert.assertEquals(cap.getAppletAIDs(), full.getAppletAIDs());
+        Assert.assertEquals(cap.getImports(), full.getImports());
+        Assert.assertEquals(cap.getLoadFileDataHash("SHA-256"), full.getLoadFileDataHash("SHA-256"));
+        Assert.assertEquals(cap.getLoadFileDataHash("SHA-1"), full.getLoadFileDataHash("SHA-1"));
+        Assert.assertEquals(cap.getCodeLength(true), full.getCodeLength(true));
+        Assert.assertNull(cap.getComponent("Method"));
+        Assert.assertEquals(cap.getComponentSize("Method"), Optional.of(SyntheticCAP.METHODS.length + 3));
+        Assert.assertEquals(cap.getComponentSize("Export"), Optional.empty());
+        Assert.assertFalse(cap.getZipEntryBuffer("META-INF/MANIFEST.MF").isPresent());
+        Assert.assertThrows(IllegalStateException.class, cap::getCode);
+        Assert.assertThrows(IllegalStateException.class, () -> cap.getLoadFileDataHash("SHA-512"));
+
+        // Skipping code leaves no hashes, but the rest is usable
+        CAPFile skipped = CAPFile.fromStream(new ByteArrayInputStream(zip), name -> name.endsWith("Method.cap") ? CAPFile.Retention.SKIP : CAPFile.Retention.KEEP, "SHA-256");
+        Assert.assertEquals(skipped.getApplets(), full.getApplets());
+        Assert.assertThrows(IllegalStateException.class, () -> skipped.getLoadFileDataHash("SHA-256"));
+    }
+
+    @Test
+    public void testExtendedFormat() throws Exception {
+        byte[] zip = SyntheticCAP.zip(SyntheticCAP.extended(), false);
+        CAPFile cap = CAPFile.fromBytes(zip);
+        Assert.assertTrue(cap.isExtended());
+        Assert.assertEquals(cap.getCAPVersion(), "2.3");
+        Assert.assertEquals(cap.getPackageAID(), SyntheticCAP.PACKAGE_AID);
+        Assert.assertEquals(cap.getPackages().size(), 2);
+        Assert.assertEquals(cap.getPackages().get(1).getName(), Optional.of("testapplets.lib"));
+        Assert.assertEquals(cap.getPackages().get(1).getVersionString(), "1.1");
+        Assert.assertEquals(cap.getHeaderComponent().getCAPAID(), Optional.of(new AID("0102030405FF")));
+        Assert.assertEquals(cap.getAppletAIDs(), Collections.singletonList(SyntheticCAP.APPLET_AID));
+        Assert.assertTrue(cap.getMethodComponent().get().isExtended());
+        DirectoryComponent directory = cap.getDirectoryComponent().get();
+        Assert.assertTrue(directory.hasExtendedSizes());
+        Assert.assertEquals(directory.getComponentCount(), 12);
+        Assert.assertEquals(directory.getComponentSize(Component.TAG_METHOD), SyntheticCAP.METHODS.length);
+        Assert.assertEquals(directory.getStaticImageSize(), 4);
+        Assert.assertEquals(directory.getImportCount(), 1);
+        Assert.assertEquals(directory.getAppletCount(), 1);
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        cap.dump(new PrintStream(dump, true, "UTF-8"));
+        Assert.assertTrue(dump.toString("UTF-8").contains("estimates not available for the extended format"));
+        Assert.assertEquals(cap.getLoadFileDataHash("SHA-256"), MessageDigest.getInstance("SHA-256").digest(cap.getCode()));
+
+        CAPFile streamed = CAPFile.fromStream(new ByteArrayInputStream(zip), CAPFile.retain("Applet"), "SHA-256");
+        Assert.assertEquals(streamed.getLoadFileDataHash("SHA-256"), cap.getLoadFileDataHash("SHA-256"));
+    }
+
+    @Test
+    public void testMultipleLoadFiles() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<>(SyntheticCAP.entries());
+        byte[] header = SyntheticCAP.component(1, 0xDE, 0xCA, 0xFF, 0xED, 0x02, 0x02, 0x00, 0x00, 0x01, 0x05, 0x01, 0x02, 0x03, 0x04, 0x06);
+        byte[] imports = SyntheticCAP.component(4, 0x00);
+        entries.put("testapplets/lib/javacard/Header.cap", header);
+        entries.put("testapplets/lib/javacard/Import.cap", imports);
+        byte[] zip = SyntheticCAP.zip(entries, false);
+
+        CAPFile cap = CAPFile.fromBytes(zip);
+        Assert.assertEquals(cap.getPackageName(), "testapplets.empty");
+        Assert.assertEquals(cap.getLoadFiles().size(), 2);
+        Assert.assertSame(cap.getLoadFiles().get(0), cap);
+        CAPFile lib = cap.getLoadFiles().get(1);
+        Assert.assertEquals(lib.getPackageName(), "testapplets.lib");
+        Assert.assertEquals(lib.getPackageAID(), new AID("0102030406"));
+        Assert.assertTrue(lib.getApplets().isEmpty());
+        Assert.assertTrue(lib.getImports().isEmpty());
+        MessageDigest sha = MessageDigest.getInstance("SHA-256");
+        sha.update(header);
+        sha.update(imports);
+        Assert.assertEquals(lib.getLoadFileDataHash("SHA-256"), sha.digest());
+
+        // Streaming hashes the first load file
+        CAPFile streamed = CAPFile.fromStream(new ByteArrayInputStream(zip), CAPFile.retain(), "SHA-256");
+        Assert.assertEquals(streamed.getLoadFileDataHash("SHA-256"), cap.getLoadFileDataHash("SHA-256"));
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        byte[] cap = SyntheticCAP.zip(SyntheticCAP.entries(), true);
+        CAPFile expected = CAPFile.fromBytes(cap);
+        for (boolean stored : Arrays.asList(true, false)) {
+            Map<String, byte[]> jar = new LinkedHashMap<>();
+            jar.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\n".getBytes(StandardCharsets.UTF_8));
+            jar.put("testapplets/empty/javacard/empty.cap", cap);
+            Map<String, byte[]> zip = Collections.singletonMap("lib.jar", SyntheticCAP.zip(jar, stored));
+            Path tmp = Files.createTempFile("nested", ".zip");
+            try {
+                Files.write(tmp, SyntheticCAP.zip(zip, stored));
+                CAPFile nested = CAPFile.open(tmp, "lib.jar", "testapplets/empty/javacard/empty.cap");
+                Assert.assertEquals(nested.getPackageAID(), expected.getPackageAID());
+                Assert.assertEquals(nested.getApplets(), expected.getApplets());
+                Assert.assertEquals(nested.getLoadFileDataHash("SHA-256"), expected.getLoadFileDataHash("SHA-256"));
+                Assert.assertEquals(nested.getComponentBuffer("Method").get().isDirect(), stored);
+                Assert.assertThrows(IOException.class, () -> CAPFile.open(tmp, "lib.jar", "missing.cap"));
+            } finally {
+                Files.delete(tmp);
+            }
+        }
+    }
+
+    @Test
+    public void testNestedCorrupt() throws Exception {
+        byte[] jar = SyntheticCAP.zip(Collections.singletonMap("testapplets/empty/javacard/empty.cap", SyntheticCAP.zip(SyntheticCAP.entries(), true)), false);
+        // Inflated CAP not matching the CRC in the central directory of the nested JAR
+        ByteBuffer b = ByteBuffer.wrap(jar).order(ByteOrder.LITTLE_ENDIAN);
+        int cen = find(jar, 0x02014b50);
+        b.putInt(cen + 16, ~b.getInt(cen + 16));
+        Path tmp = Files.createTempFile("nested", ".zip");
+        try {
+            Files.write(tmp, SyntheticCAP.zip(Collections.singletonMap("lib.jar", jar), true));
+            Assert.assertThrows(IOException.class, () -> CAPFile.open(tmp, "lib.jar", "testapplets/empty/javacard/empty.cap"));
+        } finally {
+            Files.delete(tmp);
+        }
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        byte[] zip = SyntheticCAP.zip(SyntheticCAP.entries(), false);
+        CAPFile original = CAPFile.fromBytes(zip);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CAPFile copy = CAPFile.copy(new ByteArrayInputStream(zip), out, name -> !name.endsWith(".class") && !name.endsWith("Descriptor.cap"),
+                CAPFile.retain("Header", "Applet"), "SHA-256");
+        Assert.assertEquals(copy.getLoadFileDataHash("SHA-256"), original.getLoadFileDataHash("SHA-256"));
+        Assert.assertEquals(copy.getAppletAIDs(), original.getAppletAIDs());
+
+        CAPFile written = CAPFile.fromBytes(out.toByteArray());
+        Assert.assertFalse(written.getZipComponent("testapplets/empty/Empty.class").isPresent());
+        Assert.assertNull(written.getComponent("Descriptor"));
+        Assert.assertEquals(written.getMetaInfEntry("MANIFEST.MF"), original.getMetaInfEntry("MANIFEST.MF"));
+        Assert.assertEquals(written.getCode(), original.getCode());
+    }
+
+    @Test
+    public void testStoreReproducible() throws Exception {
+        Map<String, byte[]> entries = SyntheticCAP.entries();
+        List<String> reversed = new ArrayList<>(entries.keySet());
+        Collections.reverse(reversed);
+        Map<String, byte[]> shuffled = new LinkedHashMap<>();
+        for (String name : reversed)
+            shuffled.put(name, entries.get(name));
+
+        CAPFile a = CAPFile.fromBytes(SyntheticCAP.zip(entries, false));
+        CAPFile b = CAPFile.fromBytes(SyntheticCAP.zip(shuffled, true));
+        for (int level : Arrays.asList(-1, 0, 9)) {
+            ByteArrayOutputStream outa = new ByteArrayOutputStream();
+            ByteArrayOutputStream outb = new ByteArrayOutputStream();
+            a.storeReproducible(outa, level);
+            b.storeReproducible(outb, level);
+            Assert.assertEquals(outa.toByteArray(), outb.toByteArray());
+            CAPFile c = CAPFile.fromBytes(outa.toByteArray());
+            Assert.assertEquals(c.getCode(), a.getCode());
+            Assert.assertEquals(c.getMetaInfEntry("MANIFEST.MF"), a.getMetaInfEntry("MANIFEST.MF"));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        a.storeReproducible(out, 0);
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry manifest = zip.getNextEntry();
+        Assert.assertEquals(manifest.getName(), "META-INF/MANIFEST.MF");
+        Assert.assertEquals(Instant.ofEpochMilli(manifest.getTime()).atZone(ZoneId.systemDefault()).getYear(), 1980);
+        Assert.assertEquals(zip.getNextEntry().getName(), SyntheticCAP.PKG + "Header.cap");
+        Assert.assertEquals(zip.getNextEntry().getName(), SyntheticCAP.PKG + "Directory.cap");
+        Assert.assertEquals(zip.getNextEntry().getName(), SyntheticCAP.PKG + "Import.cap");
+        Assert.assertEquals(zip.getNextEntry().getMethod(), ZipEntry.STORED);
+    }
+
+    @Test
+    public void testVariant() throws Exception {
+        Map<String, byte[]> entries = SyntheticCAP.entries();
+        String mf = "Manifest-Version: 1.0\r\n\r\nName: testapplets/empty\r\n"
+                + "Java-Card-Package-AID: 0x1:0x2:0x3:0x4:0x5\r\nJava-Card-Package-Version: 1.0\r\n"
+                + "Java-Card-Applet-1-AID: 0x1:0x2:0x3:0x4:0x5:0x6\r\nJava-Card-Applet-1-Name: Empty\r\n\r\n";
+        entries.put("META-INF/MANIFEST.MF", mf.getBytes(StandardCharsets.UTF_8));
+        CAPFile cap = CAPFile.fromBytes(SyntheticCAP.zip(entries, false));
+        AID aid = new AID("A00000000101020304050607080910");
+        AID applet = new AID("A0000000010102030405060708091001");
+        CAPFile variant = cap.variant(aid, "2.1", Collections.singletonMap(SyntheticCAP.APPLET_AID, applet));
+
+        Assert.assertEquals(variant.getPackageAID(), aid);
+        Assert.assertEquals(variant.getPackageVersion(), "2.1");
+        Assert.assertEquals(variant.getApplets(), Collections.singletonMap(applet, "testapplets.empty.Empty"));
+        Assert.assertEquals(variant.getDirectoryComponent().get().getComponentSize(1), variant.getComponentSize("Header").get() - 3);
+        Assert.assertEquals(variant.getDirectoryComponent().get().getComponentSize(3), variant.getComponentSize("Applet").get() - 3);
+        List<String> changed = new ArrayList<>();
+        cap.diff(variant).getComponents().forEach(c -> changed.add(c.getName()));
+        Assert.assertEquals(changed, Arrays.asList("Header", "Directory", "Applet"));
+
+        // Long values are continued on the next line
+        Attributes attributes = new Manifest(new ByteArrayInputStream(variant.getMetaInfEntry("MANIFEST.MF")))
+                .getAttributes("testapplets/empty");
+        Assert.assertEquals(attributes.getValue("Java-Card-Package-AID"), "0xa0:0x0:0x0:0x0:0x1:0x1:0x2:0x3:0x4:0x5:0x6:0x7:0x8:0x9:0x10");
+        Assert.assertEquals(attributes.getValue("Java-Card-Package-Version"), "2.1");
+        Assert.assertEquals(attributes.getValue("Java-Card-Applet-1-AID"), "0xa0:0x0:0x0:0x0:0x1:0x1:0x2:0x3:0x4:0x5:0x6:0x7:0x8:0x9:0x10:0x1");
+        Assert.assertEquals(attributes.getValue("Java-Card-Applet-1-Name"), "Empty");
+        for (String line : new String(variant.getMetaInfEntry("MANIFEST.MF"), StandardCharsets.UTF_8).split("\r\n"))
+            Assert.assertTrue(line.length() <= 72, line);
+
+        // Stored and read back
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        variant.storeReproducible(out, -1);
+        Assert.assertEquals(CAPFile.fromBytes(out.toByteArray()).getCode(), variant.getCode());
+
+        Assert.assertThrows(IllegalArgumentException.class, () -> cap.variant(aid, "1.128", Collections.emptyMap()));
+        Assert.assertThrows(IllegalArgumentException.class, () -> cap.variant(aid, "1.0", Collections.singletonMap(aid, applet)));
+        Assert.assertThrows(IllegalArgumentException.class, () -> CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.extended(), false))
+                .variant(aid, "1.0", Collections.emptyMap()));
+    }
+
+    @Test
+    public void testLink() throws Exception {
+        CAPFile lib = CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.library(), false));
+        CAPFile user = CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.libraryUser(), false));
+        CAPFile linked = user.link(lib);
+
+        Assert.assertEquals(linked.getPackageAID(), SyntheticCAP.PACKAGE_AID);
+        Assert.assertEquals(linked.getAppletAIDs(), Collections.singletonList(SyntheticCAP.APPLET_AID));
+        Assert.assertEquals(linked.getImports(), Arrays.asList(new CAPPackage(new AID("A0000000620101"), 1, 3),
+                new CAPPackage(new AID("A0000000620001"), 1, 0)));
+        // Library methods follow those of the applet, which move by the size of its exception handler
+        int fail = SyntheticCAP.METHODS.length - 1 + SyntheticCAP.FAIL;
+        Assert.assertEquals(linked.getAppletComponent().get().getInstallMethodOffset(0), SyntheticCAP.INSTALL + 8);
+        ConstantPoolComponent cp = linked.getConstantPoolComponent().get();
+        Assert.assertEquals(cp.getCount(), 11);
+        Assert.assertEquals(cp.toString(5), String.format("staticMethodRef @%04x", fail));
+        Assert.assertEquals(cp.toString(8), "staticFieldRef @0004");
+        Assert.assertEquals(cp.toString(9), "staticMethodRef 0.7.1");
+        Assert.assertEquals(cp.toString(10), "classRef 0.7");
+        MethodComponent method = linked.getMethodComponent().get();
+        Assert.assertEquals(method.getHandlerCount(), 1);
+        Assert.assertEquals(method.getHandlerStartOffset(0), fail + 7);
+        Assert.assertEquals(method.getHandlerCatchTypeIndex(0), 10);
+        Assert.assertEquals(linked.getRefLocationComponent().get().getByte2IndexOffsets().length, 8 + 2);
+        Assert.assertEquals(linked.getStaticFieldComponent().get().getImageSize(), 6);
+        Assert.assertEquals(linked.getDirectoryComponent().get().getStaticImageSize(), 6);
+        Assert.assertEquals(linked.getClassComponent().get().getClassInfo(SyntheticCAP.CLASSES.length).getSuperClassRef(), 0x8100);
+        Assert.assertEquals(linked.getDescriptorComponent().get().getClassDescriptor(1).getToken(), 1);
+        Assert.assertEquals(linked.getDescriptorComponent().get().getClassDescriptor(1).getMethod(0).getType(), "(S)V");
+        Assert.assertEquals(linked.getMethodFootprints().size(), 4);
+        Assert.assertFalse(linked.getComponentBuffer("Debug").isPresent());
+        Attributes attributes = new Manifest(new ByteArrayInputStream(linked.getMetaInfEntry("MANIFEST.MF")))
+                .getAttributes("testapplets/empty");
+        Assert.assertEquals(attributes.getValue("Java-Card-Imported-Package-1-AID"), "0xa0:0x0:0x0:0x0:0x62:0x1:0x1");
+        Assert.assertEquals(attributes.getValue("Java-Card-Imported-Package-2-AID"), "0xa0:0x0:0x0:0x0:0x62:0x0:0x1");
+        Assert.assertEquals(attributes.getValue("Java-Card-Imported-Package-2-Version"), "1.0");
+
+        // Runs without the library: the reason is kept and the exception rethrown by the handler
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        linked.storeReproducible(out, -1);
+        ExportFile exp = ExportFile.fromStream(new ByteArrayInputStream(SyntheticCAP.framework()));
+        Interpreter vm = CAPFile.fromBytes(out.toByteArray()).interpreter(Collections.singletonMap(exp.getPackage().getAid(), exp));
+        vm.install(SyntheticCAP.APPLET_AID);
+        Interpreter.Exchange unknown = vm.transmit(HexUtils.hex2bin("00A4040006010203040506"));
+        Assert.assertEquals(unknown.getSW(), 0x6D00);
+        Assert.assertFalse(unknown.getError().isPresent());
+        Assert.assertTrue(vm.getProfile().getMethods().stream().anyMatch(m -> m.getOffset() == fail));
+        Assert.assertEquals(vm.getProfile().getOpcodeCount(Opcodes.ATHROW), 1);
+
+        // Not imported any more
+        Assert.assertThrows(IllegalArgumentException.class, () -> linked.link(lib));
+        Assert.assertThrows(IllegalArgumentException.class, () -> lib.link(user));
+    }
+}
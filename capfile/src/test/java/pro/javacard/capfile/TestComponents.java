@@ -0,0 +1,97 @@
+package pro.javacard.capfile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+
+public class TestComponents {
+
+    static CAPFile cap() throws Exception {
+        return CAPFile.fromBytes(SyntheticCAP.zip(SyntheticCAP.entries(), false));
+    }
+
+    @Test
+    public void testHeaderAndDirectory() throws Exception {
+        CAPFile cap = cap();
+        HeaderComponent header = cap.getHeaderComponent();
+        Assert.assertEquals(header.getMajorVersion(), 2);
+        Assert.assertEquals(header.getMinorVersion(), 1);
+        Assert.assertEquals(header.getFlags(), HeaderComponent.ACC_APPLET);
+        Assert.assertEquals(header.getPackageAID(), SyntheticCAP.PACKAGE_AID);
+        Assert.assertFalse(header.getPackageName().isPresent());
+
+        DirectoryComponent directory = cap.getDirectoryComponent().get();
+        Assert.assertEquals(directory.getComponentCount(), 11);
+        Assert.assertEquals(directory.getComponentSize(Component.TAG_METHOD), SyntheticCAP.METHODS.length);
+        Assert.assertEquals(directory.getStaticImageSize(), 4);
+        Assert.assertEquals(directory.getImportCount(), 1);
+        Assert.assertEquals(directory.getAppletCount(), 1);
+        Assert.assertFalse(directory.hasExtendedSizes());
+        Assert.assertThrows(IllegalArgumentException.class, () -> new DirectoryComponent(ByteBuffer.wrap(SyntheticCAP.component(2, new int[30]))));
+    }
+
+    @Test
+    public void testConstantPool() throws Exception {
+        ConstantPoolComponent cp = cap().getConstantPoolComponent().get();
+        Assert.assertEquals(cp.getCount(), 8);
+        Assert.assertEquals(cp.getTag(0), ConstantPoolComponent.CONSTANT_Classref);
+        Assert.assertFalse(cp.isExternal(0));
+        Assert.assertEquals(cp.getInternalOffset(2), SyntheticCAP.INIT);
+        Assert.assertTrue(cp.isExternal(7));
+        Assert.assertEquals(cp.getPackageToken(7), 0);
+        Assert.assertEquals(cp.getClassToken(7), 8);
+        Assert.assertEquals(cp.getToken(7), 13);
+        Assert.assertEquals(cp.toString(4), "virtualMethodRef 0.10.1");
+    }
+
+    @Test
+    public void testClassAndMethod() throws Exception {
+        CAPFile cap = cap();
+        ClassComponent classes = cap.getClassComponent().get();
+        Assert.assertEquals(classes.getClasses().size(), 1);
+        ClassComponent.ClassInfo empty = classes.getClasses().get(0);
+        Assert.assertEquals(empty.getSuperClassRef(), 0x8003);
+        Assert.assertEquals(empty.getPublicVirtualMethod(7), SyntheticCAP.PROCESS);
+
+        MethodComponent methods = cap.getMethodComponent().get();
+        Assert.assertEquals(methods.getHandlerCount(), 0);
+        MethodComponent.MethodInfo process = methods.getMethod(SyntheticCAP.PROCESS);
+        Assert.assertEquals(process.getMaxStack(), 2);
+        Assert.assertEquals(process.getNargs(), 2);
+        Assert.assertEquals(process.getMaxLocals(), 1);
+        Assert.assertEquals(process.getBytecodeOffset(), SyntheticCAP.PROCESS + 2);
+    }
+
+    @Test
+    public void testStaticFieldAndRefLocation() throws Exception {
+        CAPFile cap = cap();
+        StaticFieldComponent sf = cap.getStaticFieldComponent().get();
+        Assert.assertEquals(sf.getImageSize(), 4);
+        Assert.assertEquals(sf.getReferenceCount(), 2);
+        Assert.assertEquals(sf.getArrayInitCount(), 1);
+        Assert.assertEquals(sf.getArrayInitType(0), StaticFieldComponent.TYPE_BYTE);
+        Assert.assertEquals(sf.getArrayInitValues(0), new byte[]{1, 2, 3});
+        Assert.assertEquals(sf.getNonDefaultValueCount(), 0);
+
+        RefLocationComponent refs = cap.getRefLocationComponent().get();
+        Assert.assertEquals(refs.getByteIndexOffsets(), new int[0]);
+        Assert.assertEquals(refs.getByte2IndexOffsets(), new int[]{4, 8, 11, 18, 25, 28, 35, 55});
+    }
+
+    @Test
+    public void testDescriptor() throws Exception {
+        DescriptorComponent descriptor = cap().getDescriptorComponent().get();
+        Assert.assertEquals(descriptor.getClassCount(), 1);
+        DescriptorComponent.ClassDescriptor empty = descriptor.getClassDescriptor(0);
+        Assert.assertEquals(empty.getFieldCount(), 2);
+        Assert.assertEquals(empty.getField(0).getType(), "[B");
+        Assert.assertEquals(empty.getMethods().size(), 3);
+        Assert.assertEquals(empty.getMethod(0).getType(), "([BSB)V");
+        Assert.assertEquals(empty.getMethod(2).getType(), "(L0.10;)V");
+        Assert.assertEquals(empty.getMethod(2).getBytecodeCount(), 25);
+        Assert.assertTrue(empty.getMethod(1).isInit());
+        Assert.assertEquals(descriptor.getConstantPoolCount(), 8);
+        Assert.assertEquals(descriptor.getMethodType(descriptor.getConstantPoolType(7)), "(SB)[B");
+    }
+}
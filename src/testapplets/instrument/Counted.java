@@ -0,0 +1,49 @@
+package testapplets.instrument;
+
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+
+public class Counted extends Applet {
+    private short last;
+
+    private Counted(byte[] parameters, short offset, byte length) {
+        register(parameters, (short) (offset + 1), parameters[offset]);
+    }
+
+    public static void install(byte[] parameters, short offset, byte length) {
+        new Counted(parameters, offset, length);
+    }
+
+    public void process(APDU apdu) throws ISOException {
+        byte[] buffer = apdu.getBuffer();
+        switch (buffer[ISO7816.OFFSET_INS]) {
+            case 0x10:
+                last = sum(buffer, buffer[ISO7816.OFFSET_P1]);
+                break;
+            case 0x20:
+                try {
+                    check(buffer[ISO7816.OFFSET_P1]);
+                    last = 1;
+                } catch (ISOException e) {
+                    last = e.getReason();
+                }
+                break;
+            default:
+                ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    private static short sum(byte[] buffer, byte count) {
+        short s = 0;
+        for (short i = 0; i < count; i++)
+            s += buffer[(short) (ISO7816.OFFSET_CDATA + i)];
+        return s;
+    }
+
+    private static void check(byte p1) {
+        if (p1 != 0)
+            ISOException.throwIt(ISO7816.SW_WRONG_P1P2);
+    }
+}
@@ -21,20 +21,52 @@
  */
 package pro.javacard.ant;
 
+import pro.javacard.capfile.AID;
+import pro.javacard.capfile.CAPDiff;
 import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPPackage;
+import pro.javacard.capfile.CostProfile;
+import pro.javacard.capfile.CycleCost;
+import pro.javacard.capfile.ExportFile;
+import pro.javacard.capfile.HitProfile;
+import pro.javacard.capfile.Interpreter;
+import pro.javacard.capfile.Lint;
+import pro.javacard.capfile.PersistentWrites;
+import pro.javacard.capfile.SourceMap;
+import pro.javacard.capfile.LinkCost;
+import pro.javacard.capfile.MethodFootprint;
 import pro.javacard.sdk.ExportFileHelper;
 import pro.javacard.sdk.JavaCardSDK;
 import pro.javacard.sdk.OffCardVerifier;
 import pro.javacard.sdk.VerifierError;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
 import java.util.Vector;
 import java.util.stream.Collectors;
 
@@ -62,15 +94,40 @@ public final class DummyMain {
             System.out.println();
             System.out.println("But you can use it to dump/verify CAP files, like this:");
             System.out.println("$ java -jar ant-javacard.jar <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar <jarfile>!/<path/to/capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --methods <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --link[=<costs.properties>] <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --cycles[=<profile.properties>] <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --lint[=<exportdir>] <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --writes[=<exportdir>] <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --disassemble[=<exportdir>] <capfile> [<capfile> ...]");
+            System.out.println("$ java -jar ant-javacard.jar --replay=<tracefile> <capfile> [<exportdir>]");
+            System.out.println("$ java -jar ant-javacard.jar --symbolicate[=<samplefile>] <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --hits=<countersfile> <hex> [<hex> ...]");
+            System.out.println("$ java -jar ant-javacard.jar --diff <capfile> <capfile>");
+            System.out.println("$ java -jar ant-javacard.jar --static-link <capfile> <library capfile> [<library capfile> ...] <output>");
             return 1;
+        } else if ((args.size() == 2 || args.size() == 3) && args.get(0).startsWith("--replay=")) {
+            return replay(args.get(0).substring("--replay=".length()), args.get(1), args.size() == 3 ? args.get(2) : null);
+        } else if (args.size() == 3 && args.get(0).equals("--diff")) {
+            return diff(args.get(1), args.get(2));
+        } else if (args.size() >= 4 && args.get(0).equals("--static-link")) {
+            return link(args.subList(1, args.size() - 1), args.get(args.size() - 1));
+        } else if (args.size() >= 2 && args.get(0).startsWith("--hits=")) {
+            return hits(args.get(0).substring("--hits=".length()), args.subList(1, args.size()));
+        } else if (args.size() >= 2 && (args.get(0).equals("--disassemble") || args.get(0).startsWith("--disassemble="))) {
+            String option = args.remove(0);
+            return disassemble(option.contains("=") ? option.substring(option.indexOf('=') + 1) : null, args);
+        } else if (args.size() == 2 && args.get(0).startsWith("--")) {
+            return option(args.get(0), args.get(1));
         } else if (args.size() == 1) {
             // Simple dumping of capfile
             final String capfile = args.remove(0);
 
             Path path = Paths.get(capfile);
-            if (Files.isRegularFile(path) && capfile.endsWith(".cap")) {
+            if ((capfile.contains("!/") || Files.isRegularFile(path)) && capfile.endsWith(".cap")) {
                 try {
-                    CAPFile cap = CAPFile.fromBytes(Files.readAllBytes(path));
+                    CAPFile cap = openCap(capfile);
                     cap.dump(System.out);
                     return 0;
                 } catch (Exception e) {
@@ -86,7 +143,7 @@ public final class DummyMain {
                     return 1;
                 }
             } else {
-                System.err.println("Usage: java -jar ant-javacard.jar <capfile|expfile>");
+                System.err.println("Usage: java -jar ant-javacard.jar <capfile|expfile|jarfile!/capfile>");
                 return 1;
             }
         } else {
@@ -106,7 +163,7 @@ public final class DummyMain {
             // If jarfile is given, exports from jar files are extracted internally.
             Vector<File> exps = args.stream().map(File::new).collect(Collectors.toCollection(Vector::new));
 
-            CAPFile cap = CAPFile.fromBytes(Files.readAllBytes(Paths.get(capfile)));
+            CAPFile cap = CAPFile.open(Paths.get(capfile));
             try {
                 JavaCardSDK sdk = JavaCardSDK.detectSDK(sdkpath).orElseThrow(() -> new VerifierError("No SDK detected in " + sdkpath));
                 JavaCardSDK target = JavaCardSDK.detectSDK(targetsdkpath).orElseThrow(() -> new VerifierError("No target SDK detected with " + targetsdkpath));
@@ -125,6 +182,275 @@ public final class DummyMain {
         }
     }
 
+    // Plain file or CAP file inside a JAR or ZIP, like lib.jar!/pkg/javacard/pkg.cap
+    static CAPFile openCap(String capfile) throws IOException {
+        if (capfile.contains("!/")) {
+            String[] parts = capfile.split("!/");
+            return CAPFile.open(Paths.get(parts[0]), parts[1], Arrays.copyOfRange(parts, 2, parts.length));
+        }
+        return CAPFile.open(Paths.get(capfile));
+    }
+
+    static int option(String option, String capfile) {
+        final CAPFile cap;
+        try {
+            cap = openCap(capfile);
+        } catch (Exception e) {
+            System.err.printf("Failed to read/parse CAP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+            return 1;
+        }
+        // Options can have a value, like --link=costs.properties
+        String value = option.contains("=") ? option.substring(option.indexOf('=') + 1) : null;
+        switch (value == null ? option : option.substring(0, option.indexOf('='))) {
+            case "--methods":
+                List<MethodFootprint> methods = new ArrayList<>(cap.getMethodFootprints());
+                if (methods.isEmpty()) {
+                    System.err.println("No method boundaries known: CAP file has neither Descriptor nor Debug component");
+                    return 1;
+                }
+                methods.sort(MethodFootprint.BY_SIZE);
+                System.out.printf("%d methods, %d bytes, max stack %d, max frame %d%n", methods.size(),
+                        methods.stream().mapToInt(MethodFootprint::getSize).sum(),
+                        methods.stream().mapToInt(MethodFootprint::getMaxStack).max().getAsInt(),
+                        methods.stream().mapToInt(MethodFootprint::getFrameSize).max().getAsInt());
+                System.out.println(" size stack locals nargs  method");
+                methods.forEach(System.out::println);
+                return 0;
+            case "--link":
+                LinkCost.Model model = LinkCost.Model.DEFAULT;
+                if (value != null) {
+                    Properties costs = new Properties();
+                    try (InputStream in = Files.newInputStream(Paths.get(value))) {
+                        costs.load(in);
+                        model = LinkCost.Model.fromProperties(costs);
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.printf("Failed to read link costs: %s: %s%n", value, e.getMessage());
+                        return 1;
+                    }
+                }
+                LinkCost link = cap.getLinkCost();
+                System.out.println(link);
+                System.out.println("entries sites  import");
+                for (CAPPackage imp : link.getImportEntryCounts().keySet()) {
+                    System.out.printf("%7d %5d  %s%n", link.getImportEntryCounts().get(imp), link.getImportSiteCounts().get(imp), imp);
+                }
+                System.out.printf("%7d %5d  (internal)%n", link.getInternalEntryCount(), link.getInternalSiteCount());
+                System.out.println("Estimated link cost: " + link.estimate(model));
+                return 0;
+            case "--cycles":
+                CostProfile profile = CostProfile.DEFAULT;
+                if (value != null) {
+                    try {
+                        profile = CostProfile.load(Paths.get(value));
+                    } catch (IOException | IllegalArgumentException e) {
+                        System.err.printf("Failed to read cost profile: %s: %s%n", value, e.getMessage());
+                        return 1;
+                    }
+                }
+                Map<AID, CycleCost> costs = cap.getCycleCosts(profile);
+                if (costs.isEmpty()) {
+                    System.err.println("No process() method found: CAP file has no applets, or neither Descriptor nor Debug component");
+                    return 1;
+                }
+                costs.forEach((aid, cost) -> System.out.print(cycles(aid, cost)));
+                return 0;
+            case "--lint":
+            case "--writes":
+                Map<AID, ExportFile> exports = Collections.emptyMap();
+                if (value != null) {
+                    try {
+                        exports = ExportFile.load(Paths.get(value));
+                    } catch (IOException e) {
+                        System.err.printf("Failed to read export files: %s: %s%n", value, e.getMessage());
+                        return 1;
+                    }
+                }
+                if (option.startsWith("--writes")) {
+                    writes(cap.getPersistentWrites(exports));
+                    return 0;
+                }
+                List<Lint.Finding> findings = cap.lint(exports);
+                findings.forEach(System.out::println);
+                return findings.isEmpty() ? 0 : 1;
+            case "--symbolicate":
+                Optional<SourceMap> map = cap.getSourceMap();
+                if (!map.isPresent()) {
+                    System.err.println("No source mapping: CAP file has no Debug component");
+                    return 1;
+                }
+                // Samples from the file or standard input, streamed
+                try (BufferedReader in = value == null ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                        : Files.newBufferedReader(Paths.get(value), StandardCharsets.UTF_8)) {
+                    Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                    map.get().symbolicate(in, out);
+                } catch (IOException e) {
+                    System.err.printf("Failed to read samples: %s: %s%n", value, e.getMessage());
+                    return 1;
+                }
+                return 0;
+            default:
+                System.err.println("Unknown option: " + option);
+                return 1;
+        }
+    }
+
+    // Many CAP files in one go, sharing the export files. A CAP file that fails to parse is
+    // reported and skipped.
+    static int disassemble(String expdir, List<String> capfiles) {
+        Map<AID, ExportFile> exports = Collections.emptyMap();
+        if (expdir != null) {
+            try {
+                exports = ExportFile.load(Paths.get(expdir));
+            } catch (IOException e) {
+                System.err.printf("Failed to read export files: %s: %s%n", expdir, e.getMessage());
+                return 1;
+            }
+        }
+        int result = 0;
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+        for (String capfile : capfiles) {
+            try {
+                CAPFile cap = openCap(capfile);
+                out.println("// " + capfile);
+                for (CAPFile lf : cap.getLoadFiles())
+                    lf.disassemble(out, exports);
+            } catch (Exception e) {
+                out.flush();
+                System.err.printf("Failed to read/parse CAP file: %s: %s: %s%n", capfile, e.getClass().getSimpleName(), e.getMessage());
+                result = 1;
+            }
+        }
+        out.flush();
+        return result;
+    }
+
+    // Links the libraries into the first CAP file, in order, and saves it
+    static int link(List<String> caps, String output) {
+        try {
+            CAPFile cap = openCap(caps.get(0));
+            CAPFile linked = cap;
+            for (String library : caps.subList(1, caps.size()))
+                linked = linked.link(openCap(library));
+            try (OutputStream out = Files.newOutputStream(Paths.get(output))) {
+                linked.storeReproducible(out, -1);
+            }
+            System.out.printf("%s: load file %d bytes (%d + libraries), %d imports (%d)%n", output, linked.getCodeLength(false),
+                    cap.getCodeLength(false), linked.getImports().size(), cap.getImports().size());
+            return 0;
+        } catch (Exception e) {
+            System.err.printf("Failed to link CAP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+            return 1;
+        }
+    }
+
+    // What changed between two builds, like diff(1) returns 0 only if the components are identical
+    static int diff(String from, String to) {
+        final CAPFile a;
+        final CAPFile b;
+        try {
+            a = openCap(from);
+            b = openCap(to);
+        } catch (Exception e) {
+            System.err.printf("Failed to read/parse CAP file: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+            return 1;
+        }
+        System.out.printf("--- %s (LFDBH %s)%n", from, bin2hex(a.getLoadFileDataHash("SHA-256")).toLowerCase());
+        System.out.printf("+++ %s (LFDBH %s)%n", to, bin2hex(b.getLoadFileDataHash("SHA-256")).toLowerCase());
+        CAPDiff diff = a.diff(b);
+        System.out.println(diff);
+        if (diff.isEmpty())
+            return 0;
+        System.out.println("Component        from -> to      delta");
+        diff.getComponents().forEach(System.out::println);
+        if (!diff.getImports().isEmpty())
+            System.out.println("Imports:");
+        diff.getImports().forEach(i -> System.out.println("  " + i));
+        if (!diff.getAddedClasses().isEmpty() || !diff.getRemovedClasses().isEmpty())
+            System.out.println("Classes:");
+        diff.getAddedClasses().forEach(c -> System.out.println("  + " + c));
+        diff.getRemovedClasses().forEach(c -> System.out.println("  - " + c));
+        if (!diff.getMethods().isEmpty())
+            System.out.println("Methods:");
+        diff.getMethods().forEach(m -> System.out.println("  " + m));
+        if (!diff.getAddedConstants().isEmpty() || !diff.getRemovedConstants().isEmpty())
+            System.out.println("Constant pool:");
+        diff.getAddedConstants().forEach(c -> System.out.println("  + " + c));
+        diff.getRemovedConstants().forEach(c -> System.out.println("  - " + c));
+        return 1;
+    }
+
+    // Counters of an instrumented build, as read from the card, page by page
+    static int hits(String counters, List<String> pages) {
+        final HitProfile hits;
+        try {
+            ByteArrayOutputStream dump = new ByteArrayOutputStream();
+            for (String page : pages)
+                dump.write(Misc.stringToBin(page));
+            hits = HitProfile.decode(HitProfile.readMethods(Paths.get(counters)), dump.toByteArray());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.printf("Failed to decode counters: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+            return 1;
+        }
+        System.out.println(hits);
+        System.out.println(" count   method");
+        hits.getHottest().forEach(System.out::println);
+        return 0;
+    }
+
+    // Installs all applets and runs the commands of the trace, for a profile of what was executed
+    static int replay(String trace, String capfile, String expdir) {
+        final List<byte[]> commands;
+        final Interpreter vm;
+        try {
+            commands = Interpreter.readTrace(Paths.get(trace));
+            CAPFile cap = openCap(capfile);
+            vm = cap.interpreter(expdir == null ? Collections.emptyMap() : ExportFile.load(Paths.get(expdir)));
+            for (AID applet : cap.getAppletAIDs())
+                vm.install(applet);
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Failed to load: %s: %s%n", e.getClass().getSimpleName(), e.getMessage());
+            return 1;
+        }
+        int result = 0;
+        for (byte[] command : commands) {
+            Interpreter.Exchange exchange = vm.transmit(command);
+            System.out.println(">> " + bin2hex(command));
+            System.out.println("<< " + exchange);
+            if (exchange.getError().isPresent())
+                result = 1;
+        }
+        Interpreter.Profile profile = vm.getProfile();
+        System.out.println("Executed " + profile);
+        System.out.println(" calls exclusive inclusive  method");
+        profile.getMethods().forEach(System.out::println);
+        profile.getAllocations().forEach(a -> System.out.println("Allocation " + a));
+        profile.getOpcodeCounts().forEach((op, n) -> System.out.printf("%9d  %s%n", n, op));
+        return result;
+    }
+
+    static void writes(PersistentWrites writes) {
+        System.out.println(" field static  array   copy   tx  method");
+        writes.getMethods().stream().filter(m -> m.getTotal() > 0 || m.getTransactionCount() > 0).forEach(System.out::println);
+        for (PersistentWrites.Transaction t : writes.getTransactions()) {
+            System.out.println("Transaction in " + t);
+        }
+        System.out.println("Store bytecodes along the paths of process():");
+        writes.getPaths().forEach((aid, cost) -> System.out.print(cycles(aid, cost)));
+    }
+
+    // Best and worst case cost of process(), by case of the first switch (usually INS)
+    static String cycles(AID aid, CycleCost cost) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Applet %s: process() %s%n", aid, cost.getProcess()));
+        if (cost.getDefault().isPresent()) {
+            sb.append(String.format("     case     best    worst%n"));
+            cost.getBranches().forEach((k, r) -> sb.append(String.format("  %7s %8d %8d%s%n", String.format("%02X", k & 0xFFFF), r.getBest(), r.getWorst(), r.hasLoops() ? "+" : "")));
+            CycleCost.Range r = cost.getDefault().get();
+            sb.append(String.format("  default %8d %8d%s%n", r.getBest(), r.getWorst(), r.hasLoops() ? "+" : ""));
+        }
+        return sb.toString();
+    }
+
     public static void main(String[] argv) {
         try {
             runcycle(argv);
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+import pro.javacard.capfile.HitProfile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Rewrites the compiled classes of a package to count method entries on the card. Every method with
+// code, but static initializers (the converter only allows array initialization there), starts with
+// a call to a generated counter class. process(APDU) also asks the counter class to answer the dump
+// command first. See HitProfile for the command and the decoding of the response.
+final class Instrument {
+    static final String COUNTERS = "$Counters";
+    private static final String APDU = "Ljavacard/framework/APDU;";
+    // Prologue sizes are a multiple of 4, so that the padding of switches does not change
+    private static final int HIT = 8;
+    private static final int DUMP = 8;
+
+    private final String pkg; // Internal form
+    private final List<String> methods = new ArrayList<>();
+    private int processes = 0;
+
+    Instrument(String packageName) {
+        this.pkg = packageName.replace('.', '/');
+    }
+
+    // Rewrites the classes of the package in place, in a stable order
+    void rewrite(Path classes) throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(classes.resolve(pkg))) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(".class"))
+                    .filter(p -> !p.getFileName().toString().equals(COUNTERS + ".class"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path f : files) {
+            Files.write(f, rewrite(Files.readAllBytes(f)));
+        }
+    }
+
+    // Names of the instrumented methods, in the order of the counters
+    List<String> getMethods() {
+        return Collections.unmodifiableList(methods);
+    }
+
+    // Number of process() methods that answer the dump command
+    int getDumpers() {
+        return processes;
+    }
+
+    // Source of the counter class, after all classes have been rewritten
+    String source() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Generated by ant-javacard for <cap instrument=\"true\">\n");
+        sb.append("package ").append(pkg.replace('/', '.')).append(";\n\n");
+        sb.append("import javacard.framework.APDU;\n");
+        sb.append("import javacard.framework.ISO7816;\n");
+        sb.append("import javacard.framework.JCSystem;\n");
+        sb.append("import javacard.framework.Util;\n\n");
+        sb.append("final class ").append(COUNTERS).append(" {\n");
+        sb.append("    private static final short COUNT = ").append(methods.size()).append(";\n");
+        sb.append("    private static final short PAGE = ").append(HitProfile.PAGE).append(";\n");
+        sb.append("    private static short[] counters;\n\n");
+        sb.append("    private static short[] counters() {\n");
+        sb.append("        if (counters == null)\n");
+        sb.append("            counters = JCSystem.makeTransientShortArray(COUNT, JCSystem.CLEAR_ON_RESET);\n");
+        sb.append("        return counters;\n");
+        sb.append("    }\n\n");
+        sb.append("    static void hit(short id) {\n");
+        sb.append("        short[] c = counters();\n");
+        sb.append("        if (c[id] != (short) ").append(String.format("0x%04X", HitProfile.SATURATED)).append(")\n");
+        sb.append("            c[id]++;\n");
+        sb.append("    }\n\n");
+        sb.append("    static boolean dump(APDU apdu) {\n");
+        sb.append("        byte[] buffer = apdu.getBuffer();\n");
+        // Any logical channel and secure messaging bits of the first interindustry style CLA byte
+        sb.append("        if ((byte) (buffer[ISO7816.OFFSET_CLA] & 0xF0) != (byte) ").append(String.format("0x%02X", HitProfile.CLA))
+                .append(" || buffer[ISO7816.OFFSET_INS] != (byte) ").append(String.format("0x%02X", HitProfile.INS)).append(")\n");
+        sb.append("            return false;\n");
+        sb.append("        short[] c = counters();\n");
+        sb.append("        short first = (short) ((buffer[ISO7816.OFFSET_P1] & 0xFF) * PAGE);\n");
+        sb.append("        boolean clear = buffer[ISO7816.OFFSET_P2] == (byte) 0x01;\n");
+        sb.append("        short len = 0;\n");
+        sb.append("        for (short i = first; i < COUNT && i < (short) (first + PAGE); i++) {\n");
+        sb.append("            len = Util.setShort(buffer, len, c[i]);\n");
+        sb.append("            if (clear)\n");
+        sb.append("                c[i] = 0;\n");
+        sb.append("        }\n");
+        sb.append("        apdu.setOutgoingAndSend((short) 0, len);\n");
+        sb.append("        return true;\n");
+        sb.append("    }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    // Constant pool of the class being rewritten, new entries are appended
+    private static final class Pool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        String[] utf;
+        int[] classes; // Name index of class entries
+        int count;
+
+        int utf8(String s) throws IOException {
+            out.writeByte(1);
+            out.writeUTF(s);
+            return count++;
+        }
+
+        int entry(int tag, int a, int b) throws IOException {
+            out.writeByte(tag);
+            out.writeShort(a);
+            out.writeShort(b);
+            return count++;
+        }
+
+        int method(String owner, String name, String descriptor) throws IOException {
+            int nameIndex = utf8(owner);
+            out.writeByte(7);
+            out.writeShort(nameIndex);
+            int klass = count++;
+            int nat = entry(12, utf8(name), utf8(descriptor));
+            return entry(10, klass, nat);
+        }
+    }
+
+    private static void copy(DataInputStream in, DataOutputStream out, int len) throws IOException {
+        byte[] b = new byte[len];
+        in.readFully(b);
+        out.write(b);
+    }
+
+    private static void attributes(DataInputStream in, DataOutputStream out) throws IOException {
+        int count = in.readUnsignedShort();
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            out.writeShort(in.readUnsignedShort());
+            int len = in.readInt();
+            out.writeInt(len);
+            copy(in, out, len);
+        }
+    }
+
+    byte[] rewrite(byte[] klass) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(klass));
+        if (in.readInt() != 0xCAFEBABE)
+            throw new IOException("Not a class file");
+        int minor = in.readUnsignedShort();
+        int major = in.readUnsignedShort();
+
+        Pool pool = new Pool();
+        int count = in.readUnsignedShort();
+        pool.utf = new String[count];
+        pool.classes = new int[count];
+        pool.count = count;
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            pool.out.writeByte(tag);
+            switch (tag) {
+                case 1:
+                    pool.utf[i] = in.readUTF();
+                    pool.out.writeUTF(pool.utf[i]);
+                    break;
+                case 7:
+                    pool.classes[i] = in.readUnsignedShort();
+                    pool.out.writeShort(pool.classes[i]);
+                    break;
+                case 8: // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    copy(in, pool.out, 2);
+                    break;
+                case 15: // MethodHandle
+                    copy(in, pool.out, 3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    copy(in, pool.out, 4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    copy(in, pool.out, 8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(klass.length);
+        DataOutputStream out = new DataOutputStream(body);
+        int access = in.readUnsignedShort();
+        int thisClass = in.readUnsignedShort();
+        String name = pool.utf[pool.classes[thisClass]].replace('/', '.');
+        boolean isInterface = (access & 0x0200) != 0;
+        out.writeShort(access);
+        out.writeShort(thisClass);
+        out.writeShort(in.readUnsignedShort());
+        int interfaces = in.readUnsignedShort();
+        out.writeShort(interfaces);
+        copy(in, out, interfaces * 2);
+
+        // Fields as is
+        int fields = in.readUnsignedShort();
+        out.writeShort(fields);
+        for (int i = 0; i < fields; i++) {
+            copy(in, out, 6);
+            attributes(in, out);
+        }
+
+        int hit = -1;
+        int dump = -1;
+        int stackMapTable = -1;
+        int methodCount = in.readUnsignedShort();
+        out.writeShort(methodCount);
+        for (int i = 0; i < methodCount; i++) {
+            int flags = in.readUnsignedShort();
+            int nameIndex = in.readUnsignedShort();
+            int descriptorIndex = in.readUnsignedShort();
+            out.writeShort(flags);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            String method = pool.utf[nameIndex];
+            String descriptor = pool.utf[descriptorIndex];
+            int attributes = in.readUnsignedShort();
+            out.writeShort(attributes);
+            for (int a = 0; a < attributes; a++) {
+                int attributeName = in.readUnsignedShort();
+                byte[] attribute = new byte[in.readInt()];
+                in.readFully(attribute);
+                if (pool.utf[attributeName].equals("Code") && !method.equals("<clinit>")) {
+                    boolean process = !isInterface && (flags & 0x0008) == 0 && method.equals("process") && descriptor.equals("(" + APDU + ")V");
+                    if (hit == -1)
+                        hit = pool.method(pkg + "/" + COUNTERS, "hit", "(S)V");
+                    if (process && dump == -1)
+                        dump = pool.method(pkg + "/" + COUNTERS, "dump", "(" + APDU + ")Z");
+                    // A branch to after the dump prologue needs a stack map frame from Java 6 on
+                    if (process && major >= 50 && stackMapTable == -1)
+                        stackMapTable = pool.utf8("StackMapTable");
+                    attribute = code(attribute, pool, methods.size(), hit, process ? dump : -1, stackMapTable);
+                    methods.add(name + "." + method + descriptor);
+                    if (process)
+                        processes++;
+                }
+                out.writeShort(attributeName);
+                out.writeInt(attribute.length);
+                out.write(attribute);
+            }
+        }
+        attributes(in, out);
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream(klass.length + 256);
+        DataOutputStream r = new DataOutputStream(result);
+        r.writeInt(0xCAFEBABE);
+        r.writeShort(minor);
+        r.writeShort(major);
+        if (pool.count > 0xFFFF)
+            throw new IOException("Constant pool too big for instrumentation: " + name);
+        r.writeShort(pool.count);
+        pool.bytes.writeTo(r);
+        body.writeTo(r);
+        r.flush();
+        return result.toByteArray();
+    }
+
+    // Code attribute with the prologue. Branches are relative and the prologue keeps the switch
+    // alignment, so only absolute offsets in the tables after the code need to be moved.
+    private static byte[] code(byte[] attribute, Pool pool, int id, int hit, int dump, int stackMapTable) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(attribute));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(attribute.length + HIT + DUMP + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int shift = HIT + (dump == -1 ? 0 : DUMP);
+
+        out.writeShort(Math.max(1, in.readUnsignedShort())); // max_stack
+        out.writeShort(in.readUnsignedShort()); // max_locals
+        int length = in.readInt();
+        if (length + shift > 0xFFFF)
+            throw new IOException("Method too big for instrumentation");
+        out.writeInt(length + shift);
+        // sipush id; invokestatic hit; nop; nop
+        out.write(new byte[]{0x11, (byte) (id >> 8), (byte) id, (byte) 0xB8, (byte) (hit >> 8), (byte) hit, 0x00, 0x00});
+        if (dump != -1) {
+            // aload_1; invokestatic dump; ifeq +4; return
+            out.write(new byte[]{0x2B, (byte) 0xB8, (byte) (dump >> 8), (byte) dump, (byte) 0x99, 0x00, 0x04, (byte) 0xB1});
+        }
+        copy(in, out, length);
+
+        int handlers = in.readUnsignedShort();
+        out.writeShort(handlers);
+        for (int i = 0; i < handlers; i++) {
+            out.writeShort(in.readUnsignedShort() + shift);
+            out.writeShort(in.readUnsignedShort() + shift);
+            out.writeShort(in.readUnsignedShort() + shift);
+            out.writeShort(in.readUnsignedShort());
+        }
+
+        int attributes = in.readUnsignedShort();
+        boolean frames = false;
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        DataOutputStream t = new DataOutputStream(tail);
+        for (int a = 0; a < attributes; a++) {
+            int nameIndex = in.readUnsignedShort();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            String name = pool.utf[nameIndex] == null ? "" : pool.utf[nameIndex];
+            switch (name) {
+                case "LineNumberTable":
+                    data = lines(data, shift);
+                    break;
+                case "LocalVariableTable":
+                case "LocalVariableTypeTable":
+                    data = variables(data, shift);
+                    break;
+                case "StackMapTable":
+                    data = frames(data, shift, dump != -1);
+                    frames = true;
+                    break;
+                default:
+                    break;
+            }
+            t.writeShort(nameIndex);
+            t.writeInt(data.length);
+            t.write(data);
+        }
+        if (dump != -1 && !frames && stackMapTable != -1) {
+            // The only frame, at the end of the prologue
+            attributes++;
+            t.writeShort(stackMapTable);
+            t.writeInt(3);
+            t.writeShort(1);
+            t.writeByte(shift); // same_frame
+        }
+        out.writeShort(attributes);
+        tail.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // The first line also covers the prologue
+    private static byte[] lines(byte[] data, int shift) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = in.readUnsignedShort();
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            int pc = in.readUnsignedShort();
+            out.writeShort(pc == 0 ? 0 : pc + shift);
+            out.writeShort(in.readUnsignedShort());
+        }
+        return bytes.toByteArray();
+    }
+
+    // Variables live from the start (parameters) also cover the prologue
+    private static byte[] variables(byte[] data, int shift) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = in.readUnsignedShort();
+        out.writeShort(count);
+        for (int i = 0; i < count; i++) {
+            int pc = in.readUnsignedShort();
+            int length = in.readUnsignedShort();
+            out.writeShort(pc == 0 ? 0 : pc + shift);
+            out.writeShort(pc == 0 ? length + shift : length);
+            copy(in, out, 6);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Frames are relative to the previous one, so only the first one moves. With the dump prologue,
+    // a same_frame is added at its end, unless the code already starts with a frame.
+    private static byte[] frames(byte[] data, int shift, boolean dump) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length + 1);
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = in.readUnsignedShort();
+        if (count == 0) {
+            out.writeShort(dump ? 1 : 0);
+            if (dump)
+                out.writeByte(shift);
+            return bytes.toByteArray();
+        }
+        int type = in.readUnsignedByte();
+        final int delta;
+        if (type < 64)
+            delta = type;
+        else if (type < 128)
+            delta = type - 64;
+        else if (type >= 247)
+            delta = in.readUnsignedShort();
+        else
+            throw new IOException("Reserved stack map frame type " + type);
+
+        final int moved;
+        if (dump && delta != 0) {
+            out.writeShort(count + 1);
+            out.writeByte(shift);
+            moved = delta - 1;
+        } else {
+            out.writeShort(count);
+            moved = delta + shift;
+        }
+        if (type < 64 && moved < 64) {
+            out.writeByte(moved);
+        } else if (type < 64) {
+            out.writeByte(251); // same_frame_extended
+            out.writeShort(moved);
+        } else if (type < 128 && moved < 64) {
+            out.writeByte(64 + moved);
+        } else if (type < 128) {
+            out.writeByte(247); // same_locals_1_stack_item_frame_extended
+            out.writeShort(moved);
+        } else {
+            out.writeByte(type);
+            out.writeShort(moved);
+        }
+        copy(in, out, in.available());
+        return bytes.toByteArray();
+    }
+}
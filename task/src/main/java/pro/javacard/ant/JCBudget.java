@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015-2024 Martin Paljak
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package pro.javacard.ant;
+
+// Just for Ant: <budget loadfile="" method="" staticfield="" constantpool="" applets="" relocations=""/>
+// Limits in bytes (component sizes include tag and size) or counts, -1 for no limit.
+public class JCBudget {
+    int loadfile = -1;
+    int method = -1;
+    int staticfield = -1;
+    int constantpool = -1;
+    int applets = -1;
+    int relocations = -1;
+
+    public void setLoadfile(int arg) {
+        loadfile = arg;
+    }
+
+    public void setMethod(int arg) {
+        method = arg;
+    }
+
+    public void setStaticfield(int arg) {
+        staticfield = arg;
+    }
+
+    public void setConstantpool(int arg) {
+        constantpool = arg;
+    }
+
+    public void setApplets(int arg) {
+        applets = arg;
+    }
+
+    public void setRelocations(int arg) {
+        relocations = arg;
+    }
+}
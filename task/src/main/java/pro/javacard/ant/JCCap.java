@@ -29,7 +29,15 @@ import org.apache.tools.ant.taskdefs.Java;
 import org.apache.tools.ant.taskdefs.Javac;
 import org.apache.tools.ant.types.Environment;
 import org.apache.tools.ant.types.FileSet;
+import pro.javacard.capfile.AID;
 import pro.javacard.capfile.CAPFile;
+import pro.javacard.capfile.CAPPackage;
+import pro.javacard.capfile.CostProfile;
+import pro.javacard.capfile.ExportFile;
+import pro.javacard.capfile.HitProfile;
+import pro.javacard.capfile.Lint;
+import pro.javacard.capfile.PersistentWrites;
+import pro.javacard.capfile.MemoryFootprint;
 import pro.javacard.sdk.JavaCardSDK;
 import pro.javacard.sdk.OffCardVerifier;
 import pro.javacard.sdk.SDKVersion;
@@ -37,6 +45,8 @@ import pro.javacard.sdk.VerifierError;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
@@ -62,7 +72,10 @@ public class JCCap extends Task {
     private byte[] package_aid = null;
     private String package_version = null;
     private List<JCApplet> raw_applets = new ArrayList<>();
+    private JCBudget raw_budget = null;
     private List<JCImport> raw_imports = new ArrayList<>();
+    private List<JCVariant> raw_variants = new ArrayList<>();
+    private List<JCLink> raw_links = new ArrayList<>();
     private String output_cap = null;
     private String output_exp = null;
     private String output_jar = null;
@@ -74,8 +87,15 @@ public class JCCap extends Task {
     private boolean verify = true;
     private boolean debug = false;
     private boolean strip = false;
+    private boolean stripdebug = false;
+    private int transientwarning = -1;
+    private String costprofile = null;
+    private boolean lint = false;
+    private int commitcapacity = -1;
     private boolean ints = false;
     private boolean exportmap = false;
+    private boolean instrument = false;
+    private Instrument instrumented = null;
     final static String _logconf;
 
     static final String LOGHACK = "_ANT_JAVACARD_LOGHACK";
@@ -164,6 +184,26 @@ public class JCCap extends Task {
         strip = arg;
     }
 
+    public void setStripdebug(boolean arg) {
+        stripdebug = arg;
+    }
+
+    public void setTransientwarning(int arg) {
+        transientwarning = arg;
+    }
+
+    public void setCostprofile(String arg) {
+        costprofile = arg;
+    }
+
+    public void setLint(boolean arg) {
+        lint = arg;
+    }
+
+    public void setCommitcapacity(int arg) {
+        commitcapacity = arg;
+    }
+
     public void setInts(boolean arg) {
         ints = arg;
     }
@@ -172,6 +212,10 @@ public class JCCap extends Task {
         exportmap = arg;
     }
 
+    public void setInstrument(boolean arg) {
+        instrument = arg;
+    }
+
     public void setTargetsdk(String arg) {
         raw_targetsdk = arg;
     }
@@ -201,6 +245,28 @@ public class JCCap extends Task {
         return imp;
     }
 
+    // Same CAP file under other AID-s and versions
+    public JCVariant createVariant() {
+        JCVariant variant = new JCVariant();
+        raw_variants.add(variant);
+        return variant;
+    }
+
+    // Library packages to link into the CAP file
+    public JCLink createLink() {
+        JCLink link = new JCLink();
+        raw_links.add(link);
+        return link;
+    }
+
+    // Size limits for the CAP file
+    public JCBudget createBudget() {
+        if (raw_budget != null)
+            throw new HelpingBuildException("Only one <budget> per <cap> is allowed");
+        raw_budget = new JCBudget();
+        return raw_budget;
+    }
+
     // To support usage from Gradle, where import is a reserved name
     public JCImport createJimport() {
         return this.createImport();
@@ -293,13 +359,7 @@ public class JCCap extends Task {
         if (package_version == null) {
             package_version = "0.0";
         } else {
-            // Allowed values are 0..127
-            if (!package_version.matches("^[0-9]{1,3}\\.[0-9]{1,3}$")) {
-                throw new HelpingBuildException("Invalid package version: " + package_version);
-            }
-            if (Arrays.stream(package_version.split("\\.")).map(e -> Integer.parseInt(e, 10)).anyMatch(e -> (e < 0 || e > 127))) {
-                throw new HelpingBuildException("Illegal package version value: " + package_version);
-            }
+            checkVersion(package_version);
         }
 
         // Check imports
@@ -365,6 +425,31 @@ public class JCCap extends Task {
             throw new HelpingBuildException("Must specify package AID");
         }
 
+        // Check libraries to link
+        for (JCLink l : raw_links) {
+            if (l.cap == null)
+                throw new HelpingBuildException("Link needs the CAP file of the library");
+            if (!getProject().resolveFile(l.cap).isFile())
+                throw new HelpingBuildException("No such library CAP file: " + l.cap);
+        }
+
+        // Check variants
+        for (JCVariant v : raw_variants) {
+            if (v.aid == null)
+                throw new HelpingBuildException("Variant AID is missing");
+            if (v.version == null)
+                v.version = package_version;
+            checkVersion(v.version);
+            for (JCApplet a : v.applets) {
+                if (a.klass == null || a.aid == null)
+                    throw new HelpingBuildException("Variant applet needs both class and AID");
+                if (!a.klass.contains("."))
+                    a.klass = package_name + "." + a.klass;
+                if (raw_applets.stream().noneMatch(r -> r.klass.equals(a.klass)))
+                    throw new HelpingBuildException("Variant applet " + a.klass + " is not an applet of the CAP");
+            }
+        }
+
         // Package name must be present if no applets
         if (raw_applets.isEmpty()) {
             if (package_name == null) {
@@ -388,6 +473,16 @@ public class JCCap extends Task {
         }
     }
 
+    // Allowed values are 0..127
+    private static void checkVersion(String version) {
+        if (!version.matches("^[0-9]{1,3}\\.[0-9]{1,3}$")) {
+            throw new HelpingBuildException("Invalid package version: " + version);
+        }
+        if (Arrays.stream(version.split("\\.")).map(e -> Integer.parseInt(e, 10)).anyMatch(e -> (e < 0 || e > CAPPackage.MAX_VERSION))) {
+            throw new HelpingBuildException("Illegal package version value: " + version);
+        }
+    }
+
     // To lessen the java.nio and apache.ant namespace clash...
     private org.apache.tools.ant.types.Path mkPath(String name) {
         if (name == null)
@@ -502,6 +597,11 @@ public class JCCap extends Task {
         j.setListfiles(true);
 
         // set classpath
+        addCompileClasspath(j);
+        j.execute();
+    }
+
+    private void addCompileClasspath(Javac j) {
         org.apache.tools.ant.types.Path cp = j.createClasspath();
         JavaCardSDK sdk = targetsdk == null ? jckit : targetsdk;
         for (Path jar : sdk.getApiJars()) {
@@ -513,7 +613,50 @@ public class JCCap extends Task {
                 cp.append(mkPath(i.jar));
             }
         }
+    }
+
+    // Rewrites a copy of the classes to count method entries, and compiles the counter class
+    // next to them. The classes folder is left alone, so that normal builds are not affected.
+    private void instrument() {
+        Project project = getProject();
+        setTaskName("instrument");
+        Path classes = project.resolveFile(classes_path).toPath();
+        Path tmp = Misc.makeTemp("instrumented-" + runIdentifier());
+        Path src = Misc.makeTemp("counters-" + runIdentifier());
+        instrumented = new Instrument(package_name);
+        try {
+            Misc.cpminusr(classes, tmp);
+            instrumented.rewrite(tmp);
+            Path source = src.resolve(package_name.replace(".", File.separator)).resolve(Instrument.COUNTERS + ".java");
+            Files.createDirectories(source.getParent());
+            Files.write(source, instrumented.source().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new BuildException("Could not instrument classes: " + e.getMessage(), e);
+        }
+        classes_path = tmp.toAbsolutePath().toString();
+
+        Javac j = new Javac();
+        j.setProject(project);
+        j.setEncoding("utf-8");
+        j.setTaskName("instrument");
+        j.setSrcdir(mkPath(src.toString()));
+        j.setSourcepath(new org.apache.tools.ant.types.Path(project, null));
+        j.setDestdir(tmp.toFile());
+        j.setDebug(true);
+        j.setDebugLevel("lines,vars,source");
+        j.setTarget(jckit.getVersion().javaVersion());
+        j.setSource(jckit.getVersion().javaVersion());
+        j.setIncludeantruntime(false);
+        j.createCompilerArg().setValue("-Xlint:-options");
+        j.setFailonerror(true);
+        j.setFork(true);
+        addCompileClasspath(j);
+        j.createClasspath().append(mkPath(classes_path));
         j.execute();
+
+        log("Instrumented " + instrumented.getMethods().size() + " methods", Project.MSG_INFO);
+        if (instrumented.getDumpers() == 0)
+            log("No process(APDU) method in " + package_name + ", counters can not be read", Project.MSG_WARN);
     }
 
     private void addKitClasses(Java j) {
@@ -650,6 +793,9 @@ public class JCCap extends Task {
             if (sources_path != null) {
                 compile();
             }
+            if (instrument) {
+                instrument();
+            }
 
             // Create temporary folder and add to cleanup
             Path applet_folder = Misc.makeTemp("applet-" + runIdentifier());
@@ -697,17 +843,10 @@ public class JCCap extends Task {
 
             // Verify
             if (verify) {
-                setTaskName("verify");
-                OffCardVerifier verifier = OffCardVerifier.withSDK(jckit);
                 // Add current export file
                 exps.add(exp);
                 exps.add(targetsdk.getExportDir());
-                try {
-                    verifier.verify(cap, new ArrayList<>(exps));
-                    log("Verification of " + cap + " passed", Project.MSG_INFO);
-                } catch (VerifierError | IOException e) {
-                    throw new BuildException("Verification of " + cap + " failed: " + e.getMessage());
-                }
+                verify(cap, exps);
             }
 
             setTaskName("cap");
@@ -718,85 +857,74 @@ public class JCCap extends Task {
                     throw new BuildException("Can not find CAP in " + jcsrc);
                 }
 
-                // copy CAP file
-                CAPFile capfile = CAPFile.fromBytes(Files.readAllBytes(cap));
+                // Filter, hash and write the CAP file in one pass. As the name depends on the
+                // contents, it is written next to the destination and renamed afterwards.
+                Path outDir = project.resolveFile(output_cap).toPath().getParent();
+                Path tmpDir = outDir != null && Files.isDirectory(outDir) ? outDir : applet_folder;
+                Path tmpCap = tmpDir.resolve(ln + Long.toUnsignedString(new Random().nextLong()) + ".cap");
+                // Analyses, linking and variants need all of it, otherwise only what makes the name
+                boolean keep = raw_budget != null || lint || commitcapacity >= 0 || costprofile != null || transientwarning >= 0
+                        || !raw_links.isEmpty() || !raw_variants.isEmpty();
+                final CAPFile saved;
+                String template = output_cap;
+                final Path outCap;
+                boolean moved = false;
+                try {
+                    final CAPFile capfile;
+                    try (InputStream in = Files.newInputStream(cap); OutputStream out = Files.newOutputStream(tmpCap, StandardOpenOption.CREATE_NEW)) {
+                        capfile = CAPFile.copy(in, out, this::keepInCap, keep ? name -> CAPFile.Retention.KEEP : CAPFile.retain("Header", "Directory", "Import", "Applet"), "SHA-256");
+                    }
 
-                // Create output name, if not given.
-                output_cap = capFileName(capfile, output_cap);
+                    // Libraries are linked into the saved CAP file, so analyses are of that one
+                    saved = raw_links.isEmpty() ? capfile : link(capfile, tmpCap);
+                    // Linking rewrites the bytecode, so the result is verified again
+                    if (verify && !raw_links.isEmpty())
+                        verify(tmpCap, exps);
+
+                    // Fail before saving if over budget
+                    checkBudgets(saved);
+                    if (transientwarning >= 0)
+                        checkTransient(saved);
+                    if (lint)
+                        lint(saved, exps);
+                    if (commitcapacity >= 0)
+                        checkTransactions(saved, exps);
+                    if (costprofile != null) {
+                        CostProfile profile;
+                        try {
+                            profile = CostProfile.load(project.resolveFile(costprofile).toPath());
+                        } catch (IllegalArgumentException e) {
+                            throw new BuildException("Invalid cost profile " + costprofile + ": " + e.getMessage());
+                        }
+                        saved.getCycleCosts(profile).forEach((aid, cost) -> log(DummyMain.cycles(aid, cost).trim(), Project.MSG_INFO));
+                    }
 
-                // resolve output path
-                Path outCap = project.resolveFile(output_cap).toPath();
+                    // Create output name, if not given. Variants use the same template.
+                    output_cap = capFileName(saved, output_cap);
 
-                // strip classes, if asked
-                if (strip) {
-                    CAPFile.strip(cap);
+                    // resolve output path
+                    outCap = project.resolveFile(output_cap).toPath();
+                    Files.move(tmpCap, outCap, StandardCopyOption.REPLACE_EXISTING);
+                    moved = true;
+                } finally {
+                    if (!moved)
+                        Files.deleteIfExists(tmpCap);
                 }
-
-                // perform the copy
-                Files.copy(cap, outCap, StandardCopyOption.REPLACE_EXISTING);
                 // report destination
                 log("CAP saved to " + outCap, Project.MSG_INFO);
 
-                // copy EXP file
-                if (output_exp != null) {
-                    setTaskName("exp");
-                    // check that an EXP file got created
-                    if (!Files.exists(exp)) {
-                        throw new BuildException("Can not find EXP in " + jcsrc);
-                    }
-                    // resolve output directory
-                    Path outExp = project.resolveFile(output_exp).toPath();
-                    // determine package directories
-                    Path outExpPkg = outExp.resolve(pkgPath);
-                    Path outExpPkgJc = outExpPkg.resolve("javacard");
-                    // create directories
-                    if (!Files.exists(outExpPkgJc)) {
-                        Files.createDirectories(outExpPkgJc);
-                    }
-                    // perform the copy
-                    Path exp_file = outExpPkgJc.resolve(exp.getFileName());
-
-                    Files.copy(exp, exp_file, StandardCopyOption.REPLACE_EXISTING);
-                    // report destination
-                    log("EXP saved to " + exp_file, Project.MSG_INFO);
-                    // add the export directory to the export path for verification
-                    exps.add(outExp);
+                // Names of the counters, for decoding the dump
+                if (instrumented != null) {
+                    Path methods = outCap.resolveSibling(outCap.getFileName().toString().replaceFirst("\\.cap$", "") + ".counters");
+                    Files.write(methods, instrumented.getMethods(), StandardCharsets.UTF_8);
+                    log(String.format("Counters of %s saved to %s, read with CLA %02X INS %02X and P1 0..%d", outCap.getFileName(), methods,
+                            HitProfile.CLA, HitProfile.INS, HitProfile.pages(instrumented.getMethods().size()) - 1), Project.MSG_INFO);
                 }
 
-                // copy JCA file
-                if (output_jca != null) {
-                    setTaskName("jca");
-                    // check that a JCA file got created
-                    if (!Files.exists(jca)) {
-                        throw new BuildException("Can not find JCA in " + jcsrc);
-                    }
-                    // resolve output path
-                    outCap = project.resolveFile(output_jca).toPath();
-                    Files.copy(jca, outCap, StandardCopyOption.REPLACE_EXISTING);
-                    log("JCA saved to " + outCap.toAbsolutePath(), Project.MSG_INFO);
-                }
+                if (!raw_variants.isEmpty())
+                    variants(saved, outCap, template);
 
-                // create JAR file
-                if (output_jar != null) {
-                    setTaskName("jar");
-                    File outJar = project.resolveFile(output_jar);
-                    // create a new JAR task
-                    Jar jarz = new Jar();
-                    jarz.setProject(project);
-                    jarz.setTaskName("jar");
-                    jarz.setDestFile(outJar);
-                    // include class files
-                    FileSet jarcls = new FileSet();
-                    jarcls.setDir(project.resolveFile(classes_path));
-                    jarz.add(jarcls);
-                    // include conversion output
-                    FileSet jarout = new FileSet();
-                    jarout.setDir(applet_folder.toFile());
-                    jarz.add(jarout);
-                    // create the JAR
-                    jarz.execute();
-                    log("JAR saved to " + outJar.getAbsolutePath(), Project.MSG_INFO);
-                }
+                outputs(outCap, cap, exp, jca, pkgPath, applet_folder, exps);
             } catch (IOException e) {
                 e.printStackTrace();
                 throw new BuildException("Can not copy output CAP, EXP or JCA", e);
@@ -806,6 +934,232 @@ public class JCCap extends Task {
         }
     }
 
+    private void verify(Path cap, Set<Path> exps) {
+        setTaskName("verify");
+        OffCardVerifier verifier = OffCardVerifier.withSDK(jckit);
+        try {
+            verifier.verify(cap, new ArrayList<>(exps));
+            log("Verification of " + cap + " passed", Project.MSG_INFO);
+        } catch (VerifierError | IOException e) {
+            throw new BuildException("Verification of " + cap + " failed: " + e.getMessage());
+        } finally {
+            setTaskName("cap");
+        }
+    }
+
+    // Copies the EXP and JCA files and creates the JAR file, once the CAP file has been saved. The JAR
+    // has the conversion output, with the converted CAP file replaced by the saved one.
+    void outputs(Path saved, Path cap, Path exp, Path jca, String pkgPath, Path conversion, Set<Path> exps) throws IOException {
+        Project project = getProject();
+        // copy EXP file
+        if (output_exp != null) {
+            setTaskName("exp");
+            // check that an EXP file got created
+            if (!Files.exists(exp)) {
+                throw new BuildException("Can not find EXP in " + exp.getParent());
+            }
+            // resolve output directory
+            Path outExp = project.resolveFile(output_exp).toPath();
+            // determine package directories
+            Path outExpPkg = outExp.resolve(pkgPath);
+            Path outExpPkgJc = outExpPkg.resolve("javacard");
+            // create directories
+            if (!Files.exists(outExpPkgJc)) {
+                Files.createDirectories(outExpPkgJc);
+            }
+            // perform the copy
+            Path exp_file = outExpPkgJc.resolve(exp.getFileName());
+
+            Files.copy(exp, exp_file, StandardCopyOption.REPLACE_EXISTING);
+            // report destination
+            log("EXP saved to " + exp_file, Project.MSG_INFO);
+            // add the export directory to the export path for verification
+            exps.add(outExp);
+        }
+
+        // copy JCA file
+        if (output_jca != null) {
+            setTaskName("jca");
+            // check that a JCA file got created
+            if (!Files.exists(jca)) {
+                throw new BuildException("Can not find JCA in " + jca.getParent());
+            }
+            // resolve output path
+            Path outJca = project.resolveFile(output_jca).toPath();
+            Files.copy(jca, outJca, StandardCopyOption.REPLACE_EXISTING);
+            log("JCA saved to " + outJca.toAbsolutePath(), Project.MSG_INFO);
+        }
+
+        // create JAR file
+        if (output_jar != null) {
+            setTaskName("jar");
+            File outJar = project.resolveFile(output_jar);
+            // create a new JAR task
+            Jar jarz = new Jar();
+            jarz.setProject(project);
+            jarz.setTaskName("jar");
+            jarz.setDestFile(outJar);
+            // include class files
+            FileSet jarcls = new FileSet();
+            jarcls.setDir(project.resolveFile(classes_path));
+            jarz.add(jarcls);
+            // include conversion output, with the CAP file as saved
+            Files.copy(saved, cap, StandardCopyOption.REPLACE_EXISTING);
+            FileSet jarout = new FileSet();
+            jarout.setDir(conversion.toFile());
+            jarz.add(jarout);
+            // create the JAR
+            jarz.execute();
+            log("JAR saved to " + outJar.getAbsolutePath(), Project.MSG_INFO);
+        }
+    }
+
+    private void checkBudgets(CAPFile cap) {
+        if (raw_budget == null)
+            return;
+        Map<String, Integer> limits = new HashMap<>();
+        limits.put("Method", raw_budget.method);
+        limits.put("StaticField", raw_budget.staticfield);
+        limits.put("ConstantPool", raw_budget.constantpool);
+        StringBuilder breakdown = new StringBuilder();
+        boolean exceeded = false;
+        for (String name : CAPFile.getComponentNames()) {
+            Optional<Integer> size = cap.getComponentSize(name);
+            if (size.isPresent())
+                exceeded |= budgetLine(breakdown, name, size.get(), limits.getOrDefault(name, -1), "bytes");
+        }
+        exceeded |= budgetLine(breakdown, "Load file", cap.getCodeLength(false), raw_budget.loadfile, "bytes");
+        exceeded |= budgetLine(breakdown, "Applets", cap.getAppletAIDs().size(), raw_budget.applets, "");
+        exceeded |= budgetLine(breakdown, "Relocations", cap.getLinkCost().getSiteCount(), raw_budget.relocations, "");
+        if (exceeded)
+            throw new BuildException("CAP file exceeds budget:\n" + breakdown);
+        log("CAP file within budget:\n" + breakdown, Project.MSG_VERBOSE);
+    }
+
+    // Names of imported methods come from the export files used for conversion
+    private Map<AID, ExportFile> exports(Set<Path> exps) throws IOException {
+        Map<AID, ExportFile> exports = new HashMap<>();
+        List<Path> dirs = new ArrayList<>(exps);
+        dirs.add(0, targetsdk.getExportDir());
+        for (Path dir : dirs) {
+            if (dir != null && Files.isDirectory(dir))
+                ExportFile.load(dir).forEach(exports::putIfAbsent);
+        }
+        return exports;
+    }
+
+    private void lint(CAPFile cap, Set<Path> exps) throws IOException {
+        for (Lint.Finding finding : cap.lint(exports(exps))) {
+            log(finding.toString(), Project.MSG_WARN);
+        }
+    }
+
+    // Writes in transactions against the commit capacity of the card
+    private void checkTransactions(CAPFile cap, Set<Path> exps) throws IOException {
+        for (PersistentWrites.Transaction t : cap.getPersistentWrites(exports(exps)).getTransactions()) {
+            if (!t.fits(commitcapacity, 0))
+                log("Transaction in " + t + " exceeds commit capacity of " + commitcapacity + " bytes", Project.MSG_WARN);
+            else
+                log("Transaction in " + t, Project.MSG_VERBOSE);
+        }
+    }
+
+    // Transient RAM of the applets, as allocated during install()
+    private void checkTransient(CAPFile cap) {
+        for (Map.Entry<AID, MemoryFootprint.Instance> e : cap.getMemoryFootprint().getInstances().entrySet()) {
+            MemoryFootprint.Instance instance = e.getValue();
+            String ram = String.format("Applet %s uses ~%d bytes of transient RAM (%d CLEAR_ON_RESET, %d CLEAR_ON_DESELECT)", e.getKey(),
+                    instance.getTransientTotal(), instance.getClearOnResetBytes(), instance.getClearOnDeselectBytes());
+            if (instance.getUnsizedTransientArrayCount() > 0)
+                ram += String.format(" and %d arrays of unknown size", instance.getUnsizedTransientArrayCount());
+            if (instance.getTransientTotal() > transientwarning)
+                log(ram + ", more than " + transientwarning, Project.MSG_WARN);
+            else
+                log(ram, Project.MSG_VERBOSE);
+        }
+    }
+
+    // Links the libraries, in order, into the CAP file and writes the result over the file. Each must
+    // be imported by the result so far, so libraries used by other libraries come after them.
+    private CAPFile link(CAPFile cap, Path file) throws IOException {
+        setTaskName("link");
+        CAPFile linked = cap;
+        int before = linked.getCodeLength(false);
+        for (JCLink l : raw_links) {
+            Path lib = getProject().resolveFile(l.cap).toPath();
+            try {
+                linked = linked.link(CAPFile.fromFile(lib));
+            } catch (IllegalArgumentException e) {
+                throw new BuildException("Can not link " + lib + ": " + e.getMessage());
+            }
+            log("Linked " + lib, Project.MSG_VERBOSE);
+        }
+        try (OutputStream out = Files.newOutputStream(file)) {
+            linked.store(out);
+        }
+        log(String.format("Linked %d libraries, load file %d bytes (%d without them)", raw_links.size(), linked.getCodeLength(false), before), Project.MSG_INFO);
+        setTaskName("cap");
+        return linked;
+    }
+
+    // Variants are patched from the final CAP file, which is not converted nor verified again
+    private void variants(CAPFile base, Path cap, String template) throws IOException {
+        setTaskName("variant");
+        Set<Path> written = new HashSet<>();
+        written.add(cap.toAbsolutePath());
+        for (JCVariant v : raw_variants) {
+            Map<AID, AID> applets = new LinkedHashMap<>();
+            for (JCApplet app : raw_applets) {
+                Optional<JCApplet> explicit = v.applets.stream().filter(a -> a.klass.equals(app.klass)).findFirst();
+                final byte[] aid;
+                if (explicit.isPresent()) {
+                    aid = explicit.get().aid;
+                } else if (app.aid.length > package_aid.length && Arrays.equals(Arrays.copyOf(app.aid, package_aid.length), package_aid)) {
+                    aid = Arrays.copyOf(v.aid, v.aid.length + app.aid.length - package_aid.length);
+                    System.arraycopy(app.aid, package_aid.length, aid, v.aid.length, app.aid.length - package_aid.length);
+                } else {
+                    aid = app.aid;
+                }
+                if (aid.length > 16)
+                    throw new HelpingBuildException("Applet AID of " + app.klass + " in variant " + Misc.encodeHexString(v.aid) + " is longer than 16 bytes, set it explicitly");
+                if (!Arrays.equals(Arrays.copyOf(v.aid, 5), Arrays.copyOf(aid, 5)))
+                    throw new HelpingBuildException("Variant RID does not match Applet RID of " + app.klass);
+                applets.put(new AID(app.aid), new AID(aid));
+            }
+            final CAPFile variant;
+            try {
+                variant = base.variant(new AID(v.aid), v.version, applets);
+            } catch (IllegalArgumentException e) {
+                throw new BuildException("Can not patch variant " + Misc.encodeHexString(v.aid) + ": " + e.getMessage());
+            }
+            Path out = getProject().resolveFile(capFileName(variant, v.output == null ? template : v.output)).toPath();
+            if (!written.add(out.toAbsolutePath()))
+                throw new HelpingBuildException("Variant " + Misc.encodeHexString(v.aid) + " v" + v.version + " would overwrite " + out + ", set output or use %a, %v or %h in the name");
+            try (OutputStream os = Files.newOutputStream(out)) {
+                variant.storeReproducible(os, -1);
+            }
+            log("Variant " + variant.getPackageAID() + " v" + v.version + " saved to " + out, Project.MSG_INFO);
+        }
+    }
+
+    private static boolean budgetLine(StringBuilder breakdown, String name, int value, int limit, String unit) {
+        boolean exceeded = limit >= 0 && value > limit;
+        breakdown.append(String.format("  %-13s %6d", name, value));
+        if (limit >= 0)
+            breakdown.append(String.format(" / %d", limit));
+        breakdown.append(unit.isEmpty() ? "" : " " + unit).append(exceeded ? "  EXCEEDED" : "").append('\n');
+        return exceeded;
+    }
+
+    // Entries of the converted CAP file that go to the output
+    private boolean keepInCap(String name) {
+        if (strip && name.endsWith(".class"))
+            return false;
+        if (stripdebug && (name.endsWith("/javacard/Debug.cap") || name.endsWith("/javacard/Descriptor.cap")))
+            return false;
+        return true;
+    }
+
     private String capFileName(CAPFile cap, String template) {
         String name = template;
         final String n;
@@ -817,8 +1171,9 @@ public class JCCap extends Task {
         }
 
         // LFDBH-s
-        name = name.replace("%H", Misc.encodeHexString(cap.getLoadFileDataHash("SHA-256")).toLowerCase());
-        name = name.replace("%h", Misc.encodeHexString(cap.getLoadFileDataHash("SHA-256")).toLowerCase().substring(0, 8));
+        String lfdbh = Misc.encodeHexString(cap.getLoadFileDataHash("SHA-256")).toLowerCase();
+        name = name.replace("%H", lfdbh);
+        name = name.replace("%h", lfdbh.substring(0, 8));
         name = name.replace("%n", n); // "common name", applet or package
         name = name.replace("%p", cap.getPackageName()); // package name
         name = name.replace("%a", cap.getPackageAID().toString()); // package AID
@@ -112,6 +112,25 @@ final class Misc {
         }
     }
 
+    // Copy of a folder, into an existing folder
+    static void cpminusr(Path from, Path to) throws IOException {
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     static byte[] stringToBin(String s) {
         s = s.toLowerCase().replaceAll(" ", "").replaceAll(":", "");
         s = s.replaceAll("0x", "").replaceAll("\n", "").replaceAll("\t", "");
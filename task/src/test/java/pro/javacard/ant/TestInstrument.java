@@ -0,0 +1,157 @@
+package pro.javacard.ant;
+
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+import pro.javacard.capfile.HitProfile;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class TestInstrument {
+    static final String PKG = "testapplets.instrument";
+    static final String COUNTED = PKG + ".Counted";
+
+    // Just enough of javacard.framework to compile and run the test applet and the counters on the JVM
+    static final String[][] FRAMEWORK = {
+            {"APDU", "public class APDU {\n"
+                    + "    private final byte[] buffer;\n"
+                    + "    public short sent = -1;\n"
+                    + "    public APDU(byte[] buffer) { this.buffer = buffer; }\n"
+                    + "    public byte[] getBuffer() { return buffer; }\n"
+                    + "    public void setOutgoingAndSend(short offset, short length) { sent = length; }\n"
+                    + "}\n"},
+            {"Applet", "public abstract class Applet {\n"
+                    + "    public static Applet registered;\n"
+                    + "    protected final void register(byte[] aid, short offset, byte length) { registered = this; }\n"
+                    + "    public abstract void process(APDU apdu) throws ISOException;\n"
+                    + "}\n"},
+            {"ISO7816", "public interface ISO7816 {\n"
+                    + "    byte OFFSET_CLA = 0, OFFSET_INS = 1, OFFSET_P1 = 2, OFFSET_P2 = 3, OFFSET_CDATA = 5;\n"
+                    + "    short SW_WRONG_P1P2 = 0x6B00, SW_INS_NOT_SUPPORTED = 0x6D00;\n"
+                    + "}\n"},
+            {"ISOException", "public class ISOException extends RuntimeException {\n"
+                    + "    private final short reason;\n"
+                    + "    public ISOException(short reason) { this.reason = reason; }\n"
+                    + "    public short getReason() { return reason; }\n"
+                    + "    public static void throwIt(short reason) { throw new ISOException(reason); }\n"
+                    + "}\n"},
+            {"JCSystem", "public final class JCSystem {\n"
+                    + "    public static final byte CLEAR_ON_RESET = 1;\n"
+                    + "    public static short[] makeTransientShortArray(short length, byte event) { return new short[length]; }\n"
+                    + "}\n"},
+            {"Util", "public final class Util {\n"
+                    + "    public static short setShort(byte[] b, short offset, short value) {\n"
+                    + "        b[offset] = (byte) (value >> 8);\n"
+                    + "        b[offset + 1] = (byte) value;\n"
+                    + "        return (short) (offset + 2);\n"
+                    + "    }\n"
+                    + "}\n"},
+    };
+
+    static void javac(Path classes, List<Path> sources) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        if (javac == null)
+            throw new SkipException("No Java compiler available");
+        List<String> args = new ArrayList<>(Arrays.asList("-g", "-nowarn", "-d", classes.toString(), "-cp", classes.toString()));
+        sources.forEach(s -> args.add(s.toString()));
+        Assert.assertEquals(javac.run(null, null, null, args.toArray(new String[0])), 0, "javac failed");
+    }
+
+    static Path write(Path dir, String pkg, String name, String source) throws Exception {
+        Path file = dir.resolve(pkg.replace('.', '/')).resolve(name + ".java");
+        Files.createDirectories(file.getParent());
+        Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // The test applet as built by tests.xml, with a switch, a loop and an exception handler
+    static Path applet() {
+        Path basedir = Paths.get(System.getProperty("basedir", "task"));
+        return basedir.resolve("../src/testapplets/instrument/Counted.java");
+    }
+
+    @Test
+    public void testRewrittenClassesVerify() throws Exception {
+        Path tmp = Files.createTempDirectory("instrument");
+        try {
+            Path src = tmp.resolve("src");
+            Path classes = Files.createDirectories(tmp.resolve("classes"));
+            List<Path> sources = new ArrayList<>();
+            for (String[] c : FRAMEWORK)
+                sources.add(write(src, "javacard.framework", c[0], "package javacard.framework;\n\n" + c[1]));
+            sources.add(write(src, PKG, "Counted", new String(Files.readAllBytes(applet()), StandardCharsets.UTF_8)));
+            javac(classes, sources);
+
+            Path counted = classes.resolve("testapplets/instrument/Counted.class");
+            byte[] original = Files.readAllBytes(counted);
+            Instrument instrument = new Instrument(PKG);
+            instrument.rewrite(classes);
+            Assert.assertNotEquals(Files.readAllBytes(counted), original);
+            Assert.assertEquals(instrument.getMethods(), Arrays.asList(COUNTED + ".<init>([BSB)V", COUNTED + ".install([BSB)V",
+                    COUNTED + ".process(Ljavacard/framework/APDU;)V", COUNTED + ".sum([BB)S", COUNTED + ".check(B)V"));
+            Assert.assertEquals(instrument.getDumpers(), 1);
+            javac(classes, Arrays.asList(write(src, PKG, Instrument.COUNTERS, instrument.source())));
+
+            // Classes from a non-boot loader are verified when initialized
+            try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, null)) {
+                Class<?> applet = Class.forName(COUNTED, true, loader);
+                Class<?> apdu = Class.forName("javacard.framework.APDU", true, loader);
+                applet.getMethod("install", byte[].class, short.class, byte.class).invoke(null, new byte[]{0x00}, (short) 0, (byte) 1);
+                Object instance = loader.loadClass("javacard.framework.Applet").getField("registered").get(null);
+                Method process = applet.getMethod("process", apdu);
+                Field last = applet.getDeclaredField("last");
+                last.setAccessible(true);
+
+                process.invoke(instance, apdu.getConstructor(byte[].class).newInstance((Object) new byte[]{0x00, 0x10, 0x02, 0x00, 0x02, 0x03, 0x04}));
+                Assert.assertEquals(last.get(instance), (short) 7);
+                process.invoke(instance, apdu.getConstructor(byte[].class).newInstance((Object) new byte[]{0x00, 0x20, 0x01, 0x00, 0x00}));
+                Assert.assertEquals(last.get(instance), (short) 0x6B00);
+                try {
+                    process.invoke(instance, apdu.getConstructor(byte[].class).newInstance((Object) new byte[]{0x00, 0x30, 0x00, 0x00, 0x00}));
+                    Assert.fail("Unknown INS must throw");
+                } catch (InvocationTargetException e) {
+                    Assert.assertEquals(e.getCause().getClass().getName(), "javacard.framework.ISOException");
+                }
+
+                // The dump command is answered before the switch, but counted as an entry
+                byte[] buffer = Arrays.copyOf(HitProfile.command(0, false), 64);
+                Object dump = apdu.getConstructor(byte[].class).newInstance((Object) buffer);
+                process.invoke(instance, dump);
+                short sent = apdu.getField("sent").getShort(dump);
+                Assert.assertEquals(sent, 2 * instrument.getMethods().size());
+                Map<String, Integer> counts = new HashMap<>();
+                for (HitProfile.Hit hit : HitProfile.decode(instrument.getMethods(), Arrays.copyOf(buffer, sent)).getHits())
+                    counts.put(hit.getMethod(), hit.getCount());
+                Assert.assertEquals(counts.get(COUNTED + ".<init>([BSB)V"), Integer.valueOf(1));
+                Assert.assertEquals(counts.get(COUNTED + ".process(Ljavacard/framework/APDU;)V"), Integer.valueOf(4));
+                Assert.assertEquals(counts.get(COUNTED + ".sum([BB)S"), Integer.valueOf(1));
+                Assert.assertEquals(counts.get(COUNTED + ".check(B)V"), Integer.valueOf(1));
+                Assert.assertEquals(last.get(instance), (short) 0x6B00);
+
+                // Also on another logical channel
+                buffer = Arrays.copyOf(HitProfile.command(0, false), 64);
+                buffer[0] |= 0x01;
+                dump = apdu.getConstructor(byte[].class).newInstance((Object) buffer);
+                process.invoke(instance, dump);
+                Assert.assertEquals(apdu.getField("sent").getShort(dump), sent);
+            }
+        } finally {
+            Misc.rmminusrf(tmp);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package pro.javacard.ant;
+
+import org.apache.tools.ant.Project;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+public class TestJCCap {
+
+    static byte[] read(JarFile jar, String name) throws Exception {
+        ZipEntry entry = jar.getEntry(name);
+        Assert.assertNotNull(entry, name);
+        try (InputStream in = jar.getInputStream(entry)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int c;
+            while ((c = in.read(buf)) != -1)
+                bos.write(buf, 0, c);
+            return bos.toByteArray();
+        }
+    }
+
+    @Test
+    public void testJarHasSavedCapWithJca() throws Exception {
+        Path tmp = Files.createTempDirectory("jccap");
+        try {
+            Path classes = tmp.resolve("classes");
+            Files.createDirectories(classes.resolve("testapplets/empty"));
+            Files.write(classes.resolve("testapplets/empty/Empty.class"), new byte[]{(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE});
+            // Conversion output as left by the converter
+            Path conversion = tmp.resolve("conversion");
+            Path jcsrc = Files.createDirectories(conversion.resolve("testapplets/empty/javacard"));
+            Path cap = Files.write(jcsrc.resolve("empty.cap"), "converted".getBytes(StandardCharsets.UTF_8));
+            Path jca = Files.write(jcsrc.resolve("empty.jca"), "listing".getBytes(StandardCharsets.UTF_8));
+            Path exp = jcsrc.resolve("empty.exp");
+            Path saved = Files.write(tmp.resolve("Empty.cap"), "saved".getBytes(StandardCharsets.UTF_8));
+
+            Project project = new Project();
+            project.setBaseDir(tmp.toFile());
+            JCCap task = new JCCap(null);
+            task.setProject(project);
+            task.setClasses(classes.toString());
+            task.setJca("Empty.jca");
+            task.setJar("Empty.jar");
+            task.outputs(saved, cap, exp, jca, "testapplets/empty", conversion, new HashSet<>());
+
+            Assert.assertEquals(Files.readAllBytes(tmp.resolve("Empty.jca")), "listing".getBytes(StandardCharsets.UTF_8));
+            try (JarFile jar = new JarFile(tmp.resolve("Empty.jar").toFile())) {
+                Assert.assertEquals(read(jar, "testapplets/empty/javacard/empty.cap"), "saved".getBytes(StandardCharsets.UTF_8));
+                Assert.assertEquals(read(jar, "testapplets/empty/javacard/empty.jca"), "listing".getBytes(StandardCharsets.UTF_8));
+                Assert.assertNotNull(jar.getEntry("testapplets/empty/Empty.class"));
+            }
+        } finally {
+            Misc.rmminusrf(tmp);
+        }
+    }
+}